@@ -0,0 +1,692 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.agent.db;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hyperic.hq.agent.stats.AgentStatsCollector;
+
+/**
+ * A SegmentedSpool is an append-only list on disk, intended for the high
+ * volume spools of the agent (measurement and availability data) which are
+ * always appended at the tail and consumed from the head.
+ *
+ * Records are written into fixed width slots of memory-mapped segment files.
+ * When a segment is full a new one is rolled, and once every record of a
+ * segment has been removed the segment file is deleted.  Removing a record
+ * only flips the state byte of its slot, so unlike the DiskList there is no
+ * index file or free list to maintain.
+ *
+ * Segment files are named after the index of their first record, which
+ * keeps the index of a record (as used by removeRecord()) stable for its
+ * lifetime.  Indexes keep increasing across restarts: once the last segment
+ * is gone the next index is saved in a small file, which recover() starts
+ * from.  The format of a segment file is as follows:
+ *
+ * [Slot]
+ *      byte     - State of the slot (empty, used or removed)
+ *      short    - Length of the record data, unsigned
+ *      data     - recordSize - 2 bytes containing the raw data
+ *
+ * Writes are not forced to disk one by one.  Dirty segments are forced in
+ * sync(), which the caller invokes once per batch, or automatically after
+ * syncInterval appends.
+ */
+public class SegmentedSpool {
+    private static final Log log = LogFactory.getLog(SegmentedSpool.class.getName());
+
+    public static final long DEFAULT_SEGMENT_SIZE  = 4 * 1024 * 1024; // 4MB
+    public static final int  DEFAULT_SYNC_INTERVAL = 1000;
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String NEXT_INDEX_FILE = "next.idx";
+    private static final int    SLOT_HEADER    = 1 + 2;
+    private static final byte   SLOT_EMPTY     = 0;
+    private static final byte   SLOT_USED      = 1;
+    private static final byte   SLOT_REMOVED   = 2;
+    private static final String CHARSET        = "UTF-8";
+    // The length of the record data must fit in an unsigned short
+    private static final int    MAX_RECORD_SIZE = 0xFFFF + 2;
+
+    private static final AgentStatsCollector statsCollector = AgentStatsCollector.getInstance();
+    private static final String DISK_LIST_DISK_ITERATOR_REMOVE_TIME = AgentStatsCollector.DISK_LIST_DISK_ITERATOR_REMOVE_TIME;
+    private static final String DISK_LIST_READ_RECORD_TIME = AgentStatsCollector.DISK_LIST_READ_RECORD_TIME;
+    private static final String DISK_LIST_ADD_TO_LIST_TIME = AgentStatsCollector.DISK_LIST_ADD_TO_LIST_TIME;
+    private static final String DISK_LIST_DELETE_ALL_RECORDS_TIME = AgentStatsCollector.DISK_LIST_DELETE_ALL_RECORDS_TIME;
+    static {
+        statsCollector.register(DISK_LIST_ADD_TO_LIST_TIME);
+        statsCollector.register(DISK_LIST_READ_RECORD_TIME);
+        statsCollector.register(DISK_LIST_DISK_ITERATOR_REMOVE_TIME);
+        statsCollector.register(DISK_LIST_DELETE_ALL_RECORDS_TIME);
+    }
+
+    private final File     spoolDir;
+    private final String   spoolName;
+    private final int      recordSize;        // Max size of a record, incl. length
+    private final int      slotSize;          // Size of a slot in a segment
+    private final int      recordsPerSegment; // Slots in a newly rolled segment
+    private final long     maxLength;         // Max size of all segments in bytes
+    private final int      syncInterval;      // Appends between forced syncs
+    private final TreeMap<Long, Segment> segments; // Segments by first index
+    private long           headIdx;           // IDX of first (possibly) used record
+    private long           tailIdx;           // IDX of the next record to append
+    private int            unsynced;          // Appends since the last sync
+    private int            modNum;            // Bumped when all records are deleted.  Dropping
+                                              // segments in trimToMaxLength() does not count, the
+                                              // iterators skip the records which are gone
+    private boolean        closed;
+
+    /**
+     * Construct a new SegmentedSpool
+     *
+     * @param spoolDir    the directory holding the segment files.  It will
+     *                    be created if it does not exist.
+     * @param recordSize  The maximum size for any record within the spool,
+     *                    including the 2 byte length, just as for a DiskList.
+     * @param segmentSize Size in bytes of a segment file
+     * @param maxLength   Max size in bytes of all segments.  When it is
+     *                    exceeded the oldest segments are dropped.
+     */
+    public SegmentedSpool(File spoolDir, int recordSize, long segmentSize, long maxLength) throws IOException {
+        this(spoolDir, recordSize, segmentSize, maxLength, DEFAULT_SYNC_INTERVAL);
+    }
+
+    public SegmentedSpool(File spoolDir, int recordSize, long segmentSize, long maxLength, int syncInterval)
+        throws IOException
+    {
+        if (recordSize <= 2) {
+            throw new IllegalArgumentException("recordSize must be greater than 2");
+        }
+        if (recordSize > MAX_RECORD_SIZE) {
+            throw new IllegalArgumentException("recordSize must not exceed " + MAX_RECORD_SIZE);
+        }
+        this.spoolDir          = spoolDir;
+        this.spoolName         = spoolDir.getName();
+        this.recordSize        = recordSize;
+        this.slotSize          = SLOT_HEADER + recordSize - 2;
+        this.recordsPerSegment = (int) Math.max(1, Math.min(Integer.MAX_VALUE / this.slotSize,
+                                                            segmentSize / this.slotSize));
+        this.maxLength         = maxLength;
+        this.syncInterval      = Math.max(1, syncInterval);
+        this.segments          = new TreeMap<Long, Segment>();
+        if (!spoolDir.exists() && !spoolDir.mkdirs()) {
+            throw new IOException("Unable to create spool directory " + spoolDir);
+        }
+        if (!spoolDir.isDirectory()) {
+            throw new IOException(spoolDir + " is not a directory");
+        }
+        this.recover();
+        this.closed = false;
+    }
+
+    /**
+     * Map the existing segments and work out the head and tail of the spool.
+     * Empty slots in any segment but the last one can only be the result of
+     * a crash, and are treated as removed.
+     */
+    private void recover() throws IOException {
+        final long nextIdx = this.loadNextIndex();
+        File[] files = this.spoolDir.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        for (int i = 0; (files != null) && (i < files.length); i++) {
+            String name = files[i].getName();
+            long base;
+            try {
+                base = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                log.warn("Ignoring unknown file " + files[i] + " in spool " + this.spoolName);
+                continue;
+            }
+            if (files[i].length() < this.slotSize) {
+                files[i].delete();
+                continue;
+            }
+            int capacity = (int) Math.min(Integer.MAX_VALUE / this.slotSize, files[i].length() / this.slotSize);
+            if (base + capacity <= nextIdx) {
+                // Deleted before the next index was saved, but still on disk
+                files[i].delete();
+                continue;
+            }
+            this.segments.put(new Long(base), new Segment(files[i], base, capacity));
+        }
+
+        this.headIdx = -1;
+        this.tailIdx = nextIdx;
+        int nRecs = 0;
+        for (Iterator<Segment> it = this.segments.values().iterator(); it.hasNext(); ) {
+            Segment seg = it.next();
+            boolean last = !it.hasNext();
+            int written = seg.capacity;
+            seg.removed = 0;
+            for (int i = 0; i < seg.capacity; i++) {
+                byte state = seg.buf.get(i * this.slotSize);
+                if (state == SLOT_USED) {
+                    nRecs++;
+                    if (this.headIdx == -1) {
+                        this.headIdx = seg.base + i;
+                    }
+                } else if ((state == SLOT_EMPTY) && last) {
+                    written = i;
+                    break;
+                } else {
+                    seg.removed++;
+                }
+            }
+            if (last) {
+                this.tailIdx = Math.max(this.tailIdx, seg.base + written);
+            }
+            if ((seg.removed == seg.capacity) && !last) {
+                it.remove();
+                seg.delete();
+            }
+        }
+        if (this.headIdx == -1) {
+            this.headIdx = this.tailIdx;
+        }
+        if (nRecs > 0) {
+            log.info("Recovered " + nRecs + " records from spool " + this.spoolName +
+                     " (" + this.segments.size() + " segments)");
+        }
+    }
+
+    private static long now() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Add the string to the end of the spool.
+     *
+     * @param data Data to add to the end of the list
+     */
+    public void addToList(String data) throws IOException {
+        this.addToList(encode(data));
+    }
+
+    /**
+     * Add the raw bytes to the end of the spool.
+     */
+    public void addToList(byte[] data) throws IOException {
+        if ((data.length + 2) > this.recordSize) {
+            throw new IOException("Data length(" + (data.length + 2) + ") exceeds " +
+                                  "maximum record length(" + this.recordSize + ")");
+        }
+        final long start = now();
+        synchronized (this) {
+            if (this.closed) {
+                throw new IOException("Spool already closed");
+            }
+            Segment seg = this.segments.isEmpty() ? null : this.segments.get(this.segments.lastKey());
+            if ((seg == null) || (this.tailIdx >= seg.base + seg.capacity)) {
+                if (seg != null) {
+                    seg.force();
+                }
+                seg = new Segment(segmentFile(this.tailIdx), this.tailIdx, this.recordsPerSegment);
+                this.segments.put(new Long(seg.base), seg);
+            }
+            int pos = (int) (this.tailIdx - seg.base) * this.slotSize;
+            seg.buf.putShort(pos + 1, (short) data.length);
+            seg.buf.position(pos + SLOT_HEADER);
+            seg.buf.put(data);
+            // Flag the slot last, so a partially written record is never
+            // seen as used after a crash
+            seg.buf.put(pos, SLOT_USED);
+            seg.dirty = true;
+            this.tailIdx++;
+
+            if (++this.unsynced >= this.syncInterval) {
+                this.sync();
+            }
+            this.trimToMaxLength();
+        }
+        statsCollector.addStat(now() - start, DISK_LIST_ADD_TO_LIST_TIME);
+    }
+
+    /**
+     * Drop the oldest segments while the spool exceeds its maximum length.
+     * The segment currently being written to is never dropped.
+     */
+    private void trimToMaxLength() {
+        while ((this.segments.size() > 1) && (this.getLength() > this.maxLength)) {
+            Segment seg = this.segments.remove(this.segments.firstKey());
+            int lost = seg.capacity - seg.removed;
+            seg.delete();
+            this.headIdx = Math.max(this.headIdx, seg.base + seg.capacity);
+            log.error("Maximum size for spool " + this.spoolName + " reached (" + this.maxLength +
+                      " bytes), dropped oldest segment with " + lost + " records");
+        }
+    }
+
+    /**
+     * @return the size in bytes of all the segment files of the spool
+     */
+    public synchronized long getLength() {
+        long res = 0;
+        for (Segment seg : this.segments.values()) {
+            res += (long) seg.capacity * this.slotSize;
+        }
+        return res;
+    }
+
+    /**
+     * Force all writes since the last sync to disk.
+     */
+    public synchronized void sync() {
+        for (Segment seg : this.segments.values()) {
+            if (seg.dirty) {
+                seg.force();
+            }
+        }
+        this.unsynced = 0;
+    }
+
+    private Segment getSegment(long recNo) {
+        SortedMap<Long, Segment> head = this.segments.headMap(new Long(recNo + 1));
+        if (head.isEmpty()) {
+            return null;
+        }
+        Segment seg = head.get(head.lastKey());
+        return (recNo < seg.base + seg.capacity) ? seg : null;
+    }
+
+    /**
+     * @return the state of the slot for the record, or SLOT_REMOVED for
+     *         records of segments which have been deleted.
+     */
+    private byte getState(long recNo) {
+        if ((recNo < this.headIdx) || (recNo >= this.tailIdx)) {
+            return SLOT_REMOVED;
+        }
+        Segment seg = this.getSegment(recNo);
+        if (seg == null) {
+            return SLOT_REMOVED;
+        }
+        return seg.buf.get((int) (recNo - seg.base) * this.slotSize);
+    }
+
+    /**
+     * @return the index of the first used record at or after recNo, or -1
+     */
+    private synchronized long findUsed(long recNo) {
+        for (long idx = Math.max(recNo, this.headIdx); idx < this.tailIdx; idx++) {
+            Segment seg = this.getSegment(idx);
+            if (seg == null) {
+                // Skip to the next segment that is still on disk
+                SortedMap<Long, Segment> tail = this.segments.tailMap(new Long(idx));
+                if (tail.isEmpty()) {
+                    return -1;
+                }
+                idx = tail.firstKey().longValue() - 1;
+                continue;
+            }
+            if (seg.buf.get((int) (idx - seg.base) * this.slotSize) == SLOT_USED) {
+                return idx;
+            }
+        }
+        return -1;
+    }
+
+    private synchronized byte[] readRecord(long recNo) throws IOException {
+        if (this.closed) {
+            throw new IOException("Spool already closed");
+        }
+        final long start = now();
+        Segment seg = this.getSegment(recNo);
+        if ((seg == null) || (this.getState(recNo) != SLOT_USED)) {
+            throw new IOException("Record " + recNo + " of spool " + this.spoolName + " is not in use");
+        }
+        int pos = (int) (recNo - seg.base) * this.slotSize;
+        int len = seg.buf.getShort(pos + 1) & 0xFFFF;
+        if (len > this.recordSize - 2) {
+            throw new IOException("Record " + recNo + " of spool " + this.spoolName + " is corrupt");
+        }
+        byte[] res = new byte[len];
+        seg.buf.position(pos + SLOT_HEADER);
+        seg.buf.get(res);
+        statsCollector.addStat(now() - start, DISK_LIST_READ_RECORD_TIME);
+        return res;
+    }
+
+    /**
+     * Mark a record as removed.  Segments are deleted as soon as all their
+     * records have been removed.
+     */
+    public synchronized void removeRecord(long recNo) throws IOException {
+        if (recNo < 0) {
+            throw new IllegalArgumentException("IDX must be positive");
+        }
+        if (this.closed) {
+            throw new IOException("Spool already closed");
+        }
+        if (this.getState(recNo) != SLOT_USED) {
+            return;
+        }
+        Segment seg = this.getSegment(recNo);
+        seg.buf.put((int) (recNo - seg.base) * this.slotSize, SLOT_REMOVED);
+        seg.removed++;
+        seg.dirty = true;
+
+        if (recNo == this.headIdx) {
+            this.advanceHead();
+        }
+    }
+
+    /**
+     * Move the head past removed records, deleting the segments which have
+     * been fully consumed on the way.
+     */
+    private void advanceHead() {
+        while (this.headIdx < this.tailIdx) {
+            Segment seg = this.getSegment(this.headIdx);
+            if (seg == null) {
+                SortedMap<Long, Segment> tail = this.segments.tailMap(new Long(this.headIdx));
+                this.headIdx = tail.isEmpty() ? this.tailIdx : tail.firstKey().longValue();
+                continue;
+            }
+            if (seg.buf.get((int) (this.headIdx - seg.base) * this.slotSize) == SLOT_USED) {
+                return;
+            }
+            this.headIdx++;
+            if ((this.headIdx == seg.base + seg.capacity) && (seg.removed == seg.capacity)) {
+                this.segments.remove(new Long(seg.base));
+                seg.delete();
+                if (this.segments.isEmpty()) {
+                    this.saveNextIndex();
+                }
+            }
+        }
+    }
+
+    /**
+     * Delete all the records from storage.
+     */
+    public void deleteAllRecords() throws IOException {
+        final long start = now();
+        synchronized (this) {
+            if (this.closed) {
+                throw new IOException("Spool already closed");
+            }
+            this.modNum++;
+            for (Segment seg : this.segments.values()) {
+                seg.delete();
+            }
+            this.segments.clear();
+            // The indexes keep growing, so a segment file which could not
+            // be deleted can never be mistaken for a new one
+            this.headIdx  = this.tailIdx;
+            this.unsynced = 0;
+            this.saveNextIndex();
+        }
+        statsCollector.addStat(now() - start, DISK_LIST_DELETE_ALL_RECORDS_TIME);
+    }
+
+    /**
+     * Close the SegmentedSpool.  All subsequent methods will
+     * result in an IOException being thrown.
+     */
+    public synchronized void close() throws IOException {
+        if (this.closed) {
+            throw new IOException("Spool already closed");
+        }
+        this.sync();
+        this.closed = true;
+        IOException sExc = null;
+        for (Segment seg : this.segments.values()) {
+            try {
+                seg.close();
+            } catch (IOException exc) {
+                log.error("IOException while closing file " + seg.file);
+                if (sExc == null) {
+                    sExc = exc;
+                }
+            }
+        }
+        if (sExc != null) {
+            throw sExc;
+        }
+    }
+
+    /**
+     * Save the index of the next record, for recover() to start from when
+     * no segment is left.
+     */
+    private void saveNextIndex() {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(new File(this.spoolDir, NEXT_INDEX_FILE), "rw");
+            raf.setLength(0);
+            raf.writeLong(this.tailIdx);
+            raf.getFD().sync();
+        } catch (IOException e) {
+            log.warn("Unable to save the next index of spool " + this.spoolName + ": " + e);
+        } finally {
+            closeQuietly(raf);
+        }
+    }
+
+    private long loadNextIndex() {
+        File file = new File(this.spoolDir, NEXT_INDEX_FILE);
+        if (file.length() < 8) {
+            return 0;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            return Math.max(0, raf.readLong());
+        } catch (IOException e) {
+            log.warn("Unable to read the next index of spool " + this.spoolName + ": " + e);
+            return 0;
+        } finally {
+            closeQuietly(raf);
+        }
+    }
+
+    private static void closeQuietly(RandomAccessFile raf) {
+        if (raf == null) {
+            return;
+        }
+        try {
+            raf.close();
+        } catch (IOException e) {
+            log.debug(e, e);
+        }
+    }
+
+    private File segmentFile(long base) {
+        StringBuffer name = new StringBuffer(Long.toString(base));
+        while (name.length() < 19) {
+            name.insert(0, '0');
+        }
+        return new File(this.spoolDir, name.append(SEGMENT_SUFFIX).toString());
+    }
+
+    private static byte[] encode(String data) throws IOException {
+        try {
+            return data.getBytes(CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new IOException(e.toString());
+        }
+    }
+
+    private static String decode(byte[] data) throws IOException {
+        try {
+            return new String(data, CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new IOException(e.toString());
+        }
+    }
+
+    private class Segment {
+        private final File             file;
+        private final long             base;     // IDX of the first slot
+        private final int              capacity; // Number of slots
+        private final RandomAccessFile raf;
+        private final MappedByteBuffer buf;
+        private int                    removed;  // Number of removed slots
+        private boolean                dirty;
+
+        private Segment(File file, long base, int capacity) throws IOException {
+            this.file     = file;
+            this.base     = base;
+            this.capacity = capacity;
+            this.raf      = new RandomAccessFile(file, "rw");
+            long length   = (long) capacity * slotSize;
+            if (this.raf.length() < length) {
+                this.raf.setLength(length);
+            }
+            this.buf = this.raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        }
+
+        private void force() {
+            this.buf.force();
+            this.dirty = false;
+        }
+
+        private void close() throws IOException {
+            this.raf.close();
+        }
+
+        private void delete() {
+            try {
+                this.close();
+            } catch (IOException e) {
+                log.debug(e, e);
+            }
+            // A mapped file can not be deleted on some platforms until the
+            // mapping is garbage collected, recover() will clean it up then
+            if (!this.file.delete()) {
+                log.debug("Unable to delete segment " + this.file + ", will retry on restart");
+                this.file.deleteOnExit();
+            }
+        }
+    }
+
+    public static class SpoolIterator implements Iterator<String> {
+        private final SegmentedSpool spool;
+        private long    nextIdx;
+        private long    curIdx;
+        private boolean calledNext;
+        private int     modNum;
+
+        private SpoolIterator(SegmentedSpool spool, long nextIdx, int modNum) {
+            this.spool      = spool;
+            this.nextIdx    = nextIdx;
+            this.curIdx     = -1;
+            this.calledNext = false;
+            this.modNum     = modNum;
+        }
+
+        public boolean hasNext() {
+            synchronized (this.spool) {
+                if (this.spool.modNum != this.modNum) {
+                    throw new ConcurrentModificationException();
+                }
+                // Records may have been appended since the last call, so
+                // only move forward when a used record was found
+                long idx = this.spool.findUsed(this.nextIdx);
+                if (idx == -1) {
+                    return false;
+                }
+                this.nextIdx = idx;
+                return true;
+            }
+        }
+
+        public String next() throws NoSuchElementException {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            this.curIdx = this.nextIdx;
+            try {
+                String res = decode(this.spool.readRecord(this.curIdx));
+                this.nextIdx    = this.curIdx + 1;
+                this.calledNext = true;
+                return res;
+            } catch (IOException e) {
+                log.error("IOException while reading record");
+                if (log.isDebugEnabled()) {
+                    log.debug("IOException while trying to read record number " + this.curIdx, e);
+                }
+                NoSuchElementException ex = new NoSuchElementException("Error getting next element: " + e);
+                ex.initCause(e);
+                throw ex;
+            }
+        }
+
+        public void remove() {
+            if (!this.calledNext) {
+                throw new IllegalStateException("remove() called without first calling next()");
+            }
+            this.calledNext = false;
+            final long start = now();
+            synchronized (this.spool) {
+                if (this.spool.modNum != this.modNum) {
+                    throw new ConcurrentModificationException();
+                }
+                try {
+                    this.spool.removeRecord(this.curIdx);
+                } catch (IOException exc) {
+                    log.error("IOException while removing record");
+                    if (log.isDebugEnabled()) {
+                        log.debug(exc, exc);
+                    }
+                    throw new IllegalStateException("Error removing record: " + exc, exc);
+                }
+            }
+            statsCollector.addStat(now() - start, DISK_LIST_DISK_ITERATOR_REMOVE_TIME);
+        }
+    }
+
+    /**
+     * @return an iterator over the records of the spool, or null if the
+     *         spool is empty, as required by AgentStorageProvider.
+     */
+    public synchronized Iterator<String> getListIterator() {
+        long first = this.findUsed(this.headIdx);
+        if (first == -1) {
+            if (log.isDebugEnabled()) {
+                log.debug("getListIterator() - spool '" + this.spoolName + "' has no elements");
+            }
+            return null;
+        }
+        return new SpoolIterator(this, first, this.modNum);
+    }
+}
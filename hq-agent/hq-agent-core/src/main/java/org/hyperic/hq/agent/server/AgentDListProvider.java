@@ -61,6 +61,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hyperic.hq.agent.AgentKeystoreConfig;
 import org.hyperic.hq.agent.db.DiskList;
+import org.hyperic.hq.agent.db.SegmentedSpool;
 import org.hyperic.hq.agent.stats.AgentStatsCollector;
 import org.hyperic.hq.common.SystemException;
 import org.hyperic.util.file.FileUtil;
@@ -76,11 +77,16 @@ public class AgentDListProvider implements AgentStorageProvider {
     private static final long MAXSIZE = 50 * 1024 * 1024; // 50MB
     private static final long CHKSIZE = 10 * 1024 * 1024;  // 10MB
     private static final int CHKPERC  = 50; // Only allow < 50% free
+    private static final String SPOOL_SUFFIX = ".spool";
+    // Append-only lists which are kept in a SegmentedSpool instead of a DiskList
+    private static final Set<String> SPOOL_LISTS =
+        new HashSet<String>(Arrays.asList(new String[] { "measurement_spool", "availability_spool" }));
 
     private final AgentStatsCollector agentStatsCollector = AgentStatsCollector.getInstance();
     private final AtomicBoolean shutdown = new AtomicBoolean(false);
     private HashMap<EncVal, EncVal>  keyVals;
     private HashMap<String, DiskList>  lists;
+    private HashMap<String, SegmentedSpool> spools;
     private HashMap<String, ListInfo> overloads;
     private File writeDir;
     private File keyValFile;
@@ -120,7 +126,11 @@ public class AgentDListProvider implements AgentStorageProvider {
      * @return A string describing the functionality of the object.
      */
     public String getDescription(){
-        return "Agent D-list provider.  Data is written to data/idx files for lists, and a single file for key/values";
+        return "Agent D-list provider.  Data is written to data/idx files for lists, segment files for spools, and a single file for key/values";
+    }
+
+    private static boolean isSpool(String name) {
+        return SPOOL_LISTS.contains(name);
     }
 
     private DiskList intrCreateList(String name, int recSize) throws IOException {
@@ -136,11 +146,99 @@ public class AgentDListProvider implements AgentStorageProvider {
         return new DiskList(new File(this.writeDir, name), recSize, _chkSize, _chkPerc, _maxSize);
     }
 
+    private SegmentedSpool intrCreateSpool(String name, int recSize) throws IOException {
+        long _maxSize = maxSize;
+        ListInfo info = overloads.get(name);
+        if (info != null) {
+            _maxSize = info.maxSize;
+        }
+        File spoolDir = new File(this.writeDir, name + SPOOL_SUFFIX);
+        migrateDiskList(name, recSize, spoolDir);
+        return new SegmentedSpool(spoolDir, recSize, SegmentedSpool.DEFAULT_SEGMENT_SIZE, _maxSize);
+    }
+
+    /**
+     * One time migration of the records of a DiskList which is now kept in
+     * a spool.  The records are copied to a temporary spool, which is only
+     * renamed to spoolDir once it has been forced to disk, so an agent
+     * which dies part way through starts the copy over on restart.  The
+     * old data/idx files are removed once the spool is in place, or renamed
+     * to .bak if they could not be read.
+     */
+    private void migrateDiskList(String name, int recSize, File spoolDir) {
+        File dataFile = new File(this.writeDir, name);
+        File idxFile = new File(this.writeDir, name + ".idx");
+        if (!dataFile.exists()) {
+            return;
+        }
+        if (spoolDir.exists()) {
+            // Died after the spool was renamed into place
+            dataFile.delete();
+            idxFile.delete();
+            return;
+        }
+        File tmpDir = new File(this.writeDir, name + SPOOL_SUFFIX + ".tmp");
+        // Left over from an interrupted migration
+        FileUtil.deleteDir(tmpDir);
+        DiskList dList = null;
+        SegmentedSpool spool = null;
+        int num = 0;
+        boolean success = false;
+        try {
+            dList = new DiskList(dataFile, recSize, chkSize, chkPerc, Long.MAX_VALUE);
+            spool = new SegmentedSpool(tmpDir, recSize, SegmentedSpool.DEFAULT_SEGMENT_SIZE, Long.MAX_VALUE);
+            for (Iterator<String> it = dList.getListIterator(); (it != null) && it.hasNext(); num++) {
+                spool.addToList(it.next());
+            }
+            // Forces the segments to disk
+            spool.close();
+            spool = null;
+            if (!tmpDir.renameTo(spoolDir)) {
+                throw new IOException("Unable to rename " + tmpDir + " to " + spoolDir);
+            }
+            success = true;
+            log.info("Migrated " + num + " records of list '" + name + "' to a segmented spool");
+        } catch (Exception e) {
+            log.error("Error migrating list '" + name + "' to a segmented spool after " + num + " records", e);
+        } finally {
+            if (dList != null) {
+                try {
+                    dList.close();
+                } catch (IOException e) {
+                    log.debug(e,e);
+                }
+            }
+            if (spool != null) {
+                try {
+                    spool.close();
+                } catch (IOException e) {
+                    log.debug(e,e);
+                }
+            }
+        }
+        if (success) {
+            dataFile.delete();
+            idxFile.delete();
+        } else {
+            FileUtil.deleteDir(tmpDir);
+            dataFile.renameTo(new File(this.writeDir, name + ".bak"));
+            idxFile.renameTo(new File(this.writeDir, name + ".idx.bak"));
+        }
+    }
+
     /**
      * Create a list of non-standard record size.
      */
     public void createList(String name, int recSize) throws AgentStorageException {
         try {
+            if (isSpool(name)) {
+                synchronized(this.spools){
+                    if (!this.spools.containsKey(name)) {
+                        this.spools.put(name, intrCreateSpool(name, recSize));
+                    }
+                }
+                return;
+            }
             DiskList dList = intrCreateList(name, recSize);
             lists.put(name, dList);
         } catch (IOException e) {
@@ -197,7 +295,8 @@ public class AgentDListProvider implements AgentStorageProvider {
                 log.debug("Removing '" + key + "' from storage");
             }
             synchronized(keyVals){
-                keyVals.remove(key);
+                // keyed by EncVal, a String never matches
+                keyVals.remove(new EncVal(encryptor, key));
             }
         } else {
             if (debug) {
@@ -266,6 +365,13 @@ public class AgentDListProvider implements AgentStorageProvider {
         if (shutdown.get() && !toShutdown) {
             return;
         }
+        // Group commit of everything appended to/removed from the spools
+        // since the last flush
+        synchronized(this.spools){
+            for (SegmentedSpool spool : this.spools.values()) {
+                spool.sync();
+            }
+        }
         final long start = System.currentTimeMillis();
         BufferedOutputStream bOs = null;
         FileOutputStream fOs = null;
@@ -359,6 +465,7 @@ public class AgentDListProvider implements AgentStorageProvider {
 
         keyVals = new HashMap<EncVal, EncVal>();
         lists = new HashMap<String, DiskList>();
+        spools = new HashMap<String, SegmentedSpool>();
         overloads = new HashMap<String, ListInfo>();
         String dir = st.nextToken();
         this.writeDir = new File(dir);
@@ -612,6 +719,13 @@ public class AgentDListProvider implements AgentStorageProvider {
                 log.error("Unable to dispose of disk list '" + entry.getKey() + "'", exc);
             }
         }
+        for (final Entry<String, SegmentedSpool> entry : spools.entrySet()) {
+            try {
+                entry.getValue().close();
+            } catch(Exception exc){
+                log.error("Unable to dispose of spool '" + entry.getKey() + "'", exc);
+            }
+        }
 
     }
 
@@ -621,6 +735,10 @@ public class AgentDListProvider implements AgentStorageProvider {
         if (shutdown.get()) {
             return;
         }
+        if (isSpool(listName)) {
+            addToSpool(listName, value);
+            return;
+        }
         DiskList dList = getDiskList(listName);
         if (null == dList) {
             log.error("Error adding data , cannot read list '" + listName + "' from storage");
@@ -639,10 +757,45 @@ public class AgentDListProvider implements AgentStorageProvider {
         }
     }
 
+    private void addToSpool(String listName, String value) throws AgentStorageException {
+        SegmentedSpool spool = getSpool(listName);
+        if (null == spool) {
+            log.error("Error adding data , cannot read spool '" + listName + "' from storage");
+            return;
+        }
+        try {
+            if (log.isDebugEnabled()) {
+                log.debug("adding value to spool=" + listName + ", value=" + value);
+            }
+            spool.addToList(value);
+        } catch(IOException exc){
+            log.error("Error adding to spool '" + listName + "'", exc);
+            AgentStorageException toThrow = new AgentStorageException("Error adding data to spool: " + exc);
+            toThrow.initCause(exc);
+            throw toThrow;
+        }
+    }
+
     public void removeFromList(String listName, long recNumber) throws AgentStorageException {
         if (shutdown.get()) {
             return;
         }
+        if (isSpool(listName)) {
+            SegmentedSpool spool = getSpool(listName);
+            if (null == spool) {
+                log.error("Error removing data , cannot read spool '" + listName + "' from storage");
+                return;
+            }
+            try {
+                spool.removeRecord(recNumber);
+            } catch(IOException exc){
+                log.error("Error deleting from spool '" + listName + "'", exc);
+                AgentStorageException t = new AgentStorageException("Error deleting data from spool: " + exc);
+                t.initCause(exc);
+                throw t;
+            }
+            return;
+        }
         DiskList dList = getDiskList(listName);
         if (null == dList) {
             log.error("Error removing data , cannot read list '" + listName + "' " +
@@ -663,6 +816,18 @@ public class AgentDListProvider implements AgentStorageProvider {
         if (shutdown.get()) {
             return;
         }
+        if (isSpool(listName)) {
+            SegmentedSpool spool = getSpool(listName);
+            if (null == spool) {
+                return;
+            }
+            try {
+                spool.deleteAllRecords();
+            } catch(IOException exc){
+                log.error("Error deleting all records", exc);
+            }
+            return;
+        }
         DiskList dList = getDiskList(listName);
         if (null == dList) {
             return ;
@@ -675,6 +840,10 @@ public class AgentDListProvider implements AgentStorageProvider {
     }
 
     public Iterator<String> getListIterator(String listName) {
+        if (isSpool(listName)) {
+            SegmentedSpool spool = getSpool(listName);
+            return (null == spool) ? null : spool.getListIterator();
+        }
         DiskList dList = getDiskList(listName);
         if (null == dList) {
             return null;
@@ -684,6 +853,11 @@ public class AgentDListProvider implements AgentStorageProvider {
     
 
     public void convertListToCurrentRecordSize(String listName) throws IOException{
+        if (isSpool(listName)) {
+            // spools are always created with their record size, and the
+            // DiskList records are migrated when the spool is created
+            return;
+        }
         DiskList dList = getDiskList(listName);
         if (null == dList) {
             return ;
@@ -710,6 +884,25 @@ public class AgentDListProvider implements AgentStorageProvider {
         return dList;
     }
 
+    private SegmentedSpool getSpool(String listName) {
+        SegmentedSpool spool;
+
+        synchronized(this.spools){
+            spool = this.spools.get(listName);
+
+            if(spool == null){
+                try {
+                    spool = intrCreateSpool(listName, RECSIZE);
+                } catch(IOException exc){
+                    log.error("Error loading spool", exc);
+                    return null;
+                }
+                this.spools.put(listName, spool);
+            }
+        }
+        return spool;
+    }
+
     private static class ListInfo {
         long      maxSize;
         long      chkSize;
@@ -457,7 +457,7 @@ public class AgentDaemon
             }
         }
 
-        this.listener = new CommandListener(this.dispatcher);
+        this.listener = new CommandListener(this.dispatcher, config.getBootProperties());
         defListener   = new DefaultConnectionListener(config);
         this.setConnectionListener(defListener);
         
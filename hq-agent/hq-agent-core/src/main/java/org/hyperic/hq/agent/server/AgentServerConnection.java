@@ -66,12 +66,19 @@ public abstract class AgentServerConnection {
     public AgentCommand readCommand()
         throws AgentConnectionException, EOFException
     {
-        DataInputStream dIs;
+        return readCommand(new DataInputStream(getInputStream()));
+    }
+
+    /**
+     * Read the command invocation information from the specified stream
+     */
+    static AgentCommand readCommand(DataInputStream dIs)
+        throws AgentConnectionException, EOFException
+    {
         AgentRemoteValue cmdArg;
         String cmd;
         int cmdVersion, agentVersion;
         try {
-            dIs          = new DataInputStream(getInputStream());
             agentVersion = dIs.readInt();
             cmdVersion   = dIs.readInt();
             cmd          = dIs.readUTF();
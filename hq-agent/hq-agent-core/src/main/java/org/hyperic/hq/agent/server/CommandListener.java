@@ -25,13 +25,24 @@
 
 package org.hyperic.hq.agent.server;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
 import java.util.Map.Entry;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -56,6 +67,9 @@ import org.hyperic.hq.agent.server.monitor.AgentMonitorSimple;
  */
 public class CommandListener extends AgentMonitorSimple {
     private static final int POLL_FREQUENCY = 1000;
+    static final String PROP_MAX_CHANNELS = "agent.maxCommandChannels";
+    private static final int MAX_CHANNELS = 8;
+    private static final int BUFFER_SIZE = 8192;
     private static final String GENERIC_POOL = "generic";
     private static final String[] THREAD_POOLS = new String[] {
         AgentCommandsAPI.command_ping, AgentCommandsAPI.command_receive_file, GENERIC_POOL};
@@ -65,18 +79,38 @@ public class CommandListener extends AgentMonitorSimple {
     /** Shutdown the listenLoop thread and all thread pools */
     private AtomicBoolean shutdown = new AtomicBoolean(true);
     private AtomicReference<AgentConnectionListener> listener = new AtomicReference<AgentConnectionListener>();
+    /** Connections which the server has turned into command channels */
+    private final Set<CommandChannel> channels = new HashSet<CommandChannel>();
+    private final AtomicLong channelNum = new AtomicLong(0);
+    private final int maxChannels;
 
     /**
      * Setup a listener on a specified port, with a dispatcher containing
      * known methods which can be invoked.
      *
      * @param dispatcher Object to call when a command comes across the wire
+     * @param agentConfig The agent properties, which may set the maximum
+     *                    number of command channels
      */
-    CommandListener(CommandDispatcher dispatcher) {
+    CommandListener(CommandDispatcher dispatcher, Properties agentConfig) {
         this.dispatcher = dispatcher;
+        this.maxChannels = getMaxChannels(agentConfig);
         setupThreadPools();
     }
 
+    private int getMaxChannels(Properties agentConfig) {
+        String sMaxChannels = agentConfig.getProperty(PROP_MAX_CHANNELS);
+        if (sMaxChannels != null) {
+            try {
+                return Integer.parseInt(sMaxChannels.trim());
+            } catch (NumberFormatException exc) {
+                log.error("Invalid setting for " + PROP_MAX_CHANNELS + " value=" +
+                          sMaxChannels + ", using defaults.");
+            }
+        }
+        return MAX_CHANNELS;
+    }
+
     private void setupThreadPools() {
         for (final String cmdName : THREAD_POOLS) {
             final String poolName = cmdName.replace(AgentCommandsAPI.commandPrefix, "");
@@ -123,6 +157,13 @@ public class CommandListener extends AgentMonitorSimple {
             pool.shutdownNow();
             log.info("Shut down executor service for CommandListener " + entry.getKey());
         }
+        List<CommandChannel> open;
+        synchronized (channels) {
+            open = new ArrayList<CommandChannel>(channels);
+        }
+        for (final CommandChannel channel : open) {
+            channel.close();
+        }
     }
 
     /**
@@ -153,6 +194,10 @@ public class CommandListener extends AgentMonitorSimple {
                     final AgentServerConnection conn = listener.get().getNewConnection();
                     if (logDebug) log.debug("Opened new connection");
                     final AgentCommand cmd = conn.readCommand();
+                    if (AgentCommandsAPI.command_open_channel.equals(cmd.getCommand())) {
+                        openChannel(conn);
+                        continue;
+                    }
                     final ExecutorService pool = getPool(cmd);
                     if (logDebug) log.debug("Dispatching command " + cmd.getCommand() + " to pool: " + pool);
                     pool.execute(new AgentDispatchTask(conn, cmd));
@@ -182,6 +227,41 @@ public class CommandListener extends AgentMonitorSimple {
         }
     }
     
+    /**
+     * Turn the connection into a command channel, which reads commands
+     * prefixed with a request id until the server closes it.  Results are
+     * written back, with the id of their request, as the commands complete.
+     */
+    private void openChannel(AgentServerConnection conn) {
+        CommandChannel channel = null;
+        try {
+            synchronized (channels) {
+                if (channels.size() < maxChannels) {
+                    channel = new CommandChannel(conn);
+                    channels.add(channel);
+                }
+            }
+            if (channel == null) {
+                log.debug("Refusing command channel, " + maxChannels + " are already open");
+                conn.sendErrorResponse("Too many command channels open");
+                conn.close();
+                return;
+            }
+            conn.sendSuccessResponse(new AgentRemoteValue());
+            final Thread thread = new Thread(channel, "commandlistener-channel-" + channelNum.getAndIncrement());
+            thread.setDaemon(true);
+            thread.start();
+        } catch (AgentConnectionException e) {
+            log.warn("Failed opening command channel: " + e);
+            log.debug(e,e);
+            if (channel != null) {
+                channel.close();
+            } else {
+                conn.close();
+            }
+        }
+    }
+
     private ExecutorService getPool(AgentCommand cmd) {
         final ExecutorService pool = threadPools.get(cmd.getCommand());
         return (pool == null) ? threadPools.get(GENERIC_POOL) : pool;
@@ -212,6 +292,112 @@ public class CommandListener extends AgentMonitorSimple {
         }
     }
 
+    private class CommandChannel implements Runnable {
+        private final AgentServerConnection conn;
+        private final DataInputStream inputStream;
+        private final DataOutputStream outputStream;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+        public CommandChannel(AgentServerConnection conn) throws AgentConnectionException {
+            this.conn = conn;
+            this.inputStream = new DataInputStream(new BufferedInputStream(conn.getInputStream(), BUFFER_SIZE));
+            this.outputStream = new DataOutputStream(new BufferedOutputStream(conn.getOutputStream(), BUFFER_SIZE));
+        }
+        public void run() {
+            try {
+                while (!shutdown.get()) {
+                    final int id = inputStream.readInt();
+                    final AgentCommand cmd = AgentServerConnection.readCommand(inputStream);
+                    if (AgentCommandsAPI.command_receive_file.equals(cmd.getCommand()) ||
+                        AgentCommandsAPI.command_open_channel.equals(cmd.getCommand())) {
+                        // Streamed commands need a connection of their own
+                        final BufferedConnection response = new BufferedConnection();
+                        response.sendErrorResponse(cmd.getCommand() + " cannot be sent over a command channel");
+                        sendResponse(id, response);
+                        continue;
+                    }
+                    getPool(cmd).execute(new ChannelDispatchTask(this, id, cmd));
+                }
+            } catch (EOFException e) {
+                log.debug("Command channel closed by the server");
+            } catch (InterruptedIOException e) {
+                log.debug("Command channel timed out: " + e);
+            } catch (Throwable t) {
+                if (!shutdown.get() && !closed.get()) {
+                    log.warn("Command channel failed: " + t);
+                    log.debug(t,t);
+                }
+            } finally {
+                close();
+            }
+        }
+        private void sendResponse(int id, BufferedConnection response) {
+            try {
+                synchronized (outputStream) {
+                    outputStream.writeInt(id);
+                    response.writeTo(outputStream);
+                    outputStream.flush();
+                }
+            } catch (IOException e) {
+                log.debug("Error writing result to command channel: " + e, e);
+                close();
+            }
+        }
+        private void close() {
+            if (closed.compareAndSet(false, true)) {
+                conn.close();
+                synchronized (channels) {
+                    channels.remove(this);
+                }
+            }
+        }
+    }
+
+    private class ChannelDispatchTask implements Runnable {
+        private CommandChannel channel;
+        private int id;
+        private AgentCommand cmd;
+        public ChannelDispatchTask(CommandChannel channel, int id, AgentCommand cmd) {
+            this.channel = channel;
+            this.id = id;
+            this.cmd = cmd;
+        }
+        public void run() {
+            BufferedConnection response = new BufferedConnection();
+            try {
+                handleConn(response, cmd, response.getInputStream(), response.getOutputStream());
+            } catch (Throwable t) {
+                log.error(t,t);
+                response = new BufferedConnection();
+                try {
+                    response.sendErrorResponse(t.toString());
+                } catch (AgentConnectionException e) {
+                    log.debug(e,e);
+                }
+            }
+            channel.sendResponse(id, response);
+        }
+    }
+
+    /**
+     * Collects the response to a command sent over a channel, which is
+     * written back in one piece so that responses do not interleave.
+     */
+    private static class BufferedConnection extends AgentServerConnection {
+        private final InputStream inputStream = new ByteArrayInputStream(new byte[0]);
+        private final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        public InputStream getInputStream() {
+            return inputStream;
+        }
+        public OutputStream getOutputStream() {
+            return outputStream;
+        }
+        public void close() {
+        }
+        void writeTo(OutputStream out) throws IOException {
+            outputStream.writeTo(out);
+        }
+    }
+
     private void handleConn(AgentServerConnection conn, AgentCommand cmd, InputStream inputStream, OutputStream outputStream) {
         Object dispatchResult;
         try {
@@ -35,7 +35,10 @@ import java.util.concurrent.atomic.AtomicLong;
 import javax.management.MBeanServer;
 import javax.management.MBeanServerFactory;
 
+import org.hyperic.hq.product.jmx.MxAttributeBatch;
 import org.hyperic.hq.stats.AbstractStatsCollector;
+import org.hyperic.util.stats.StatCollector;
+import org.hyperic.util.stats.StatUnreachableException;
 
 public class AgentStatsCollector extends AbstractStatsCollector {
 
@@ -44,6 +47,12 @@ public class AgentStatsCollector extends AbstractStatsCollector {
     public static final String SCHEDULE_THREAD_METRICS_COLLECTED_TIME = "SCHEDULE_THREAD_METRICS_COLLECTED_TIME";
     public static final String SCHEDULE_THREAD_METRIC_TASKS_SUBMITTED = "SCHEDULE_THREAD_METRIC_TASKS_SUBMITTED";
     public static final String SCHEDULE_THREAD_METRIC_COLLECT_FAILED  = "SCHEDULE_THREAD_METRIC_COLLECT_FAILED";
+    public static final String SCHEDULE_THREAD_LATENESS = "SCHEDULE_THREAD_LATENESS";
+    public static final String SCHEDULE_THREAD_LATENESS_P50 = "SCHEDULE_THREAD_LATENESS_P50";
+    public static final String SCHEDULE_THREAD_LATENESS_P95 = "SCHEDULE_THREAD_LATENESS_P95";
+    public static final String SCHEDULE_THREAD_LATENESS_P99 = "SCHEDULE_THREAD_LATENESS_P99";
+    public static final String JMX_BATCH_ROUND_TRIPS = "JMX_BATCH_ROUND_TRIPS";
+    public static final String JMX_BATCH_VALUES = "JMX_BATCH_VALUES";
     public static final String COLLECTOR_THREAD_METRIC_COLLECTED_TIME = "COLLECTOR_THREAD_METRIC_COLLECTED_TIME";
     public static final String SENDER_THREAD_SEND_NUM_METRICS = "SENDER_THREAD_NUM_SEND_METRICS";
     public static final String SENDER_THREAD_SEND_METRICS_TIME = "SENDER_THREAD_SEND_METRICS_TIME";
@@ -63,6 +72,27 @@ public class AgentStatsCollector extends AbstractStatsCollector {
                 return rtn;
             }
         });
+        registerJmxBatchCount(JMX_BATCH_ROUND_TRIPS, true);
+        registerJmxBatchCount(JMX_BATCH_VALUES, false);
+    }
+
+    /**
+     * Reports the JMX round trips, or values read, since the last sample
+     */
+    private void registerJmxBatchCount(final String id, final boolean roundTrips) {
+        register(new StatCollector() {
+            private long last = 0;
+            public synchronized long getVal() throws StatUnreachableException {
+                long total = roundTrips ? MxAttributeBatch.getTotalRoundTrips() :
+                                          MxAttributeBatch.getTotalValues();
+                long res = total - last;
+                last = total;
+                return res;
+            }
+            public String getId() {
+                return id;
+            }
+        });
     }
     
     private static MBeanServer getMBeanServer() {
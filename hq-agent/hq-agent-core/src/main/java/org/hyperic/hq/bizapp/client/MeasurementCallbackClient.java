@@ -41,6 +41,10 @@ import org.hyperic.lather.LatherRemoteException;
 public class MeasurementCallbackClient 
     extends AgentCallbackClient
 {
+    // Report encoding negotiated with the server.  Every agent starts with
+    // the legacy encoding until the server advertises a newer one.
+    private volatile int reportEncoding = MeasurementReport.ENCODING_LEGACY;
+
     public MeasurementCallbackClient(ProviderFetcher fetcher){
         super(fetcher);
     }
@@ -54,16 +58,26 @@ public class MeasurementCallbackClient
         MeasurementSendReport_args args;
         MeasurementSendReport_result res;
         ProviderInfo provider;
+        int encoding = this.reportEncoding;
 
         provider = this.getProvider();
         args = new MeasurementSendReport_args();
-        args.setReport(report);
+        args.setReport(report, encoding);
 
-        res = (MeasurementSendReport_result)
-            this.invokeLatherCall(provider, 
-                                  CommandInfo.CMD_MEASUREMENT_SEND_REPORT,
-                                  args);
+        try {
+            res = (MeasurementSendReport_result)
+                this.invokeLatherCall(provider, 
+                                      CommandInfo.CMD_MEASUREMENT_SEND_REPORT,
+                                      args);
+        } catch (AgentCallbackClientException exc) {
+            // The server may have been replaced by an older one, go back
+            // to the legacy encoding until it advertises a newer one again
+            this.reportEncoding = MeasurementReport.ENCODING_LEGACY;
+            throw exc;
+        }
 
+        this.reportEncoding = Math.min(res.getReportEncoding(),
+                                       MeasurementReport.ENCODING_CURRENT);
         try {
             return res.getTime();
         } catch (LatherRemoteException exc) {
@@ -27,7 +27,9 @@ package org.hyperic.hq.measurement.agent;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
 import java.io.DataInputStream;
+import java.io.DataOutput;
 import java.io.DataOutputStream;
 import java.io.IOException;
 
@@ -98,13 +100,7 @@ public class ScheduledMeasurement {
         dOs = new DataOutputStream(bOs);
 
         try {
-            dOs.writeUTF(this.dsn);
-            dOs.writeLong(this.interval);
-            dOs.writeInt(this.derivedID);
-            dOs.writeInt(this.dsnID);
-            dOs.writeInt(this.ent.getType());
-            dOs.writeInt(this.ent.getID());
-            dOs.writeUTF(this.category);
+            write(dOs);
         } catch(IOException exc){
             // Shouldn't ever occur, but ...
             System.out.println("Unable to encode record: " + exc.getMessage());
@@ -121,17 +117,7 @@ public class ScheduledMeasurement {
         dIs = new DataInputStream(bIs);
 
         try {
-            String dsn    = dIs.readUTF();
-            long interval = dIs.readLong();
-            int derivedID = dIs.readInt();
-            int dsnID     = dIs.readInt();
-            int entType   = dIs.readInt();
-            int entID     = dIs.readInt();
-            String category = dIs.readUTF();
-
-            return new ScheduledMeasurement(dsn, interval, derivedID, dsnID,
-                                            new AppdefEntityID(entType,entID),
-                                            category);
+            return read(dIs);
         } catch(IOException exc){
             // Shouldn't ever occur, but ...
             System.out.println("Unable to encode record: " + exc.getMessage());
@@ -139,6 +125,37 @@ public class ScheduledMeasurement {
         }
     }
     
+    /**
+     * Write the binary form of the measurement, the same which encode()
+     * wraps in Base64.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeUTF(this.dsn);
+        out.writeLong(this.interval);
+        out.writeInt(this.derivedID);
+        out.writeInt(this.dsnID);
+        out.writeInt(this.ent.getType());
+        out.writeInt(this.ent.getID());
+        out.writeUTF(this.category);
+    }
+
+    /**
+     * Read a measurement written by write()
+     */
+    public static ScheduledMeasurement read(DataInput in) throws IOException {
+        String dsn    = in.readUTF();
+        long interval = in.readLong();
+        int derivedID = in.readInt();
+        int dsnID     = in.readInt();
+        int entType   = in.readInt();
+        int entID     = in.readInt();
+        String category = in.readUTF();
+
+        return new ScheduledMeasurement(dsn, interval, derivedID, dsnID,
+                                        new AppdefEntityID(entType,entID),
+                                        category);
+    }
+
     public boolean equals(Object rhs) {
         if (this == rhs) {
             return true;
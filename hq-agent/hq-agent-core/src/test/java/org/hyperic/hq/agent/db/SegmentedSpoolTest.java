@@ -0,0 +1,203 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.agent.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the SegmentedSpool class.
+ */
+public class SegmentedSpoolTest extends TestCase {
+
+    private static final int RECSIZE = 34;
+    // Small segments so the tests roll and delete a few of them
+    private static final long SEGSIZE = 35 * 10;
+
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = File.createTempFile("spool", "");
+        dir.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = dir.listFiles();
+        for (int i = 0; (files != null) && (i < files.length); i++) {
+            files[i].delete();
+        }
+        dir.delete();
+        super.tearDown();
+    }
+
+    private SegmentedSpool open() throws IOException {
+        return new SegmentedSpool(dir, RECSIZE, SEGSIZE, Long.MAX_VALUE);
+    }
+
+    public void testEmptySpoolHasNoIterator() throws Exception {
+        SegmentedSpool spool = open();
+        assertNull(spool.getListIterator());
+        spool.close();
+    }
+
+    public void testAddIterateAndRemove() throws Exception {
+        SegmentedSpool spool = open();
+        for (int i = 0; i < 35; i++) {
+            spool.addToList("rec" + i);
+        }
+        assertEquals(4, dir.listFiles().length);
+
+        int i = 0;
+        for (Iterator<String> it = spool.getListIterator(); it.hasNext() && (i < 25); i++) {
+            assertEquals("rec" + i, it.next());
+            it.remove();
+        }
+        // The two fully consumed segments are gone
+        assertEquals(2, dir.listFiles().length);
+
+        Iterator<String> it = spool.getListIterator();
+        assertEquals("rec25", it.next());
+        spool.close();
+    }
+
+    public void testRecoverAfterReopen() throws Exception {
+        SegmentedSpool spool = open();
+        for (int i = 0; i < 15; i++) {
+            spool.addToList("rec" + i);
+        }
+        Iterator<String> it = spool.getListIterator();
+        for (int i = 0; i < 12; i++) {
+            it.next();
+            it.remove();
+        }
+        spool.close();
+
+        spool = open();
+        it = spool.getListIterator();
+        for (int i = 12; i < 15; i++) {
+            assertEquals("rec" + i, it.next());
+        }
+        assertFalse(it.hasNext());
+        spool.addToList("rec15");
+        assertTrue(it.hasNext());
+        assertEquals("rec15", it.next());
+        spool.close();
+    }
+
+    public void testRecordTooLarge() throws Exception {
+        SegmentedSpool spool = open();
+        try {
+            spool.addToList("0123456789012345678901234567890123456789");
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // expected outcome
+        }
+        spool.close();
+    }
+
+    public void testRecordLongerThanShort() throws Exception {
+        char[] data = new char[Short.MAX_VALUE + 100];
+        Arrays.fill(data, 'x');
+        SegmentedSpool spool = new SegmentedSpool(dir, data.length + 2, SEGSIZE, Long.MAX_VALUE);
+        spool.addToList(new String(data));
+        assertEquals(data.length, spool.getListIterator().next().length());
+        spool.close();
+
+        try {
+            new SegmentedSpool(dir, 0xFFFF + 3, SEGSIZE, Long.MAX_VALUE);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected outcome
+        }
+    }
+
+    public void testMaxLengthDropsOldestSegments() throws Exception {
+        SegmentedSpool spool = new SegmentedSpool(dir, RECSIZE, SEGSIZE, SEGSIZE * 2);
+        for (int i = 0; i < 30; i++) {
+            spool.addToList("rec" + i);
+        }
+        assertTrue(spool.getLength() <= SEGSIZE * 2);
+        assertEquals("rec10", spool.getListIterator().next());
+        spool.close();
+    }
+
+    public void testDeleteAllRecords() throws Exception {
+        SegmentedSpool spool = open();
+        for (int i = 0; i < 15; i++) {
+            spool.addToList("rec" + i);
+        }
+        spool.deleteAllRecords();
+        assertNull(spool.getListIterator());
+        spool.addToList("after");
+        assertEquals("after", spool.getListIterator().next());
+        spool.close();
+    }
+
+    public void testIndexesKeepIncreasingAfterReopen() throws Exception {
+        SegmentedSpool spool = open();
+        for (int i = 0; i < 15; i++) {
+            spool.addToList("rec" + i);
+        }
+        spool.deleteAllRecords();
+        spool.close();
+
+        spool = open();
+        assertNull(spool.getListIterator());
+        spool.addToList("after");
+        spool.close();
+        assertTrue(new File(dir, "0000000000000000015.seg").exists());
+        assertFalse(new File(dir, "0000000000000000000.seg").exists());
+
+        spool = open();
+        assertEquals("after", spool.getListIterator().next());
+        spool.close();
+    }
+
+    public void testIteratorSurvivesTrim() throws Exception {
+        SegmentedSpool spool = new SegmentedSpool(dir, RECSIZE, SEGSIZE, SEGSIZE * 2);
+        for (int i = 0; i < 5; i++) {
+            spool.addToList("rec" + i);
+        }
+        Iterator<String> it = spool.getListIterator();
+        assertEquals("rec0", it.next());
+        for (int i = 5; i < 30; i++) {
+            spool.addToList("rec" + i);
+        }
+        // The first segment was dropped, the iterator carries on after it
+        assertTrue(it.hasNext());
+        assertEquals("rec10", it.next());
+        it.remove();
+        assertEquals("rec11", it.next());
+        spool.close();
+    }
+}
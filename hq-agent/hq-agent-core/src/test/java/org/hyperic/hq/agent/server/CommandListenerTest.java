@@ -0,0 +1,253 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.agent.server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.hyperic.hq.agent.AgentAPIInfo;
+import org.hyperic.hq.agent.AgentCommandsAPI;
+import org.hyperic.hq.agent.AgentConnectionException;
+import org.hyperic.hq.agent.AgentRemoteException;
+import org.hyperic.hq.agent.AgentRemoteValue;
+
+/**
+ * Tests the command channels of the CommandListener, over a socket.
+ */
+public class CommandListenerTest extends TestCase {
+
+    private static final String CMD_SLOW = "test:slow";
+    private static final AgentAPIInfo API_INFO = new AgentAPIInfo((byte) 1, (byte) 0, (byte) 0) {
+    };
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private ServerSocket listenSock;
+    private CommandListener listener;
+
+    /**
+     * Echoes the "value" argument of each command.  {@link #CMD_SLOW}
+     * waits for the test to release it first.
+     */
+    private class EchoHandler implements AgentServerHandler {
+        public String[] getCommandSet() {
+            return new String[] { CMD_SLOW, AgentCommandsAPI.command_ping };
+        }
+
+        public AgentAPIInfo getAPIInfo() {
+            return API_INFO;
+        }
+
+        public AgentRemoteValue dispatchCommand(String cmd, AgentRemoteValue arg, InputStream in,
+                                                OutputStream out) throws AgentRemoteException {
+            if (CMD_SLOW.equals(cmd)) {
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new AgentRemoteException(e.toString());
+                }
+            }
+            AgentRemoteValue res = new AgentRemoteValue();
+            res.setValue("value", arg.getValue("value"));
+            return res;
+        }
+
+        public void startup(AgentDaemon agent) {
+        }
+
+        public void postInitActions() {
+        }
+
+        public void shutdown() {
+        }
+    }
+
+    private class SocketConnection extends AgentServerConnection {
+        private final Socket socket;
+
+        private SocketConnection(Socket socket) {
+            this.socket = socket;
+        }
+
+        public InputStream getInputStream() throws AgentConnectionException {
+            try {
+                return socket.getInputStream();
+            } catch (IOException e) {
+                throw new AgentConnectionException(e.toString());
+            }
+        }
+
+        public OutputStream getOutputStream() throws AgentConnectionException {
+            try {
+                return socket.getOutputStream();
+            } catch (IOException e) {
+                throw new AgentConnectionException(e.toString());
+            }
+        }
+
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private class SocketListener extends AgentConnectionListener {
+        private SocketListener() {
+            super(null);
+        }
+
+        public AgentServerConnection getNewConnection() throws AgentConnectionException, InterruptedIOException {
+            try {
+                return new SocketConnection(listenSock.accept());
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                throw new AgentConnectionException(e.toString());
+            }
+        }
+
+        public void setup(int timeout) throws AgentStartException {
+            try {
+                listenSock.setSoTimeout(timeout);
+            } catch (IOException e) {
+                throw new AgentStartException(e.toString());
+            }
+        }
+
+        public void cleanup() {
+            try {
+                listenSock.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private void start(Properties agentConfig) throws Exception {
+        listenSock = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        CommandDispatcher dispatcher = new CommandDispatcher();
+        dispatcher.addServerHandler(new EchoHandler());
+        listener = new CommandListener(dispatcher, agentConfig);
+        listener.setConnectionListener(new SocketListener());
+        listener.setup();
+        Thread t = new Thread() {
+            public void run() {
+                listener.listenLoop();
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        release.countDown();
+        if (listener != null) {
+            listener.die();
+        }
+        super.tearDown();
+    }
+
+    private static void writeCommand(DataOutputStream out, String cmd, AgentRemoteValue arg)
+        throws IOException {
+        out.writeInt(API_INFO.getVersion());
+        out.writeInt(API_INFO.getVersion());
+        out.writeUTF(cmd);
+        arg.toStream(out);
+    }
+
+    /**
+     * @return a socket which the agent has turned into a command channel,
+     *         or null if it refused to
+     */
+    private Socket openChannel() throws Exception {
+        Socket s = new Socket(listenSock.getInetAddress(), listenSock.getLocalPort());
+        s.setSoTimeout(10000);
+        DataOutputStream out = new DataOutputStream(s.getOutputStream());
+        writeCommand(out, AgentCommandsAPI.command_open_channel, new AgentRemoteValue());
+        out.flush();
+        DataInputStream in = new DataInputStream(s.getInputStream());
+        if (in.readInt() != 0) {
+            in.readUTF();
+            s.close();
+            return null;
+        }
+        AgentRemoteValue.fromStream(in);
+        return s;
+    }
+
+    private static void send(DataOutputStream out, int id, String cmd, String value) throws IOException {
+        AgentRemoteValue arg = new AgentRemoteValue();
+        arg.setValue("value", value);
+        out.writeInt(id);
+        writeCommand(out, cmd, arg);
+        out.flush();
+    }
+
+    private static void assertResponse(DataInputStream in, int id, String value) throws Exception {
+        assertEquals(id, in.readInt());
+        assertEquals(0, in.readInt());
+        assertEquals(value, AgentRemoteValue.fromStream(in).getValue("value"));
+    }
+
+    public void testMultiplexedCommands() throws Exception {
+        start(new Properties());
+        Socket s = openChannel();
+        assertNotNull(s);
+        DataOutputStream out = new DataOutputStream(s.getOutputStream());
+        DataInputStream in = new DataInputStream(s.getInputStream());
+
+        send(out, 0, CMD_SLOW, "slow");
+        send(out, 1, AgentCommandsAPI.command_ping, "ping");
+        // The ping is answered while the first command still runs
+        assertResponse(in, 1, "ping");
+        release.countDown();
+        assertResponse(in, 0, "slow");
+        s.close();
+    }
+
+    public void testMaxChannels() throws Exception {
+        Properties agentConfig = new Properties();
+        agentConfig.setProperty(CommandListener.PROP_MAX_CHANNELS, "1");
+        start(agentConfig);
+        Socket s = openChannel();
+        assertNotNull(s);
+        assertNull(openChannel());
+        s.close();
+    }
+}
@@ -25,6 +25,7 @@
 
 package org.hyperic.hq.measurement.agent.server;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Collections;
@@ -232,6 +233,8 @@ public class MeasurementCommandsServer
             logMeasurementSchedule(this.schedStorage);
         } catch(AgentRunningException exc){
             throw new AgentAssertionException("Agent should be running here", exc);
+        } catch(IOException exc){
+            throw new AgentStartException("Unable to open the measurement schedule: " + exc.getMessage(), exc);
         }
 
         try {
@@ -397,6 +400,7 @@ public class MeasurementCommandsServer
             // Someone wants us to die badly .... ok 
             this.log.warn("shutdown interrupted");
         }
+        this.schedStorage.close();
 
         this.log.info("Measurement Commands Server shut down");
     }
@@ -29,8 +29,10 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -330,58 +332,56 @@ public class MeasurementCommandsService implements MeasurementCommandsClient {
         }
     }
 
+    /**
+     * Only the entities whose measurements differ from the stored schedule,
+     * or are not all in the ScheduleThread, are unscheduled and scheduled
+     * again, so the cost is that of what changed.  The SRNs are always
+     * updated.
+     */
     private void scheduleMeasurements(Collection<ScheduleMeasurements_args> args) throws AgentRemoteException {
         final Map<AppdefEntityID, SRN> aeids = new HashMap<AppdefEntityID, SRN>();
+        final Map<AppdefEntityID, List<ScheduledMeasurement>> metrics =
+            new LinkedHashMap<AppdefEntityID, List<ScheduledMeasurement>>();
         final StopWatch watch = new StopWatch();
-        final List<ScheduledMeasurement> metrics = new ArrayList<ScheduledMeasurement>(args.size());
         final boolean debug = _log.isDebugEnabled();
-        if (debug) {
-            watch.markTimeBegin("unscheduleMeasurements");
-        }
         for (final ScheduleMeasurements_args arg : args) {
+            int numMeasurements = arg.getNumMeasurements();
             final SRN srn = arg.getSRN();
             final AppdefEntityID aeid = srn.getEntity();
             aeids.put(aeid, srn);
-            try {
-                unscheduleMeasurements(aeid);
-            } catch (UnscheduledItemException e) {
-                // ok to ignore
-                _log.debug(e,e);
+            List<ScheduledMeasurement> entMetrics = metrics.get(aeid);
+            if (entMetrics == null) {
+                entMetrics = new ArrayList<ScheduledMeasurement>(numMeasurements);
+                metrics.put(aeid, entMetrics);
+            }
+            for (int i=0; i<numMeasurements; i++){
+                final ScheduleMeasurements_metric metric = arg.getMeasurement(i);
+                final ScheduledMeasurement sMetric =
+                    new ScheduledMeasurement(metric.getDSN(), 
+                                             metric.getInterval(),
+                                             metric.getDerivedID(),
+                                             metric.getDSNID(),
+                                             aeid, metric.getCategory());
+                entMetrics.add(sMetric);
             }
         }
         if (debug) {
-            watch.markTimeEnd("unscheduleMeasurements");
-        }
-        if (debug) {
-            watch.markTimeBegin("deleteMeasurements");
+            watch.markTimeBegin("replaceMeasurements");
         }
+        Set<AppdefEntityID> changed;
         try {
-            _schedStorage.deleteMeasurements(aeids.keySet());
+            changed = _schedStorage.replaceMeasurements(metrics);
         } catch(AgentStorageException exc){
-            _log.error("Failed to delete from measurement storage: " +  exc, exc);
+            _log.error("Failed to store measurements: " +  exc, exc);
+            changed = metrics.keySet();
         }
         if (debug) {
-            watch.markTimeEnd("deleteMeasurements");
+            watch.markTimeEnd("replaceMeasurements");
         }
-        // this looks weird since the loops are so similar, but they can't be consolidated unless the entire
-        // flow is reworked down to the srn
         if (debug) {
             watch.markTimeBegin("updateSRN");
         }
-        for (final ScheduleMeasurements_args arg : args) {
-            int numMeasurements = arg.getNumMeasurements();
-            final SRN srn = arg.getSRN();
-            final AppdefEntityID aeid = srn.getEntity();
-            for (int i=0; i<numMeasurements; i++){
-                final ScheduleMeasurements_metric metric = arg.getMeasurement(i);
-                final ScheduledMeasurement sMetric =
-                    new ScheduledMeasurement(metric.getDSN(), 
-                                             metric.getInterval(),
-                                             metric.getDerivedID(),
-                                             metric.getDSNID(),
-                                             aeid, metric.getCategory());
-                metrics.add(sMetric);
-            }
+        for (final SRN srn : aeids.values()) {
             try {
                 _schedStorage.updateSRN(srn);
             } catch(AgentStorageException e){
@@ -391,28 +391,34 @@ public class MeasurementCommandsService implements MeasurementCommandsClient {
         if (debug) {
             watch.markTimeEnd("updateSRN");
         }
-        if (debug) {
-            watch.markTimeBegin("storeMeasurements");
-        }
-        try {
-            _schedStorage.storeMeasurements(metrics);
-        } catch(AgentStorageException exc){
-            _log.error("Failed to store measurements: " +  exc, exc);
-        }
-        if (debug) {
-            watch.markTimeEnd("storeMeasurements");
-        }
         if (debug) {
             watch.markTimeBegin("scheduleMeasurement");
         }
-        for (ScheduledMeasurement m : metrics) {
-            _scheduleObject.scheduleMeasurement(m);
+        int numScheduled = 0;
+        for (final Map.Entry<AppdefEntityID, List<ScheduledMeasurement>> entry : metrics.entrySet()) {
+            final AppdefEntityID aeid = entry.getKey();
+            final List<ScheduledMeasurement> entMetrics = entry.getValue();
+            if (!changed.contains(aeid) &&
+                (_scheduleObject.getNumScheduled(aeid) == entMetrics.size())) {
+                continue;
+            }
+            try {
+                unscheduleMeasurements(aeid);
+            } catch (UnscheduledItemException e) {
+                // ok to ignore
+                _log.debug(e,e);
+            }
+            for (ScheduledMeasurement m : entMetrics) {
+                _scheduleObject.scheduleMeasurement(m);
+            }
+            numScheduled += entMetrics.size();
         }
         if (debug) {
             watch.markTimeEnd("scheduleMeasurement");
         }
         if (debug) {
-            _log.debug("scheduled " + metrics.size() + " measurements, " + watch);
+            _log.debug("scheduled " + numScheduled + " measurements of " + metrics.size() +
+                       " resources, " + (metrics.size() - changed.size()) + " resources unchanged, " + watch);
         }
     }
     
@@ -28,20 +28,21 @@ package org.hyperic.hq.measurement.agent.server;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 
-import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.hyperic.hq.agent.AgentConfig;
 import org.hyperic.hq.agent.server.AgentStorageException;
 import org.hyperic.hq.agent.server.AgentStorageProvider;
 import org.hyperic.hq.appdef.shared.AppdefEntityID;
@@ -50,53 +51,116 @@ import org.hyperic.hq.measurement.server.session.SRN;
 import org.hyperic.util.encoding.Base64;
 
 /**
- * Class which does the storage/retrieval of schedule information from
- * the Agent's simple storage provider.
+ * Class which does the storage/retrieval of schedule information.  The
+ * schedule is kept in a ScheduleStore in the agent data directory, schedules
+ * from before it existed are migrated from the Agent's simple storage
+ * provider, which no longer holds them afterwards.
  */
 
 class MeasurementSchedule {
     private static final String PROP_MSCHED = "measurement_schedule";
     private static final String PROP_MSRNS =  "measurement_srn";
     private static final String PROP_MSRNS_LENGTH = "measurement_srn_length";
-    private static final int MAX_ELEM_SIZE = 10000;
+    private static final String STORE_FILE = "measurement_schedule.db";
     
     private final AgentStorageProvider store;      
-    private final ArrayList<SRN> srnList = new ArrayList<SRN>();
+    private final ScheduleStore schedule;
     private final Log log = LogFactory.getLog(MeasurementSchedule.class);
 
-    MeasurementSchedule(AgentStorageProvider store, Properties bootProps) {
+    MeasurementSchedule(AgentStorageProvider store, Properties bootProps) throws IOException {
         String info = bootProps.getProperty(PROP_MSCHED);
         if (info != null) {
             store.addOverloadedInfo(PROP_MSCHED, info);
         }
         this.store    = store;
-        this.populateSRNInfo();
+        String dataDir = bootProps.getProperty(AgentConfig.PROP_DATADIR[0], AgentConfig.PROP_DATADIR[1]);
+        this.schedule = new ScheduleStore(new File(dataDir, STORE_FILE));
+        migrate();
     }
 
-    private void populateSRNInfo(){
-        srnList.clear();
+    /**
+     * Migration of the schedule and SRNs kept in the storage provider by
+     * previous agent versions.  The legacy data is only deleted once the
+     * ScheduleStore has been flushed, so it is looked for at every startup:
+     * an agent which died part way through the migration finishes it the
+     * next time.  The entries already in the ScheduleStore are the more
+     * recent ones and are kept.
+     */
+    private void migrate() throws IOException {
+        List<SRN> srns = readLegacySRNs();
+        Collection<ScheduledMeasurement> metrics = readLegacyMeasurements();
+        if (srns.isEmpty() && metrics.isEmpty()) {
+            return;
+        }
+        int numMetrics = 0;
+        int numSRNs = 0;
+        for (ScheduledMeasurement meas : metrics) {
+            if (this.schedule.getMeasurement(meas.getEntity(), meas.getDerivedID()) == null) {
+                this.schedule.putMeasurement(meas);
+                numMetrics++;
+            }
+        }
+        for (SRN srn : srns) {
+            if (this.schedule.getSRN(srn.getEntity()) == null) {
+                this.schedule.putSRN(srn);
+                numSRNs++;
+            }
+        }
+        // Throws if the schedule could not be written, keeping the legacy
+        // data for the next startup
+        this.schedule.flush();
+        this.store.deleteList(PROP_MSCHED);
+        deleteLegacySRNs();
+        log.info("Migrated " + numMetrics + " scheduled measurements and " + numSRNs +
+                 " SRNs to " + STORE_FILE);
+    }
+
+    /**
+     * Remove the SRN keyvals of previous agent versions once they have
+     * been migrated, so they are not kept in the storage provider forever.
+     */
+    private void deleteLegacySRNs() {
         final String lengthBuf = store.getValue(PROP_MSRNS_LENGTH);
-        final List<Byte> encSRNBytes = new ArrayList<Byte>();
+        if (lengthBuf != null) {
+            try {
+                final int length = Integer.parseInt(lengthBuf);
+                for (int i=0; i<length; i++) {
+                    store.setValue(PROP_MSRNS + "_" + i, null);
+                }
+            } catch (NumberFormatException e) {
+                log.warn("Invalid " + PROP_MSRNS_LENGTH + " value '" + lengthBuf + "'");
+            }
+            store.setValue(PROP_MSRNS_LENGTH, null);
+        }
+        store.setValue(PROP_MSRNS, null);
+        try {
+            store.flush();
+        } catch (AgentStorageException e) {
+            log.error("Unable to flush the removal of the migrated SRNs: " + e, e);
+        }
+    }
+
+    private List<SRN> readLegacySRNs(){
+        final List<SRN> srnList = new ArrayList<SRN>();
+        final String lengthBuf = store.getValue(PROP_MSRNS_LENGTH);
+        final ByteArrayOutputStream encSRNBytes = new ByteArrayOutputStream();
         if (lengthBuf == null) {
             final String mSchedBuf = store.getValue(PROP_MSRNS);
             if (mSchedBuf == null) {
-                log.warn("no srns to retrieve from storage");
-                return;
+                return srnList;
             }
             final byte[] bytes = Base64.decode(mSchedBuf);
-            encSRNBytes.addAll(Arrays.asList(ArrayUtils.toObject(bytes)));
+            encSRNBytes.write(bytes, 0, bytes.length);
         } else {
             final int length = Integer.parseInt(lengthBuf);
             for (int i=0; i<length; i++) {
                 final byte[] bytes = Base64.decode(store.getValue(PROP_MSRNS + "_" + i));
-                encSRNBytes.addAll(Arrays.asList(ArrayUtils.toObject(bytes)));
+                encSRNBytes.write(bytes, 0, bytes.length);
             }
         }
-        byte[] srnBytes = ArrayUtils.toPrimitive(encSRNBytes.toArray(new Byte[0]));
+        byte[] srnBytes = encSRNBytes.toByteArray();
         HashSet<AppdefEntityID> seenEnts = new HashSet<AppdefEntityID>();
-        String srnBuf = new String(srnBytes);
-        ByteArrayInputStream bIs = new ByteArrayInputStream(srnBytes);
-        DataInputStream dIs = new DataInputStream(bIs);
+        DataInputStream dIs = new DataInputStream(new ByteArrayInputStream(srnBytes));
         try {
             int numSRNs = dIs.readInt();
             int entType, entID, revNo;
@@ -114,79 +178,16 @@ class MeasurementSchedule {
                 srnList.add(new SRN(ent, revNo));
             }
         } catch(IOException exc){
-            this.log.error("Unable to decode SRN list: " + exc + " srn=\"" + srnBuf + "\"", exc);
-        }
-    }
-
-    private void writeSRNs() throws AgentStorageException {
-        ByteArrayOutputStream bOs;
-        DataOutputStream dOs;
-        bOs = new ByteArrayOutputStream();
-        dOs = new DataOutputStream(bOs);
-        synchronized(srnList){
-            try {
-                dOs.writeInt(srnList.size());
-                for(SRN srn : srnList) {
-                    AppdefEntityID ent = srn.getEntity();
-                    dOs.writeInt(ent.getType());
-                    dOs.writeInt(ent.getID());
-                    dOs.writeInt(srn.getRevisionNumber());
-                }
-                List<Byte> bytes = Arrays.asList(ArrayUtils.toObject(bOs.toByteArray()));
-                int size = bytes.size();
-                if (size > MAX_ELEM_SIZE) {
-                    store.setValue(PROP_MSRNS_LENGTH, new Integer((size/MAX_ELEM_SIZE) + 1).toString());
-                    int ii=0;
-                    for (int i=0; i<size; i+=MAX_ELEM_SIZE) {
-                        int start = i;
-                        int max = Math.min(i+MAX_ELEM_SIZE, size);
-                        List<Byte> subList = bytes.subList(start, max);
-                        Byte[] b = subList.toArray(new Byte[0]);
-                        store.setValue(MeasurementSchedule.PROP_MSRNS + "_" + ii++, Base64.encode(ArrayUtils.toPrimitive(b)));
-                    }
-                } else {
-                    store.setValue(PROP_MSRNS_LENGTH, "1");
-                    Byte[] b = bytes.toArray(new Byte[0]);
-                	store.setValue(MeasurementSchedule.PROP_MSRNS + "_0", Base64.encode(ArrayUtils.toPrimitive(b)));
-                }
-           } catch(IOException exc){
-                this.log.error("Error encoding SRN list", exc);
-                return;
-            }
-        }
-    }
-
-   
-    /**
-     * Converts all the records (Strings) from the collection into ScheduledMeasurement objects
-     * and returns an Iterator to a collection containing this metrics
-     */
-    private Iterator<ScheduledMeasurement> createMeasurementList(Collection<String> records){
-        Set<ScheduledMeasurement> metrics = new HashSet<ScheduledMeasurement>();
-        long i = -1;
-        for (String value : records) {
-            i++;
-            ScheduledMeasurement metric;
-            if((metric = ScheduledMeasurement.decode(value)) == null){
-                this.log.error("Unable to decode metric from storage, deleting.");
-                try {
-                    this.store.removeFromList(MeasurementSchedule.PROP_MSCHED, i);
-                } catch (AgentStorageException e) {
-                    log.debug(e,e);
-                }
-                continue;
-            }
-            metrics.add(metric);
+            this.log.error("Unable to decode SRN list: " + exc + " srn=\"" + new String(srnBytes) + "\"", exc);
         }
-        log.info("Number of metrics decoded from the storage - " + metrics.size());
-        return metrics.iterator();
+        return srnList;
     }
 
     /**
-     * Get a list of all the measurements within the storage.
-     * @throws IOException 
+     * Converts all the records (Strings) of the legacy measurement list into
+     * ScheduledMeasurement objects
      */
-    public synchronized Iterator<ScheduledMeasurement> getMeasurementList() throws IOException {
+    private Collection<ScheduledMeasurement> readLegacyMeasurements() throws IOException {
         Collection<String> records = new ArrayList<String>();
         try {
             readRecordsFromStorage(records);
@@ -202,7 +203,16 @@ class MeasurementSchedule {
             //the AgentDeamon will catch this exception and fail the agent startup
             readRecordsFromStorage(records);
         }
-        return createMeasurementList(records);
+        Set<ScheduledMeasurement> metrics = new LinkedHashSet<ScheduledMeasurement>();
+        for (String value : records) {
+            ScheduledMeasurement metric;
+            if((metric = ScheduledMeasurement.decode(value)) == null){
+                this.log.error("Unable to decode metric from storage, skipping.");
+                continue;
+            }
+            metrics.add(metric);
+        }
+        return metrics;
     }
 
     /**
@@ -220,129 +230,113 @@ class MeasurementSchedule {
         }
     }
 
-    synchronized void storeMeasurements(Collection<ScheduledMeasurement> measurements) throws AgentStorageException {
-        for (ScheduledMeasurement m : measurements) {
-            final String encoded = m.encode();
-            store.addToList(MeasurementSchedule.PROP_MSCHED, encoded.toString());
-        }
-        store.flush();
+    private static AgentStorageException toStorageException(String msg, IOException e) {
+        AgentStorageException toThrow = new AgentStorageException(msg + ": " + e);
+        toThrow.initCause(e);
+        return toThrow;
     }
 
-    synchronized void storeMeasurement(ScheduledMeasurement newMeas) throws AgentStorageException {
-        final String encoded = newMeas.encode();
-        store.addToList(MeasurementSchedule.PROP_MSCHED, encoded.toString());
-        store.flush();
+    /**
+     * Get a list of all the measurements within the storage.
+     */
+    public Iterator<ScheduledMeasurement> getMeasurementList() {
+        List<ScheduledMeasurement> metrics = this.schedule.getMeasurements();
+        log.info("Number of metrics in the schedule - " + metrics.size());
+        return metrics.iterator();
     }
 
-    void updateSRN(SRN updSRN) throws AgentStorageException {
-        AppdefEntityID ent = updSRN.getEntity();
-        boolean toWrite = false;
-        boolean found = false;
-        synchronized(this.srnList){
-            final boolean debug = log.isDebugEnabled();
-            for (SRN srn : srnList) {
-                if(found = srn.getEntity().equals(ent)) {
-                    if (toWrite =
-                        srn.getRevisionNumber() != updSRN.getRevisionNumber()) {
-                        if (debug) {
-                            log.debug("Updating SRN for " + ent + 
-                                      " from " + srn.getRevisionNumber() +
-                                      " to " + updSRN.getRevisionNumber());
-                        }
-                        srn.setRevisionNumber(updSRN.getRevisionNumber());
-                    }
-                    break;
+    /**
+     * Replace the measurements of entities.  Entities whose measurements
+     * are unchanged are not written again.
+     *
+     * @param metrics The new measurements, by entity
+     *
+     * @return The entities whose measurements changed
+     */
+    synchronized Set<AppdefEntityID> replaceMeasurements(Map<AppdefEntityID,? extends Collection<ScheduledMeasurement>> metrics)
+        throws AgentStorageException
+    {
+        Set<AppdefEntityID> changed = new HashSet<AppdefEntityID>();
+        try {
+            for (Map.Entry<AppdefEntityID,? extends Collection<ScheduledMeasurement>> entry : metrics.entrySet()) {
+                AppdefEntityID ent = entry.getKey();
+                if (this.schedule.isScheduled(ent, entry.getValue())) {
+                    continue;
+                }
+                changed.add(ent);
+                this.schedule.deleteMeasurements(ent);
+                for (ScheduledMeasurement meas : entry.getValue()) {
+                    this.schedule.putMeasurement(meas);
                 }
             }
-            if(!found){
-                log.debug("Adding new SRN for entity " + ent +  ": Initial value = " + updSRN.getRevisionNumber());
-                srnList.add(updSRN);
-                toWrite = true;
-            }
-            if(toWrite){
-                writeSRNs();
-            }
+            this.schedule.flush();
+        } catch (IOException e) {
+            throw toStorageException("Unable to store measurements", e);
         }
+        return changed;
     }
 
-    void removeSRN(AppdefEntityID ent) throws AgentStorageException {
-        boolean debug = this.log.isDebugEnabled();
-        boolean toWrite = false, found = false;
-
-        synchronized (this.srnList) {
-            for (Iterator<SRN> i = this.srnList.iterator(); i.hasNext();) {
-                SRN srn = i.next();
-                if (srn.getEntity().equals(ent)) {
-                    found = true;
-                    i.remove();
-                    toWrite = true;
-                    break;
-                }
-            }
-
-            if (found) {
-                if (debug) {
-                    this.log.debug("SRN for entity " + ent + " removed");
-                }
-            } else {
-                if (debug) {
-                    this.log.debug("SRN for entity " + ent + " not found");
-                }
+    void updateSRN(SRN updSRN) throws AgentStorageException {
+        if (log.isDebugEnabled()) {
+            SRN srn = this.schedule.getSRN(updSRN.getEntity());
+            if (srn == null) {
+                log.debug("Adding new SRN for entity " + updSRN.getEntity() +  ": Initial value = " +
+                          updSRN.getRevisionNumber());
+            } else if (srn.getRevisionNumber() != updSRN.getRevisionNumber()) {
+                log.debug("Updating SRN for " + updSRN.getEntity() + " from " + srn.getRevisionNumber() +
+                          " to " + updSRN.getRevisionNumber());
             }
+        }
+        try {
+            this.schedule.putSRN(updSRN);
+            this.schedule.flush();
+        } catch (IOException e) {
+            throw toStorageException("Unable to store SRN", e);
+        }
+    }
 
-            if (toWrite) {
-                this.writeSRNs();
-            }
+    void removeSRN(AppdefEntityID ent) throws AgentStorageException {
+        if (this.log.isDebugEnabled()) {
+            this.log.debug("SRN for entity " + ent + ((this.schedule.getSRN(ent) == null) ? " not found" : " removed"));
+        }
+        try {
+            this.schedule.deleteSRN(ent);
+            this.schedule.flush();
+        } catch (IOException e) {
+            throw toStorageException("Unable to remove SRN", e);
         }
     }
 
     /**
-     * Delete measurements matching a specific client IDs.
+     * Delete the measurements and SRNs of entities.
      * 
-     * @param clientID Metrics matching this ID will be deleted
-     * @param srnInfo  Updated SRN information for the entity which
-     *                 matches the clientID.  If this value is null
-     *                 (i.e. it is the last clientID for a resource, or
-     *                 an update of the SRN is unnecessary), then the
-     *                 SRN will not be updated.
+     * @param aeids The entities to delete
      */
     synchronized void deleteMeasurements(Set<AppdefEntityID> aeids) throws AgentStorageException  {
         if (aeids == null || aeids.isEmpty()) {
             return;
         }
-        final Iterator<String> i = store.getListIterator(MeasurementSchedule.PROP_MSCHED);
-        while (i != null && i.hasNext()){
-            final String value = i.next();
-            final ScheduledMeasurement meas = ScheduledMeasurement.decode(value);
-            if (null == meas) {
-                log.error("Unable to decode metric from storage, removing metric for entity");
-                i.remove();
-                continue;
-            }
-            final AppdefEntityID entity = meas.getEntity();
-            if (aeids.contains(entity)) {
-                log.debug("Removing scheduled measurement " + meas);
-                i.remove();
-            }
-        }
-        // Clear out the SRN 
-        synchronized(this.srnList){
-            final Iterator<SRN> it = srnList.iterator();
-            while (it.hasNext()) {
-                final SRN srn = it.next();
-                final AppdefEntityID entity = srn.getEntity();
-                if (aeids.contains(entity)) {
-                    it.remove();
-                }
+        try {
+            for (AppdefEntityID ent : aeids) {
+                log.debug("Removing scheduled measurements of " + ent);
+                this.schedule.deleteMeasurements(ent);
+                this.schedule.deleteSRN(ent);
             }
-            writeSRNs();
+            this.schedule.flush();
+        } catch (IOException e) {
+            throw toStorageException("Unable to delete measurements", e);
         }
-        store.flush();
     }
 
     SRN[] getSRNsAsArray(){
-        synchronized(this.srnList){
-            return (SRN[]) this.srnList.toArray(new SRN[0]);
+        return this.schedule.getSRNs();
+    }
+
+    void close() {
+        try {
+            this.schedule.close();
+        } catch (IOException e) {
+            log.error("Error closing the measurement schedule: " + e, e);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,468 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.agent.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hyperic.hq.appdef.shared.AppdefEntityID;
+import org.hyperic.hq.measurement.agent.ScheduledMeasurement;
+import org.hyperic.hq.measurement.server.session.SRN;
+
+/**
+ * The measurement schedule of the agent, kept in memory indexed by entity
+ * and derived measurement id, and persisted to a binary log file.
+ *
+ * Every change is appended to the log as its own record, so an update
+ * only costs as much as what changed, and loading the schedule at startup
+ * is a single sequential read.  Once the log holds mostly superseded
+ * records it is compacted into a new file holding only the current
+ * schedule.  The format of the file is as follows:
+ *
+ * [Header]
+ *      int      - Magic number
+ *      byte     - Version
+ * [Record]
+ *      int      - Length of the record data
+ *      byte     - Operation (put or delete of a measurement or SRN)
+ *      data     - The measurement, SRN, or entity the operation is on
+ *      int      - CRC32 of the operation and data
+ *
+ * A record which was only partially written when the agent died fails
+ * its length or CRC check, and the log is truncated before it.
+ *
+ * Writes are not forced to disk until flush(), which the caller invokes
+ * once per batch of changes.
+ */
+class ScheduleStore {
+    private static final Log log = LogFactory.getLog(ScheduleStore.class.getName());
+
+    private static final int  MAGIC   = 0x48514d53;
+    private static final byte VERSION = 1;
+    private static final int  HEADER_SIZE = 4 + 1;
+    private static final int  MAX_RECORD_SIZE = 1024 * 1024;
+
+    private static final byte OP_PUT_MEASUREMENT = 1;
+    private static final byte OP_DELETE_ENTITY   = 2;
+    private static final byte OP_PUT_SRN         = 3;
+    private static final byte OP_DELETE_SRN      = 4;
+
+    // Don't bother compacting small logs
+    private static final int COMPACT_MIN_RECORDS = 10000;
+    private static final String COMPACT_SUFFIX = ".compact";
+
+    private final File file;
+    private final Map<AppdefEntityID,Map<Integer,ScheduledMeasurement>> measurements =
+        new LinkedHashMap<AppdefEntityID,Map<Integer,ScheduledMeasurement>>();
+    private final Map<AppdefEntityID,SRN> srns = new LinkedHashMap<AppdefEntityID,SRN>();
+    private final ByteArrayOutputStream recBuf = new ByteArrayOutputStream(256);
+    private final DataOutputStream recOut = new DataOutputStream(recBuf);
+    private final CRC32 crc = new CRC32();
+    private final boolean created;
+    private FileOutputStream fOs;
+    private DataOutputStream out;
+    private int numMeasurements = 0;
+    private int numRecords = 0;       // Records in the log, incl. superseded ones
+
+    /**
+     * Open the store, loading the schedule from the file if it exists.
+     */
+    ScheduleStore(File file) throws IOException {
+        this.file = file;
+        File compacted = new File(file.getPath() + COMPACT_SUFFIX);
+        if (!file.exists() && compacted.exists()) {
+            // Died between removing the old log and renaming the new one
+            rename(compacted, file);
+        }
+        compacted.delete();
+
+        this.created = !file.exists();
+        if (this.created) {
+            openLog(true);
+        } else {
+            load();
+            openLog(false);
+        }
+    }
+
+    /**
+     * @return true if the file did not exist and was created by this store
+     */
+    boolean isCreated() {
+        return this.created;
+    }
+
+    private void openLog(boolean writeHeader) throws IOException {
+        this.fOs = new FileOutputStream(this.file, true);
+        this.out = new DataOutputStream(new BufferedOutputStream(this.fOs, 64 * 1024));
+        if (writeHeader) {
+            this.out.writeInt(MAGIC);
+            this.out.writeByte(VERSION);
+        }
+    }
+
+    private void load() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file), 64 * 1024));
+        long length = this.file.length();
+        long validLength = 0;
+        try {
+            try {
+                if ((in.readInt() != MAGIC) || (in.readByte() != VERSION)) {
+                    throw new IOException("Invalid measurement schedule file " + this.file);
+                }
+                validLength = HEADER_SIZE;
+            } catch (EOFException e) {
+                throw new IOException("Invalid measurement schedule file " + this.file);
+            }
+
+            byte[] buf = new byte[256];
+            while (validLength < length) {
+                int recLength;
+                try {
+                    recLength = in.readInt();
+                    if ((recLength <= 0) || (recLength > MAX_RECORD_SIZE)) {
+                        log.warn("Invalid record length " + recLength + " in " + this.file + " at " + validLength);
+                        break;
+                    }
+                    if (recLength > buf.length) {
+                        buf = new byte[recLength];
+                    }
+                    in.readFully(buf, 0, recLength);
+                    this.crc.reset();
+                    this.crc.update(buf, 0, recLength);
+                    if ((int) this.crc.getValue() != in.readInt()) {
+                        log.warn("Invalid record checksum in " + this.file + " at " + validLength);
+                        break;
+                    }
+                } catch (EOFException e) {
+                    log.warn("Truncated record in " + this.file + " at " + validLength);
+                    break;
+                }
+                apply(new DataInputStream(new ByteArrayInputStream(buf, 0, recLength)));
+                this.numRecords++;
+                validLength += 4 + recLength + 4;
+            }
+        } finally {
+            in.close();
+        }
+
+        if (validLength < length) {
+            RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+            try {
+                raf.setLength(validLength);
+            } finally {
+                raf.close();
+            }
+        }
+        log.info("Loaded " + this.numMeasurements + " scheduled measurements and " +
+                 this.srns.size() + " SRNs from " + this.numRecords + " records");
+    }
+
+    private void apply(DataInputStream in) throws IOException {
+        byte op = in.readByte();
+        switch (op) {
+        case OP_PUT_MEASUREMENT:
+            putInIndex(ScheduledMeasurement.read(in));
+            break;
+        case OP_DELETE_ENTITY:
+            removeFromIndex(readEntity(in));
+            break;
+        case OP_PUT_SRN:
+            AppdefEntityID ent = readEntity(in);
+            this.srns.put(ent, new SRN(ent, in.readInt()));
+            break;
+        case OP_DELETE_SRN:
+            this.srns.remove(readEntity(in));
+            break;
+        default:
+            throw new IOException("Unknown operation " + op + " in " + this.file);
+        }
+    }
+
+    private static AppdefEntityID readEntity(DataInputStream in) throws IOException {
+        int type = in.readInt();
+        return new AppdefEntityID(type, in.readInt());
+    }
+
+    private void writeEntity(AppdefEntityID ent) throws IOException {
+        this.recOut.writeInt(ent.getType());
+        this.recOut.writeInt(ent.getID());
+    }
+
+    private void putInIndex(ScheduledMeasurement meas) {
+        Map<Integer,ScheduledMeasurement> metrics = this.measurements.get(meas.getEntity());
+        if (metrics == null) {
+            metrics = new LinkedHashMap<Integer,ScheduledMeasurement>();
+            this.measurements.put(meas.getEntity(), metrics);
+        }
+        if (metrics.put(meas.getDerivedID(), meas) == null) {
+            this.numMeasurements++;
+        }
+    }
+
+    private void removeFromIndex(AppdefEntityID ent) {
+        Map<Integer,ScheduledMeasurement> metrics = this.measurements.remove(ent);
+        if (metrics != null) {
+            this.numMeasurements -= metrics.size();
+        }
+    }
+
+    private void beginRecord(byte op) {
+        this.recBuf.reset();
+        try {
+            this.recOut.writeByte(op);
+        } catch (IOException e) {
+            // ByteArrayOutputStream doesn't throw
+        }
+    }
+
+    private void endRecord(DataOutputStream dOs) throws IOException {
+        this.recOut.flush();
+        byte[] data = this.recBuf.toByteArray();
+        this.crc.reset();
+        this.crc.update(data, 0, data.length);
+        dOs.writeInt(data.length);
+        dOs.write(data);
+        dOs.writeInt((int) this.crc.getValue());
+    }
+
+    private void writeMeasurement(DataOutputStream dOs, ScheduledMeasurement meas) throws IOException {
+        beginRecord(OP_PUT_MEASUREMENT);
+        meas.write(this.recOut);
+        endRecord(dOs);
+    }
+
+    private void writeSRN(DataOutputStream dOs, SRN srn) throws IOException {
+        beginRecord(OP_PUT_SRN);
+        writeEntity(srn.getEntity());
+        this.recOut.writeInt(srn.getRevisionNumber());
+        endRecord(dOs);
+    }
+
+    private static boolean isSame(ScheduledMeasurement a, ScheduledMeasurement b) {
+        return (a.getDerivedID() == b.getDerivedID()) &&
+               (a.getDsnID() == b.getDsnID()) &&
+               (a.getInterval() == b.getInterval()) &&
+               a.getEntity().equals(b.getEntity()) &&
+               a.getDSN().equals(b.getDSN()) &&
+               a.getCategory().equals(b.getCategory());
+    }
+
+    /**
+     * @return true if the entity is scheduled with exactly these measurements
+     */
+    synchronized boolean isScheduled(AppdefEntityID ent, Collection<ScheduledMeasurement> metrics) {
+        Map<Integer,ScheduledMeasurement> current = this.measurements.get(ent);
+        if ((current == null) || (current.size() != metrics.size())) {
+            return false;
+        }
+        for (ScheduledMeasurement meas : metrics) {
+            ScheduledMeasurement old = current.get(meas.getDerivedID());
+            if ((old == null) || !isSame(old, meas)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Add or replace a measurement, keyed by its entity and derived id.
+     */
+    synchronized void putMeasurement(ScheduledMeasurement meas) throws IOException {
+        Map<Integer,ScheduledMeasurement> metrics = this.measurements.get(meas.getEntity());
+        ScheduledMeasurement old = (metrics == null) ? null : metrics.get(meas.getDerivedID());
+        if ((old != null) && isSame(old, meas)) {
+            return;
+        }
+        writeMeasurement(this.out, meas);
+        this.numRecords++;
+        putInIndex(meas);
+    }
+
+    /**
+     * Remove all the measurements of an entity.
+     */
+    synchronized void deleteMeasurements(AppdefEntityID ent) throws IOException {
+        if (!this.measurements.containsKey(ent)) {
+            return;
+        }
+        beginRecord(OP_DELETE_ENTITY);
+        writeEntity(ent);
+        endRecord(this.out);
+        this.numRecords++;
+        removeFromIndex(ent);
+    }
+
+    synchronized void putSRN(SRN srn) throws IOException {
+        SRN old = this.srns.get(srn.getEntity());
+        if ((old != null) && (old.getRevisionNumber() == srn.getRevisionNumber())) {
+            return;
+        }
+        writeSRN(this.out, srn);
+        this.numRecords++;
+        this.srns.put(srn.getEntity(), new SRN(srn.getEntity(), srn.getRevisionNumber()));
+    }
+
+    synchronized void deleteSRN(AppdefEntityID ent) throws IOException {
+        if (!this.srns.containsKey(ent)) {
+            return;
+        }
+        beginRecord(OP_DELETE_SRN);
+        writeEntity(ent);
+        endRecord(this.out);
+        this.numRecords++;
+        this.srns.remove(ent);
+    }
+
+    synchronized ScheduledMeasurement getMeasurement(AppdefEntityID ent, int derivedID) {
+        Map<Integer,ScheduledMeasurement> metrics = this.measurements.get(ent);
+        return (metrics == null) ? null : metrics.get(derivedID);
+    }
+
+    synchronized SRN getSRN(AppdefEntityID ent) {
+        return this.srns.get(ent);
+    }
+
+    synchronized SRN[] getSRNs() {
+        SRN[] res = new SRN[this.srns.size()];
+        int i = 0;
+        for (SRN srn : this.srns.values()) {
+            res[i++] = new SRN(srn.getEntity(), srn.getRevisionNumber());
+        }
+        return res;
+    }
+
+    /**
+     * @return All the scheduled measurements, grouped by entity
+     */
+    synchronized List<ScheduledMeasurement> getMeasurements() {
+        List<ScheduledMeasurement> res = new ArrayList<ScheduledMeasurement>(this.numMeasurements);
+        for (Map<Integer,ScheduledMeasurement> metrics : this.measurements.values()) {
+            res.addAll(metrics.values());
+        }
+        return res;
+    }
+
+    synchronized int size() {
+        return this.numMeasurements;
+    }
+
+    /**
+     * Force the changes to disk, and compact the log if most of it has
+     * been superseded.
+     */
+    synchronized void flush() throws IOException {
+        this.out.flush();
+        this.fOs.getFD().sync();
+
+        int live = this.numMeasurements + this.srns.size();
+        if ((this.numRecords > COMPACT_MIN_RECORDS) && (this.numRecords > 2 * live)) {
+            compact();
+        }
+    }
+
+    /**
+     * Rewrite the log with only the current schedule.
+     */
+    private void compact() throws IOException {
+        File compacted = new File(this.file.getPath() + COMPACT_SUFFIX);
+        int records = this.numRecords;
+        FileOutputStream cfOs = new FileOutputStream(compacted);
+        try {
+            DataOutputStream dOs = new DataOutputStream(new BufferedOutputStream(cfOs, 64 * 1024));
+            writeSchedule(dOs);
+            dOs.flush();
+            cfOs.getFD().sync();
+        } finally {
+            cfOs.close();
+        }
+
+        this.out.close();
+        try {
+            if (!this.file.delete()) {
+                compacted.delete();
+                throw new IOException("Unable to replace " + this.file + " with its compacted log");
+            }
+            rename(compacted, this.file);
+            this.numRecords = this.numMeasurements + this.srns.size();
+            log.info("Compacted " + this.file + " from " + records + " to " + this.numRecords + " records");
+        } finally {
+            boolean lost = !this.file.exists();
+            openLog(false);
+            if (lost) {
+                // The old log is gone but the compacted one could not take
+                // its place, start a new log with the current schedule
+                writeSchedule(this.out);
+                this.out.flush();
+                this.fOs.getFD().sync();
+                this.numRecords = this.numMeasurements + this.srns.size();
+            }
+        }
+    }
+
+    private void writeSchedule(DataOutputStream dOs) throws IOException {
+        dOs.writeInt(MAGIC);
+        dOs.writeByte(VERSION);
+        for (Map<Integer,ScheduledMeasurement> metrics : this.measurements.values()) {
+            for (ScheduledMeasurement meas : metrics.values()) {
+                writeMeasurement(dOs, meas);
+            }
+        }
+        for (SRN srn : this.srns.values()) {
+            writeSRN(dOs, srn);
+        }
+    }
+
+    private static void rename(File from, File to) throws IOException {
+        if (!from.renameTo(to)) {
+            throw new IOException("Unable to rename " + from + " to " + to);
+        }
+    }
+
+    synchronized void close() throws IOException {
+        this.out.flush();
+        this.fOs.getFD().sync();
+        this.out.close();
+    }
+}
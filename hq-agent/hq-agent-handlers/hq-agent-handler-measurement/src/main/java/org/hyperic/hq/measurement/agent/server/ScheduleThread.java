@@ -27,10 +27,13 @@ package org.hyperic.hq.measurement.agent.server;
 
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -73,11 +76,10 @@ import org.hyperic.hq.product.PluginNotFoundException;
 import org.hyperic.hq.util.properties.PropertiesUtil;
 import org.hyperic.util.TimeUtil;
 import org.hyperic.util.collection.IntHashMap;
-import org.hyperic.util.schedule.EmptyScheduleException;
-import org.hyperic.util.schedule.Schedule;
-import org.hyperic.util.schedule.ScheduleException;
 import org.hyperic.util.schedule.ScheduledItem;
 import org.hyperic.util.schedule.UnscheduledItemException;
+import org.hyperic.util.stats.StatCollector;
+import org.hyperic.util.stats.StatUnreachableException;
 
 /**
  * The schedule thread which maintains the schedule, and dispatches on them.
@@ -89,6 +91,7 @@ public class ScheduleThread  extends AgentMonitorSimple implements Runnable, Age
     private static final String SCHEDULE_THREAD_METRICS_COLLECTED_TIME = AgentStatsCollector.SCHEDULE_THREAD_METRICS_COLLECTED_TIME;
     private static final String SCHEDULE_THREAD_METRIC_TASKS_SUBMITTED = AgentStatsCollector.SCHEDULE_THREAD_METRIC_TASKS_SUBMITTED;
     private static final String SCHEDULE_THREAD_METRIC_COLLECT_FAILED  = AgentStatsCollector.SCHEDULE_THREAD_METRIC_COLLECT_FAILED;
+    private static final String SCHEDULE_THREAD_LATENESS = AgentStatsCollector.SCHEDULE_THREAD_LATENESS;
 
     // Agent properties configuration
     static final String PROP_POOLSIZE = "scheduleThread.poolsize."; // e.g. scheduleThread.poolsize.system=10
@@ -102,6 +105,10 @@ public class ScheduleThread  extends AgentMonitorSimple implements Runnable, Age
     private static final int ONE_SECOND = 1000;
     private static final int POLL_PERIOD = ONE_SECOND;
     private static final int UNREACHABLE_EXPIRE = (60 * 1000) * 5;
+    // Resolution of the schedule in ms
+    private static final long TICK = 10;
+    // Number of recent collections the lateness percentiles are taken over
+    private static final int LATENESS_SAMPLES = 1024;
 
     private static final long FETCH_TIME  = 2000; // 2 seconds.
     private static final long CANCEL_TIME = 5000; // 5 seconds.
@@ -114,6 +121,13 @@ public class ScheduleThread  extends AgentMonitorSimple implements Runnable, Age
 
     // AppdefID -> Schedule
     private final Map<String,ResourceSchedule> schedules = new HashMap<String,ResourceSchedule>();
+    // Every scheduled measurement, bucketed by the time it is next due
+    private final TimingWheel<ScheduledEntry> wheel =
+        new TimingWheel<ScheduledEntry>(TICK, System.currentTimeMillis());
+    // Schedules with MetricValue.FUTUREs to retry
+    private final Set<ResourceSchedule> retries = new LinkedHashSet<ResourceSchedule>();
+    // When the run loop wakes up next, to be woken early for new schedules
+    private volatile long timeOfNextWakeup = Long.MAX_VALUE;
     // Should I shut down?
     private final AtomicBoolean shouldDie = new AtomicBoolean(false);
     // Interrupt object
@@ -148,12 +162,17 @@ public class ScheduleThread  extends AgentMonitorSimple implements Runnable, Age
     private final Random rand = new Random();
     private final int offset;
     private final Map<AppdefEntityID, DiagInfo> diagInfo = new HashMap<AppdefEntityID, DiagInfo>();
+    private final LatenessSamples lateness = new LatenessSamples(LATENESS_SAMPLES);
 
     ScheduleThread(Sender sender, MeasurementValueGetter manager, Properties config) throws AgentStartException {
         this.statsCollector = AgentStatsCollector.getInstance();
         this.statsCollector.register(SCHEDULE_THREAD_METRIC_COLLECT_FAILED);
         this.statsCollector.register(SCHEDULE_THREAD_METRIC_TASKS_SUBMITTED);
         this.statsCollector.register(SCHEDULE_THREAD_METRICS_COLLECTED_TIME);
+        this.statsCollector.register(SCHEDULE_THREAD_LATENESS);
+        registerLatenessPercentile(AgentStatsCollector.SCHEDULE_THREAD_LATENESS_P50, 50);
+        registerLatenessPercentile(AgentStatsCollector.SCHEDULE_THREAD_LATENESS_P95, 95);
+        registerLatenessPercentile(AgentStatsCollector.SCHEDULE_THREAD_LATENESS_P99, 99);
         this.agentConfig = config;
         this.manager = manager;
         this.sender = sender;
@@ -202,6 +221,17 @@ public class ScheduleThread  extends AgentMonitorSimple implements Runnable, Age
         deductServerTimeDiff = deductServerOffset;
     }
 
+    private void registerLatenessPercentile(final String id, final int percentile) {
+        this.statsCollector.register(new StatCollector() {
+            public long getVal() throws StatUnreachableException {
+                return lateness.getPercentile(percentile);
+            }
+            public String getId() {
+                return id;
+            }
+        });
+    }
+
     /**
      * Task for printing Executor statistics
      */
@@ -271,11 +301,63 @@ public class ScheduleThread  extends AgentMonitorSimple implements Runnable, Age
     }
 
     private static class ResourceSchedule {
-        private final Schedule       schedule = new Schedule();
         private AppdefEntityID id;
         private long           lastUnreachble = 0;
         private final List<ScheduledMeasurement> retry = new ArrayList<ScheduledMeasurement>();
         private final IntHashMap collected = new IntHashMap();
+        // The wheel entries of the resource's measurements, guarded by the wheel
+        private final List<TimingWheel.Timeout<ScheduledEntry>> timeouts =
+            new ArrayList<TimingWheel.Timeout<ScheduledEntry>>();
+    }
+
+    /**
+     * A measurement in the wheel
+     */
+    private static class ScheduledEntry {
+        private final ResourceSchedule rs;
+        private final ScheduledMeasurement meas;
+        private boolean firstRun = true;
+
+        private ScheduledEntry(ResourceSchedule rs, ScheduledMeasurement meas) {
+            this.rs = rs;
+            this.meas = meas;
+        }
+    }
+
+    /**
+     * The lateness of the most recent collections, the time between when a
+     * measurement fell due and when it was handed to its executor.
+     */
+    private static class LatenessSamples {
+        private final long[] samples;
+        private int next = 0;
+        private int size = 0;
+
+        private LatenessSamples(int size) {
+            this.samples = new long[size];
+        }
+
+        private synchronized void add(long lateness) {
+            this.samples[this.next] = lateness;
+            this.next = (this.next + 1) % this.samples.length;
+            if (this.size < this.samples.length) {
+                this.size++;
+            }
+        }
+
+        private long getPercentile(int percentile) {
+            long[] sorted;
+            synchronized (this) {
+                if (this.size == 0) {
+                    return 0;
+                }
+                sorted = new long[this.size];
+                System.arraycopy(this.samples, 0, sorted, 0, this.size);
+            }
+            Arrays.sort(sorted);
+            int idx = (int) Math.ceil((percentile / 100.0) * sorted.length) - 1;
+            return sorted[Math.max(0, idx)];
+        }
     }
 
     private ResourceSchedule getSchedule(ScheduledMeasurement meas) {
@@ -333,7 +415,7 @@ public class ScheduleThread  extends AgentMonitorSimple implements Runnable, Age
         throws UnscheduledItemException
     {
         String key = ent.getAppdefKey();
-        ScheduledItem[] items;
+        List<ScheduledMeasurement> items = new ArrayList<ScheduledMeasurement>();
 
         ResourceSchedule rs;
         synchronized (schedules) {
@@ -348,16 +430,21 @@ public class ScheduleThread  extends AgentMonitorSimple implements Runnable, Age
         }
         setDiagScheduled(rs, false);
 
-        items = rs.schedule.getScheduledItems();
-        log.debug("Un-scheduling " + items.length + " metrics for " + ent);
+        synchronized (wheel) {
+            for (TimingWheel.Timeout<ScheduledEntry> timeout : rs.timeouts) {
+                wheel.cancel(timeout);
+                items.add(timeout.getItem().meas);
+            }
+            rs.timeouts.clear();
+        }
+        log.debug("Un-scheduling " + items.size() + " metrics for " + ent);
 
         synchronized (statsLock) {
-            statNumMetricsScheduled -= items.length;
+            statNumMetricsScheduled -= items.size();
         }
 
         synchronized (scheduled) {
-            for (ScheduledItem item : items) {
-                ScheduledMeasurement meas = (ScheduledMeasurement) item.getObj();
+            for (ScheduledMeasurement meas : items) {
                 scheduled.remove(meas.getDerivedID());
                 //For plugin/Collector awareness
                 ParsedTemplate tmpl = getParsedTemplate(meas);
@@ -369,6 +456,22 @@ public class ScheduleThread  extends AgentMonitorSimple implements Runnable, Age
         }
     }
 
+    /**
+     * @return The number of measurements scheduled for the entity
+     */
+    int getNumScheduled(AppdefEntityID ent) {
+        ResourceSchedule rs;
+        synchronized (schedules) {
+            rs = schedules.get(ent.getAppdefKey());
+        }
+        if (rs == null) {
+            return 0;
+        }
+        synchronized (wheel) {
+            return rs.timeouts.size();
+        }
+    }
+
     /**
      * Schedule a measurement to be taken at a given interval.  
      *
@@ -382,28 +485,30 @@ public class ScheduleThread  extends AgentMonitorSimple implements Runnable, Age
             }
             scheduled.add(mid);
         }
-        ResourceSchedule rs = getSchedule(meas);
-        setDiagScheduled(rs, true);
-        try {
-            rs.schedule.scheduleItem(meas, meas.getInterval(), true, true);
-            if (log.isDebugEnabled()) {
-                Long timeOfNext;
-                try {
-                    timeOfNext = rs.schedule.getTimeOfNext();
-                } catch (EmptyScheduleException e) {
-                    timeOfNext = null;
-                }
-                log.debug("scheduleMeasurement timeOfNext=" + TimeUtil.toString(timeOfNext) +
-                          ", template=" + getParsedTemplate(meas).metric.toDebugString());
-            }
-            synchronized (statsLock) {
-                statNumMetricsScheduled++;
-            }
-        } catch (ScheduleException e) {
-            log.error("Unable to schedule metric '" + getParsedTemplate(meas) + "', skipping. Cause is " + e, e);
+        if (meas.getInterval() <= 0) {
+            log.error("Unable to schedule metric '" + getParsedTemplate(meas) +
+                      "', skipping. Invalid schedule interval given (" + meas.getInterval() + ")");
             synchronized (scheduled) {
                 scheduled.remove(mid);
             }
+            return;
+        }
+        ResourceSchedule rs = getSchedule(meas);
+        setDiagScheduled(rs, true);
+        // Schedule in the past to force immediate firing
+        long timeOfNext = ScheduledItem.getScheduledTimePrev(meas.getInterval());
+        synchronized (wheel) {
+            rs.timeouts.add(wheel.schedule(new ScheduledEntry(rs, meas), timeOfNext));
+        }
+        if (timeOfNext < timeOfNextWakeup) {
+            interruptMe();
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("scheduleMeasurement timeOfNext=" + TimeUtil.toString(timeOfNext) +
+                      ", template=" + getParsedTemplate(meas).metric.toDebugString());
+        }
+        synchronized (statsLock) {
+            statNumMetricsScheduled++;
         }
     }
 
@@ -654,7 +759,10 @@ public class ScheduleThread  extends AgentMonitorSimple implements Runnable, Age
                     //rather than waiting for the metric's own interval
                     //which could take much longer to hit
                     //(e.g. Windows Updates on an 8 hour interval)
-                    rs.retry.add(meas);
+                    synchronized (retries) {
+                        rs.retry.add(meas);
+                        retries.add(rs);
+                    }
                     return;
                 }
                 
@@ -793,16 +901,22 @@ public class ScheduleThread  extends AgentMonitorSimple implements Runnable, Age
         };
     }
 
-    private long collect(ResourceSchedule rs) {
-        long timeOfNext;
-        long now = System.currentTimeMillis();
-        Schedule schedule = rs.schedule;
-        try {
-            timeOfNext = schedule.getTimeOfNext();
-        } catch (EmptyScheduleException e) {
-            return POLL_PERIOD + now;
+    /**
+     * @return the next time the measurement should be collected, on its
+     *         interval from the time it was due
+     */
+    private static long getTimeOfNext(ScheduledMeasurement meas, long deadline, long now) {
+        long interval = meas.getInterval();
+        long timeOfNext = deadline + interval;
+        // Somehow the clock jumped (laptop was suspended?), or we got really
+        // far behind.  Jump up to the next slot
+        if (timeOfNext < now) {
+            timeOfNext = ScheduledItem.getScheduledTime(interval);
         }
+        return timeOfNext;
+    }
 
+    private void collect(ResourceSchedule rs, List<ScheduledMeasurement> items, long now) {
         if (rs.lastUnreachble != 0) {
             if ((now - rs.lastUnreachble) > UNREACHABLE_EXPIRE) {
                 rs.lastUnreachble = 0;
@@ -812,59 +926,95 @@ public class ScheduleThread  extends AgentMonitorSimple implements Runnable, Age
 
         rs.collected.clear();
 
-        if (rs.retry.size() != 0) {
+        List<ScheduledMeasurement> retry = null;
+        synchronized (retries) {
+            if (rs.retry.size() != 0) {
+                retry = new ArrayList<ScheduledMeasurement>(rs.retry);
+                rs.retry.clear();
+            }
+            retries.remove(rs);
+        }
+        if (retry != null) {
             if (log.isDebugEnabled()) {
-                log.debug("Retrying " + rs.retry.size() + " items (MetricValue.FUTUREs)");
+                log.debug("Retrying " + retry.size() + " items (MetricValue.FUTUREs)");
             }
-            collect(rs, rs.retry);
-            rs.retry.clear();
+            collect(rs, retry);
         }
 
-        if (now < timeOfNext) {
-            return timeOfNext;
+        if (items != null) {
+            collect(rs, items);
         }
+    }
 
-        List items;
+    /**
+     * Turn the wheel up to now and dispatch every measurement which fell
+     * due, along with the retries of any resource.
+     *
+     * @return The time the wheel needs to be turned next
+     */
+    private long collect() {
+        final long now = System.currentTimeMillis();
+        final List<TimingWheel.Timeout<ScheduledEntry>> expired =
+            new ArrayList<TimingWheel.Timeout<ScheduledEntry>>();
+        long timeOfNext;
 
-        try {
-            items = schedule.consumeNextItems();
-            timeOfNext = schedule.getTimeOfNext();
-        } catch (EmptyScheduleException e) {
-            return POLL_PERIOD + now;
+        synchronized (wheel) {
+            if (now < wheel.getCurrentTime() - POLL_PERIOD) {
+                log.info("Clock moved back " + (wheel.getCurrentTime() - now) +
+                         " ms, rebuilding the schedule");
+                wheel.reset(now);
+            }
+            wheel.advance(now, expired);
+            for (TimingWheel.Timeout<ScheduledEntry> timeout : expired) {
+                ScheduledEntry entry = timeout.getItem();
+                wheel.reschedule(timeout, getTimeOfNext(entry.meas, timeout.getDeadline(), now));
+            }
+            timeOfNext = wheel.getTimeOfNext();
         }
-        collect(rs, items);
-        return timeOfNext;
-    }
-    
-    private long collect() {
-        long timeOfNext = 0;
-        
-        Map<String,ResourceSchedule> schedules = null;
-        synchronized (this.schedules) {
-            if (this.schedules.size() == 0) {
-                //nothing scheduled
-                timeOfNext = POLL_PERIOD + System.currentTimeMillis();
+        if (timeOfNext < 0) {
+            //nothing scheduled
+            timeOfNext = POLL_PERIOD + now;
+        }
+
+        // Group by resource, so duplicates and unreachable resources are
+        // dealt with as one batch
+        Map<ResourceSchedule,List<ScheduledMeasurement>> due =
+            new LinkedHashMap<ResourceSchedule,List<ScheduledMeasurement>>();
+        for (TimingWheel.Timeout<ScheduledEntry> timeout : expired) {
+            ScheduledEntry entry = timeout.getItem();
+            List<ScheduledMeasurement> items = due.get(entry.rs);
+            if (items == null) {
+                items = new ArrayList<ScheduledMeasurement>();
+                due.put(entry.rs, items);
+            }
+            items.add(entry.meas);
+            if (entry.firstRun) {
+                // First collections are scheduled in the past on purpose
+                entry.firstRun = false;
             } else {
-                schedules = new HashMap<String,ResourceSchedule>(this.schedules);
+                long late = now - timeout.getDeadline();
+                lateness.add(late);
+                statsCollector.addStat(late, SCHEDULE_THREAD_LATENESS);
             }
         }
-
-        if (schedules != null) {
-            for (Iterator<ResourceSchedule> it = schedules.values().iterator(); it.hasNext() && (!shouldDie.get());) {
-                ResourceSchedule rs = it.next();
-                try {
-                    long next = collect(rs);
-                    if (timeOfNext == 0) {
-                        timeOfNext = next;
-                    } else {
-                        timeOfNext = Math.min(next, timeOfNext);
-                    }
-                } catch (Throwable e) {
-                    log.error(e.getMessage(), e);
+        synchronized (retries) {
+            for (ResourceSchedule rs : retries) {
+                if (!due.containsKey(rs)) {
+                    due.put(rs, null);
                 }
             }
         }
-        
+
+        for (Iterator<Entry<ResourceSchedule,List<ScheduledMeasurement>>> it = due.entrySet().iterator();
+             it.hasNext() && (!shouldDie.get());) {
+            Entry<ResourceSchedule,List<ScheduledMeasurement>> entry = it.next();
+            try {
+                collect(entry.getKey(), entry.getValue(), now);
+            } catch (Throwable e) {
+                log.error(e.getMessage(), e);
+            }
+        }
+
         return timeOfNext;
     }
 
@@ -880,6 +1030,7 @@ public class ScheduleThread  extends AgentMonitorSimple implements Runnable, Age
             if (fudgeFactor > 0) {
                 timeOfNext += rand.nextInt(fudgeFactor);
             }
+            timeOfNextWakeup = timeOfNext;
             long now = System.currentTimeMillis();
             if (timeOfNext > now) {
                 long wait = timeOfNext - now;
@@ -895,6 +1046,7 @@ public class ScheduleThread  extends AgentMonitorSimple implements Runnable, Age
                     log.debug("Schedule thread kicked");
                 }
             }
+            timeOfNextWakeup = Long.MAX_VALUE;
         }
         log.info("Schedule thread shut down");
     }
@@ -37,6 +37,15 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Properties;
 import java.util.Set;
+import java.util.ConcurrentModificationException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -49,6 +58,7 @@ import org.hyperic.hq.bizapp.agent.CommandsAPIInfo;
 import org.hyperic.hq.bizapp.client.AgentCallbackClientException;
 import org.hyperic.hq.bizapp.client.MeasurementCallbackClient;
 import org.hyperic.hq.bizapp.client.StorageProviderFetcher;
+import org.hyperic.hq.bizapp.shared.lather.MeasurementSendReport_result;
 import org.hyperic.hq.common.SystemException;
 import org.hyperic.hq.measurement.data.DSNList;
 import org.hyperic.hq.measurement.data.MeasurementReport;
@@ -74,6 +84,8 @@ public class SenderThread
         "agent.maxBatchSize";
     private static final String PROP_METRICDEBUG  = 
         "agent.metricDebug";
+    private static final String PROP_DRAINDEPTH  = 
+        "agent.backlogDrainDepth";
 
     // The threshold for logging server offset issues in the agent log.
     // XXX: May need to revisit this, potentially alot of output for
@@ -85,6 +97,10 @@ public class SenderThread
 
     private static final int    SEND_INTERVAL = 60000;
     private static final int    MAX_BATCHSIZE = 500;
+    private static final int    DRAIN_DEPTH   = 4;
+    // Shrink the number of batches in flight when the server takes more
+    // than this many times its best time of the drain to confirm a batch
+    private static final int    DRAIN_LATENCY_FACTOR = 2;
     private static final String MEASURENENT_LISTNAME = "measurement_spool";
     private static final String AVAILABILITY_LISTNAME = "availability_spool";
     
@@ -97,23 +113,27 @@ public class SenderThread
     // This toggle will avoid displaying non-stop messages about server down 
     private          int                       metricDup = 0;
     private          int                       maxBatchSize = MAX_BATCHSIZE;
+    private          int                       drainDepth = DRAIN_DEPTH;
+    private          ExecutorService           drainExecutor;
     private final          Set                       metricDebug;
     private final          MeasurementSchedule       schedule;
 
     // Current difference time between the server and agent in ns.
     // Update on each call to sendMeasurementReport().
-    private long serverDiff = 0;
+    private volatile long serverDiff = 0;
 
-    // Statistics
-    private long stat_numBatchesSent     = 0;
-    private long stat_totBatchSendTime   = 0;
-    private long stat_totMetricsSent     = 0;
+    // Statistics, updated by the drain and read by the monitor
+    private final AtomicLong stat_numBatchesSent   = new AtomicLong();
+    private final AtomicLong stat_totBatchSendTime = new AtomicLong();
+    private final AtomicLong stat_totMetricsSent   = new AtomicLong();
+    private volatile double stat_drainRate  = 0;
+    private volatile int    stat_drainDepth = 0;
 
 
 
     SenderThread(Properties bootProps, AgentStorageProvider storage, MeasurementSchedule schedule)
     throws AgentStartException {
-        String sMetricDup, sMaxBatchSize, sMetricDebug;
+        String sMetricDup, sMaxBatchSize, sMetricDebug, sDrainDepth;
         this.log             = LogFactory.getLog(SenderThread.class);
         this.shouldDie       = false;
         this.storage         = storage;
@@ -183,7 +203,31 @@ public class SenderThread
             }
         }
 
+        sDrainDepth = bootProps.getProperty(PROP_DRAINDEPTH);
+        if(sDrainDepth != null){
+            try {
+                this.drainDepth = Integer.parseInt(sDrainDepth);
+            } catch(NumberFormatException exc){
+                throw new AgentStartException(PROP_DRAINDEPTH + " is not " +
+                                              "a valid integer ('" + 
+                                              sDrainDepth + "')");
+            }
+        }
+
         this.log.info("Maximum metric batch size set to " +  this.maxBatchSize);
+
+        if(this.drainDepth > 1){
+            this.drainExecutor = Executors.newFixedThreadPool(this.drainDepth, new ThreadFactory() {
+                private final AtomicLong num = new AtomicLong();
+                public Thread newThread(Runnable r) {
+                    final Thread rtn = new Thread(r, "MeasurementDrain-" + num.getAndIncrement());
+                    rtn.setDaemon(true);
+                    return rtn;
+                }
+            });
+            this.log.info("Metric backlogs drained with up to " + this.drainDepth +
+                          " batches in flight");
+        }
     }
 
     private MeasurementCallbackClient setupClient()
@@ -197,6 +241,9 @@ public class SenderThread
 
     void die(){
         this.shouldDie = true; 
+        if(this.drainExecutor != null){
+            this.drainExecutor.shutdown();
+        }
     }
 
     // Use a small class which holds a bunch of the data we need, just so
@@ -374,51 +421,15 @@ public class SenderThread
         numDebuggedSent = 0;
         constructor     = new MeasurementReportConstructor();
         
-        final boolean debug = log.isDebugEnabled();
         log.debug("Sending batch to server:");
         Set<Record> records = new HashSet<Record>();
-        // first we are going to ensure that all the data points that
-        // we send over to the server are unique
-        for (Iterator<String> it=storage.getListIterator(listName); (it!=null) && it.hasNext() && (numUsed < maxBatchSize); numUsed++) {
-            try {
-                Record r = SenderThread.decodeRecord(it.next());
-                boolean didNotAlreadyExist = records.add(r); 
-                if (!didNotAlreadyExist) {
-                    // nuke the dup
-                    if (debug) {
-                        log.debug("Dropping duplicate entry for " + r);
-                    }
-                    numUsed--;
-                }
-            } catch(IOException exc){
-                this.log.error("Error accessing record -- deleting: " + exc, exc);
-                continue;
-            }
-        }
+        numUsed = this.readRecords(this.storage.getListIterator(listName), records);
 
-        int num = 0;
+        int num = records.size();
         long firstMetricTime = Long.MAX_VALUE;
 
-        for (Iterator<Record> it=records.iterator(); it.hasNext(); num++) {
-            Record rec = it.next();
-
-            lastMetricTime = rec.data.getTimestamp();
-
-            if(log.isDebugEnabled()){
-                this.log.debug("    Data:  d=" + rec.derivedID + 
-                               " r=" + rec.dsnId +
-                               " t=" + rec.data.getTimestamp() +
-                               " v=" + rec.data);
-            }
-
-            if(this.metricDebug.contains(new Integer(rec.derivedID))){
-                numDebuggedSent++;
-                this.log.info("metricDebug:  Pulled DSN=" + rec.dsnId + 
-                              " derivedID=" + rec.derivedID + " value=" + 
-                              rec.data.getValue() + " from tQueue -- sending");
-            }
-            constructor.addDataPoint(rec.derivedID, rec.dsnId, rec.data);
-        }
+        numDebuggedSent = this.addDataPoints(records, constructor);
+        lastMetricTime  = this.getLastMetricTime(records);
         numSent.set(num);
 
         // If we don't have anything to send -- move along
@@ -445,13 +456,7 @@ public class SenderThread
                 }
             }
 
-            report = new MeasurementReport();
-            if (this.agentToken == null) {
-                this.agentToken = storage.getValue(CommandsAPIInfo.PROP_AGENT_TOKEN);
-            }
-            report.setAgentToken(this.agentToken);
-            report.setClientIdList(clientIds);
-            report.setSRNList(srnList);
+            report = this.createReport(clientIds, srnList);
             batchStart = now();
             try {
                 serverTime = this.client.measurementSendReport(report);
@@ -460,33 +465,14 @@ public class SenderThread
             }
             batchEnd = now();
 
-            // Compute offset from server (will include network latency)
-            this.serverDiff = Math.abs(serverTime - batchEnd);
-
-            // Update the ServerTimeDiff object with the time offset between the
-            // agent and the server and update the last sync time to now
-            ServerTimeDiff.getInstance().setServerTimeDiff(serverTime - batchEnd);
-            ServerTimeDiff.getInstance().setLastSync(batchEnd);
-
-            if (this.serverDiff > MAX_SERVERDIFF) {
-                // Complain if we are ahead or behind.  This may be a bit
-                // too excessive.
-                if (serverTime < batchEnd) {
-                    this.log.error("Agent is " + (this.serverDiff / 1000) + 
-                                   " seconds ahead of the server.  To " +
-                                   "ensure accuracy of the charting and " +
-                                   "alerting make sure the agent and server " +
-                                   "clocks are synchronized");
-                } else {
-                    this.log.error("Agent is " + (this.serverDiff / 1000) + 
-                                   " seconds behind the server.  To " +
-                                   "ensure accuracy of the charting and " +
-                                   "alerting make sure the agent and server " +
-                                   "clocks are synchronized");
-                }
-            }
+            this.updateServerTime(serverTime, batchEnd);
             success = true;
         } catch(AgentCallbackClientException exc){
+            if (MeasurementSendReport_result.isServerBusy(exc.getMessage())) {
+                // Keep the backlog until the next send, rather than retrying now
+                log.info("Server busy, deferring the send of " + num + " measurements");
+                return null;
+            }
             log.error("Error sending measurements: " +  exc.getMessage(), exc);
             // return this so that the caller will attempt a retry on everything except Connection refused
             if (!exc.getMessage().toLowerCase().endsWith("refused")) {
@@ -494,27 +480,17 @@ public class SenderThread
                 return firstMetricTime;
             }
         } finally {
-            if(numDebuggedSent != 0){
-                if(success){
-                    this.log.info("metricDebug:  Successfully sent " +
-                                  numDebuggedSent + " debugged metrics to " +
-                                  "server");
-                } else {
-                    this.log.info("metricDebug:  Server reported failure " +
-                                  "when sent " + numDebuggedSent + 
-                                  " debugged metrics");
-                }
-            }
+            this.logDebuggedSent(numDebuggedSent, success);
         }
         
         if(success){
             removeMeasurements(numUsed, listName);
 
-            this.stat_numBatchesSent++;
-            this.stat_totBatchSendTime += (batchEnd - batchStart);
-            this.stat_totMetricsSent += numUsed;
+            this.stat_numBatchesSent.incrementAndGet();
+            this.stat_totBatchSendTime.addAndGet(batchEnd - batchStart);
+            this.stat_totMetricsSent.addAndGet(num);
 
-            if(numUsed == this.maxBatchSize){
+            if(num == this.maxBatchSize){
                 return new Long(lastMetricTime);
             } else {
                 return null;
@@ -523,6 +499,344 @@ public class SenderThread
         return null;
     }
 
+    /**
+     * A batch of a backlog drain, sent to the server by the drainExecutor.
+     */
+    private class DrainBatch implements Callable<Long> {
+        private final MeasurementReport report;
+        private final int numRead, numRecords, numDebugged;
+        private final long lastMetricTime;
+        private Future<Long> result;
+        // Set by the executor thread
+        private volatile long sendTime;
+
+        private DrainBatch(MeasurementReport report, int numRead, int numRecords,
+                           int numDebugged, long lastMetricTime) {
+            this.report         = report;
+            this.numRead        = numRead;
+            this.numRecords     = numRecords;
+            this.numDebugged    = numDebugged;
+            this.lastMetricTime = lastMetricTime;
+        }
+
+        public Long call() throws AgentCallbackClientException {
+            if (this.report == null) {
+                // Nothing but undecodable records or duplicates
+                return null;
+            }
+            final long start = now();
+            long serverTime = client.measurementSendReport(this.report);
+            this.sendTime = now() - start;
+            return new Long(serverTime);
+        }
+    }
+
+    /**
+     * Drain a backlog of the list, keeping batches in flight rather than
+     * waiting for each one to be confirmed before reading the next.
+     * Batches are confirmed in list order and records are only removed
+     * once the server has confirmed their batch, so after a failure that
+     * batch stays in the list to be resent.  Batches behind it which were
+     * already being sent are waited for, and removed if the server got
+     * them, so they are not sent twice.
+     *
+     * The drain starts with one batch in flight and adds one for every
+     * confirmed batch, up to drainDepth.  Whenever the server takes more
+     * than DRAIN_LATENCY_FACTOR times its best time of the drain to
+     * confirm a batch, the number of batches in flight is halved instead.
+     *
+     * @return true if the backlog has been drained, false if the drain
+     *         was cut short and the rest is left to the next send interval
+     */
+    private boolean drainBacklog(String listName, Reference<Integer> numSent) {
+        LinkedList<DrainBatch> inFlight = new LinkedList<DrainBatch>();
+        final long start = now();
+        long minSendTime = Long.MAX_VALUE;
+        int window = 1, numDrained = 0;
+        boolean exhausted = false;
+        String backlogNum = "";
+        // Positioned after the records of the batches in flight, so each
+        // batch is read without going over the ones before it again
+        Iterator<String> cursor = null;
+
+        try {
+            while (true) {
+                while (!exhausted && (inFlight.size() < window)) {
+                    this.processTransitionQueue();
+
+                    if (cursor == null) {
+                        // Nothing is in flight while the list is empty
+                        cursor = this.storage.getListIterator(listName);
+                    }
+                    Set<Record> records = new HashSet<Record>();
+                    int numRead;
+                    try {
+                        numRead = this.readRecords(cursor, records);
+                    } catch (ConcurrentModificationException exc) {
+                        this.log.info("Measurement list cleared, deferring the rest of the backlog");
+                        return false;
+                    }
+                    if (numRead == 0) {
+                        exhausted = true;
+                        break;
+                    }
+                    exhausted = (records.size() < this.maxBatchSize);
+
+                    MeasurementReport report = null;
+                    int numDebugged = 0;
+                    if (!records.isEmpty()) {
+                        SRN[] srnList = this.schedule.getSRNsAsArray();
+                        if (srnList.length == 0) {
+                            // Let sendBatch() deal with it
+                            return false;
+                        }
+                        MeasurementReportConstructor constructor = new MeasurementReportConstructor();
+                        numDebugged = this.addDataPoints(records, constructor);
+                        report = this.createReport(constructor.constructDSNList(), srnList);
+                    }
+
+                    DrainBatch batch = new DrainBatch(report, numRead, records.size(), numDebugged,
+                                                      this.getLastMetricTime(records));
+                    try {
+                        batch.result = this.drainExecutor.submit(batch);
+                    } catch (RejectedExecutionException exc) {
+                        // die() has shut the executor down
+                        this.log.info("Dying with measurements backlogged");
+                        return false;
+                    }
+                    inFlight.add(batch);
+                }
+                this.stat_drainDepth = inFlight.size();
+
+                if (inFlight.isEmpty()) {
+                    return true;
+                }
+
+                // Only taken off once confirmed, so the finally block knows
+                // a failed batch is still in the list
+                DrainBatch batch = inFlight.getFirst();
+                Long serverTime;
+                try {
+                    serverTime = batch.result.get();
+                } catch (ExecutionException exc) {
+                    Throwable cause = exc.getCause();
+                    if (MeasurementSendReport_result.isServerBusy(cause.getMessage())) {
+                        this.log.info("Server busy, deferring the rest of the backlog");
+                    } else {
+                        this.log.error("Error sending measurements: " + cause.getMessage(), cause);
+                    }
+                    this.logDebuggedSent(batch.numDebugged, false);
+                    return false;
+                } catch (InterruptedException exc) {
+                    this.log.info("Measurement backlog drain interrupted");
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                inFlight.removeFirst();
+                final long batchEnd = now();
+                this.logDebuggedSent(batch.numDebugged, true);
+
+                removeMeasurements(batch.numRead, listName);
+                numDrained += batch.numRecords;
+                numSent.set(numDrained);
+                this.stat_drainRate = numDrained * 1000.0 / Math.max(1, batchEnd - start);
+
+                if (serverTime != null) {
+                    this.updateServerTime(serverTime.longValue(), batchEnd);
+                    this.stat_numBatchesSent.incrementAndGet();
+                    this.stat_totBatchSendTime.addAndGet(batch.sendTime);
+                    this.stat_totMetricsSent.addAndGet(batch.numRecords);
+
+                    minSendTime = Math.min(minSendTime, batch.sendTime);
+                    if (batch.sendTime > (DRAIN_LATENCY_FACTOR * Math.max(1, minSendTime))) {
+                        window = Math.max(1, window / 2);
+                    } else if (window < this.drainDepth) {
+                        window++;
+                    }
+                }
+
+                long tDiff = batchEnd - batch.lastMetricTime;
+                String backlog = Long.toString(tDiff / (60 * 1000));
+                if(((tDiff / (60 * 1000)) > 1) && (backlog.equals(backlogNum) == false)) {
+                    backlogNum = backlog;
+                    this.log.info(backlog +  " minute(s) of metrics backlogged");
+                }
+                if(this.shouldDie == true){
+                    this.log.info("Dying with measurements backlogged");
+                    return false;
+                }
+            }
+        } finally {
+            numDrained += this.finishInFlight(inFlight, listName);
+            numSent.set(numDrained);
+            this.stat_drainDepth = 0;
+        }
+    }
+
+    /**
+     * Settle the batches left in flight when a drain is cut short.  Those
+     * which have not been sent yet are cancelled and resent with the next
+     * drain.  Those already being sent may still reach the server, so they
+     * are waited for, and their records removed if they did, leaving the
+     * unconfirmed batches before them in the list.
+     *
+     * @return the number of records the server got
+     */
+    private int finishInFlight(LinkedList<DrainBatch> inFlight, String listName) {
+        int skip = 0, numDrained = 0;
+
+        for (DrainBatch batch : inFlight) {
+            boolean sent = false;
+            if (!batch.result.cancel(false)) {
+                try {
+                    batch.result.get();
+                    sent = true;
+                } catch (ExecutionException exc) {
+                    // Left in the list to be resent
+                } catch (InterruptedException exc) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (sent) {
+                this.logDebuggedSent(batch.numDebugged, true);
+                removeMeasurements(skip, batch.numRead, listName);
+                numDrained += batch.numRecords;
+                if (batch.report != null) {
+                    this.stat_numBatchesSent.incrementAndGet();
+                    this.stat_totBatchSendTime.addAndGet(batch.sendTime);
+                    this.stat_totMetricsSent.addAndGet(batch.numRecords);
+                }
+            } else {
+                skip += batch.numRead;
+            }
+        }
+        inFlight.clear();
+        return numDrained;
+    }
+
+    /**
+     * Reads the next batch of unique records from the list.  Records which
+     * cannot be decoded and duplicates are dropped but still count as read,
+     * so they get removed with the batch.
+     *
+     * @param it Iterator over the list, positioned at the first record to
+     *           read, or null if the list is empty
+     * @param records Filled with at most maxBatchSize records
+     *
+     * @return the number of records read from the list
+     */
+    private int readRecords(Iterator<String> it, Set<Record> records) {
+        final boolean debug = log.isDebugEnabled();
+        int numRead = 0;
+
+        // first we are going to ensure that all the data points that
+        // we send over to the server are unique
+        for (; (it!=null) && it.hasNext() && (records.size() < maxBatchSize); numRead++) {
+            try {
+                Record r = SenderThread.decodeRecord(it.next());
+                boolean didNotAlreadyExist = records.add(r); 
+                if (!didNotAlreadyExist) {
+                    // nuke the dup
+                    if (debug) {
+                        log.debug("Dropping duplicate entry for " + r);
+                    }
+                }
+            } catch(IOException exc){
+                this.log.error("Error accessing record -- deleting: " + exc, exc);
+                continue;
+            }
+        }
+        return numRead;
+    }
+
+    /**
+     * @return the number of metricDebug records added
+     */
+    private int addDataPoints(Set<Record> records, MeasurementReportConstructor constructor) {
+        int numDebugged = 0;
+
+        for (Record rec : records) {
+            if(log.isDebugEnabled()){
+                this.log.debug("    Data:  d=" + rec.derivedID + 
+                               " r=" + rec.dsnId +
+                               " t=" + rec.data.getTimestamp() +
+                               " v=" + rec.data);
+            }
+
+            if(this.metricDebug.contains(new Integer(rec.derivedID))){
+                numDebugged++;
+                this.log.info("metricDebug:  Pulled DSN=" + rec.dsnId + 
+                              " derivedID=" + rec.derivedID + " value=" + 
+                              rec.data.getValue() + " from tQueue -- sending");
+            }
+            constructor.addDataPoint(rec.derivedID, rec.dsnId, rec.data);
+        }
+        return numDebugged;
+    }
+
+    private long getLastMetricTime(Set<Record> records) {
+        long lastMetricTime = 0;
+
+        for (Record rec : records) {
+            lastMetricTime = rec.data.getTimestamp();
+        }
+        return lastMetricTime;
+    }
+
+    private MeasurementReport createReport(DSNList[] clientIds, SRN[] srnList) {
+        MeasurementReport report = new MeasurementReport();
+
+        if (this.agentToken == null) {
+            this.agentToken = storage.getValue(CommandsAPIInfo.PROP_AGENT_TOKEN);
+        }
+        report.setAgentToken(this.agentToken);
+        report.setClientIdList(clientIds);
+        report.setSRNList(srnList);
+        return report;
+    }
+
+    private void logDebuggedSent(int numDebuggedSent, boolean success) {
+        if(numDebuggedSent != 0){
+            if(success){
+                this.log.info("metricDebug:  Successfully sent " +
+                              numDebuggedSent + " debugged metrics to " +
+                              "server");
+            } else {
+                this.log.info("metricDebug:  Server reported failure " +
+                              "when sent " + numDebuggedSent + 
+                              " debugged metrics");
+            }
+        }
+    }
+
+    private void updateServerTime(long serverTime, long batchEnd) {
+        // Compute offset from server (will include network latency)
+        this.serverDiff = Math.abs(serverTime - batchEnd);
+
+        // Update the ServerTimeDiff object with the time offset between the
+        // agent and the server and update the last sync time to now
+        ServerTimeDiff.getInstance().setServerTimeDiff(serverTime - batchEnd);
+        ServerTimeDiff.getInstance().setLastSync(batchEnd);
+
+        if (this.serverDiff > MAX_SERVERDIFF) {
+            // Complain if we are ahead or behind.  This may be a bit
+            // too excessive.
+            if (serverTime < batchEnd) {
+                this.log.error("Agent is " + (this.serverDiff / 1000) + 
+                               " seconds ahead of the server.  To " +
+                               "ensure accuracy of the charting and " +
+                               "alerting make sure the agent and server " +
+                               "clocks are synchronized");
+            } else {
+                this.log.error("Agent is " + (this.serverDiff / 1000) + 
+                               " seconds behind the server.  To " +
+                               "ensure accuracy of the charting and " +
+                               "alerting make sure the agent and server " +
+                               "clocks are synchronized");
+            }
+        }
+    }
+
     private long now() {
         return System.currentTimeMillis();
     }
@@ -533,11 +847,23 @@ public class SenderThread
      * @param num The maximum number of datapoints to remove.
      */
     private int removeMeasurements(int num, String listName) {
+        return removeMeasurements(0, num, listName);
+    }
+
+    /**
+     * @return The number of measurements removed from the metric storage.
+     *
+     * @param skip The number of datapoints at the head of the list to keep.
+     * @param num The maximum number of datapoints to remove after them.
+     */
+    private int removeMeasurements(int skip, int num, String listName) {
+        Iterator i = this.storage.getListIterator(listName);
         int j = 0;
 
-        for (Iterator i = this.storage.getListIterator(listName);
-             (i != null) && i.hasNext() && (j < num);
-             j++) {
+        for (int k = 0; (i != null) && (k < skip) && i.hasNext(); k++) {
+            i.next();
+        }
+        for (; (i != null) && i.hasNext() && (j < num); j++) {
             i.next();
             i.remove();
         }
@@ -562,7 +888,7 @@ public class SenderThread
     public double getNumBatchesSent() 
         throws AgentMonitorException 
     {
-        return this.stat_numBatchesSent;
+        return this.stat_numBatchesSent.get();
     }
 
     /**
@@ -572,7 +898,7 @@ public class SenderThread
     public double getTotBatchSendTime() 
         throws AgentMonitorException 
     {
-        return this.stat_totBatchSendTime;
+        return this.stat_totBatchSendTime.get();
     }
 
     /**
@@ -580,7 +906,7 @@ public class SenderThread
      *                  transmitted to the server
      */
     public double getTotMetricsSent() throws AgentMonitorException {
-        return this.stat_totMetricsSent;
+        return this.stat_totMetricsSent.get();
     }
 
     /**
@@ -590,6 +916,22 @@ public class SenderThread
         return this.serverDiff;
     }
 
+    /**
+     * MONITOR METHOD:  Get the number of metrics per second sent during
+     *                  the current or last backlog drain
+     */
+    public double getDrainRate() throws AgentMonitorException {
+        return this.stat_drainRate;
+    }
+
+    /**
+     * MONITOR METHOD:  Get the number of batches currently in flight to
+     *                  the server while draining a backlog
+     */
+    public double getDrainDepth() throws AgentMonitorException {
+        return this.stat_drainDepth;
+    }
+
     public void run(){
        
         Calendar controlCal = Calendar.getInstance();
@@ -639,21 +981,12 @@ public class SenderThread
     	Long lastMetricTime;
         lastMetricTime = this.sendBatch(listName, numSent);
         if(lastMetricTime != null){
-            String backlogNum = "";
             final long start = System.currentTimeMillis();
-            // Give it a single shot to catch up before starting to squawk
-            while((lastMetricTime = this.sendBatch(listName, numSent)) != null) {
-                long now = System.currentTimeMillis();
-                long tDiff = now - lastMetricTime.longValue();
-                String backlog = Long.toString(tDiff / (60 * 1000));
-                if(((tDiff / (60 * 1000)) > 1) && (backlog.equals(backlogNum) == false)) {
-                    backlogNum = backlog;
-                    this.log.info(backlog +  " minute(s) of metrics backlogged");
-                }
-                if(this.shouldDie == true){
-                    this.log.info("Dying with measurements backlogged");
-                    return;
-                }
+            boolean drained = (this.drainExecutor != null) ?
+                this.drainBacklog(listName, numSent) :
+                this.sendBacklog(listName, numSent);
+            if (!drained) {
+                return;
             }
             final long total = System.currentTimeMillis() - start;
             if (total > SEND_INTERVAL) {
@@ -663,4 +996,29 @@ public class SenderThread
             }
         }
     }
+
+    /**
+     * Send the backlog of the list one batch at a time.
+     *
+     * @return false if the thread is dying with measurements backlogged
+     */
+    private boolean sendBacklog(String listName, Reference<Integer> numSent) {
+    	Long lastMetricTime;
+        String backlogNum = "";
+        // Give it a single shot to catch up before starting to squawk
+        while((lastMetricTime = this.sendBatch(listName, numSent)) != null) {
+            long now = System.currentTimeMillis();
+            long tDiff = now - lastMetricTime.longValue();
+            String backlog = Long.toString(tDiff / (60 * 1000));
+            if(((tDiff / (60 * 1000)) > 1) && (backlog.equals(backlogNum) == false)) {
+                backlogNum = backlog;
+                this.log.info(backlog +  " minute(s) of metrics backlogged");
+            }
+            if(this.shouldDie == true){
+                this.log.info("Dying with measurements backlogged");
+                return false;
+            }
+        }
+        return true;
+    }
 }
@@ -0,0 +1,338 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.agent.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hierarchical timing wheel.  Items are bucketed by the tick in which
+ * they fall due, so scheduling, cancelling and expiring an item are all
+ * O(1) regardless of how many items are scheduled.
+ *
+ * Level 0 has one slot per tick, each following level has one slot per
+ * full turn of the level below it.  Items due beyond the reach of level 0
+ * are kept in the coarser levels and cascade down as the wheel turns.
+ *
+ * The wheel is not synchronized, callers must guard it themselves.
+ */
+class TimingWheel<T> {
+    private static final int LEVEL_BITS = 8;
+    private static final int LEVEL_SIZE = 1 << LEVEL_BITS;
+    private static final int LEVEL_MASK = LEVEL_SIZE - 1;
+    // 8 levels of 8 bits reach further than any long deadline
+    private static final int MAX_LEVELS = 8;
+
+    private final long tickMillis;
+    private final Slot<T>[][] levels;
+    // Items which were already due when they were scheduled
+    private final Slot<T> overdue = new Slot<T>();
+    // The last tick which has been expired
+    private long currentTick;
+    private int size = 0;
+
+    /**
+     * @param tickMillis The resolution of the wheel
+     * @param startTime  The time from which the wheel starts turning
+     */
+    @SuppressWarnings("unchecked")
+    TimingWheel(long tickMillis, long startTime) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("Invalid tick (" + tickMillis + ")");
+        }
+        this.tickMillis  = tickMillis;
+        this.levels      = new Slot[MAX_LEVELS][];
+        this.currentTick = startTime / tickMillis;
+    }
+
+    /**
+     * A scheduled item.  The same Timeout may be rescheduled after it has
+     * expired, so the caller can hold on to it for cancelling.
+     */
+    static class Timeout<T> {
+        private final T item;
+        private long deadline;
+        private Slot<T> slot;
+        private Timeout<T> prev, next;
+
+        private Timeout(T item) {
+            this.item = item;
+        }
+
+        T getItem() {
+            return this.item;
+        }
+
+        long getDeadline() {
+            return this.deadline;
+        }
+
+        /**
+         * @return true if the Timeout is waiting in the wheel
+         */
+        boolean isScheduled() {
+            return this.slot != null;
+        }
+    }
+
+    private static class Slot<T> {
+        private Timeout<T> head;
+
+        private void add(Timeout<T> t) {
+            t.slot = this;
+            t.prev = null;
+            t.next = this.head;
+            if (this.head != null) {
+                this.head.prev = t;
+            }
+            this.head = t;
+        }
+
+        private void remove(Timeout<T> t) {
+            if (t.prev == null) {
+                this.head = t.next;
+            } else {
+                t.prev.next = t.next;
+            }
+            if (t.next != null) {
+                t.next.prev = t.prev;
+            }
+            t.slot = null;
+            t.prev = t.next = null;
+        }
+
+        private Timeout<T> removeAll() {
+            Timeout<T> res = this.head;
+            this.head = null;
+            return res;
+        }
+    }
+
+    /**
+     * Schedule a new item.
+     *
+     * @return The Timeout representing the item in the wheel
+     */
+    Timeout<T> schedule(T item, long deadline) {
+        Timeout<T> t = new Timeout<T>(item);
+        reschedule(t, deadline);
+        return t;
+    }
+
+    /**
+     * Move a Timeout to a new deadline.  The Timeout may either be waiting
+     * in the wheel or have expired.
+     */
+    void reschedule(Timeout<T> t, long deadline) {
+        if (t.isScheduled()) {
+            t.slot.remove(t);
+        } else {
+            this.size++;
+        }
+        t.deadline = deadline;
+        insert(t);
+    }
+
+    /**
+     * Remove a Timeout from the wheel.
+     *
+     * @return false if the Timeout was not waiting in the wheel
+     */
+    boolean cancel(Timeout<T> t) {
+        if (!t.isScheduled()) {
+            return false;
+        }
+        t.slot.remove(t);
+        this.size--;
+        return true;
+    }
+
+    /**
+     * @return The number of Timeouts waiting in the wheel
+     */
+    int size() {
+        return this.size;
+    }
+
+    private void insert(Timeout<T> t) {
+        long tick = t.deadline / this.tickMillis;
+        long ticks = tick - this.currentTick;
+
+        if (ticks <= 0) {
+            this.overdue.add(t);
+            return;
+        }
+
+        int level = 0;
+        while ((level < MAX_LEVELS - 1) && ((ticks >>> (LEVEL_BITS * (level + 1))) != 0)) {
+            level++;
+        }
+        getSlot(level, (int) ((tick >>> (LEVEL_BITS * level)) & LEVEL_MASK)).add(t);
+    }
+
+    private Slot<T> getSlot(int level, int idx) {
+        Slot<T>[] slots = this.levels[level];
+        if (slots == null) {
+            slots = newSlots();
+            this.levels[level] = slots;
+        }
+        return slots[idx];
+    }
+
+    @SuppressWarnings("unchecked")
+    private Slot<T>[] newSlots() {
+        Slot<T>[] slots = new Slot[LEVEL_SIZE];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = new Slot<T>();
+        }
+        return slots;
+    }
+
+    /**
+     * Turn the wheel up to the given time, collecting every Timeout which
+     * falls due on the way.  Expired Timeouts leave the wheel until they
+     * are rescheduled.
+     *
+     * @param expired The list to add the expired Timeouts to
+     */
+    void advance(long now, List<Timeout<T>> expired) {
+        long nowTick = now / this.tickMillis;
+
+        drain(this.overdue, expired);
+        if (this.size == 0) {
+            this.currentTick = Math.max(this.currentTick, nowTick);
+            return;
+        }
+        while (this.currentTick < nowTick) {
+            this.currentTick++;
+            cascade();
+            // Cascading may find items due in this very tick
+            drain(this.overdue, expired);
+            if (this.levels[0] != null) {
+                drain(this.levels[0][(int) (this.currentTick & LEVEL_MASK)], expired);
+            }
+        }
+    }
+
+    /**
+     * Restart the wheel from the given time, re-bucketing everything in it.
+     * This is O(n) and only meant for when the clock jumped backwards,
+     * which would otherwise hold back every item by the size of the jump.
+     */
+    void reset(long startTime) {
+        List<Timeout<T>> all = new ArrayList<Timeout<T>>(this.size);
+        drain(this.overdue, all);
+        for (int i = 0; i < MAX_LEVELS; i++) {
+            if (this.levels[i] == null) {
+                continue;
+            }
+            for (int j = 0; j < LEVEL_SIZE; j++) {
+                drain(this.levels[i][j], all);
+            }
+        }
+        this.currentTick = startTime / this.tickMillis;
+        for (Timeout<T> t : all) {
+            reschedule(t, t.deadline);
+        }
+    }
+
+    /**
+     * @return The time up to which the wheel has been advanced
+     */
+    long getCurrentTime() {
+        return this.currentTick * this.tickMillis;
+    }
+
+    /**
+     * Re-bucket the slots of the coarser levels whose turn has come, from
+     * the outermost level inwards, so everything ends up in the finest
+     * level able to hold it.
+     */
+    private void cascade() {
+        int level = 1;
+        while ((level < MAX_LEVELS) &&
+               ((this.currentTick & ((1L << (LEVEL_BITS * level)) - 1)) == 0)) {
+            level++;
+        }
+        for (int i = level - 1; i >= 1; i--) {
+            if (this.levels[i] == null) {
+                continue;
+            }
+            int idx = (int) ((this.currentTick >>> (LEVEL_BITS * i)) & LEVEL_MASK);
+            Timeout<T> t = this.levels[i][idx].removeAll();
+            while (t != null) {
+                Timeout<T> next = t.next;
+                t.slot = null;
+                insert(t);
+                t = next;
+            }
+        }
+    }
+
+    private void drain(Slot<T> slot, List<Timeout<T>> expired) {
+        Timeout<T> t = slot.removeAll();
+        while (t != null) {
+            Timeout<T> next = t.next;
+            t.slot = null;
+            t.prev = t.next = null;
+            this.size--;
+            expired.add(t);
+            t = next;
+        }
+    }
+
+    /**
+     * Get the time at which the wheel next needs to be advanced: the next
+     * tick with items due, or the next turn of level 0 when items from the
+     * coarser levels may cascade down.  Looking ahead is bounded by the
+     * size of a level.
+     *
+     * @return The time of the next tick to process, or -1 if the wheel
+     *         is empty
+     */
+    long getTimeOfNext() {
+        if (this.size == 0) {
+            return -1;
+        }
+        if (this.overdue.head != null) {
+            return this.currentTick * this.tickMillis;
+        }
+        long tick = this.currentTick + 1;
+        if (this.levels[0] != null) {
+            for (; ; tick++) {
+                if (this.levels[0][(int) (tick & LEVEL_MASK)].head != null) {
+                    break;
+                }
+                if ((tick & LEVEL_MASK) == 0) {
+                    break;
+                }
+            }
+        } else {
+            tick = (tick + LEVEL_MASK) & ~((long) LEVEL_MASK);
+        }
+        return tick * this.tickMillis;
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.agent.server;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.hyperic.hq.appdef.shared.AppdefEntityID;
+import org.hyperic.hq.measurement.MeasurementConstants;
+import org.hyperic.hq.measurement.agent.ScheduledMeasurement;
+import org.hyperic.hq.measurement.server.session.SRN;
+
+public class ScheduleStoreTest extends TestCase {
+
+    private static final int NUM_METRICS    = 100000;
+    private static final int METRICS_PER_ENTITY = 20;
+
+    private File file;
+
+    public ScheduleStoreTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        this.file = File.createTempFile("measurement_schedule", ".db");
+        this.file.delete();
+    }
+
+    public void tearDown() throws Exception {
+        this.file.delete();
+        new File(this.file.getPath() + ".compact").delete();
+    }
+
+    private static ScheduledMeasurement createMeasurement(int entId, int derivedId, long interval) {
+        return new ScheduledMeasurement("system:Type=Platform:Availability:" + derivedId, interval,
+                                        derivedId, derivedId + 1000000,
+                                        new AppdefEntityID(1, entId),
+                                        MeasurementConstants.CAT_AVAILABILITY);
+    }
+
+    private void fill(ScheduleStore store, int numMetrics) throws IOException {
+        for (int i = 0; i < numMetrics; i++) {
+            int entId = 10001 + (i / METRICS_PER_ENTITY);
+            store.putMeasurement(createMeasurement(entId, i, 60000));
+            if ((i % METRICS_PER_ENTITY) == 0) {
+                store.putSRN(new SRN(new AppdefEntityID(1, entId), 1));
+            }
+        }
+        store.flush();
+    }
+
+    public void testReload() throws Exception {
+        ScheduleStore store = new ScheduleStore(this.file);
+        assertTrue(store.isCreated());
+        fill(store, 100);
+        store.close();
+
+        store = new ScheduleStore(this.file);
+        assertFalse(store.isCreated());
+        assertEquals(100, store.size());
+        assertEquals(100 / METRICS_PER_ENTITY, store.getSRNs().length);
+        ScheduledMeasurement meas = store.getMeasurements().get(42);
+        assertEquals(42, meas.getDerivedID());
+        assertEquals(1000042, meas.getDsnID());
+        assertEquals(60000, meas.getInterval());
+        assertEquals(new AppdefEntityID(1, 10003), meas.getEntity());
+        assertEquals("system:Type=Platform:Availability:42", meas.getDSN());
+        assertEquals(MeasurementConstants.CAT_AVAILABILITY, meas.getCategory());
+        store.close();
+    }
+
+    public void testUpsertAndDelete() throws Exception {
+        ScheduleStore store = new ScheduleStore(this.file);
+        AppdefEntityID ent = new AppdefEntityID(1, 10001);
+        fill(store, 40);
+
+        // Unchanged measurements and SRNs are not written again
+        long length = this.file.length();
+        store.putMeasurement(createMeasurement(10001, 1, 60000));
+        store.putSRN(new SRN(ent, 1));
+        store.flush();
+        assertEquals(length, this.file.length());
+
+        store.putMeasurement(createMeasurement(10001, 1, 300000));
+        store.putSRN(new SRN(ent, 2));
+        store.deleteMeasurements(new AppdefEntityID(1, 10002));
+        store.deleteSRN(new AppdefEntityID(1, 10002));
+        store.close();
+
+        store = new ScheduleStore(this.file);
+        assertEquals(20, store.size());
+        assertEquals(300000, store.getMeasurements().get(1).getInterval());
+        assertEquals(2, store.getSRN(ent).getRevisionNumber());
+        assertNull(store.getSRN(new AppdefEntityID(1, 10002)));
+        assertEquals(300000, store.getMeasurement(ent, 1).getInterval());
+        assertNull(store.getMeasurement(new AppdefEntityID(1, 10002), 2));
+
+        List<ScheduledMeasurement> metrics = new ArrayList<ScheduledMeasurement>();
+        for (ScheduledMeasurement meas : store.getMeasurements()) {
+            metrics.add(createMeasurement(10001, meas.getDerivedID(), meas.getInterval()));
+        }
+        assertTrue(store.isScheduled(ent, metrics));
+        metrics.remove(0);
+        assertFalse(store.isScheduled(ent, metrics));
+        assertFalse(store.isScheduled(new AppdefEntityID(1, 10002),
+                                      Collections.<ScheduledMeasurement>emptyList()));
+        store.close();
+    }
+
+    public void testTruncatedRecord() throws Exception {
+        ScheduleStore store = new ScheduleStore(this.file);
+        fill(store, 10);
+        store.close();
+        long length = this.file.length();
+
+        // A record which was being written when the agent died
+        FileOutputStream fOs = new FileOutputStream(this.file, true);
+        fOs.write(new byte[] { 0, 0, 0, 50, 1, 2, 3 });
+        fOs.close();
+
+        store = new ScheduleStore(this.file);
+        assertEquals(10, store.size());
+        assertEquals(length, this.file.length());
+        store.putMeasurement(createMeasurement(10001, 10, 60000));
+        store.close();
+
+        store = new ScheduleStore(this.file);
+        assertEquals(11, store.size());
+        store.close();
+    }
+
+    public void testCompaction() throws Exception {
+        ScheduleStore store = new ScheduleStore(this.file);
+        fill(store, 1000);
+        // Reschedule the same resources until the log is mostly garbage
+        for (int i = 0; i < 20; i++) {
+            for (int j = 0; j < 1000; j++) {
+                store.putMeasurement(createMeasurement(10001 + (j / METRICS_PER_ENTITY), j, 60000 * (i + 2)));
+            }
+        }
+        long before = this.file.length();
+        store.flush();
+        assertTrue(this.file.length() < before / 4);
+        store.close();
+
+        store = new ScheduleStore(this.file);
+        assertEquals(1000, store.size());
+        assertEquals(60000 * 21, store.getMeasurements().get(0).getInterval());
+        store.close();
+    }
+
+    public void testLargeSchedule() throws Exception {
+        ScheduleStore store = new ScheduleStore(this.file);
+        fill(store, NUM_METRICS);
+        store.close();
+
+        store = new ScheduleStore(this.file);
+        assertEquals(NUM_METRICS, store.size());
+        assertEquals(NUM_METRICS / METRICS_PER_ENTITY, store.getSRNs().length);
+        ScheduledMeasurement meas = store.getMeasurements().get(NUM_METRICS - 1);
+        assertEquals(NUM_METRICS - 1, meas.getDerivedID());
+        assertEquals(new AppdefEntityID(1, 10001 + ((NUM_METRICS - 1) / METRICS_PER_ENTITY)),
+                     meas.getEntity());
+        store.close();
+    }
+}
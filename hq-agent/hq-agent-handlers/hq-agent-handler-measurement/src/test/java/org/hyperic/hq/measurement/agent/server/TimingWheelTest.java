@@ -0,0 +1,162 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.agent.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.hyperic.hq.measurement.agent.server.TimingWheel.Timeout;
+
+public class TimingWheelTest extends TestCase {
+
+    private static final long TICK  = 10;
+    private static final long START = 1356998400000L;
+
+    public TimingWheelTest(String name) {
+        super(name);
+    }
+
+    public void testExpiresInOrderOfTicks() throws Exception {
+        TimingWheel<Integer> wheel = new TimingWheel<Integer>(TICK, START);
+        List<Timeout<Integer>> expired = new ArrayList<Timeout<Integer>>();
+
+        wheel.schedule(1, START + 25);
+        wheel.schedule(2, START + 2000);
+        wheel.schedule(3, START + 60000);
+        assertEquals(3, wheel.size());
+
+        wheel.advance(START + 19, expired);
+        assertEquals(0, expired.size());
+        wheel.advance(START + 29, expired);
+        assertEquals(1, expired.size());
+        assertEquals(1, expired.get(0).getItem().intValue());
+
+        expired.clear();
+        wheel.advance(START + 59999, expired);
+        assertEquals(1, expired.size());
+        assertEquals(2, expired.get(0).getItem().intValue());
+
+        expired.clear();
+        wheel.advance(START + 60000, expired);
+        assertEquals(1, expired.size());
+        assertEquals(3, expired.get(0).getItem().intValue());
+        assertEquals(0, wheel.size());
+    }
+
+    public void testOverdueExpiresImmediately() throws Exception {
+        TimingWheel<Integer> wheel = new TimingWheel<Integer>(TICK, START);
+        List<Timeout<Integer>> expired = new ArrayList<Timeout<Integer>>();
+
+        wheel.schedule(1, START - 60000);
+        assertEquals(START, wheel.getTimeOfNext());
+        wheel.advance(START, expired);
+        assertEquals(1, expired.size());
+    }
+
+    public void testCancelAndReschedule() throws Exception {
+        TimingWheel<Integer> wheel = new TimingWheel<Integer>(TICK, START);
+        List<Timeout<Integer>> expired = new ArrayList<Timeout<Integer>>();
+
+        Timeout<Integer> a = wheel.schedule(1, START + 100);
+        Timeout<Integer> b = wheel.schedule(2, START + 100);
+        assertTrue(wheel.cancel(a));
+        assertFalse(wheel.cancel(a));
+        assertEquals(1, wheel.size());
+
+        wheel.advance(START + 100, expired);
+        assertEquals(1, expired.size());
+        assertSame(b, expired.get(0));
+        assertFalse(b.isScheduled());
+
+        // Expired Timeouts can be put back in the wheel
+        wheel.reschedule(b, START + 70000);
+        assertTrue(b.isScheduled());
+        expired.clear();
+        wheel.advance(START + 70000, expired);
+        assertEquals(1, expired.size());
+        assertSame(b, expired.get(0));
+    }
+
+    public void testTimeOfNext() throws Exception {
+        TimingWheel<Integer> wheel = new TimingWheel<Integer>(TICK, START);
+
+        assertEquals(-1, wheel.getTimeOfNext());
+        wheel.schedule(1, START + 50);
+        assertEquals(START + 50, wheel.getTimeOfNext());
+
+        // Items beyond level 0 wake the wheel up for the cascade
+        wheel = new TimingWheel<Integer>(TICK, START);
+        wheel.schedule(1, START + 3600000);
+        long next = wheel.getTimeOfNext();
+        assertTrue(next > START);
+        assertTrue(next <= START + (256 * TICK));
+    }
+
+    public void testReset() throws Exception {
+        TimingWheel<Integer> wheel = new TimingWheel<Integer>(TICK, START);
+        List<Timeout<Integer>> expired = new ArrayList<Timeout<Integer>>();
+
+        wheel.schedule(1, START + 1000);
+        wheel.schedule(2, START + 100000);
+        // The clock went back an hour
+        wheel.reset(START - 3600000);
+        assertEquals(2, wheel.size());
+        assertEquals(START - 3600000, wheel.getCurrentTime());
+        wheel.advance(START + 1000, expired);
+        assertEquals(1, expired.size());
+        assertEquals(1, expired.get(0).getItem().intValue());
+    }
+
+    public void testRandomDeadlines() throws Exception {
+        TimingWheel<Long> wheel = new TimingWheel<Long>(TICK, START);
+        List<Timeout<Long>> expired = new ArrayList<Timeout<Long>>();
+        Random r = new Random(42);
+        int num = 5000;
+
+        for (int i = 0; i < num; i++) {
+            // Up to a day out, reaching into the third level
+            long deadline = START + (r.nextInt(86400) * 1000L) + r.nextInt(1000);
+            wheel.schedule(deadline, deadline);
+        }
+
+        int seen = 0;
+        for (long now = START; seen < num; now += 997) {
+            expired.clear();
+            wheel.advance(now, expired);
+            for (Timeout<Long> t : expired) {
+                long deadline = t.getItem().longValue();
+                // Never early, and never late by more than the step
+                assertTrue(deadline / TICK <= now / TICK);
+                assertTrue(deadline > now - 997 - TICK);
+                seen++;
+            }
+        }
+        assertEquals(0, wheel.size());
+    }
+}
@@ -134,4 +134,9 @@ public interface HQDialect
     public boolean supportsAsyncCommit();
 
     public String getSetAsyncCommitStmt(boolean on);
+
+    /**
+     * Returns true if the database can bulk load rows with the COPY stmt
+     */
+    public boolean supportsCopyStmt();
 }
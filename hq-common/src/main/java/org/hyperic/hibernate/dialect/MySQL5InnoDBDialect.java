@@ -437,4 +437,8 @@ public class MySQL5InnoDBDialect
     public String getSetAsyncCommitStmt(boolean on) {
         return null;
     }
+
+    public boolean supportsCopyStmt() {
+        return false;
+    }
 }
\ No newline at end of file
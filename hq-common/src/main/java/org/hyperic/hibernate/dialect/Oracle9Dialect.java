@@ -263,4 +263,8 @@ public class Oracle9Dialect
     public String getSetAsyncCommitStmt(boolean on) {
         return null;
     }
+
+    public boolean supportsCopyStmt() {
+        return false;
+    }
 }
@@ -221,4 +221,8 @@ implements HQDialect {
     public String getSetAsyncCommitStmt(boolean on) {
         return "set synchronous_commit to " + (on ? "on" : "off");
     }
+
+    public boolean supportsCopyStmt() {
+        return true;
+    }
 }
\ No newline at end of file
@@ -47,6 +47,9 @@ public final class AgentCommandsAPI extends AgentAPIInfo {
     public static final String command_die          = commandPrefix + "die";
     public static final String command_remove_file  = commandPrefix + "remove_file";
     public static final String command_receive_file = commandPrefix + "receive_file";
+    // Handled by the CommandListener itself, which turns the connection
+    // into a channel carrying many commands, so not part of the commandSet
+    public static final String command_open_channel = commandPrefix + "openChannel";
     
     public static final String[] commandSet = {
         AgentCommandsAPI.command_ping,
@@ -0,0 +1,313 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.agent.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hyperic.hq.agent.AgentAPI;
+import org.hyperic.hq.agent.AgentCommandsAPI;
+import org.hyperic.hq.agent.AgentConnectionException;
+import org.hyperic.hq.agent.AgentRemoteException;
+import org.hyperic.hq.agent.AgentRemoteValue;
+
+/**
+ * A long lived connection to an agent which carries many commands at
+ * once.  The connection is opened with the legacy protocol by sending
+ * {@link AgentCommandsAPI#command_open_channel}; after the agent has
+ * accepted it each request is prefixed with a request id, and the agent
+ * answers with the id of the request followed by the legacy response, in
+ * whatever order the commands complete.
+ */
+class AgentChannel implements Runnable {
+    private static final Log log = LogFactory.getLog(AgentChannel.class);
+
+    private static final int CHANNEL_VERSION = 1;
+    private static final int BUFFER_SIZE = 8192;
+
+    private final String agent;
+    private final Socket socket;
+    private final DataInputStream inputStream;
+    private final DataOutputStream outputStream;
+    private final int apiVersion;
+    // How long to wait for a result, the read timeout of the connection
+    // the channel was opened on
+    private final int readTimeout;
+    // Map of (Integer) request id -> Response
+    private final Map<Integer, Response> pending = new HashMap<Integer, Response>();
+    private int nextId = 0;
+    private long lastUsed;
+    private boolean closed = false;
+
+    private static class Response {
+        private AgentRemoteValue value;
+        private String error;
+        private boolean failed;
+        private boolean done = false;
+
+        synchronized void complete(AgentRemoteValue value, String error, boolean failed) {
+            this.value = value;
+            this.error = error;
+            this.failed = failed;
+            this.done = true;
+            notifyAll();
+        }
+    }
+
+    private AgentChannel(String agent, Socket socket, int apiVersion) throws IOException {
+        this.agent = agent;
+        this.socket = socket;
+        this.apiVersion = apiVersion;
+        this.readTimeout = socket.getSoTimeout();
+        this.inputStream =
+            new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+        this.outputStream =
+            new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+        this.lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Open a channel to the agent of the specified connection.
+     *
+     * @throws AgentRemoteException if the agent refused the channel, as
+     *                              agents which predate it do.
+     * @throws IOException if the agent could not be reached.
+     */
+    static AgentChannel open(AgentConnection conn) throws AgentRemoteException, IOException {
+        String agent = conn.getAgentAddress() + ":" + conn.getAgentPort();
+        int apiVersion = new AgentAPI().getVersion();
+        Socket s = conn.getSocket();
+        boolean success = false;
+
+        try {
+            AgentChannel channel = new AgentChannel(agent, s, apiVersion);
+            DataOutputStream dOs = channel.outputStream;
+            DataInputStream dIs = channel.inputStream;
+
+            dOs.writeInt(apiVersion);
+            dOs.writeInt(CHANNEL_VERSION);
+            dOs.writeUTF(AgentCommandsAPI.command_open_channel);
+            new AgentRemoteValue().toStream(dOs);
+            dOs.flush();
+
+            if (dIs.readInt() == 1) {
+                throw new AgentRemoteException(dIs.readUTF());
+            }
+            AgentRemoteValue.fromStream(dIs);
+
+            // Idle channels are evicted by the pool rather than timed out
+            s.setSoTimeout(0);
+            Thread reader = new Thread(channel, "agentchannel-" + agent);
+            reader.setDaemon(true);
+            reader.start();
+            success = true;
+            return channel;
+        } finally {
+            if (!success) {
+                try {
+                    s.close();
+                } catch (IOException e) {
+                    log.debug(e, e);
+                }
+            }
+        }
+    }
+
+    String getAgent() {
+        return this.agent;
+    }
+
+    /**
+     * @return how long a command waits for its result, as a legacy
+     *         command would on the same connection; 0 waits forever.
+     */
+    int getReadTimeout() {
+        return this.readTimeout;
+    }
+
+    synchronized int getInFlight() {
+        return this.pending.size();
+    }
+
+    synchronized boolean isClosed() {
+        return this.closed;
+    }
+
+    synchronized boolean isIdle(long now, long idleTimeout) {
+        return this.pending.isEmpty() && (now - this.lastUsed) >= idleTimeout;
+    }
+
+    /**
+     * Send a command over the channel and wait for its result.  A command
+     * which times out is abandoned on its own, the channel stays open for
+     * the others.
+     *
+     * @param timeout How long to wait for the result, 0 to wait forever.
+     *
+     * @throws IOException if the command could not be written to the
+     *                     agent, in which case it was never run and may be
+     *                     sent another way.
+     */
+    AgentRemoteValue send(String cmdName, int cmdVersion, AgentRemoteValue arg, long timeout)
+        throws AgentRemoteException, AgentConnectionException, IOException {
+        Response res = new Response();
+        Integer id;
+
+        synchronized (this) {
+            if (this.closed) {
+                throw new IOException("Channel to agent @ " + this.agent + " is closed");
+            }
+            id = new Integer(this.nextId++);
+            this.pending.put(id, res);
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        try {
+            synchronized (this.outputStream) {
+                this.outputStream.writeInt(id.intValue());
+                this.outputStream.writeInt(this.apiVersion);
+                this.outputStream.writeInt(cmdVersion);
+                this.outputStream.writeUTF(cmdName);
+                arg.toStream(this.outputStream);
+                this.outputStream.flush();
+            }
+        } catch (IOException e) {
+            // A partly written request leaves the stream unusable
+            synchronized (this) {
+                this.pending.remove(id);
+            }
+            close();
+            throw e;
+        }
+
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (res) {
+            while (!res.done) {
+                long wait = (timeout == 0) ? 0 : deadline - System.currentTimeMillis();
+                if (timeout != 0 && wait <= 0) {
+                    break;
+                }
+                try {
+                    res.wait(wait);
+                } catch (InterruptedException e) {
+                    synchronized (this) {
+                        this.pending.remove(id);
+                    }
+                    Thread.currentThread().interrupt();
+                    throw new AgentConnectionException("Interrupted waiting for agent @ " +
+                                                       this.agent + ", cmd=" + cmdName);
+                }
+            }
+        }
+
+        if (!res.done) {
+            // Its result, if it ever comes, is discarded by the reader
+            synchronized (this) {
+                this.pending.remove(id);
+            }
+            throw new AgentConnectionException("Timed out reading result from agent @ " +
+                                               this.agent + ", cmd=" + cmdName);
+        }
+        if (res.failed) {
+            throw new AgentConnectionException(res.error + ", cmd=" + cmdName);
+        }
+        if (res.error != null) {
+            throw new AgentRemoteException(res.error);
+        }
+        return res.value;
+    }
+
+    public void run() {
+        try {
+            while (true) {
+                int id = this.inputStream.readInt();
+                AgentRemoteValue value = null;
+                String error = null;
+
+                if (this.inputStream.readInt() == 1) {
+                    error = this.inputStream.readUTF();
+                } else {
+                    value = AgentRemoteValue.fromStream(this.inputStream);
+                }
+
+                Response res;
+                synchronized (this) {
+                    res = this.pending.remove(new Integer(id));
+                    this.lastUsed = System.currentTimeMillis();
+                }
+                if (res == null) {
+                    log.debug("Discarding result of abandoned request " + id +
+                              " from agent @ " + this.agent);
+                } else {
+                    res.complete(value, error, false);
+                }
+            }
+        } catch (IOException e) {
+            if (!isClosed()) {
+                log.debug("Channel to agent @ " + this.agent + " failed: " + e);
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Close the channel, failing any commands still waiting on it.
+     */
+    void close() {
+        List<Response> failed;
+
+        synchronized (this) {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            failed = new ArrayList<Response>(this.pending.values());
+            this.pending.clear();
+        }
+
+        try {
+            this.socket.close();
+        } catch (IOException e) {
+            log.debug(e, e);
+        }
+
+        for (Iterator<Response> i = failed.iterator(); i.hasNext();) {
+            i.next().complete(null, "Connection to agent @ " + this.agent + " closed", true);
+        }
+    }
+}
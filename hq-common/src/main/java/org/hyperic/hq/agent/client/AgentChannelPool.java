@@ -0,0 +1,329 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.agent.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hyperic.hq.agent.AgentConnectionException;
+import org.hyperic.hq.agent.AgentRemoteException;
+import org.hyperic.hq.agent.AgentRemoteValue;
+import org.hyperic.hq.stats.AbstractStatsCollector;
+
+/**
+ * Keeps a few long lived {@link AgentChannel}s open to each agent, so that
+ * commands sent through an {@link AgentConnection} share connections
+ * instead of connecting, and negotiating SSL, once per command.
+ * <p>
+ * A channel is opened when every channel to the agent is busy and the
+ * agent has fewer than maxConnections, otherwise commands are multiplexed
+ * over the least loaded channel.  Channels which have been idle for
+ * idleTimeout are closed.  Agents which refuse channels are sent commands
+ * with the legacy protocol, and asked again after a while in case they
+ * have been upgraded.
+ * <p>
+ * Pooling is off unless a pool has been installed with
+ * {@link #setInstance(AgentChannelPool)}.
+ */
+public class AgentChannelPool {
+    public static final String AGENT_CONNECTION_SETUP = "AGENT_CONNECTION_SETUP",
+                               AGENT_CONNECTION_SETUP_TIME = "AGENT_CONNECTION_SETUP_TIME",
+                               AGENT_COMMAND_TIME = "AGENT_COMMAND_TIME";
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 2;
+    public static final long DEFAULT_IDLE_TIMEOUT = 30000;
+    // How long to use the legacy protocol with an agent which refused a channel
+    private static final long LEGACY_RETRY_TIME = 10 * 60 * 1000;
+
+    private static final Log log = LogFactory.getLog(AgentChannelPool.class);
+
+    private static volatile AgentChannelPool instance = null;
+
+    private final int maxConnections;
+    private final long idleTimeout;
+    // Map of (String) address:port -> Channels
+    private final Map<String, Channels> agents = new HashMap<String, Channels>();
+    private final ScheduledExecutorService reaper;
+    private volatile AbstractStatsCollector statsCollector = null;
+    private final AtomicLong connectionsOpened = new AtomicLong();
+    private final AtomicLong commandsSent = new AtomicLong();
+    private final AtomicLong legacyCommandsSent = new AtomicLong();
+
+    private static class Channels {
+        private final List<AgentChannel> open = new ArrayList<AgentChannel>();
+        private int opening = 0;
+        private long legacyUntil = 0;
+    }
+
+    public AgentChannelPool(int maxConnections, long idleTimeout) {
+        this.maxConnections = maxConnections;
+        this.idleTimeout = idleTimeout;
+        this.reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread rtn = new Thread(r, "agentchannel-reaper");
+                rtn.setDaemon(true);
+                return rtn;
+            }
+        });
+        long period = Math.max(idleTimeout / 2, 1000);
+        this.reaper.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    closeIdle(System.currentTimeMillis());
+                } catch (Throwable t) {
+                    log.error(t, t);
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the pool commands are sent through, or null if each command
+     *         opens its own connection.
+     */
+    public static AgentChannelPool getInstance() {
+        return instance;
+    }
+
+    public static void setInstance(AgentChannelPool pool) {
+        AgentChannelPool old = instance;
+        instance = pool;
+        if (old != null && old != pool) {
+            old.shutdown();
+        }
+    }
+
+    /**
+     * Report connection setup and command latency, under
+     * {@link #AGENT_CONNECTION_SETUP}, {@link #AGENT_CONNECTION_SETUP_TIME}
+     * and {@link #AGENT_COMMAND_TIME}, to the specified collector.
+     */
+    public void setStatsCollector(AbstractStatsCollector statsCollector) {
+        this.statsCollector = statsCollector;
+    }
+
+    private void addStat(long value, String id) {
+        AbstractStatsCollector collector = this.statsCollector;
+        if (collector != null) {
+            collector.addStat(value, id);
+        }
+    }
+
+    /**
+     * Record a connection to an agent, whether for a channel or for a
+     * single legacy command.
+     */
+    static void connectionOpened(long setupTime) {
+        AgentChannelPool pool = instance;
+        if (pool != null) {
+            pool.connectionsOpened.incrementAndGet();
+            pool.addStat(1, AGENT_CONNECTION_SETUP);
+            pool.addStat(setupTime, AGENT_CONNECTION_SETUP_TIME);
+        }
+    }
+
+    /**
+     * @return the number of connections made to agents, including those
+     *         made for legacy commands.
+     */
+    public long getConnectionsOpened() {
+        return this.connectionsOpened.get();
+    }
+
+    public long getCommandsSent() {
+        return this.commandsSent.get();
+    }
+
+    /**
+     * @return the number of commands which were sent with the legacy
+     *         protocol, one connection each.
+     */
+    public long getLegacyCommandsSent() {
+        return this.legacyCommandsSent.get();
+    }
+
+    public int getOpenChannels() {
+        int res = 0;
+        synchronized (this.agents) {
+            for (Channels c : this.agents.values()) {
+                synchronized (c) {
+                    res += c.open.size();
+                }
+            }
+        }
+        return res;
+    }
+
+    AgentRemoteValue sendCommand(AgentConnection conn, String cmdName, int cmdVersion,
+                                 AgentRemoteValue arg, boolean withRetries)
+        throws AgentRemoteException, AgentConnectionException {
+        long start = System.currentTimeMillis();
+
+        this.commandsSent.incrementAndGet();
+        try {
+            AgentChannel channel = getChannel(conn, start);
+            if (channel != null) {
+                try {
+                    return channel.send(cmdName, cmdVersion, arg, channel.getReadTimeout());
+                } catch (IOException e) {
+                    // The command never reached the agent
+                    log.debug("Unable to send " + cmdName + " over channel to agent @ " +
+                              channel.getAgent() + ", using a new connection: " + e);
+                }
+            }
+            this.legacyCommandsSent.incrementAndGet();
+            return conn.sendLegacyCommand(cmdName, cmdVersion, arg, withRetries);
+        } finally {
+            addStat(System.currentTimeMillis() - start, AGENT_COMMAND_TIME);
+        }
+    }
+
+    private Channels getChannels(AgentConnection conn) {
+        String key = conn.getAgentAddress() + ":" + conn.getAgentPort();
+        synchronized (this.agents) {
+            Channels c = this.agents.get(key);
+            if (c == null) {
+                c = new Channels();
+                this.agents.put(key, c);
+            }
+            return c;
+        }
+    }
+
+    /**
+     * @return a channel to send the command over, or null if it should be
+     *         sent with the legacy protocol.
+     */
+    private AgentChannel getChannel(AgentConnection conn, long now) {
+        Channels c = getChannels(conn);
+        AgentChannel best = null;
+
+        synchronized (c) {
+            if (c.legacyUntil > now) {
+                return null;
+            }
+            for (Iterator<AgentChannel> i = c.open.iterator(); i.hasNext();) {
+                AgentChannel channel = i.next();
+                if (channel.isClosed()) {
+                    i.remove();
+                } else if (best == null || channel.getInFlight() < best.getInFlight()) {
+                    best = channel;
+                }
+            }
+            if ((best != null && best.getInFlight() == 0) ||
+                (c.open.size() + c.opening) >= this.maxConnections) {
+                return best;
+            }
+            c.opening++;
+        }
+
+        AgentChannel channel = null;
+        boolean refused = false;
+        try {
+            long start = System.currentTimeMillis();
+            channel = AgentChannel.open(conn);
+            connectionOpened(System.currentTimeMillis() - start);
+        } catch (AgentRemoteException e) {
+            refused = true;
+            log.info("Agent @ " + conn.getAgentAddress() + ":" + conn.getAgentPort() +
+                     " refused a command channel (" + e.getMessage() +
+                     "), using a connection per command");
+        } catch (IOException e) {
+            log.debug("Unable to open channel to agent @ " + conn.getAgentAddress() + ":" +
+                      conn.getAgentPort() + ": " + e);
+        } finally {
+            synchronized (c) {
+                c.opening--;
+                if (channel != null) {
+                    c.open.add(channel);
+                } else if (refused) {
+                    c.legacyUntil = now + LEGACY_RETRY_TIME;
+                }
+            }
+        }
+        return (channel == null) ? best : channel;
+    }
+
+    void closeIdle(long now) {
+        List<AgentChannel> idle = new ArrayList<AgentChannel>();
+
+        synchronized (this.agents) {
+            for (Iterator<Channels> i = this.agents.values().iterator(); i.hasNext();) {
+                Channels c = i.next();
+                synchronized (c) {
+                    for (Iterator<AgentChannel> j = c.open.iterator(); j.hasNext();) {
+                        AgentChannel channel = j.next();
+                        if (channel.isClosed() || channel.isIdle(now, this.idleTimeout)) {
+                            idle.add(channel);
+                            j.remove();
+                        }
+                    }
+                    if (c.open.isEmpty() && c.opening == 0 && c.legacyUntil <= now) {
+                        i.remove();
+                    }
+                }
+            }
+        }
+
+        for (AgentChannel channel : idle) {
+            channel.close();
+        }
+        if (log.isDebugEnabled() && !idle.isEmpty()) {
+            log.debug("Closed " + idle.size() + " idle agent channels");
+        }
+    }
+
+    /**
+     * Close every channel and stop the pool.
+     */
+    public void shutdown() {
+        this.reaper.shutdownNow();
+        List<AgentChannel> channels = new ArrayList<AgentChannel>();
+        synchronized (this.agents) {
+            for (Channels c : this.agents.values()) {
+                synchronized (c) {
+                    channels.addAll(c.open);
+                    c.open.clear();
+                }
+            }
+            this.agents.clear();
+        }
+        for (AgentChannel channel : channels) {
+            channel.close();
+        }
+    }
+}
@@ -50,7 +50,7 @@ public class AgentConnection {
     private static final Log log = LogFactory.getLog(AgentConnection.class);
     private static final int MAX_RETRIES = 5;
     private static final long SLEEP_TIME = 3000;
-    private static final int SOCKET_TIMEOUT = 60000;
+    static final int SOCKET_TIMEOUT = 60000;
     private String   _agentAddress;
     private int      _agentPort;
     private AgentAPI _agentAPI;
@@ -110,9 +110,7 @@ public class AgentConnection {
      */
     public AgentRemoteValue sendCommand(String cmdName, int cmdVersion, AgentRemoteValue arg)
     throws AgentRemoteException, AgentConnectionException {
-        if (log.isDebugEnabled()) log.debug(_agentAddress + ":" + _agentPort + " -> " + cmdName);
-        AgentStreamPair sPair = this.sendCommandHeaders(cmdName, cmdVersion, arg);
-        return this.getCommandResult(sPair);
+        return sendCommand(cmdName, cmdVersion, arg, true);
     }
 
     /**
@@ -135,6 +133,19 @@ public class AgentConnection {
                                         boolean withRetries)
     throws AgentRemoteException, AgentConnectionException {
         if (log.isDebugEnabled()) log.debug(_agentAddress + ":" + _agentPort + " -> " + cmdName);
+        AgentChannelPool pool = AgentChannelPool.getInstance();
+        if (pool != null) {
+            return pool.sendCommand(this, cmdName, cmdVersion, arg, withRetries);
+        }
+        return sendLegacyCommand(cmdName, cmdVersion, arg, withRetries);
+    }
+
+    /**
+     * Send a command over a connection of its own.
+     */
+    AgentRemoteValue sendLegacyCommand(String cmdName, int cmdVersion, AgentRemoteValue arg,
+                                       boolean withRetries)
+    throws AgentRemoteException, AgentConnectionException {
         AgentStreamPair sPair = this.sendCommandHeaders(cmdName, cmdVersion, arg, withRetries);
         return this.getCommandResult(sPair);
     }
@@ -192,7 +203,9 @@ public class AgentConnection {
         int tries = 0;
         while (tries++ < maxRetries) {
             try {
+                long start = System.currentTimeMillis();
                 s = getSocket();
+                AgentChannelPool.connectionOpened(System.currentTimeMillis() - start);
                 streamPair = new SocketStreamPair(s, s.getInputStream(), s.getOutputStream());
                 DataOutputStream outputStream = new DataOutputStream(streamPair.getOutputStream());
                 outputStream.writeInt(_agentAPI.getVersion());
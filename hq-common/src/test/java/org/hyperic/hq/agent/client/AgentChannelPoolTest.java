@@ -0,0 +1,342 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.agent.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hyperic.hq.agent.AgentCommandsAPI;
+import org.hyperic.hq.agent.AgentConnectionException;
+import org.hyperic.hq.agent.AgentRemoteException;
+import org.hyperic.hq.agent.AgentRemoteValue;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests the AgentChannelPool against an in-process agent which speaks
+ * either the channel or only the legacy protocol.
+ */
+public class AgentChannelPoolTest {
+
+    private static final String CMD_ECHO = "test:echo";
+    private static final String CMD_FAIL = "test:fail";
+    private static final String CMD_HANG = "test:hang";
+
+    private FakeAgent agent;
+    private AgentChannelPool pool;
+
+    /**
+     * Answers every command by echoing its "value" argument, on a
+     * connection per command or over channels.  Channel requests are
+     * answered from threads of their own so that results come back out
+     * of order.  {@link #CMD_HANG} is never answered.
+     */
+    private static class FakeAgent implements Runnable {
+        private final ServerSocket listenSock;
+        private final boolean channels;
+        private final AtomicInteger connections = new AtomicInteger();
+        private final List<Socket> sockets = Collections.synchronizedList(new ArrayList<Socket>());
+        private volatile long delay = 0;
+
+        private FakeAgent(boolean channels) throws IOException {
+            this.channels = channels;
+            this.listenSock = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+            Thread t = new Thread(this, "fakeagent");
+            t.setDaemon(true);
+            t.start();
+        }
+
+        private int getPort() {
+            return this.listenSock.getLocalPort();
+        }
+
+        public void run() {
+            while (true) {
+                final Socket s;
+                try {
+                    s = this.listenSock.accept();
+                } catch (IOException e) {
+                    return;
+                }
+                this.connections.incrementAndGet();
+                this.sockets.add(s);
+                Thread t = new Thread() {
+                    public void run() {
+                        try {
+                            handle(s);
+                        } catch (IOException e) {
+                        } finally {
+                            try {
+                                s.close();
+                            } catch (IOException e) {
+                            }
+                        }
+                    }
+                };
+                t.setDaemon(true);
+                t.start();
+            }
+        }
+
+        private void handle(Socket s) throws IOException {
+            DataInputStream in = new DataInputStream(s.getInputStream());
+            final DataOutputStream out = new DataOutputStream(s.getOutputStream());
+
+            in.readInt();
+            in.readInt();
+            String cmd = in.readUTF();
+            AgentRemoteValue arg = AgentRemoteValue.fromStream(in);
+
+            if (!AgentCommandsAPI.command_open_channel.equals(cmd)) {
+                respond(out, cmd, arg);
+                return;
+            }
+            if (!this.channels) {
+                out.writeInt(1);
+                out.writeUTF("Unknown command '" + cmd + "'");
+                return;
+            }
+            out.writeInt(0);
+            new AgentRemoteValue().toStream(out);
+
+            try {
+                while (true) {
+                    final int id = in.readInt();
+                    in.readInt();
+                    in.readInt();
+                    final String name = in.readUTF();
+                    final AgentRemoteValue value = AgentRemoteValue.fromStream(in);
+                    if (CMD_HANG.equals(name)) {
+                        continue;
+                    }
+                    Thread t = new Thread() {
+                        public void run() {
+                            try {
+                                Thread.sleep(delay);
+                                synchronized (out) {
+                                    out.writeInt(id);
+                                    respond(out, name, value);
+                                }
+                            } catch (Exception e) {
+                            }
+                        }
+                    };
+                    t.setDaemon(true);
+                    t.start();
+                }
+            } catch (EOFException e) {
+            }
+        }
+
+        private void respond(DataOutputStream out, String cmd, AgentRemoteValue arg)
+            throws IOException {
+            if (CMD_FAIL.equals(cmd)) {
+                out.writeInt(1);
+                out.writeUTF("Failed " + arg.getValue("value"));
+            } else {
+                out.writeInt(0);
+                AgentRemoteValue res = new AgentRemoteValue();
+                res.setValue("value", arg.getValue("value"));
+                res.toStream(out);
+            }
+            out.flush();
+        }
+
+        private void close() throws IOException {
+            this.listenSock.close();
+            synchronized (this.sockets) {
+                for (Socket s : this.sockets) {
+                    s.close();
+                }
+            }
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        AgentChannelPool.setInstance(null);
+        if (this.agent != null) {
+            this.agent.close();
+        }
+    }
+
+    private AgentConnection connect(boolean channels, int maxConnections) throws IOException {
+        this.agent = new FakeAgent(channels);
+        this.pool = new AgentChannelPool(maxConnections, 60000);
+        AgentChannelPool.setInstance(this.pool);
+        return new AgentConnection("127.0.0.1", this.agent.getPort());
+    }
+
+    private static String echo(AgentConnection conn, String value) throws Exception {
+        AgentRemoteValue arg = new AgentRemoteValue();
+        arg.setValue("value", value);
+        return conn.sendCommand(CMD_ECHO, 1, arg).getValue("value");
+    }
+
+    @Test
+    public void testCommandsShareAConnection() throws Exception {
+        AgentConnection conn = connect(true, 2);
+
+        for (int i = 0; i < 50; i++) {
+            assertEquals("v" + i, echo(conn, "v" + i));
+        }
+        assertEquals(1, this.agent.connections.get());
+        assertEquals(1, this.pool.getConnectionsOpened());
+        assertEquals(0, this.pool.getLegacyCommandsSent());
+    }
+
+    @Test
+    public void testErrorsAreReturnedOverTheChannel() throws Exception {
+        AgentConnection conn = connect(true, 2);
+        AgentRemoteValue arg = new AgentRemoteValue();
+        arg.setValue("value", "x");
+
+        try {
+            conn.sendCommand(CMD_FAIL, 1, arg);
+            fail("Expected AgentRemoteException");
+        } catch (AgentRemoteException e) {
+            assertEquals("Failed x", e.getMessage());
+        }
+        assertEquals("y", echo(conn, "y"));
+        assertEquals(1, this.agent.connections.get());
+    }
+
+    @Test
+    public void testConcurrentCommandsAreMultiplexed() throws Exception {
+        final AgentConnection conn = connect(true, 2);
+        final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+        this.agent.delay = 100;
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 20; i++) {
+            final String value = "v" + i;
+            Thread t = new Thread() {
+                public void run() {
+                    try {
+                        String res = echo(conn, value);
+                        if (!value.equals(res)) {
+                            errors.add(value + " returned " + res);
+                        }
+                    } catch (Exception e) {
+                        errors.add(value + " failed " + e);
+                    }
+                }
+            };
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        assertEquals(Collections.EMPTY_LIST, errors);
+        // Commands which found both channels opening used the legacy protocol
+        assertTrue(this.pool.getOpenChannels() <= 2);
+        assertTrue(this.pool.getLegacyCommandsSent() < 20);
+    }
+
+    @Test
+    public void testLegacyAgent() throws Exception {
+        AgentConnection conn = connect(false, 2);
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals("v" + i, echo(conn, "v" + i));
+        }
+        // The agent is only asked for a channel once
+        assertEquals(11, this.agent.connections.get());
+        assertEquals(10, this.pool.getLegacyCommandsSent());
+        assertEquals(0, this.pool.getOpenChannels());
+    }
+
+    @Test
+    public void testIdleChannelsAreClosed() throws Exception {
+        AgentConnection conn = connect(true, 2);
+
+        assertEquals("a", echo(conn, "a"));
+        this.pool.closeIdle(System.currentTimeMillis() + 30000);
+        assertEquals(1, this.pool.getOpenChannels());
+
+        this.pool.closeIdle(System.currentTimeMillis() + 60000);
+        assertEquals(0, this.pool.getOpenChannels());
+
+        assertEquals("b", echo(conn, "b"));
+        assertEquals(2, this.agent.connections.get());
+    }
+
+    @Test
+    public void testClosedChannelIsReplaced() throws Exception {
+        AgentConnection conn = connect(true, 2);
+
+        assertEquals("a", echo(conn, "a"));
+        // The agent restarts
+        synchronized (this.agent.sockets) {
+            for (Socket s : this.agent.sockets) {
+                s.close();
+            }
+        }
+        Thread.sleep(100);
+
+        assertEquals("b", echo(conn, "b"));
+        assertEquals(2, this.agent.connections.get());
+    }
+
+    @Test
+    public void testTimedOutCommandLeavesTheChannelOpen() throws Exception {
+        connect(true, 1);
+        // Results are waited for as long as the connection's read timeout
+        AgentConnection conn = new AgentConnection("127.0.0.1", this.agent.getPort()) {
+            protected Socket getSocket() throws IOException {
+                Socket s = super.getSocket();
+                s.setSoTimeout(200);
+                return s;
+            }
+        };
+        AgentRemoteValue arg = new AgentRemoteValue();
+        arg.setValue("value", "x");
+
+        try {
+            conn.sendCommand(CMD_HANG, 1, arg);
+            fail("Expected AgentConnectionException");
+        } catch (AgentConnectionException e) {
+        }
+        assertEquals("a", echo(conn, "a"));
+        assertEquals(1, this.agent.connections.get());
+        assertEquals(1, this.pool.getOpenChannels());
+    }
+}
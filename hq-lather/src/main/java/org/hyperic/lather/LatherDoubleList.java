@@ -0,0 +1,90 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.lather;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * A list of doubles backed by a double[], used by LatherValue and the
+ * LatherXCoder to store double lists without boxing every element.  Elements
+ * are only boxed when accessed through the List interface.
+ */
+public class LatherDoubleList
+    extends AbstractList<Double>
+    implements RandomAccess
+{
+    private double[] vals;
+    private int      size;
+
+    public LatherDoubleList(){
+        this(10);
+    }
+
+    public LatherDoubleList(int capacity){
+        this.vals = new double[Math.max(capacity, 1)];
+        this.size = 0;
+    }
+
+    public void addDouble(double val){
+        if(this.size == this.vals.length){
+            double[] newVals = new double[this.size * 2];
+
+            System.arraycopy(this.vals, 0, newVals, 0, this.size);
+            this.vals = newVals;
+        }
+        this.vals[this.size++] = val;
+    }
+
+    public double getDouble(int idx){
+        if(idx >= this.size){
+            throw new IndexOutOfBoundsException("Index: " + idx + ", Size: " +
+                                                this.size);
+        }
+        return this.vals[idx];
+    }
+
+    public double[] toDoubleArray(){
+        double[] res = new double[this.size];
+
+        System.arraycopy(this.vals, 0, res, 0, this.size);
+        return res;
+    }
+
+    public boolean add(Double val){
+        this.addDouble(val.doubleValue());
+        this.modCount++;
+        return true;
+    }
+
+    public Double get(int idx){
+        return new Double(this.getDouble(idx));
+    }
+
+    public int size(){
+        return this.size;
+    }
+}
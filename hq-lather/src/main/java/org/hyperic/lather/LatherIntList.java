@@ -0,0 +1,90 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.lather;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * A list of ints backed by an int[], used by LatherValue and the
+ * LatherXCoder to store int lists without boxing every element.  Elements
+ * are only boxed when accessed through the List interface.
+ */
+public class LatherIntList
+    extends AbstractList<Integer>
+    implements RandomAccess
+{
+    private int[] vals;
+    private int   size;
+
+    public LatherIntList(){
+        this(10);
+    }
+
+    public LatherIntList(int capacity){
+        this.vals = new int[Math.max(capacity, 1)];
+        this.size = 0;
+    }
+
+    public void addInt(int val){
+        if(this.size == this.vals.length){
+            int[] newVals = new int[this.size * 2];
+
+            System.arraycopy(this.vals, 0, newVals, 0, this.size);
+            this.vals = newVals;
+        }
+        this.vals[this.size++] = val;
+    }
+
+    public int getInt(int idx){
+        if(idx >= this.size){
+            throw new IndexOutOfBoundsException("Index: " + idx + ", Size: " +
+                                                this.size);
+        }
+        return this.vals[idx];
+    }
+
+    public int[] toIntArray(){
+        int[] res = new int[this.size];
+
+        System.arraycopy(this.vals, 0, res, 0, this.size);
+        return res;
+    }
+
+    public boolean add(Integer val){
+        this.addInt(val.intValue());
+        this.modCount++;
+        return true;
+    }
+
+    public Integer get(int idx){
+        return new Integer(this.getInt(idx));
+    }
+
+    public int size(){
+        return this.size;
+    }
+}
@@ -46,8 +46,28 @@ import java.util.TreeMap;
  *
  * Access to LatherValue is unsynchronized, so callers must do their
  * own.
+ *
+ * The storage maps are allocated on first use by their public getters,
+ * so callers which only inspect a value should check getContents() first.
  */
 public abstract class LatherValue {
+    // The kinds of values which have been set, as returned by getContents().
+    // These double as the header of the LatherXCoder encoding.
+    public static final int HAS_STRINGS        = 1 << 0;
+    public static final int HAS_INTS           = 1 << 1;
+    public static final int HAS_DOUBLES        = 1 << 2;
+    public static final int HAS_BYTEAS         = 1 << 3;
+    public static final int HAS_STRINGLS       = 1 << 4;
+    public static final int HAS_INTLS          = 1 << 5;
+    public static final int HAS_DOUBLELS       = 1 << 6;
+    public static final int HAS_BYTEALS        = 1 << 7;
+    public static final int HAS_OBJECTS        = 1 << 8;
+    public static final int HAS_OBJECTLS       = 1 << 9;
+    public static final int HAS_LONGS          = 1 << 10;
+    public static final int HAS_SERIALIZABLES  = 1 << 11;
+
+    // The storage maps are only allocated once a value of their kind is
+    // set, most values only use two or three of them.
     private Map stringVals;  // Strings -> Strings
     private Map intVals;     // Strings -> Integers
     private Map doubleVals;  // Strings -> Doubles
@@ -57,11 +77,11 @@ public abstract class LatherValue {
     private Map javaObjectVals; // Strings -> Object
 
     private Map stringLists; // Strings -> List of Strings
-    private Map intLists;    // Strings -> List of Integers
-    private Map doubleLists; // Strings -> List of Doubles
+    private Map intLists;    // Strings -> LatherIntList
+    private Map doubleLists; // Strings -> LatherDoubleList
     private Map byteaLists;  // Strings -> List of byte[]s
     private Map objectLists; // Strings -> List of LatherValues
-    private final Map<String, Serializable> serializableMap = new HashMap<String, Serializable>();
+    private Map<String, Serializable> serializableMap;
 
     private boolean ensureOrder;
 
@@ -78,19 +98,6 @@ public abstract class LatherValue {
 
     private void setup(boolean ensureOrder){
         this.ensureOrder = ensureOrder;
-
-        this.stringVals  = this.createStorageMap();
-        this.intVals     = this.createStorageMap();
-        this.doubleVals  = this.createStorageMap();
-        this.longVals    = this.createStorageMap();
-        this.byteaVals   = this.createStorageMap();
-        this.objectVals  = this.createStorageMap();
-
-        this.stringLists = this.createStorageMap();
-        this.intLists    = this.createStorageMap();
-        this.doubleLists = this.createStorageMap();
-        this.byteaLists  = this.createStorageMap();
-        this.objectLists = this.createStorageMap();
     }
 
     public LatherValue(){
@@ -106,6 +113,59 @@ public abstract class LatherValue {
         this.setup(ensureOrder);
     }
 
+    private static Object getFrom(Map map, String key){
+        return (map == null) ? null : map.get(key);
+    }
+
+    private static boolean isSet(Map map){
+        return (map != null) && !map.isEmpty();
+    }
+
+    /**
+     * @return the HAS_* bits of the kinds of values which have been set
+     */
+    public int getContents(){
+        int contents = 0;
+
+        if (isSet(this.stringVals)) {
+            contents |= HAS_STRINGS;
+        }
+        if (isSet(this.intVals)) {
+            contents |= HAS_INTS;
+        }
+        if (isSet(this.doubleVals)) {
+            contents |= HAS_DOUBLES;
+        }
+        if (isSet(this.byteaVals)) {
+            contents |= HAS_BYTEAS;
+        }
+        if (isSet(this.stringLists)) {
+            contents |= HAS_STRINGLS;
+        }
+        if (isSet(this.intLists)) {
+            contents |= HAS_INTLS;
+        }
+        if (isSet(this.doubleLists)) {
+            contents |= HAS_DOUBLELS;
+        }
+        if (isSet(this.byteaLists)) {
+            contents |= HAS_BYTEALS;
+        }
+        if (isSet(this.objectVals)) {
+            contents |= HAS_OBJECTS;
+        }
+        if (isSet(this.objectLists)) {
+            contents |= HAS_OBJECTLS;
+        }
+        if (isSet(this.longVals)) {
+            contents |= HAS_LONGS;
+        }
+        if (isSet(this.serializableMap)) {
+            contents |= HAS_SERIALIZABLES;
+        }
+        return contents;
+    }
+
     private void checkArg(Object arg){
         if(arg == null){
             throw new IllegalArgumentException("Argument cannot be null");
@@ -115,7 +175,7 @@ public abstract class LatherValue {
     protected String getStringValue(String key){
         String res;
 
-        if((res = (String)this.stringVals.get(key)) == null){
+        if((res = (String)getFrom(this.stringVals, key)) == null){
             throw new LatherKeyNotFoundException(key);
         }
 
@@ -124,13 +184,13 @@ public abstract class LatherValue {
 
     protected void setStringValue(String key, String value){
         this.checkArg(value);
-        this.stringVals.put(key, value);
+        this.getStringVals().put(key, value);
     }
 
     protected int getIntValue(String key){
         Integer res;
 
-        if((res = (Integer)this.intVals.get(key)) == null){
+        if((res = (Integer)getFrom(this.intVals, key)) == null){
             throw new LatherKeyNotFoundException(key);
         }
 
@@ -138,13 +198,13 @@ public abstract class LatherValue {
     }
 
     protected void setIntValue(String key, int value){
-        this.intVals.put(key, new Integer(value));
+        this.getIntVals().put(key, new Integer(value));
     }
 
     protected double getDoubleValue(String key){
         Double res;
 
-        if((res = (Double)this.doubleVals.get(key)) == null){
+        if((res = (Double)getFrom(this.doubleVals, key)) == null){
             throw new LatherKeyNotFoundException(key);
         }
 
@@ -152,13 +212,13 @@ public abstract class LatherValue {
     }
 
     protected void setDoubleValue(String key, double value){
-        this.doubleVals.put(key, new Double(value));
+        this.getDoubleVals().put(key, new Double(value));
     }
 
     protected long getLongValue(String key){
         Long res;
 
-        if ((res = (Long)this.longVals.get(key)) == null){
+        if ((res = (Long)getFrom(this.longVals, key)) == null){
             throw new LatherKeyNotFoundException(key);
         }
         
@@ -166,13 +226,13 @@ public abstract class LatherValue {
     }
 
     protected void setLongValue(String key, long value){
-        this.longVals.put(key, new Long(value));
+        this.getLongVals().put(key, new Long(value));
     }
 
     protected byte[] getByteAValue(String key){
         byte[] res;
 
-        if((res = (byte[])this.byteaVals.get(key)) == null){
+        if((res = (byte[])getFrom(this.byteaVals, key)) == null){
             throw new LatherKeyNotFoundException(key);
         }
 
@@ -181,13 +241,13 @@ public abstract class LatherValue {
 
     protected void setObjectValue(String key, LatherValue value){
         this.checkArg(value);
-        this.objectVals.put(key, value);
+        this.getObjectVals().put(key, value);
     }
 
     protected LatherValue getObjectValue(String key){
         LatherValue res;
 
-        if((res = (LatherValue)this.objectVals.get(key)) == null){
+        if((res = (LatherValue)getFrom(this.objectVals, key)) == null){
             throw new LatherKeyNotFoundException(key);
         }
 
@@ -196,7 +256,7 @@ public abstract class LatherValue {
 
     protected void setByteAValue(String key, byte[] value){
         this.checkArg(value);
-        this.byteaVals.put(key, value);
+        this.getByteAVals().put(key, value);
     }
 
     private List getListValueForAdd(Map map, String listName){
@@ -211,7 +271,7 @@ public abstract class LatherValue {
     }
 
     private List getListValueForGet(Map map, String listName){
-        List res = (List)map.get(listName);
+        List res = (List)getFrom(map, listName);
 
         if(res == null){
             throw new LatherKeyNotFoundException(listName);
@@ -221,7 +281,7 @@ public abstract class LatherValue {
     }
 
     protected void addStringToList(String listName, String value){
-        List list = this.getListValueForAdd(this.stringLists, listName);
+        List list = this.getListValueForAdd(this.getStringLists(), listName);
 
         this.checkArg(value);
         list.add(value);
@@ -234,9 +294,18 @@ public abstract class LatherValue {
     }
 
     protected void addIntToList(String listName, int value){
-        List list = this.getListValueForAdd(this.intLists, listName);
+        Map lists = this.getIntLists();
+        List list = (List)lists.get(listName);
 
-        list.add(new Integer(value));
+        if(list == null){
+            list = new LatherIntList();
+            lists.put(listName, list);
+        }
+        if(list instanceof LatherIntList){
+            ((LatherIntList)list).addInt(value);
+        } else {
+            list.add(new Integer(value));
+        }
     }
     
     protected int[] getIntList(String listName){
@@ -244,6 +313,10 @@ public abstract class LatherValue {
         int[] res;
         int idx;
 
+        if(list instanceof LatherIntList){
+            return ((LatherIntList)list).toIntArray();
+        }
+
         res = new int[list.size()];
         idx = 0;
         for(Iterator i=list.iterator(); i.hasNext(); ){
@@ -256,9 +329,18 @@ public abstract class LatherValue {
     }
 
     protected void addDoubleToList(String listName, double value){
-        List list = this.getListValueForAdd(this.doubleLists, listName);
+        Map lists = this.getDoubleLists();
+        List list = (List)lists.get(listName);
 
-        list.add(new Double(value));
+        if(list == null){
+            list = new LatherDoubleList();
+            lists.put(listName, list);
+        }
+        if(list instanceof LatherDoubleList){
+            ((LatherDoubleList)list).addDouble(value);
+        } else {
+            list.add(new Double(value));
+        }
     }
     
     protected double[] getDoubleList(String listName){
@@ -266,6 +348,10 @@ public abstract class LatherValue {
         double[] res;
         int idx;
 
+        if(list instanceof LatherDoubleList){
+            return ((LatherDoubleList)list).toDoubleArray();
+        }
+
         res = new double[list.size()];
         idx = 0;
         for(Iterator i=list.iterator(); i.hasNext(); ){
@@ -278,7 +364,7 @@ public abstract class LatherValue {
     }
 
     protected void addByteAToList(String listName, byte[] value){
-        List list = this.getListValueForAdd(this.byteaLists, listName);
+        List list = this.getListValueForAdd(this.getByteALists(), listName);
 
         this.checkArg(value);
         list.add(value);
@@ -291,7 +377,7 @@ public abstract class LatherValue {
     }
 
     protected void addObjectToList(String listName, Object value){
-        List list = this.getListValueForAdd(this.objectLists, listName);
+        List list = this.getListValueForAdd(this.getObjectLists(), listName);
 
         this.checkArg(value);
         list.add(value);
@@ -304,58 +390,94 @@ public abstract class LatherValue {
     }
 
     protected Serializable getObject(String objectName) {
-        return serializableMap.get(objectName);
+        return (this.serializableMap == null) ? null : this.serializableMap.get(objectName);
     }
 
     protected void addObject(String objectName, Serializable object) {
-        serializableMap.put(objectName, object);
+        this.getSerializableMap().put(objectName, object);
     }
 
     public Map getStringVals(){
+        if (this.stringVals == null) {
+            this.stringVals = this.createStorageMap();
+        }
         return this.stringVals;
     }
 
     public Map getIntVals(){
+        if (this.intVals == null) {
+            this.intVals = this.createStorageMap();
+        }
         return this.intVals;
     }
 
     public Map getDoubleVals(){
+        if (this.doubleVals == null) {
+            this.doubleVals = this.createStorageMap();
+        }
         return this.doubleVals;
     }
 
     public Map getLongVals(){
+        if (this.longVals == null) {
+            this.longVals = this.createStorageMap();
+        }
         return this.longVals;
     }
 
     public Map getByteAVals(){
+        if (this.byteaVals == null) {
+            this.byteaVals = this.createStorageMap();
+        }
         return this.byteaVals;
     }
 
     public Map getObjectVals(){
+        if (this.objectVals == null) {
+            this.objectVals = this.createStorageMap();
+        }
         return this.objectVals;
     }
 
     public Map getStringLists(){
+        if (this.stringLists == null) {
+            this.stringLists = this.createStorageMap();
+        }
         return this.stringLists;
     }
 
     public Map getIntLists(){
+        if (this.intLists == null) {
+            this.intLists = this.createStorageMap();
+        }
         return this.intLists;
     }
 
     public Map getDoubleLists(){
+        if (this.doubleLists == null) {
+            this.doubleLists = this.createStorageMap();
+        }
         return this.doubleLists;
     }
 
     public Map getByteALists(){
+        if (this.byteaLists == null) {
+            this.byteaLists = this.createStorageMap();
+        }
         return this.byteaLists;
     }
 
     public Map getObjectLists(){
+        if (this.objectLists == null) {
+            this.objectLists = this.createStorageMap();
+        }
         return this.objectLists;
     }
 
     public Map<String, Serializable> getSerializableMap() {
+        if (this.serializableMap == null) {
+            this.serializableMap = new HashMap<String, Serializable>();
+        }
         return this.serializableMap;
     }
 
@@ -30,18 +30,25 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLEncoder;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
+import org.apache.http.entity.ContentProducer;
+import org.apache.http.entity.EntityTemplate;
 import org.apache.http.util.EntityUtils;
 import org.hyperic.hq.agent.AgentKeystoreConfig;
 import org.hyperic.hq.common.SystemException;
 import org.hyperic.lather.LatherRemoteException;
 import org.hyperic.lather.LatherValue;
+import org.hyperic.lather.xcode.LatherStreamCoder;
 import org.hyperic.lather.xcode.LatherXCoder;
 import org.hyperic.util.encoding.Base64;
 import org.hyperic.util.http.HQHttpClient;
@@ -50,6 +57,18 @@ import org.hyperic.util.http.HttpConfig;
 /**
  * The LatherClient is the base object which is used to invoke
  * remote Lather methods.  
+ *
+ * Requests start out in the legacy encoding, Base64 encoded form
+ * parameters, advertising the binary encoding through HDR_ACCEPT_ENCODING.
+ * Once a server answers with HDR_ENCODING set to ENCODING_BINARY, further
+ * requests to it stream the raw LatherXCoder output as an
+ * application/octet-stream body, compressed as per the lather.compression
+ * system property (gzip by default).  A server which rejects a binary
+ * request with a 4xx status, which it did not process, is dropped back to
+ * the legacy encoding and the request is resent that way.  So is one which
+ * answers in an encoding the client does not understand, though that
+ * request fails as it was already processed.  Other failures, including
+ * remote exceptions, leave the server on the binary encoding.
  */
 public class LatherHTTPClient 
     implements LatherClient
@@ -59,10 +78,22 @@ public class LatherHTTPClient
 
     public static final String HDR_ERROR      = "X-error-response";
     public static final String HDR_VALUECLASS = "X-latherValue-class";
+    public static final String HDR_ENCODING   = "X-lather-encoding";
+    public static final String HDR_ACCEPT_ENCODING = "X-lather-accept-encoding";
+
+    public static final String ENCODING_BINARY     = "binary";
+    public static final String CONTENT_TYPE_BINARY = "application/octet-stream";
+
+    private static final String PROP_COMPRESSION = "lather.compression";
+
+    // Servers which have advertised the binary encoding, by URL
+    private static final Map<String, Boolean> binaryServers =
+        new ConcurrentHashMap<String, Boolean>();
 
     private HQHttpClient client;
     private LatherXCoder xCoder;
     private String       baseURL;
+    private String       compression;
     
     public LatherHTTPClient(String baseURL) throws Exception {
         this(baseURL, TIMEOUT_CONN, TIMEOUT_DATA);
@@ -89,12 +120,51 @@ public class LatherHTTPClient
 	        this.client = new HQHttpClient(new AgentKeystoreConfig(), config, acceptUnverifiedCertificates);
 			this.baseURL = baseURL;
 	        this.xCoder  = new LatherXCoder();
+	        this.compression = System.getProperty(PROP_COMPRESSION, LatherStreamCoder.COMPRESSION_GZIP);
+	        if (!LatherStreamCoder.isSupported(this.compression)) {
+	            this.compression = LatherStreamCoder.COMPRESSION_NONE;
+	        }
     	} catch(Exception e) {
     		throw new IllegalStateException(e);
     	}
     }
 
     public LatherValue invoke(String method, LatherValue args) throws IOException, LatherRemoteException {
+        if (!binaryServers.containsKey(this.baseURL)) {
+            return invokeLegacy(method, args);
+        }
+
+        try {
+            return invokeBinary(method, args);
+        } catch (BinaryRejectedException e) {
+            binaryServers.remove(this.baseURL);
+            return invokeLegacy(method, args);
+        } catch (BinaryUnsupportedException e) {
+            binaryServers.remove(this.baseURL);
+            throw e;
+        }
+    }
+
+    /**
+     * The server rejected a binary request without processing it.
+     */
+    private static class BinaryRejectedException extends IOException {
+        private BinaryRejectedException(String msg) {
+            super(msg);
+        }
+    }
+
+    /**
+     * The server answered a binary request in an encoding the client does
+     * not understand.
+     */
+    private static class BinaryUnsupportedException extends IOException {
+        private BinaryUnsupportedException(String msg) {
+            super(msg);
+        }
+    }
+
+    private LatherValue invokeLegacy(String method, LatherValue args) throws IOException, LatherRemoteException {
         ByteArrayOutputStream bOs = new ByteArrayOutputStream();
         DataOutputStream dOs = new DataOutputStream(bOs);
         
@@ -103,18 +173,20 @@ public class LatherHTTPClient
         byte[] rawData = bOs.toByteArray();
         String encodedArgs = Base64.encode(rawData);
         Map<String, String> postParams = new HashMap<String, String>();
+        Map<String, String> headers = new HashMap<String, String>();
         
         postParams.put("method", method);
         postParams.put("args", encodedArgs);
         postParams.put("argsClass", args.getClass().getName());
+        headers.put(HDR_ACCEPT_ENCODING, ENCODING_BINARY);
         
-        HttpResponse response = client.post(baseURL, postParams);
+        HttpResponse response = client.post(baseURL, headers, postParams);
         
         if ((response != null) && (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK)) {
             ByteArrayInputStream bIs;
             DataInputStream dIs;
             Header errHeader = response.getFirstHeader(HDR_ERROR);
-            Header clsHeader = response.getFirstHeader(HDR_VALUECLASS);
+            Header encHeader = response.getFirstHeader(HDR_ENCODING);
             HttpEntity entity = response.getEntity();
             String responseBody = EntityUtils.toString(entity);
 
@@ -122,19 +194,8 @@ public class LatherHTTPClient
                 throw new LatherRemoteException(responseBody);
             }
 
-            if (clsHeader == null) {
-                throw new IOException("Server returned malformed result: did not contain a value class header");
-            }
-	
-            Class<?> resClass;
-	
-            try {
-            	resClass = Class.forName(clsHeader.getValue());
-	        } catch(ClassNotFoundException exc){
-	            throw new LatherRemoteException("Server returned a class '" + clsHeader.getValue() + 
-	                                            "' which the client did not have access to");
-	        }
-	
+            Class<?> resClass = getResultClass(response);
+
             try {
                 bIs = new ByteArrayInputStream(Base64.decode(responseBody));
             } catch (IllegalArgumentException e) {
@@ -142,9 +203,85 @@ public class LatherHTTPClient
             }
 	        dIs = new DataInputStream(bIs);
 	
-	        return this.xCoder.decode(dIs, resClass);
+	        LatherValue res = this.xCoder.decode(dIs, resClass);
+	        if ((encHeader != null) && ENCODING_BINARY.equals(encHeader.getValue())) {
+	            binaryServers.put(this.baseURL, Boolean.TRUE);
+	        }
+	        return res;
 	    } else {
 	        throw new IOException("Connection failure: " + response.getStatusLine());
 	    }
     }
+
+    private LatherValue invokeBinary(String method, final LatherValue args) throws IOException, LatherRemoteException {
+        final LatherStreamCoder coder = new LatherStreamCoder(this.xCoder);
+        Map<String, String> headers = new HashMap<String, String>();
+        String url = this.baseURL + (this.baseURL.indexOf('?') == -1 ? '?' : '&') +
+            "method=" + URLEncoder.encode(method, "UTF-8") +
+            "&argsClass=" + URLEncoder.encode(args.getClass().getName(), "UTF-8");
+
+        headers.put(HDR_ENCODING, ENCODING_BINARY);
+        headers.put("Accept-Encoding", this.compression);
+        if (!LatherStreamCoder.COMPRESSION_NONE.equals(this.compression)) {
+            headers.put("Content-Encoding", this.compression);
+        }
+
+        // Encode straight to the connection rather than into an interim buffer
+        EntityTemplate entity = new EntityTemplate(new ContentProducer() {
+            public void writeTo(OutputStream out) throws IOException {
+                coder.encode(args, out, compression);
+            }
+        });
+        entity.setContentType(CONTENT_TYPE_BINARY);
+
+        HttpResponse response = client.post(url, headers, entity);
+        int status = (response == null) ? -1 : response.getStatusLine().getStatusCode();
+
+        if ((status >= HttpStatus.SC_BAD_REQUEST) && (status < HttpStatus.SC_INTERNAL_SERVER_ERROR)) {
+            EntityUtils.consume(response.getEntity());
+            throw new BinaryRejectedException("Binary request rejected: " + response.getStatusLine());
+        }
+
+        if (status == HttpStatus.SC_OK) {
+            HttpEntity resEntity = response.getEntity();
+
+            if (response.getFirstHeader(HDR_ERROR) != null) {
+                throw new LatherRemoteException(EntityUtils.toString(resEntity));
+            }
+
+            Header resEncHeader = response.getFirstHeader(HDR_ENCODING);
+            Header encHeader = response.getFirstHeader("Content-Encoding");
+            if ((resEncHeader == null) || !ENCODING_BINARY.equals(resEncHeader.getValue()) ||
+                ((encHeader != null) && !LatherStreamCoder.isSupported(encHeader.getValue()))) {
+                EntityUtils.consume(resEntity);
+                throw new BinaryUnsupportedException("Server did not answer in the binary encoding");
+            }
+
+            Class<?> resClass = getResultClass(response);
+            InputStream in = resEntity.getContent();
+
+            try {
+                return coder.decode(in, resClass, (encHeader == null) ? null : encHeader.getValue());
+            } finally {
+                in.close();
+            }
+        } else {
+            throw new IOException("Connection failure: " + response.getStatusLine());
+        }
+    }
+
+    private Class<?> getResultClass(HttpResponse response) throws IOException, LatherRemoteException {
+        Header clsHeader = response.getFirstHeader(HDR_VALUECLASS);
+
+        if (clsHeader == null) {
+            throw new IOException("Server returned malformed result: did not contain a value class header");
+        }
+
+        try {
+            return Class.forName(clsHeader.getValue());
+        } catch(ClassNotFoundException exc){
+            throw new LatherRemoteException("Server returned a class '" + clsHeader.getValue() + 
+                                            "' which the client did not have access to");
+        }
+    }
 }
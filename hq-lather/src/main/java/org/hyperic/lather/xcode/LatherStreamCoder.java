@@ -0,0 +1,172 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.lather.xcode;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.hyperic.lather.LatherRemoteException;
+import org.hyperic.lather.LatherValue;
+
+/**
+ * Streams LatherValues through a LatherXCoder with an optional
+ * compression, as used by the binary Lather transport.  The compression
+ * names match the HTTP Content-Encoding values.
+ *
+ * The underlying streams are never closed, only flushed, so the caller
+ * stays in charge of the connection.
+ */
+public class LatherStreamCoder {
+    public static final String COMPRESSION_NONE    = "identity";
+    public static final String COMPRESSION_GZIP    = "gzip";
+    public static final String COMPRESSION_DEFLATE = "deflate";
+
+    private static final int BUFSIZE = 8192;
+
+    private final LatherXCoder xCoder;
+
+    public LatherStreamCoder(LatherXCoder xCoder) {
+        this.xCoder = xCoder;
+    }
+
+    /**
+     * @return true if the compression is one which this coder understands.
+     *         A null compression is the same as no compression.
+     */
+    public static boolean isSupported(String compression) {
+        return (compression == null) ||
+               COMPRESSION_NONE.equalsIgnoreCase(compression) ||
+               COMPRESSION_GZIP.equalsIgnoreCase(compression) ||
+               COMPRESSION_DEFLATE.equalsIgnoreCase(compression);
+    }
+
+    /**
+     * Encode a value to the stream.
+     *
+     * @param compression One of the COMPRESSION_* values, or null
+     */
+    public void encode(LatherValue value, OutputStream out, String compression)
+        throws IOException
+    {
+        if (COMPRESSION_GZIP.equalsIgnoreCase(compression)) {
+            FinishingGZIPOutputStream gOs = new FinishingGZIPOutputStream(out);
+            try {
+                encode(value, gOs);
+                gOs.finish();
+            } finally {
+                gOs.end();
+            }
+        } else if (COMPRESSION_DEFLATE.equalsIgnoreCase(compression)) {
+            Deflater deflater = new Deflater();
+            try {
+                DeflaterOutputStream dOs = new DeflaterOutputStream(out, deflater, BUFSIZE);
+                encode(value, dOs);
+                dOs.finish();
+            } finally {
+                deflater.end();
+            }
+        } else {
+            encode(value, out);
+        }
+        out.flush();
+    }
+
+    private void encode(LatherValue value, OutputStream out)
+        throws IOException
+    {
+        DataOutputStream dOs = new DataOutputStream(new BufferedOutputStream(out, BUFSIZE));
+        this.xCoder.encode(value, dOs);
+        dOs.flush();
+    }
+
+    /**
+     * Decode a value of the given class from the stream.
+     *
+     * @param compression One of the COMPRESSION_* values, or null
+     */
+    public LatherValue decode(InputStream in, Class cl, String compression)
+        throws IOException, LatherRemoteException
+    {
+        if (COMPRESSION_GZIP.equalsIgnoreCase(compression)) {
+            EndingGZIPInputStream gIs = new EndingGZIPInputStream(in);
+            try {
+                return decode(gIs, cl);
+            } finally {
+                gIs.end();
+            }
+        } else if (COMPRESSION_DEFLATE.equalsIgnoreCase(compression)) {
+            Inflater inflater = new Inflater();
+            try {
+                return decode(new InflaterInputStream(in, inflater, BUFSIZE), cl);
+            } finally {
+                inflater.end();
+            }
+        } else {
+            return decode(in, cl);
+        }
+    }
+
+    private LatherValue decode(InputStream in, Class cl)
+        throws IOException, LatherRemoteException
+    {
+        return this.xCoder.decode(new DataInputStream(new BufferedInputStream(in, BUFSIZE)), cl);
+    }
+
+    /**
+     * GZIPOutputStream only releases its native deflater on close(), which
+     * would also close the underlying stream.
+     */
+    private static class FinishingGZIPOutputStream extends GZIPOutputStream {
+        private FinishingGZIPOutputStream(OutputStream out) throws IOException {
+            super(out, BUFSIZE);
+        }
+
+        private void end() {
+            this.def.end();
+        }
+    }
+
+    private static class EndingGZIPInputStream extends GZIPInputStream {
+        private EndingGZIPInputStream(InputStream in) throws IOException {
+            super(in, BUFSIZE);
+        }
+
+        private void end() {
+            this.inf.end();
+        }
+    }
+}
@@ -33,12 +33,16 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.lang.reflect.Constructor;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.hyperic.lather.LatherDoubleList;
+import org.hyperic.lather.LatherIntList;
 import org.hyperic.lather.LatherRemoteException;
 import org.hyperic.lather.LatherValue;
 
@@ -49,18 +53,27 @@ import org.hyperic.lather.LatherValue;
  *                  for speed purposes.
  */
 public class LatherXCoder {
-    private final int HAS_STRINGS = 1 << 0;
-    private final int HAS_INTS = 1 << 1;
-    private final int HAS_DOUBLES = 1 << 2;
-    private final int HAS_BYTEAS = 1 << 3;
-    private final int HAS_STRINGLS = 1 << 4;
-    private final int HAS_INTLS = 1 << 5;
-    private final int HAS_DOUBLELS = 1 << 6;
-    private final int HAS_BYTEALS = 1 << 7;
-    private final int HAS_OBJECTS = 1 << 8;
-    private final int HAS_OBJECTLS = 1 << 9;
-    private final int HAS_LONGS = 1 << 10;
-    private final int HAS_SERIALAIZABLES = 1 << 11;
+    private static final int HAS_STRINGS = LatherValue.HAS_STRINGS;
+    private static final int HAS_INTS = LatherValue.HAS_INTS;
+    private static final int HAS_DOUBLES = LatherValue.HAS_DOUBLES;
+    private static final int HAS_BYTEAS = LatherValue.HAS_BYTEAS;
+    private static final int HAS_STRINGLS = LatherValue.HAS_STRINGLS;
+    private static final int HAS_INTLS = LatherValue.HAS_INTLS;
+    private static final int HAS_DOUBLELS = LatherValue.HAS_DOUBLELS;
+    private static final int HAS_BYTEALS = LatherValue.HAS_BYTEALS;
+    private static final int HAS_OBJECTS = LatherValue.HAS_OBJECTS;
+    private static final int HAS_OBJECTLS = LatherValue.HAS_OBJECTLS;
+    private static final int HAS_LONGS = LatherValue.HAS_LONGS;
+    private static final int HAS_SERIALAIZABLES = LatherValue.HAS_SERIALIZABLES;
+
+    // Classes of nested values by name, and the constructors of the
+    // decoded classes, so they are only looked up once per coder.  Not
+    // static, so classes of a redeployed webapp or plugin loader are not
+    // held on to once their coder is gone
+    private final Map<String, Class> classes =
+        new ConcurrentHashMap<String, Class>();
+    private final Map<Class, Constructor> constructors =
+        new ConcurrentHashMap<Class, Constructor>();
 
     /**
      * Encode the given value object into a stream.
@@ -78,60 +91,16 @@ public class LatherXCoder {
             
         int contents = 0;
 
-        stringVals  = value.getStringVals();
-        intVals     = value.getIntVals();
-        longVals    = value.getLongVals();
-        doubleVals  = value.getDoubleVals();
-        byteaVals   = value.getByteAVals();
-        objectVals  = value.getObjectVals();
-        stringLists = value.getStringLists();
-        intLists    = value.getIntLists();
-        doubleLists = value.getDoubleLists();
-        byteaLists  = value.getByteALists();
-        objectLists = value.getObjectLists();
-
-        if (stringVals.size() > 0) {
-            contents |= HAS_STRINGS;
-        }
-        if (intVals.size() > 0) {
-            contents |= HAS_INTS;
-        }
-        if (longVals.size() > 0) {
-            contents |= HAS_LONGS;
-        }
-        if (doubleVals.size() > 0) {
-            contents |= HAS_DOUBLES;
-        }
-        if (byteaVals.size() > 0) {
-            contents |= HAS_BYTEAS;
-        }
-        if (stringLists.size() > 0) {
-            contents |= HAS_STRINGLS;
-        }
-        if (intLists.size() > 0) {
-            contents |= HAS_INTLS;
-        }
-        if (doubleLists.size() > 0) {
-            contents |= HAS_DOUBLELS;
-        }
-        if (byteaLists.size() > 0) {
-            contents |= HAS_BYTEALS;
-        }
-        if (objectVals.size() > 0) {
-            contents |= HAS_OBJECTS;
-        }
-        if (objectLists.size() > 0) {
-            contents |= HAS_OBJECTLS;
-        }
-        if (value.getSerializableMap().size() > 0) {
-            contents |= HAS_SERIALAIZABLES;
-        }
+        // Only fetch the maps of the kinds of values which are set, the
+        // others are never allocated
+        contents = value.getContents();
 
         // The first thing we write is the type of data that will be
         // sent -- this makes the minimum packet size == 4 bytes
         out.writeInt(contents);
         
         if((contents & HAS_STRINGS) != 0){
+            stringVals = value.getStringVals();
             out.writeInt(stringVals.size());
 
             for(Iterator i=stringVals.entrySet().iterator(); 
@@ -146,6 +115,7 @@ public class LatherXCoder {
         }
         
         if((contents & HAS_INTS) != 0){
+            intVals = value.getIntVals();
             out.writeInt(intVals.size());
 
             for(Iterator i=intVals.entrySet().iterator(); 
@@ -160,6 +130,7 @@ public class LatherXCoder {
         }
 
         if((contents & HAS_DOUBLES) != 0){
+            doubleVals = value.getDoubleVals();
             out.writeInt(doubleVals.size());
 
             for(Iterator i=doubleVals.entrySet().iterator(); 
@@ -174,6 +145,7 @@ public class LatherXCoder {
         }
 
         if((contents & HAS_BYTEAS) != 0){
+            byteaVals = value.getByteAVals();
             out.writeInt(byteaVals.size());
 
             for(Iterator i=byteaVals.entrySet().iterator(); 
@@ -191,6 +163,7 @@ public class LatherXCoder {
         }
 
         if((contents & HAS_STRINGLS) != 0){
+            stringLists = value.getStringLists();
             out.writeInt(stringLists.size());
 
             for(Iterator i=stringLists.entrySet().iterator();
@@ -209,6 +182,7 @@ public class LatherXCoder {
         }
 
         if((contents & HAS_INTLS) != 0){
+            intLists = value.getIntLists();
             out.writeInt(intLists.size());
 
             for(Iterator i=intLists.entrySet().iterator();
@@ -220,6 +194,14 @@ public class LatherXCoder {
 
                 out.writeUTF((String)ent.getKey());
                 out.writeInt(vals.size());
+                if(vals instanceof LatherIntList){
+                    LatherIntList ints = (LatherIntList)vals;
+
+                    for(int j=0; j<ints.size(); j++){
+                        out.writeInt(ints.getInt(j));
+                    }
+                    continue;
+                }
                 for(Iterator j=vals.iterator(); j.hasNext(); ){
                     out.writeInt(((Integer)j.next()).intValue());
                 }
@@ -227,6 +209,7 @@ public class LatherXCoder {
         }
 
         if((contents & HAS_DOUBLELS) != 0){
+            doubleLists = value.getDoubleLists();
             out.writeInt(doubleLists.size());
 
             for(Iterator i=doubleLists.entrySet().iterator();
@@ -238,6 +221,14 @@ public class LatherXCoder {
 
                 out.writeUTF((String)ent.getKey());
                 out.writeInt(vals.size());
+                if(vals instanceof LatherDoubleList){
+                    LatherDoubleList doubles = (LatherDoubleList)vals;
+
+                    for(int j=0; j<doubles.size(); j++){
+                        out.writeDouble(doubles.getDouble(j));
+                    }
+                    continue;
+                }
                 for(Iterator j=vals.iterator(); j.hasNext(); ){
                     out.writeDouble(((Double)j.next()).doubleValue());
                 }
@@ -245,6 +236,7 @@ public class LatherXCoder {
         }
 
         if((contents & HAS_BYTEALS) != 0){
+            byteaLists = value.getByteALists();
             out.writeInt(byteaLists.size());
 
             for(Iterator i=byteaLists.entrySet().iterator();
@@ -266,6 +258,7 @@ public class LatherXCoder {
         }
 
         if((contents & HAS_OBJECTS) != 0){
+            objectVals = value.getObjectVals();
             out.writeInt(objectVals.size());
             
             for(Iterator i=objectVals.entrySet().iterator();
@@ -290,6 +283,7 @@ public class LatherXCoder {
         }
 
         if((contents & HAS_OBJECTLS) != 0){
+            objectLists = value.getObjectLists();
             out.writeInt(objectLists.size());
             
             for(Iterator i=objectLists.entrySet().iterator();
@@ -320,6 +314,7 @@ public class LatherXCoder {
         }
 
         if((contents & HAS_LONGS) != 0){
+            longVals = value.getLongVals();
             out.writeInt(longVals.size());
 
             for(Iterator i=longVals.entrySet().iterator(); 
@@ -384,7 +379,13 @@ public class LatherXCoder {
         }
 
         try {
-            res = (LatherValue)cl.newInstance();
+            Constructor con = constructors.get(cl);
+
+            if(con == null){
+                con = cl.getDeclaredConstructor(new Class[0]);
+                constructors.put(cl, con);
+            }
+            res = (LatherValue)con.newInstance(new Object[0]);
         } catch(Exception exc){
             throw new IllegalArgumentException("Passed class is not " +
                                                "accessable: " + exc); 
@@ -448,14 +449,16 @@ public class LatherXCoder {
             nVals = in.readInt();
             map   = res.getIntLists();
             for(int i=0; i<nVals; i++){
+                LatherIntList ints;
+
                 listName  = in.readUTF();
                 nListVals = in.readInt();
-                newList   = new ArrayList(nListVals);
+                ints      = new LatherIntList(nListVals);
 
                 for(int j=0; j<nListVals; j++){
-                    newList.add(new Integer(in.readInt()));
+                    ints.addInt(in.readInt());
                 }
-                map.put(listName, newList);
+                map.put(listName, ints);
             }
         }
 
@@ -463,14 +466,16 @@ public class LatherXCoder {
             nVals = in.readInt();
             map   = res.getDoubleLists();
             for(int i=0; i<nVals; i++){
+                LatherDoubleList doubles;
+
                 listName  = in.readUTF();
                 nListVals = in.readInt();
-                newList   = new ArrayList(nListVals);
+                doubles   = new LatherDoubleList(nListVals);
 
                 for(int j=0; j<nListVals; j++){
-                    newList.add(new Double(in.readDouble()));
+                    doubles.addDouble(in.readDouble());
                 }
-                map.put(listName, newList);
+                map.put(listName, doubles);
             }
         }
 
@@ -511,13 +516,7 @@ public class LatherXCoder {
                 bIs       = new ByteArrayInputStream(bytes);
                 subDiS    = new DataInputStream(bIs);
 
-                try {
-                    valClass  = Class.forName(className);
-                } catch(ClassNotFoundException exc){
-                    throw new LatherRemoteException("Unable to locate '" +
-                                                    className + "' to decode "+
-                                                    "LatherValue");
-                }
+                valClass = this.getValueClass(className);
 
                 map.put(listName, this.decode(subDiS, valClass));
             }
@@ -545,13 +544,7 @@ public class LatherXCoder {
                     bIs       = new ByteArrayInputStream(bytes);
                     subDiS    = new DataInputStream(bIs);
 
-                    try {
-                        valClass  = Class.forName(className);
-                    } catch(ClassNotFoundException exc){
-                        throw new LatherRemoteException("Unable to locate '" +
-                                                   className + "' to decode "+
-                                                   "LatherValue");
-                    }
+                    valClass = this.getValueClass(className);
 
                     newList.add(this.decode(subDiS, valClass));
                 }
@@ -596,4 +589,22 @@ public class LatherXCoder {
         res.validate();
         return res;
     }
+
+    private Class getValueClass(String className)
+        throws LatherRemoteException
+    {
+        Class res = classes.get(className);
+
+        if(res == null){
+            try {
+                res = Class.forName(className);
+            } catch(ClassNotFoundException exc){
+                throw new LatherRemoteException("Unable to locate '" +
+                                                className + "' to decode "+
+                                                "LatherValue");
+            }
+            classes.put(className, res);
+        }
+        return res;
+    }
 }
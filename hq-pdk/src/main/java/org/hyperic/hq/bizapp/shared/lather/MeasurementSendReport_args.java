@@ -25,12 +25,15 @@
 
 package org.hyperic.hq.bizapp.shared.lather;
 
+import java.io.IOException;
+
 import org.hyperic.lather.LatherKeyNotFoundException;
 import org.hyperic.lather.LatherRemoteException;
 
 import org.hyperic.hq.appdef.shared.AppdefEntityID;
 import org.hyperic.hq.measurement.server.session.SRN;
 import org.hyperic.hq.measurement.data.DSNList;
+import org.hyperic.hq.measurement.data.MeasurementColumns;
 import org.hyperic.hq.measurement.data.MeasurementReport;
 import org.hyperic.hq.measurement.data.MeasurementReportConstructor;
 import org.hyperic.hq.measurement.data.ValueList;
@@ -54,18 +57,45 @@ public class MeasurementSendReport_args
     private static final String PROP_SRN_ENT_ID   = "srnEntId";
     private static final String PROP_SRN_REVNO    = "srnRevNo";
     private static final String PROP_AGENT_TOKEN  = "agentToken";
+    private static final String PROP_ENCODING     = "reportEncoding";
+    private static final String PROP_COLUMNS      = "columns";
 
     public MeasurementSendReport_args(){
         super();
     }
 
     public void setReport(MeasurementReport report){
-        DSNList[] clientIDs;
-        SRN[] srnList;
+        this.setReport(report, MeasurementReport.ENCODING_LEGACY);
+    }
 
+    /**
+     * @param encoding one of the MeasurementReport.ENCODING_* constants.
+     *                 Anything but ENCODING_LEGACY may only be used once
+     *                 the server has advertised it in a
+     *                 MeasurementSendReport_result.
+     */
+    public void setReport(MeasurementReport report, int encoding){
         this.addStringToList(PROP_AGENT_TOKEN,
                              report.getAgentToken());
 
+        if (encoding >= MeasurementReport.ENCODING_COLUMNAR) {
+            try {
+                this.setByteAValue(PROP_COLUMNS, report.getColumns().encode());
+                this.setIntValue(PROP_ENCODING, MeasurementReport.ENCODING_COLUMNAR);
+            } catch (IOException e) {
+                // Can't happen writing to memory, fall back to the lists
+                _log.warn("Unable to encode measurement report, sending it as lists: " + e);
+                this.setDsnLists(report);
+            }
+        } else {
+            this.setDsnLists(report);
+        }
+        this.setSRNList(report.getSRNList());
+    }
+
+    private void setDsnLists(MeasurementReport report){
+        DSNList[] clientIDs;
+
         clientIDs = report.getClientIdList();
         for(int cidIdx=0; cidIdx < clientIDs.length; cidIdx++){
             ValueList[] dsns = clientIDs[cidIdx].getDsns();
@@ -85,8 +115,9 @@ public class MeasurementSendReport_args
                 }
             }
         }
-        
-        srnList = report.getSRNList();
+    }
+
+    private void setSRNList(SRN[] srnList){
         for(int i=0; i<srnList.length; i++){
             AppdefEntityID ent = srnList[i].getEntity();
 
@@ -96,52 +127,51 @@ public class MeasurementSendReport_args
         }
     }
 
+    /**
+     * @return the encoding the report was sent with, ENCODING_LEGACY for
+     *         agents which predate the report encodings.
+     */
+    public int getReportEncoding(){
+        try {
+            return this.getIntValue(PROP_ENCODING);
+        } catch (LatherKeyNotFoundException e) {
+            return MeasurementReport.ENCODING_LEGACY;
+        }
+    }
+
     public MeasurementReport getReport()
         throws LatherRemoteException
     {
-        MeasurementReportConstructor con;
         MeasurementReport res;
-        double[] tStampList;
-        double[] valueList;
-        int[] cidList, dsnIdList, srnEntTypeList, srnEntIdList, srnRevNoList;
+        int[] srnEntTypeList, srnEntIdList, srnRevNoList;
         SRN[] srnList;
 
-        con = new MeasurementReportConstructor();
-
-        cidList    = this.getIntList(PROP_CIDLIST);
-        dsnIdList  = this.getIntList(PROP_DSNIDLIST);
-        tStampList = this.getDoubleList(PROP_TSTAMPLIST);
-        valueList  = this.getDoubleList(PROP_VALUELIST);
-
         srnEntTypeList = this.getIntList(PROP_SRN_ENT_TYPE);
         srnEntIdList   = this.getIntList(PROP_SRN_ENT_ID);
         srnRevNoList   = this.getIntList(PROP_SRN_REVNO);
 
-        if(dsnIdList.length       != tStampList.length   ||
-           dsnIdList.length       != valueList.length    ||
-           dsnIdList.length       != cidList.length      ||
-           srnEntTypeList.length  != srnEntIdList.length ||
+        if(srnEntTypeList.length  != srnEntIdList.length ||
            srnEntTypeList.length  != srnRevNoList.length)
         {
             throw new LatherRemoteException("Measurement report mismatch");
         }
 
-        for(int i=0; i<dsnIdList.length; i++)
-        {
-            con.addDataPoint(cidList[i], dsnIdList[i],
-                             new MetricValue(valueList[i],
-                                             (long)tStampList[i]));
-        }
-
         res = new MeasurementReport();
+        if (this.getReportEncoding() == MeasurementReport.ENCODING_COLUMNAR) {
+            try {
+                res.setColumns(MeasurementColumns.decode(this.getByteAValue(PROP_COLUMNS)));
+            } catch (IOException e) {
+                throw new LatherRemoteException("Unable to decode measurement report: " + e);
+            }
+        } else {
+            res.setClientIdList(this.getDsnLists());
+        }
         try {
             res.setAgentToken(this.getStringValue(PROP_AGENT_TOKEN));
         } catch (LatherKeyNotFoundException e) {
             _log.error("Unable to find agent token", e);
         }
 
-        res.setClientIdList(con.constructDSNList());
-
         srnList = new SRN[srnEntTypeList.length];
 
         for(int i=0; i<srnEntTypeList.length; i++){
@@ -155,4 +185,35 @@ public class MeasurementSendReport_args
         res.setSRNList(srnList);
         return res;
     }
+
+    private DSNList[] getDsnLists()
+        throws LatherRemoteException
+    {
+        MeasurementReportConstructor con;
+        double[] tStampList;
+        double[] valueList;
+        int[] cidList, dsnIdList;
+
+        con = new MeasurementReportConstructor();
+
+        cidList    = this.getIntList(PROP_CIDLIST);
+        dsnIdList  = this.getIntList(PROP_DSNIDLIST);
+        tStampList = this.getDoubleList(PROP_TSTAMPLIST);
+        valueList  = this.getDoubleList(PROP_VALUELIST);
+
+        if(dsnIdList.length       != tStampList.length   ||
+           dsnIdList.length       != valueList.length    ||
+           dsnIdList.length       != cidList.length)
+        {
+            throw new LatherRemoteException("Measurement report mismatch");
+        }
+
+        for(int i=0; i<dsnIdList.length; i++)
+        {
+            con.addDataPoint(cidList[i], dsnIdList[i],
+                             new MetricValue(valueList[i],
+                                             (long)tStampList[i]));
+        }
+        return con.constructDSNList();
+    }
 }
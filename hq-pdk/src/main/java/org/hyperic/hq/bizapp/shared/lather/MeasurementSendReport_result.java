@@ -25,6 +25,7 @@
 
 package org.hyperic.hq.bizapp.shared.lather;
 
+import org.hyperic.hq.measurement.data.MeasurementReport;
 import org.hyperic.lather.LatherKeyNotFoundException;
 import org.hyperic.lather.LatherRemoteException;
 import org.hyperic.lather.LatherValue;
@@ -32,7 +33,15 @@ import org.hyperic.lather.LatherValue;
 public class MeasurementSendReport_result
     extends LatherValue
 {
-    private static final String PROP_TIME = "serverTime";
+    private static final String PROP_TIME     = "serverTime";
+    private static final String PROP_ENCODING = "reportEncoding";
+
+    /**
+     * Message of the LatherRemoteException the server answers a report
+     * with when it is too far behind inserting data to take it.  The
+     * agent keeps the report and sends it again later.
+     */
+    public static final String SERVER_BUSY = "Server busy inserting data, retry later";
 
     public MeasurementSendReport_result(){
         super();
@@ -48,6 +57,34 @@ public class MeasurementSendReport_result
         return this.getLongValue(PROP_TIME);
     }
 
+    /**
+     * Advertise the most recent MeasurementReport encoding the server
+     * understands, which the agent uses for its subsequent reports.
+     */
+    public void setReportEncoding(int encoding) {
+        this.setIntValue(PROP_ENCODING, encoding);
+    }
+
+    /**
+     * @return the report encoding advertised by the server, or
+     *         ENCODING_LEGACY if the server predates report encodings.
+     */
+    public int getReportEncoding() {
+        try {
+            return this.getIntValue(PROP_ENCODING);
+        } catch (LatherKeyNotFoundException exc) {
+            return MeasurementReport.ENCODING_LEGACY;
+        }
+    }
+
+    /**
+     * @return true if the message is that of an error which has the
+     *         SERVER_BUSY message somewhere in it.
+     */
+    public static boolean isServerBusy(String msg) {
+        return (msg != null) && (msg.indexOf(SERVER_BUSY) != -1);
+    }
+
     public void validate()
         throws LatherRemoteException
     {
@@ -0,0 +1,232 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.hyperic.hq.product.MetricValue;
+
+/**
+ * The data points of a MeasurementReport stored as primitive columns, one
+ * entry per data point.  This is also the unit of the columnar report
+ * encoding, which is laid out as follows:
+ *
+ * [Header]
+ *      byte     - Encoding version
+ *      varint   - Number of data points
+ *      long     - Base timestamp of the batch (the smallest timestamp)
+ * [Columns]
+ *      varint[] - Client ids, zig-zag encoded delta from the previous one
+ *      varint[] - DSN ids
+ *      varint[] - Timestamps, as the delta from the base timestamp
+ *      double[] - Values
+ *
+ * Points are kept in the order of the DSNList they came from, so the client
+ * id deltas are 0 for all but the first point of a measurement.
+ */
+public class MeasurementColumns
+    implements java.io.Serializable
+{
+    private final int      size;
+    private final int[]    clientIds;
+    private final int[]    dsnIds;
+    private final long[]   timestamps;
+    private final double[] values;
+
+    public MeasurementColumns(int size) {
+        this(size, new int[size], new int[size], new long[size], new double[size]);
+    }
+
+    private MeasurementColumns(int size, int[] clientIds, int[] dsnIds, long[] timestamps, double[] values) {
+        this.size       = size;
+        this.clientIds  = clientIds;
+        this.dsnIds     = dsnIds;
+        this.timestamps = timestamps;
+        this.values     = values;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public int getClientId(int idx) {
+        return this.clientIds[idx];
+    }
+
+    public int getDsnId(int idx) {
+        return this.dsnIds[idx];
+    }
+
+    public long getTimestamp(int idx) {
+        return this.timestamps[idx];
+    }
+
+    public double getValue(int idx) {
+        return this.values[idx];
+    }
+
+    public void set(int idx, int clientId, int dsnId, long timestamp, double value) {
+        this.clientIds[idx]  = clientId;
+        this.dsnIds[idx]     = dsnId;
+        this.timestamps[idx] = timestamp;
+        this.values[idx]     = value;
+    }
+
+    public static MeasurementColumns fromDSNLists(DSNList[] cids) {
+        int size = 0;
+        for (int i = 0; i < cids.length; i++) {
+            ValueList[] dsns = cids[i].getDsns();
+            for (int j = 0; j < dsns.length; j++) {
+                size += dsns[j].getValues().length;
+            }
+        }
+
+        MeasurementColumns res = new MeasurementColumns(size);
+        int idx = 0;
+        for (int i = 0; i < cids.length; i++) {
+            ValueList[] dsns = cids[i].getDsns();
+            for (int j = 0; j < dsns.length; j++) {
+                MetricValue[] vals = dsns[j].getValues();
+                for (int k = 0; k < vals.length; k++) {
+                    res.set(idx++, cids[i].getClientId(), dsns[j].getDsnId(),
+                            vals[k].getTimestamp(), vals[k].getValue());
+                }
+            }
+        }
+        return res;
+    }
+
+    public DSNList[] toDSNLists() {
+        MeasurementReportConstructor con = new MeasurementReportConstructor();
+        for (int i = 0; i < this.size; i++) {
+            con.addDataPoint(this.clientIds[i], this.dsnIds[i],
+                             new MetricValue(this.values[i], this.timestamps[i]));
+        }
+        return con.constructDSNList();
+    }
+
+    public byte[] encode() throws IOException {
+        // Most points need 1-2 bytes per id, 3 bytes for the time delta and
+        // 8 for the value
+        ByteArrayOutputStream bOs = new ByteArrayOutputStream(16 + (this.size * 16));
+        DataOutputStream dOs = new DataOutputStream(bOs);
+
+        long base = Long.MAX_VALUE;
+        for (int i = 0; i < this.size; i++) {
+            base = Math.min(base, this.timestamps[i]);
+        }
+        if (this.size == 0) {
+            base = 0;
+        }
+
+        dOs.writeByte(MeasurementReport.ENCODING_COLUMNAR);
+        writeVarLong(dOs, this.size);
+        dOs.writeLong(base);
+
+        int prev = 0;
+        for (int i = 0; i < this.size; i++) {
+            writeVarLong(dOs, zigZag(this.clientIds[i] - prev));
+            prev = this.clientIds[i];
+        }
+        for (int i = 0; i < this.size; i++) {
+            writeVarLong(dOs, this.dsnIds[i] & 0xffffffffL);
+        }
+        for (int i = 0; i < this.size; i++) {
+            writeVarLong(dOs, this.timestamps[i] - base);
+        }
+        for (int i = 0; i < this.size; i++) {
+            dOs.writeDouble(this.values[i]);
+        }
+        dOs.flush();
+        return bOs.toByteArray();
+    }
+
+    public static MeasurementColumns decode(byte[] data) throws IOException {
+        DataInputStream dIs = new DataInputStream(new ByteArrayInputStream(data));
+
+        int version = dIs.readUnsignedByte();
+        if (version != MeasurementReport.ENCODING_COLUMNAR) {
+            throw new IOException("Unsupported report encoding " + version);
+        }
+        long lSize = readVarLong(dIs);
+        // Each point takes at least 11 bytes, guard against a bogus size
+        if ((lSize < 0) || (lSize > data.length / 11)) {
+            throw new IOException("Invalid number of data points " + lSize);
+        }
+        int size = (int) lSize;
+        long base = dIs.readLong();
+
+        MeasurementColumns res = new MeasurementColumns(size);
+        int prev = 0;
+        for (int i = 0; i < size; i++) {
+            prev += unZigZag(readVarLong(dIs));
+            res.clientIds[i] = prev;
+        }
+        for (int i = 0; i < size; i++) {
+            res.dsnIds[i] = (int) readVarLong(dIs);
+        }
+        for (int i = 0; i < size; i++) {
+            res.timestamps[i] = base + readVarLong(dIs);
+        }
+        for (int i = 0; i < size; i++) {
+            res.values[i] = dIs.readDouble();
+        }
+        return res;
+    }
+
+    private static long zigZag(int val) {
+        return ((val << 1) ^ (val >> 31)) & 0xffffffffL;
+    }
+
+    private static int unZigZag(long val) {
+        int v = (int) val;
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static void writeVarLong(DataOutputStream dOs, long val) throws IOException {
+        while ((val & ~0x7fL) != 0) {
+            dOs.writeByte((int) ((val & 0x7f) | 0x80));
+            val >>>= 7;
+        }
+        dOs.writeByte((int) val);
+    }
+
+    private static long readVarLong(DataInputStream dIs) throws IOException {
+        long res = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = dIs.readUnsignedByte();
+            res |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return res;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
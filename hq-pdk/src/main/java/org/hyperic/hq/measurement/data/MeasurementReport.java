@@ -31,8 +31,16 @@ import org.hyperic.hq.product.MetricValue;
 public class MeasurementReport 
     implements java.io.Serializable 
 {
+    /** Report as lists of boxed values, understood by every server */
+    public static final int ENCODING_LEGACY   = 1;
+    /** Report as primitive columns, see MeasurementColumns */
+    public static final int ENCODING_COLUMNAR = 2;
+    /** Most recent encoding understood by this version */
+    public static final int ENCODING_CURRENT  = ENCODING_COLUMNAR;
+
     private String    agentToken;
     private DSNList[] clientIdList;
+    private MeasurementColumns columns;
     private SRN[]     srnList;
     
     public MeasurementReport(){
@@ -49,12 +57,33 @@ public class MeasurementReport
     
     public void setClientIdList(DSNList[] clientIds){
         this.clientIdList = clientIds;
+        this.columns      = null;
     }
 
     public DSNList[] getClientIdList(){
+        if ((this.clientIdList == null) && (this.columns != null)) {
+            this.clientIdList = this.columns.toDSNLists();
+        }
         return this.clientIdList;
     }
 
+    public void setColumns(MeasurementColumns columns){
+        this.columns      = columns;
+        this.clientIdList = null;
+    }
+
+    /**
+     * @return the data points of the report as primitive columns, which
+     *         are built from the client id list if the report was not
+     *         received in the columnar encoding.
+     */
+    public MeasurementColumns getColumns(){
+        if ((this.columns == null) && (this.clientIdList != null)) {
+            this.columns = MeasurementColumns.fromDSNLists(this.clientIdList);
+        }
+        return this.columns;
+    }
+
     public void setSRNList(SRN[] srns){
         this.srnList = srns;
     }
@@ -69,9 +98,10 @@ public class MeasurementReport
      */
     public String toString() {
         StringBuffer output = new StringBuffer("Measurement Report:\n");
+        DSNList[] clientIds = this.getClientIdList();
         
-        for (int i = 0; i < this.clientIdList.length; i++) {
-            DSNList cid = this.clientIdList[i];
+        for (int i = 0; i < clientIds.length; i++) {
+            DSNList cid = clientIds[i];
             
             ValueList[] dsns = cid.getDsns();
             for (int j = 0; j < dsns.length; j++) {
@@ -0,0 +1,531 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.product.jmx;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanException;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import javax.management.remote.JMXConnector;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hyperic.hq.product.PluginException;
+
+/**
+ * Coalesces the attribute reads of MxMeasurementPlugin metrics.  The
+ * metrics of an MBean are collected together, so the first read of an
+ * ObjectName fetches every attribute which is due with a single
+ * getAttributes() round trip, and the reads which follow within the batch
+ * window are served from the result.
+ *
+ * The attributes of each ObjectName are learned as they are read, along
+ * with the interval at which they are read, so an attribute only joins a
+ * batch when it is due itself.  JSR-77 statistics are read one at a time.
+ * An attribute which the MBean server leaves out of getAttributes() is read
+ * on its own for a while, then tried in the batch again, backing off up to
+ * an hour while it keeps being left out.
+ *
+ * A value served from the batch was read from the MBean server up to one
+ * window before the metric asked for it, which is why batching is off
+ * unless asked for.  Collectors which need a fresh read each time, for
+ * instance to compute a rate over a short interval, should leave it off.
+ *
+ * The window is in milliseconds; 0, the default, disables batching.  A
+ * metric sets it with the jmx.batch.window property among its connection
+ * properties, so a plugin can turn batching on for its own metric
+ * templates, and the agent sets the default for the rest with the
+ * jmx.batch.window system property.  Round trips and values read are
+ * counted per jmx.url, see getConnectionRoundTrips(), and in total, see
+ * getTotalRoundTrips() and getTotalValues().
+ */
+public class MxAttributeBatch {
+
+    static final String PROP_WINDOW = "jmx.batch.window";
+    private static final long DEFAULT_WINDOW = 0;
+    //attributes which have not been read for this long leave the batch
+    static final long EXPIRE = 60 * 60 * 1000;
+    //how long an attribute left out of getAttributes() is first read on
+    //its own, doubled each time it is left out again, up to EXPIRE
+    static final long RETRY = 5 * 60 * 1000;
+    private static final long LOG_INTERVAL = 60 * 1000;
+
+    private static final Log log = LogFactory.getLog(MxAttributeBatch.class);
+
+    private static final MxAttributeBatch instance =
+        new MxAttributeBatch(getWindow());
+
+    //used by the metrics which do not set their own window
+    private final long window;
+    //invalid windows already logged, guarded by itself
+    private final Set<String> invalidWindows = new HashSet<String>();
+    //jmx.url|jmx.username|ObjectName -> Batch, guarded by itself
+    private final Map<String,Batch> batches = new HashMap<String,Batch>();
+    //jmx.url -> ConnectionStats, guarded by itself
+    private final Map<String,ConnectionStats> stats =
+        new HashMap<String,ConnectionStats>();
+    private long lastSweep = System.currentTimeMillis();
+
+    MxAttributeBatch(long window) {
+        this.window = window;
+    }
+
+    private static long getWindow() {
+        String window = System.getProperty(PROP_WINDOW);
+        if (window == null) {
+            return DEFAULT_WINDOW;
+        }
+        try {
+            return Long.parseLong(window.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Invalid " + PROP_WINDOW + "=" + window +
+                     ", using " + DEFAULT_WINDOW);
+            return DEFAULT_WINDOW;
+        }
+    }
+
+    /**
+     * @return The window of a metric, from its connection properties if
+     *         set there, otherwise the default window
+     */
+    long getWindow(Properties config) {
+        String window = config.getProperty(PROP_WINDOW);
+        if (window == null) {
+            return this.window;
+        }
+        try {
+            return Long.parseLong(window.trim());
+        } catch (NumberFormatException e) {
+            synchronized (this.invalidWindows) {
+                //metrics are read every interval, log each value once
+                if (this.invalidWindows.add(window)) {
+                    log.warn("Invalid " + PROP_WINDOW + "=" + window +
+                             ", using " + this.window);
+                }
+            }
+            return this.window;
+        }
+    }
+
+    private static class Attr {
+        private long lastRead = -1;
+        private long interval = -1;
+        private long unbatchableUntil = -1;
+        private long retry = 0;
+
+        private void read(long now, long window) {
+            //reads within the same window are one collection
+            if ((this.lastRead != -1) && (now - this.lastRead > window)) {
+                this.interval = now - this.lastRead;
+            }
+            this.lastRead = now;
+        }
+
+        //an attribute joins the batch once it has been read twice,
+        //so attributes which are read only once never do
+        private boolean isDue(long now, long window) {
+            return (this.interval != -1) &&
+                   (now + window >= this.lastRead + this.interval);
+        }
+
+        private boolean isBatchable(long now) {
+            return now >= this.unbatchableUntil;
+        }
+
+        private void missing(long now) {
+            this.retry = (this.retry == 0) ? RETRY : Math.min(2 * this.retry, EXPIRE);
+            this.unbatchableUntil = now + this.retry;
+        }
+    }
+
+    private static class Batch {
+        private final Map<String,Attr> attrs =
+            new LinkedHashMap<String,Attr>();
+        //the result of the last getAttributes()
+        private Map<String,Object> values = new HashMap<String,Object>();
+        private long fetchTime = -1;
+        private long lastRead;
+    }
+
+    private static class ConnectionStats {
+        private long roundTrips;
+        private long values;
+    }
+
+    private long totalRoundTrips;
+    private long totalValues;
+
+    /**
+     * Read an attribute, through the batch of its ObjectName where
+     * possible.
+     */
+    static Object getValue(Properties config,
+                           String objectName,
+                           String attribute)
+        throws MalformedURLException,
+               MalformedObjectNameException,
+               IOException,
+               MBeanException,
+               AttributeNotFoundException,
+               InstanceNotFoundException,
+               ReflectionException,
+               PluginException {
+
+        if ((instance.getWindow(config) <= 0) ||
+            attribute.startsWith(MxUtil.STATS_PREFIX)) {
+            return MxUtil.getValue(config, objectName, attribute);
+        }
+        return instance.getValue(config, new ObjectName(objectName),
+                                 attribute, System.currentTimeMillis());
+    }
+
+    /**
+     * @return The number of round trips made to each jmx.url by the
+     *         metrics read so far
+     */
+    public static Map<String,Long> getConnectionRoundTrips() {
+        return instance.getRoundTrips();
+    }
+
+    /**
+     * @return The number of round trips made to all the MBean servers by
+     *         the metrics read so far
+     */
+    public static long getTotalRoundTrips() {
+        synchronized (instance.stats) {
+            return instance.totalRoundTrips;
+        }
+    }
+
+    /**
+     * @return The number of values read by the metrics so far, including
+     *         those served from a batch
+     */
+    public static long getTotalValues() {
+        synchronized (instance.stats) {
+            return instance.totalValues;
+        }
+    }
+
+    Object getValue(Properties config,
+                    ObjectName objName,
+                    String attribute,
+                    long now)
+        throws MalformedURLException,
+               IOException,
+               MBeanException,
+               AttributeNotFoundException,
+               InstanceNotFoundException,
+               ReflectionException,
+               PluginException {
+
+        long window = getWindow(config);
+        if (attribute.startsWith(MxUtil.COMPOSITE_PREFIX)) {
+            //Composite.Usage.used and Composite.Usage.max share Usage
+            String[] composite = MxUtil.parseCompositeMetric(attribute);
+            Object value = read(config, objName, composite[0], now, window);
+            return MxUtil.getCompositeValue(value, composite[1]);
+        }
+        return read(config, objName, attribute, now, window);
+    }
+
+    private Object read(Properties config,
+                        ObjectName objName,
+                        String name,
+                        long now,
+                        long window)
+        throws MalformedURLException,
+               IOException,
+               MBeanException,
+               AttributeNotFoundException,
+               InstanceNotFoundException,
+               ReflectionException {
+
+        String jmxUrl = config.getProperty(MxUtil.PROP_JMX_URL);
+        String user = config.getProperty(MxUtil.PROP_JMX_USERNAME);
+        Batch batch = getBatch(jmxUrl + "|" + user + "|" + objName, now);
+
+        //concurrent reads of the same MBean wait for a single fetch
+        synchronized (batch) {
+            batch.lastRead = now;
+            Attr attr = batch.attrs.get(name);
+            if (attr == null) {
+                attr = new Attr();
+                batch.attrs.put(name, attr);
+            }
+            attr.read(now, window);
+
+            if (!attr.isBatchable(now)) {
+                return fetch(config, jmxUrl, objName, name);
+            }
+
+            boolean isCurrent = (batch.fetchTime != -1) &&
+                (now >= batch.fetchTime) &&
+                (now - batch.fetchTime < window);
+            if (isCurrent) {
+                if (batch.values.containsKey(name)) {
+                    addValues(jmxUrl, 0, 1);
+                    return batch.values.get(name);
+                }
+                //learned this collection, it joins the next batch
+                Object value = fetch(config, jmxUrl, objName, name);
+                batch.values.put(name, value);
+                return value;
+            }
+
+            List<String> names = new ArrayList<String>();
+            names.add(name);
+            for (Iterator<Map.Entry<String,Attr>> it =
+                     batch.attrs.entrySet().iterator();
+                 it.hasNext();)
+            {
+                Map.Entry<String,Attr> entry = it.next();
+                Attr a = entry.getValue();
+                if (a == attr) {
+                    continue;
+                }
+                if (now - a.lastRead > EXPIRE) {
+                    it.remove();
+                }
+                else if (a.isBatchable(now) && a.isDue(now, window)) {
+                    names.add(entry.getKey());
+                }
+            }
+
+            if (names.size() == 1) {
+                Object value = fetch(config, jmxUrl, objName, name);
+                batch.values = new HashMap<String,Object>();
+                batch.values.put(name, value);
+                batch.fetchTime = now;
+                return value;
+            }
+
+            AttributeList list;
+            try {
+                list = getAttributes(config, objName,
+                                     names.toArray(new String[names.size()]));
+            } catch (ReflectionException e) {
+                return fetchAfterError(config, jmxUrl, objName, name, e);
+            } catch (RuntimeException e) {
+                return fetchAfterError(config, jmxUrl, objName, name, e);
+            }
+
+            batch.values = new HashMap<String,Object>();
+            for (int i=0; i<list.size(); i++) {
+                Attribute result = (Attribute)list.get(i);
+                batch.values.put(result.getName(), result.getValue());
+            }
+            batch.fetchTime = now;
+
+            //getAttributes() leaves out the attributes it failed to read,
+            //for a while they are read on their own to get the real
+            //value or error
+            for (String n : names) {
+                Attr a = batch.attrs.get(n);
+                if (batch.values.containsKey(n)) {
+                    a.retry = 0;
+                    continue;
+                }
+                a.missing(now);
+                if (log.isDebugEnabled()) {
+                    log.debug("Attribute " + n +
+                              " missing from getAttributes [" +
+                              objName + "], reading it on its own for " +
+                              (a.retry / 1000) + "s");
+                }
+            }
+
+            if (batch.values.containsKey(name)) {
+                addValues(jmxUrl, 1, 1);
+                return batch.values.get(name);
+            }
+            addValues(jmxUrl, 1, 0);
+            return fetch(config, jmxUrl, objName, name);
+        }
+    }
+
+    private Object fetchAfterError(Properties config,
+                                   String jmxUrl,
+                                   ObjectName objName,
+                                   String name,
+                                   Exception e)
+        throws MalformedURLException,
+               IOException,
+               MBeanException,
+               AttributeNotFoundException,
+               InstanceNotFoundException,
+               ReflectionException {
+
+        if (log.isDebugEnabled()) {
+            log.debug("getAttributes failed [" + objName + "]: " + e +
+                      ", reading " + name + " on its own");
+        }
+        addValues(jmxUrl, 1, 0);
+        return fetch(config, jmxUrl, objName, name);
+    }
+
+    private Object fetch(Properties config,
+                         String jmxUrl,
+                         ObjectName objName,
+                         String name)
+        throws MalformedURLException,
+               IOException,
+               MBeanException,
+               AttributeNotFoundException,
+               InstanceNotFoundException,
+               ReflectionException {
+
+        addValues(jmxUrl, 1, 1);
+        return getAttribute(config, objName, name);
+    }
+
+    /**
+     * A getAttributes() round trip to the MBean server.
+     */
+    AttributeList getAttributes(Properties config,
+                                ObjectName objName,
+                                String[] names)
+        throws MalformedURLException,
+               IOException,
+               InstanceNotFoundException,
+               ReflectionException {
+
+        JMXConnector connector = null;
+        try {
+            connector = MxUtil.getCachedMBeanConnector(config);
+            return connector.getMBeanServerConnection().getAttributes(objName, names);
+        } finally {
+            MxUtil.close(connector);
+        }
+    }
+
+    /**
+     * A getAttribute() round trip to the MBean server.
+     */
+    Object getAttribute(Properties config,
+                        ObjectName objName,
+                        String name)
+        throws MalformedURLException,
+               IOException,
+               MBeanException,
+               AttributeNotFoundException,
+               InstanceNotFoundException,
+               ReflectionException {
+
+        JMXConnector connector = null;
+        try {
+            connector = MxUtil.getCachedMBeanConnector(config);
+            return connector.getMBeanServerConnection().getAttribute(objName, name);
+        } finally {
+            MxUtil.close(connector);
+        }
+    }
+
+    private Batch getBatch(String key, long now) {
+        synchronized (this.batches) {
+            if (now - this.lastSweep > LOG_INTERVAL) {
+                sweep(now);
+            }
+            Batch batch = this.batches.get(key);
+            if (batch == null) {
+                batch = new Batch();
+                this.batches.put(key, batch);
+            }
+            return batch;
+        }
+    }
+
+    //drop the batches of MBeans no longer collected and report the
+    //round trips made to each connection
+    private void sweep(long now) {
+        this.lastSweep = now;
+        for (Iterator<Batch> it = this.batches.values().iterator();
+             it.hasNext();)
+        {
+            Batch batch = it.next();
+            synchronized (batch) {
+                if (now - batch.lastRead > EXPIRE) {
+                    it.remove();
+                }
+            }
+        }
+
+        if (log.isDebugEnabled()) {
+            synchronized (this.stats) {
+                for (Map.Entry<String,ConnectionStats> entry :
+                         this.stats.entrySet())
+                {
+                    ConnectionStats s = entry.getValue();
+                    log.debug(MxUtil.PROP_JMX_URL + "=" + entry.getKey() +
+                              ": " + s.roundTrips + " round trips for " +
+                              s.values + " values");
+                }
+            }
+        }
+    }
+
+    private void addValues(String jmxUrl, int roundTrips, int values) {
+        synchronized (this.stats) {
+            ConnectionStats s = this.stats.get(jmxUrl);
+            if (s == null) {
+                s = new ConnectionStats();
+                this.stats.put(jmxUrl, s);
+            }
+            s.roundTrips += roundTrips;
+            s.values += values;
+            this.totalRoundTrips += roundTrips;
+            this.totalValues += values;
+        }
+    }
+
+    Map<String,Long> getRoundTrips() {
+        Map<String,Long> res = new HashMap<String,Long>();
+        synchronized (this.stats) {
+            for (Map.Entry<String,ConnectionStats> entry :
+                     this.stats.entrySet())
+            {
+                res.put(entry.getKey(), new Long(entry.getValue().roundTrips));
+            }
+        }
+        return res;
+    }
+}
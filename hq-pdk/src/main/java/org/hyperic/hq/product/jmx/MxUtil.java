@@ -81,8 +81,8 @@ public class MxUtil {
     public static final String PROP_JMX_PASSWORD = "jmx.password";
     public static final String PROP_JMX_PROVIDER_PKGS = "jmx.provider.pkgs";
 
-    private static final String STATS_PREFIX = "Stats.";
-    private static final String COMPOSITE_PREFIX = "Composite.";
+    static final String STATS_PREFIX = "Stats.";
+    static final String COMPOSITE_PREFIX = "Composite.";
 
     private static final Log log = LogFactory.getLog(MxUtil.class);
     private static HashMap cache = new HashMap();
@@ -279,6 +279,15 @@ public class MxUtil {
                ReflectionException,
                PluginException {
 
+        String[] composite = parseCompositeMetric(attribute);
+        Object obj = mServer.getAttribute(objName, composite[0]);
+        return getCompositeValue(obj, composite[1]);
+    }
+
+    //e.g. "Composite.Usage.committed" -> {"Usage", "committed"}
+    static String[] parseCompositeMetric(String attribute)
+        throws MetricInvalidException {
+
         String name =
             attribute.substring(COMPOSITE_PREFIX.length());
 
@@ -287,10 +296,12 @@ public class MxUtil {
             throw new MetricInvalidException("Missing composite key");
         }
 
-        String attr = name.substring(0, ix);
-        String key = name.substring(ix+1);
-        
-        Object obj = mServer.getAttribute(objName, attr);
+        return new String[] { name.substring(0, ix), name.substring(ix+1) };
+    }
+
+    static Object getCompositeValue(Object obj, String key)
+        throws MetricInvalidException {
+
         if (obj instanceof CompositeData) {
             return MxCompositeData.getValue((CompositeData)obj, key);
         }
@@ -310,7 +321,7 @@ public class MxUtil {
         Properties config = metric.getProperties();
 
         try {
-            return getValue(config, objectName, attribute);
+            return MxAttributeBatch.getValue(config, objectName, attribute);
         } catch (MalformedURLException e) {
             throw invalidURL(metric.getProperties(), e);
         } catch (MalformedObjectNameException e) {
@@ -192,6 +192,8 @@ public class SNMPClient {
             this.sessionCacheExpire = Integer.parseInt(expire) * 1000;
         }
 
+        SNMPSession_v1.configure(props);
+
         if (mibTree == null) {
             mibTree = MIBTree.getInstance();
 
@@ -218,6 +220,7 @@ public class SNMPClient {
         String privpass = props.getProperty(PROP_PRIV_PASSPHRASE, DEFAULT_PASSWORD);
         String retries = props.getProperty(PROP_RETRIES, DEFAULT_RETRIES);
         String timeout = props.getProperty(PROP_TIMEOUT, DEFAULT_TIMEOUT);
+        String maxRequests = props.getProperty(SNMPSession_v1.PROP_MAX_REQUESTS);
 
         SNMPSession session = null;
 
@@ -226,7 +229,8 @@ public class SNMPClient {
                  transport.hashCode() ^ user.hashCode() ^
                  authtype.hashCode() ^ authpass.hashCode() ^
                  privtype.hashCode() ^ privpass.hashCode() ^
-                 retries.hashCode() ^ timeout.hashCode();
+                 retries.hashCode() ^ timeout.hashCode() ^
+                 String.valueOf(maxRequests).hashCode();
 
         synchronized (sessionCache) {
             session = (SNMPSession) sessionCache.get(id);
@@ -261,6 +265,8 @@ public class SNMPClient {
 
                 throw new SNMPException("Unsupported SNMP version: " + snmpVersion);
             }
+
+            ((SNMPSession_v1) session).setMaxRequests(maxRequests);
         } catch (SNMPException e) {
             String msg = "Failed to initialize SNMP session: " + e.getMessage();
 
@@ -0,0 +1,526 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.snmp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.snmp4j.PDU;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.VariableBinding;
+
+/*
+ * Coalesces the requests a session makes to its target.  The OIDs read
+ * with GET are learned along with the interval at which they are read, so
+ * the first read of a collection fetches every OID which is due with
+ * multi-varbind GET requests and the reads which follow within the batch
+ * window are served from the result.  Column walks are shared the same way
+ * by the columns of a table, which are walked side by side with GETBULK
+ * (GETNEXT for SNMPv1).
+ *
+ * Requests carry at most snmp.maxVarBindings varbinds and are split
+ * further when the agent answers tooBig.  An OID which fails a batch in
+ * SNMPv1 is read on its own from then on.
+ */
+class SNMPRequestBatch {
+    static final String PROP_WINDOW = "snmp.batchWindow";
+    static final String PROP_MAX_VARBINDS = "snmp.maxVarBindings";
+    static final String PROP_MAX_REPETITIONS = "snmp.maxRepetitions";
+
+    private static final long DEFAULT_WINDOW = 2000;
+    private static final int DEFAULT_MAX_VARBINDS = 20;
+    private static final int DEFAULT_MAX_REPETITIONS = 25;
+    // OIDs which have not been read for this long leave the batch
+    private static final long EXPIRE = 60 * 60 * 1000;
+
+    private static Log log = LogFactory.getLog(SNMPRequestBatch.class);
+
+    private static long window = DEFAULT_WINDOW;
+    private static int maxVarBinds = DEFAULT_MAX_VARBINDS;
+    private static int maxRepetitions = DEFAULT_MAX_REPETITIONS;
+
+    private final SNMPSession_v1 session;
+
+    private final Map scalars = new LinkedHashMap(); // OID -> Entry
+    private final Map columns = new LinkedHashMap(); // OID -> Entry
+    private Map values = new HashMap(); // OID -> VariableBinding
+    private long fetchTime = -1;
+    // Lowered when the agent answers tooBig
+    private int varBindLimit = maxVarBinds;
+
+    SNMPRequestBatch(SNMPSession_v1 session) {
+        this.session = session;
+    }
+
+    static void configure(Properties props) {
+        window = getProperty(props, PROP_WINDOW, DEFAULT_WINDOW);
+        maxVarBinds = (int) Math.max(1, getProperty(props, PROP_MAX_VARBINDS,
+                                                    DEFAULT_MAX_VARBINDS));
+        maxRepetitions = (int) Math.max(1, getProperty(props, PROP_MAX_REPETITIONS,
+                                                       DEFAULT_MAX_REPETITIONS));
+    }
+
+    private static long getProperty(Properties props, String name, long defVal) {
+        return getProperty(name, props.getProperty(name), defVal);
+    }
+
+    static long getProperty(String name, String val, long defVal) {
+        if (val == null) {
+            return defVal;
+        }
+
+        try {
+            return Long.parseLong(val.trim());
+        } catch (NumberFormatException e) {
+            log.warn("Invalid " + name + "=" + val + ", using " + defVal);
+
+            return defVal;
+        }
+    }
+
+    private static class Entry {
+        private final OID oid;
+        private final String name;
+        private long lastRead = -1;
+        private long interval = -1;
+        private boolean batchable = true;
+        // Column walks only
+        private List values;
+        private long fetchTime = -1;
+        private boolean walking = false;
+
+        private Entry(OID oid, String name) {
+            this.oid = oid;
+            this.name = name;
+        }
+
+        private void read(long now) {
+            // Reads within the same window are one collection
+            if ((this.lastRead != -1) && (now - this.lastRead > window)) {
+                this.interval = now - this.lastRead;
+            }
+
+            this.lastRead = now;
+        }
+
+        // An OID joins the batch once it has been read twice, so OIDs
+        // which are read only once never do
+        private boolean isDue(long now) {
+            return this.batchable &&
+                   (this.interval != -1) &&
+                   (now + window >= this.lastRead + this.interval);
+        }
+    }
+
+    private static boolean isCurrent(long fetchTime, long now) {
+        return (fetchTime != -1) && (now >= fetchTime) && (now - fetchTime < window);
+    }
+
+    private static Entry getEntry(Map entries, OID oid, String name) {
+        Entry entry = (Entry) entries.get(oid);
+
+        if (entry == null) {
+            entry = new Entry(oid, name);
+
+            entries.put(oid, entry);
+        }
+
+        return entry;
+    }
+
+    /*
+     * Read a single OID, through the batch where possible.
+     * @param strict Throw a MIBLookupException for noSuchObject and
+     * friends rather than returning them as the value.
+     */
+    SNMPValue getValue(OID oid, String name, boolean strict) throws SNMPException {
+        return getValue(oid, name, strict, System.currentTimeMillis());
+    }
+
+    synchronized SNMPValue getValue(OID oid, String name, boolean strict, long now) throws SNMPException {
+        Entry entry = getEntry(this.scalars, oid, name);
+
+        entry.read(now);
+
+        VariableBinding var;
+
+        if ((window <= 0) || !entry.batchable) {
+            var = getSingle(oid, name);
+        } else if (isCurrent(this.fetchTime, now)) {
+            var = (VariableBinding) this.values.get(oid);
+
+            if (var == null) {
+                // Learned this collection, it joins the next batch
+                var = getSingle(oid, name);
+
+                this.values.put(oid, var);
+            }
+        } else {
+            List due = new ArrayList();
+
+            due.add(entry);
+
+            for (Iterator it = this.scalars.values().iterator(); it.hasNext();) {
+                Entry other = (Entry) it.next();
+
+                if (other == entry) {
+                    continue;
+                }
+
+                if (now - other.lastRead > EXPIRE) {
+                    it.remove();
+                } else if (other.isDue(now)) {
+                    due.add(other);
+                }
+            }
+
+            if (due.size() == 1) {
+                this.values = new HashMap();
+                var = getSingle(oid, name);
+                this.values.put(oid, var);
+            } else {
+                this.values = fetch(due);
+                var = (VariableBinding) this.values.get(oid);
+
+                if (var == null) {
+                    var = getSingle(oid, name);
+                }
+            }
+
+            this.fetchTime = now;
+        }
+
+        if (strict && var.isException()) {
+            throw new MIBLookupException(name + ": " + var.getVariable().toString()); // e.g.
+                                                                                      // noSuchObject
+        }
+
+        return new SNMPValue(var);
+    }
+
+    private VariableBinding getSingle(OID oid, String name) throws SNMPException {
+        PDU response = this.session.send(this.session.getPDU(oid, PDU.GET), name);
+
+        return response.get(0);
+    }
+
+    /*
+     * GET the given entries with as few requests as the agent allows.
+     * @return OID -> VariableBinding of the entries which were read
+     */
+    private Map fetch(List entries) throws SNMPException {
+        Map result = new HashMap();
+
+        List pending = new ArrayList(entries);
+
+        int requests = 0;
+
+        while (!pending.isEmpty()) {
+            List chunk = pending.subList(0, Math.min(this.varBindLimit, pending.size()));
+
+            PDU request = this.session.newPDU();
+
+            request.setType(PDU.GET);
+
+            for (int i = 0; i < chunk.size(); i++) {
+                request.add(new VariableBinding(((Entry) chunk.get(i)).oid));
+            }
+
+            PDU response = this.session.send(request, ((Entry) chunk.get(0)).name);
+
+            requests++;
+
+            int status = response.getErrorStatus();
+
+            if (status == PDU.tooBig) {
+                if (chunk.size() == 1) {
+                    // Too big even on its own, leave it to getSingle
+                    ((Entry) chunk.get(0)).batchable = false;
+                    chunk.clear();
+                } else {
+                    this.varBindLimit = Math.max(1, chunk.size() / 2);
+
+                    log.debug(this.session.getTargetKey() + " answered tooBig, lowering " +
+                              PROP_MAX_VARBINDS + " to " + this.varBindLimit);
+                }
+
+                continue;
+            }
+
+            if (status != PDU.noError) {
+                // SNMPv1 fails the whole request for a single bad OID
+                int index = response.getErrorIndex();
+
+                if ((index < 1) || (index > chunk.size())) {
+                    log.debug(this.session.getTargetKey() + " batch failed: " +
+                              response.getErrorStatusText());
+
+                    break;
+                }
+
+                Entry bad = (Entry) chunk.get(index - 1);
+
+                bad.batchable = false;
+                pending.remove(bad);
+
+                continue;
+            }
+
+            for (int i = 0; i < response.size(); i++) {
+                VariableBinding var = response.get(i);
+
+                result.put(var.getOid(), var);
+            }
+
+            chunk.clear();
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug(this.session.getTargetKey() + ": " + result.size() + " of " +
+                      entries.size() + " OIDs in " + requests + " requests");
+        }
+
+        return result;
+    }
+
+    /*
+     * Walk a column, along with the other columns of its table which are
+     * due.  Walks are shared for the batch window.
+     * @return a List of SNMPValue
+     */
+    List getColumn(OID oid, String name) throws SNMPException {
+        return getColumn(oid, name, System.currentTimeMillis());
+    }
+
+    List getColumn(OID oid, String name, long now) throws SNMPException {
+        Entry entry;
+        List walk;
+        int limit;
+
+        synchronized (this) {
+            entry = getEntry(this.columns, oid, name);
+
+            entry.read(now);
+
+            // A walk of this column is already under way, share it
+            while (entry.walking) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new SNMPException("Interrupted walking " + name, e);
+                }
+            }
+
+            if ((entry.values != null) && isCurrent(entry.fetchTime, now)) {
+                return new ArrayList(entry.values);
+            }
+
+            walk = getWalk(entry, now);
+
+            limit = this.varBindLimit;
+        }
+
+        // The walk itself is made outside the monitor, so reads of the
+        // scalars and other tables of the target are not held up by it
+        List[] values = null;
+
+        try {
+            values = new List[walk.size()];
+
+            for (int i = 0; i < walk.size(); i += limit) {
+                List part = walk.subList(i, Math.min(i + limit, walk.size()));
+
+                System.arraycopy(walk(part), 0, values, i, part.size());
+            }
+        } finally {
+            synchronized (this) {
+                for (int i = 0; i < walk.size(); i++) {
+                    Entry walked = (Entry) walk.get(i);
+
+                    if (values[i] != null) {
+                        walked.values = values[i];
+                        walked.fetchTime = now;
+                    }
+
+                    walked.walking = false;
+                }
+
+                notifyAll();
+            }
+        }
+
+        return new ArrayList(values[0]);
+    }
+
+    /*
+     * The given column along with the other columns of its table which
+     * are due, marked as being walked.
+     */
+    private List getWalk(Entry entry, long now) {
+        List walk = new ArrayList();
+
+        walk.add(entry);
+
+        if (window > 0) {
+            String table = getParent(entry.oid);
+
+            for (Iterator it = this.columns.values().iterator(); it.hasNext();) {
+                Entry other = (Entry) it.next();
+
+                if ((other == entry) || other.walking) {
+                    continue;
+                }
+
+                if (now - other.lastRead > EXPIRE) {
+                    it.remove();
+                } else if (other.isDue(now) && table.equals(getParent(other.oid)) &&
+                           !isCurrent(other.fetchTime, now)) {
+                    walk.add(other);
+                }
+            }
+        }
+
+        for (int i = 0; i < walk.size(); i++) {
+            ((Entry) walk.get(i)).walking = true;
+        }
+
+        return walk;
+    }
+
+    private static String getParent(OID oid) {
+        String name = oid.toString();
+
+        int ix = name.lastIndexOf('.');
+
+        return (ix == -1) ? "" : name.substring(0, ix);
+    }
+
+    /*
+     * @return the SNMPValues of each of the given columns
+     */
+    private List[] walk(List entries) throws SNMPException {
+        int width = entries.size();
+
+        OID[] next = new OID[width];
+        List[] values = new List[width];
+        boolean[] done = new boolean[width];
+
+        for (int i = 0; i < width; i++) {
+            next[i] = ((Entry) entries.get(i)).oid;
+            values[i] = new ArrayList();
+        }
+
+        boolean isBulk = this.session.version != SnmpConstants.version1;
+
+        String name = ((Entry) entries.get(0)).name;
+
+        int active = width;
+        int requests = 0;
+
+        while (active > 0) {
+            List walking = new ArrayList();
+
+            PDU request = this.session.newPDU();
+
+            if (isBulk) {
+                request.setType(PDU.GETBULK);
+                request.setNonRepeaters(0);
+                request.setMaxRepetitions(Math.max(1, maxRepetitions / active));
+            } else {
+                request.setType(PDU.GETNEXT);
+            }
+
+            for (int i = 0; i < width; i++) {
+                if (!done[i]) {
+                    walking.add(new Integer(i));
+                    request.add(new VariableBinding(next[i]));
+                }
+            }
+
+            PDU response = this.session.send(request, name);
+
+            requests++;
+
+            if (response.getErrorStatus() != PDU.noError) {
+                // SNMPv1 GETNEXT past the end of the MIB view
+                int index = response.getErrorIndex();
+
+                if ((index < 1) || (index > walking.size())) {
+                    throw new SNMPException("Failed to walk " + name + ": " +
+                                            response.getErrorStatusText());
+                }
+
+                done[((Integer) walking.get(index - 1)).intValue()] = true;
+                active--;
+
+                continue;
+            }
+
+            if (response.size() == 0) {
+                throw new SNMPException("No variables in response for " + name);
+            }
+
+            // GETBULK returns the columns row by row
+            for (int j = 0; j < response.size(); j++) {
+                int i = ((Integer) walking.get(j % walking.size())).intValue();
+
+                if (done[i]) {
+                    continue;
+                }
+
+                VariableBinding var = response.get(j);
+                OID root = ((Entry) entries.get(i)).oid;
+
+                if (var.isException() || !var.getOid().startsWith(root) ||
+                    (var.getOid().compareTo(next[i]) <= 0)) {
+                    done[i] = true;
+                    active--;
+
+                    continue;
+                }
+
+                values[i].add(new SNMPValue(var));
+
+                next[i] = var.getOid();
+            }
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug(this.session.getTargetKey() + ": walked " + width + " columns of " +
+                      getParent(((Entry) entries.get(0)).oid) + " in " + requests + " requests");
+        }
+
+        return values;
+    }
+}
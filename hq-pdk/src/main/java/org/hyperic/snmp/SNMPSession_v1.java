@@ -26,10 +26,11 @@
 package org.hyperic.snmp;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Semaphore;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -49,9 +50,6 @@ import org.snmp4j.smi.VariableBinding;
 import org.snmp4j.transport.AbstractTransportMapping;
 import org.snmp4j.transport.DefaultTcpTransportMapping;
 import org.snmp4j.transport.DefaultUdpTransportMapping;
-import org.snmp4j.util.DefaultPDUFactory;
-import org.snmp4j.util.TreeEvent;
-import org.snmp4j.util.TreeUtils;
 
 class SNMPSession_v1 implements SNMPSession {
     protected int version;
@@ -61,6 +59,18 @@ class SNMPSession_v1 implements SNMPSession {
     private static Snmp sessionInstance = null;
     protected static Log log = LogFactory.getLog("SNMPSession");
 
+    static final String PROP_MAX_REQUESTS = "snmp.maxRequestsPerTarget";
+    private static final int DEFAULT_MAX_REQUESTS = 2;
+    private static int defaultMaxRequests = DEFAULT_MAX_REQUESTS;
+    // Outstanding requests per target address, shared by its sessions.
+    // Only targets with requests in flight are kept, so a target's limit
+    // is taken from the configuration again once it goes idle.
+    private static final Map requestPermits = new HashMap();
+
+    private int maxRequests = -1;
+
+    private final SNMPRequestBatch batch = new SNMPRequestBatch(this);
+
     private Snmp getSessionInstance() throws IOException {
         if (sessionInstance == null) {
             String listen = "0.0.0.0/0";
@@ -84,6 +94,87 @@ class SNMPSession_v1 implements SNMPSession {
         this.version = SnmpConstants.version1;
     }
 
+    static void configure(Properties props) {
+        defaultMaxRequests =
+            (int) Math.max(1, SNMPRequestBatch.getProperty(PROP_MAX_REQUESTS,
+                                                           props.getProperty(PROP_MAX_REQUESTS),
+                                                           DEFAULT_MAX_REQUESTS));
+
+        SNMPRequestBatch.configure(props);
+    }
+
+    String getTargetKey() {
+        return String.valueOf(this.address);
+    }
+
+    /*
+     * Limit the outstanding requests of this session's target, overriding
+     * the agent wide snmp.maxRequestsPerTarget.
+     * @param max The limit, or null for the agent wide one.
+     */
+    void setMaxRequests(String max) {
+        this.maxRequests = -1;
+
+        if (max != null) {
+            // An invalid limit falls back to the agent wide one
+            this.maxRequests =
+                (int) Math.max(1, SNMPRequestBatch.getProperty(PROP_MAX_REQUESTS, max, getMaxRequests()));
+        }
+    }
+
+    private int getMaxRequests() {
+        return (this.maxRequests == -1) ? defaultMaxRequests : this.maxRequests;
+    }
+
+    static class RequestPermits {
+        final Semaphore semaphore;
+        private int users = 0;
+
+        private RequestPermits(int max) {
+            this.semaphore = new Semaphore(max, true);
+        }
+    }
+
+    RequestPermits acquirePermit(String name) throws SNMPException {
+        String key = getTargetKey();
+
+        RequestPermits permits;
+
+        synchronized (requestPermits) {
+            permits = (RequestPermits) requestPermits.get(key);
+
+            if (permits == null) {
+                permits = new RequestPermits(getMaxRequests());
+
+                requestPermits.put(key, permits);
+            }
+
+            permits.users++;
+        }
+
+        try {
+            permits.semaphore.acquire();
+        } catch (InterruptedException e) {
+            releasePermit(permits, false);
+
+            throw new SNMPException("Interrupted getting " + name, e);
+        }
+
+        return permits;
+    }
+
+    void releasePermit(RequestPermits permits, boolean acquired) {
+        if (acquired) {
+            permits.semaphore.release();
+        }
+
+        synchronized (requestPermits) {
+            if (--permits.users == 0) {
+                requestPermits.remove(getTargetKey());
+            }
+        }
+    }
+
     protected void initSession(String address, String port, String transport, String retries, String timeout) throws SNMPException {
         if (address == null) {
             address = SNMPClient.DEFAULT_IP;
@@ -164,48 +255,13 @@ class SNMPSession_v1 implements SNMPSession {
         return pdu;
     }
 
-    private boolean walk(OID rootOID, List values) throws IOException {
-        int requests = 0;
-        int vars = 0;
-
-        boolean isError = false;
-
-        TreeUtils treeUtils = new TreeUtils(this.session, new DefaultPDUFactory());
-
-        List events = treeUtils.getSubtree(this.target, rootOID);
-
-        for (int i = 0; i < events.size(); i++) {
-            TreeEvent e = (TreeEvent) events.get(i);
-
-            requests++;
-
-            if (e.isError()) {
-                isError = true;
-
-                log.debug(rootOID + " walk: " + e.getErrorMessage(), e.getException());
-            }
-
-            VariableBinding[] vb = e.getVariableBindings();
-
-            if (vb != null) {
-                vars += vb.length;
-
-                for (int j = 0; j < vb.length; j++) {
-                    values.add(new SNMPValue(vb[j]));
-                }
-            }
-        }
-
-        if (log.isDebugEnabled()) {
-            log.debug(rootOID + " walk: " + requests + " requests, " + vars + " vars, avg=" + vars / requests);
-        }
-
-        return !isError;
-    }
-
-    private SNMPValue getValue(String name, int type) throws SNMPException {
-        PDU request = getPDU(name, type);
-        PDU response;
+    /*
+     * Send a request to the target, waiting for the response.  Requests
+     * to the same target are limited to snmp.maxRequestsPerTarget at a
+     * time.
+     */
+    PDU send(PDU request, String name) throws SNMPException {
+        RequestPermits permits = acquirePermit(name);
 
         ResponseEvent event = null;
 
@@ -213,16 +269,24 @@ class SNMPSession_v1 implements SNMPSession {
             event = this.session.send(request, this.target);
         } catch (IOException e) {
             throw new SNMPException("Failed to get " + name, e);
+        } finally {
+            releasePermit(permits, true);
         }
 
         if (event == null) {
             throw new SNMPException("No response for " + name);
         }
 
-        response = event.getResponse();
+        PDU response = event.getResponse();
 
         validateResponsePDU(name, response);
 
+        return response;
+    }
+
+    private SNMPValue getValue(String name, int type) throws SNMPException {
+        PDU response = send(getPDU(name, type), name);
+
         VariableBinding var = response.get(0);
 
         if (var.isException()) {
@@ -242,7 +306,7 @@ class SNMPSession_v1 implements SNMPSession {
     }
 
     public SNMPValue getSingleValue(String name) throws SNMPException {
-        return getValue(name, PDU.GET);
+        return this.batch.getValue(getOID(name), name, true);
     }
 
     public SNMPValue getNextValue(String name) throws SNMPException {
@@ -250,17 +314,7 @@ class SNMPSession_v1 implements SNMPSession {
     }
 
     public List getColumn(String name) throws SNMPException {
-        List values = new ArrayList();
-
-        try {
-            if (!walk(getOID(name), values)) {
-                throw new SNMPException("No response for " + name);
-            }
-        } catch (IOException e) {
-            throw new SNMPException(e.getMessage(), e);
-        }
-
-        return values;
+        return this.batch.getColumn(getOID(name), name);
     }
 
     private StringBuffer getSubId(OID oid1, int oid1Len, OID oid2) {
@@ -305,29 +359,7 @@ class SNMPSession_v1 implements SNMPSession {
         oid.append(index);
         oid.append(leaf);
 
-        PDU request = getPDU(oid, PDU.GET);
-
-        PDU response;
-
-        ResponseEvent event = null;
-
-        try {
-            event = this.session.send(request, this.target);
-        } catch (IOException e) {
-            throw new SNMPException("Failed to get " + name, e);
-        }
-
-        if (event == null) {
-            throw new SNMPException("No response for " + name);
-        }
-
-        response = event.getResponse();
-
-        if (response == null) {
-            throw new SNMPException("No response for " + name);
-        }
-
-        return new SNMPValue(response.get(0));
+        return this.batch.getValue(oid, name, false);
     }
 
     public List getBulk(String name) throws SNMPException {
@@ -0,0 +1,200 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.bizapp.shared.lather;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+
+import org.hyperic.hq.appdef.shared.AIIpValue;
+import org.hyperic.hq.appdef.shared.AIPlatformValue;
+import org.hyperic.hq.appdef.shared.AIServerValue;
+import org.hyperic.hq.appdef.shared.AppdefEntityID;
+import org.hyperic.hq.autoinventory.ScanStateCore;
+import org.hyperic.hq.measurement.data.MeasurementReport;
+import org.hyperic.hq.measurement.data.MeasurementReportConstructor;
+import org.hyperic.hq.measurement.server.session.SRN;
+import org.hyperic.hq.product.MetricValue;
+import org.hyperic.lather.LatherValue;
+import org.hyperic.lather.xcode.LatherXCoder;
+
+/**
+ * Measures the LatherXCoder encode and decode throughput, and the bytes
+ * allocated per message where the JVM can tell, for the most common
+ * agent to server messages.
+ */
+public class LatherXCoderBenchmark
+{
+    private static final String AGENT_TOKEN =
+        "1356998400000-7211567898526146519-4851394939164232811";
+
+    private static final int NUM_WARMUP = 200;
+    private static final int NUM_ITERS  = 1000;
+
+    private final LatherXCoder xCoder = new LatherXCoder();
+
+    private MeasurementSendReport_args genReport(Random r, int encoding){
+        MeasurementReportConstructor con = new MeasurementReportConstructor();
+        MeasurementReport report = new MeasurementReport();
+        MeasurementSendReport_args args = new MeasurementSendReport_args();
+        long now = 1356998400000L;
+
+        for(int i=0; i<500; i++){
+            con.addDataPoint(10000 + i, 1,
+                             new MetricValue(r.nextInt(1000) / 10.0, now));
+        }
+        report.setAgentToken(AGENT_TOKEN);
+        report.setClientIdList(con.constructDSNList());
+        report.setSRNList(new SRN[] { new SRN(new AppdefEntityID(1, 10001), 1) });
+        args.setAgentToken(AGENT_TOKEN);
+        args.setReport(report, encoding);
+        return args;
+    }
+
+    private AiSendReport_args genAiReport(){
+        AIPlatformValue platform = new AIPlatformValue();
+        ScanStateCore core = new ScanStateCore();
+
+        platform.setAgentToken(AGENT_TOKEN);
+        platform.setPlatformTypeName("Linux");
+        platform.setName("host.example.com");
+        platform.setFqdn("host.example.com");
+        platform.setDescription("Linux 2.6.32");
+        platform.setCpuCount(new Integer(8));
+        for(int i=0; i<4; i++){
+            AIIpValue ip = new AIIpValue();
+
+            ip.setAddress("10.0.0." + i);
+            ip.setNetmask("255.255.255.0");
+            ip.setMACAddress("00:50:56:00:00:0" + i);
+            platform.addAIIpValue(ip);
+        }
+        for(int i=0; i<20; i++){
+            AIServerValue server = new AIServerValue();
+
+            server.setServerTypeName("Tomcat 7.0");
+            server.setName("host.example.com Tomcat 7.0 " + i);
+            server.setAutoinventoryIdentifier("/opt/tomcat" + i);
+            server.setInstallPath("/opt/tomcat" + i);
+            server.setProductConfig(new byte[256]);
+            server.setMeasurementConfig(new byte[128]);
+            platform.addAIServerValue(server);
+        }
+        core.setPlatform(platform);
+        core.setIsDone(true);
+
+        AiSendReport_args args = new AiSendReport_args(core);
+        args.setAgentToken(AGENT_TOKEN);
+        return args;
+    }
+
+    private static long getAllocatedBytes(ThreadMXBean threads){
+        if(threads instanceof com.sun.management.ThreadMXBean){
+            return ((com.sun.management.ThreadMXBean)threads)
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private void runValue(String name, LatherValue value)
+        throws Exception
+    {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        ByteArrayOutputStream bOs = new ByteArrayOutputStream();
+        DataOutputStream dOs = new DataOutputStream(bOs);
+        long start, end, startAlloc, endAlloc;
+        byte[] data;
+
+        xCoder.encode(value, dOs);
+        data = bOs.toByteArray();
+
+        for(int i=0; i<NUM_WARMUP; i++){
+            bOs.reset();
+            xCoder.encode(value, dOs);
+            xCoder.decode(new DataInputStream(new ByteArrayInputStream(data)),
+                          value.getClass());
+        }
+
+        startAlloc = getAllocatedBytes(threads);
+        start = System.nanoTime();
+        for(int i=0; i<NUM_ITERS; i++){
+            bOs.reset();
+            xCoder.encode(value, dOs);
+        }
+        end = System.nanoTime();
+        endAlloc = getAllocatedBytes(threads);
+        report(name, "encode", data.length, start, end, startAlloc, endAlloc);
+
+        startAlloc = getAllocatedBytes(threads);
+        start = System.nanoTime();
+        for(int i=0; i<NUM_ITERS; i++){
+            xCoder.decode(new DataInputStream(new ByteArrayInputStream(data)),
+                          value.getClass());
+        }
+        end = System.nanoTime();
+        endAlloc = getAllocatedBytes(threads);
+        report(name, "decode", data.length, start, end, startAlloc, endAlloc);
+    }
+
+    private void report(String name, String op, int size, long start, long end,
+                        long startAlloc, long endAlloc)
+    {
+        long nsPerOp = Math.max(1, (end - start) / NUM_ITERS);
+        String alloc = (startAlloc < 0) ? "n/a" :
+            Long.toString((endAlloc - startAlloc) / NUM_ITERS);
+
+        System.out.println(name + " " + op + ": " + (1000000000L / nsPerOp) +
+                           " msgs/s, " + size + " bytes, " + alloc +
+                           " bytes allocated per message");
+    }
+
+    private void run()
+        throws Exception
+    {
+        Random r = new Random(42);
+        MeasurementSendReport_result result = new MeasurementSendReport_result();
+
+        result.setTime(System.currentTimeMillis());
+        result.setReportEncoding(MeasurementReport.ENCODING_CURRENT);
+
+        runValue("MeasurementSendReport_args (lists)",
+                 genReport(r, MeasurementReport.ENCODING_LEGACY));
+        runValue("MeasurementSendReport_args (columns)",
+                 genReport(r, MeasurementReport.ENCODING_COLUMNAR));
+        runValue("MeasurementSendReport_result", result);
+        runValue("AiSendReport_args", genAiReport());
+    }
+
+    public static void main(String[] args)
+        throws Exception
+    {
+        new LatherXCoderBenchmark().run();
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.bizapp.shared.lather;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+
+import org.hyperic.hq.appdef.shared.AppdefEntityID;
+import org.hyperic.hq.measurement.data.MeasurementReport;
+import org.hyperic.hq.measurement.data.MeasurementReportConstructor;
+import org.hyperic.hq.measurement.server.session.SRN;
+import org.hyperic.hq.product.MetricValue;
+import org.hyperic.lather.xcode.LatherStreamCoder;
+import org.hyperic.lather.xcode.LatherXCoder;
+import org.hyperic.util.encoding.Base64;
+
+/**
+ * Compares the bytes on the wire and the server side CPU time needed to
+ * decode a MeasurementSendReport for each of the Lather transports, the
+ * Base64 form post and the binary stream with each compression.
+ */
+public class MeasurementSendReportBenchmark
+{
+    private static final int NUM_MEAS    = 400;
+    private static final int NUM_VALUES  = 5;
+    private static final int NUM_REPORTS = 50;
+
+    private static final String LEGACY = "base64";
+
+    private final LatherXCoder xCoder = new LatherXCoder();
+    private final LatherStreamCoder coder = new LatherStreamCoder(xCoder);
+
+    private MeasurementReport genReport(Random r){
+        MeasurementReportConstructor con = new MeasurementReportConstructor();
+        long now = 1356998400000L;
+
+        for(int i=0; i<NUM_MEAS; i++){
+            for(int j=0; j<NUM_VALUES; j++){
+                con.addDataPoint(10000 + i, 1,
+                                 new MetricValue(r.nextInt(1000) / 10.0, now + j * 60000L));
+            }
+        }
+
+        MeasurementReport report = new MeasurementReport();
+        report.setAgentToken("1356998400000-7211567898526146519-4851394939164232811");
+        report.setClientIdList(con.constructDSNList());
+        report.setSRNList(new SRN[] { new SRN(new AppdefEntityID(1, 10001), 1) });
+        return report;
+    }
+
+    private byte[] toWire(MeasurementSendReport_args args, String transport)
+        throws Exception
+    {
+        ByteArrayOutputStream bOs = new ByteArrayOutputStream();
+
+        if (LEGACY.equals(transport)) {
+            xCoder.encode(args, new DataOutputStream(bOs));
+            return Base64.encode(bOs.toByteArray()).getBytes("US-ASCII");
+        }
+        coder.encode(args, bOs, transport);
+        return bOs.toByteArray();
+    }
+
+    private MeasurementReport fromWire(byte[] wire, String transport)
+        throws Exception
+    {
+        MeasurementSendReport_args args;
+
+        if (LEGACY.equals(transport)) {
+            byte[] raw = Base64.decode(new String(wire, "US-ASCII"));
+            args = (MeasurementSendReport_args)
+                xCoder.decode(new DataInputStream(new ByteArrayInputStream(raw)),
+                              MeasurementSendReport_args.class);
+        } else {
+            args = (MeasurementSendReport_args)
+                coder.decode(new ByteArrayInputStream(wire), MeasurementSendReport_args.class,
+                             transport);
+        }
+        return args.getReport();
+    }
+
+    private void runTransport(MeasurementReport report, int encoding, String transport)
+        throws Exception
+    {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        boolean cpuTime = threads.isCurrentThreadCpuTimeSupported();
+        MeasurementSendReport_args args = new MeasurementSendReport_args();
+        long nBytes = 0;
+        long start, end;
+
+        args.setAgentToken(report.getAgentToken());
+        args.setReport(report, encoding);
+
+        byte[] wire = toWire(args, transport);
+        // Warm up before measuring
+        for(int i=0; i<NUM_REPORTS; i++){
+            fromWire(wire, transport);
+        }
+
+        start = cpuTime ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+        for(int i=0; i<NUM_REPORTS; i++){
+            nBytes += wire.length;
+            fromWire(wire, transport);
+        }
+        end = cpuTime ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+
+        System.out.println((encoding == MeasurementReport.ENCODING_LEGACY ? "lists  " : "columns") +
+                           " / " + transport + ": " + nBytes / NUM_REPORTS +
+                           " bytes, " + (end - start) / NUM_REPORTS / 1000 +
+                           " us server CPU per report");
+    }
+
+    private void run()
+        throws Exception
+    {
+        MeasurementReport report = genReport(new Random(42));
+        String[] transports = { LEGACY, LatherStreamCoder.COMPRESSION_NONE,
+                                LatherStreamCoder.COMPRESSION_GZIP,
+                                LatherStreamCoder.COMPRESSION_DEFLATE };
+        int[] encodings = { MeasurementReport.ENCODING_LEGACY,
+                            MeasurementReport.ENCODING_COLUMNAR };
+
+        for(int i=0; i<encodings.length; i++){
+            for(int j=0; j<transports.length; j++){
+                runTransport(report, encodings[i], transports[j]);
+            }
+        }
+    }
+
+    public static void main(String[] args)
+        throws Exception
+    {
+        new MeasurementSendReportBenchmark().run();
+    }
+}
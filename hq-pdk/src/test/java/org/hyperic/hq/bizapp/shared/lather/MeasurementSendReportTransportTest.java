@@ -0,0 +1,168 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.bizapp.shared.lather;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.hyperic.hq.appdef.shared.AppdefEntityID;
+import org.hyperic.hq.measurement.data.MeasurementColumns;
+import org.hyperic.hq.measurement.data.MeasurementReport;
+import org.hyperic.hq.measurement.data.MeasurementReportConstructor;
+import org.hyperic.hq.measurement.server.session.SRN;
+import org.hyperic.hq.product.MetricValue;
+import org.hyperic.lather.xcode.LatherStreamCoder;
+import org.hyperic.lather.xcode.LatherXCoder;
+import org.hyperic.util.encoding.Base64;
+
+/**
+ * Checks that a MeasurementSendReport survives each of the Lather
+ * transports, the Base64 form post and the binary stream with each
+ * compression.  MeasurementSendReportBenchmark compares their speed.
+ */
+public class MeasurementSendReportTransportTest
+    extends TestCase
+{
+    private static final int NUM_MEAS    = 400;
+    private static final int NUM_VALUES  = 5;
+
+    private static final String LEGACY = "base64";
+
+    private final LatherXCoder xCoder = new LatherXCoder();
+    private final LatherStreamCoder coder = new LatherStreamCoder(xCoder);
+
+    public MeasurementSendReportTransportTest(String name){
+        super(name);
+    }
+
+    private MeasurementReport genReport(Random r){
+        MeasurementReportConstructor con = new MeasurementReportConstructor();
+        long now = 1356998400000L;
+
+        for(int i=0; i<NUM_MEAS; i++){
+            for(int j=0; j<NUM_VALUES; j++){
+                con.addDataPoint(10000 + i, 1,
+                                 new MetricValue(r.nextInt(1000) / 10.0, now + j * 60000L));
+            }
+        }
+
+        MeasurementReport report = new MeasurementReport();
+        report.setAgentToken("1356998400000-7211567898526146519-4851394939164232811");
+        report.setClientIdList(con.constructDSNList());
+        report.setSRNList(new SRN[] { new SRN(new AppdefEntityID(1, 10001), 1) });
+        return report;
+    }
+
+    private byte[] toWire(MeasurementSendReport_args args, String transport)
+        throws Exception
+    {
+        ByteArrayOutputStream bOs = new ByteArrayOutputStream();
+
+        if (LEGACY.equals(transport)) {
+            xCoder.encode(args, new DataOutputStream(bOs));
+            return Base64.encode(bOs.toByteArray()).getBytes("US-ASCII");
+        }
+        coder.encode(args, bOs, transport);
+        return bOs.toByteArray();
+    }
+
+    private MeasurementReport fromWire(byte[] wire, String transport)
+        throws Exception
+    {
+        MeasurementSendReport_args args;
+
+        if (LEGACY.equals(transport)) {
+            byte[] raw = Base64.decode(new String(wire, "US-ASCII"));
+            args = (MeasurementSendReport_args)
+                xCoder.decode(new DataInputStream(new ByteArrayInputStream(raw)),
+                              MeasurementSendReport_args.class);
+        } else {
+            args = (MeasurementSendReport_args)
+                coder.decode(new ByteArrayInputStream(wire), MeasurementSendReport_args.class,
+                             transport);
+        }
+        return args.getReport();
+    }
+
+    private void runTransport(MeasurementReport report, int encoding, String transport)
+        throws Exception
+    {
+        MeasurementSendReport_args args = new MeasurementSendReport_args();
+
+        args.setAgentToken(report.getAgentToken());
+        args.setReport(report, encoding);
+
+        MeasurementColumns expected = report.getColumns();
+        MeasurementColumns res = fromWire(toWire(args, transport), transport).getColumns();
+        assertEquals(expected.size(), res.size());
+        for(int i=0; i<expected.size(); i++){
+            assertEquals(expected.getClientId(i), res.getClientId(i));
+            assertEquals(expected.getDsnId(i), res.getDsnId(i));
+            assertEquals(expected.getTimestamp(i), res.getTimestamp(i));
+            assertEquals(expected.getValue(i), res.getValue(i), 0);
+        }
+    }
+
+    public void testTransports()
+        throws Exception
+    {
+        MeasurementReport report = genReport(new Random(42));
+        String[] transports = { LEGACY, LatherStreamCoder.COMPRESSION_NONE,
+                                LatherStreamCoder.COMPRESSION_GZIP,
+                                LatherStreamCoder.COMPRESSION_DEFLATE };
+        int[] encodings = { MeasurementReport.ENCODING_LEGACY,
+                            MeasurementReport.ENCODING_COLUMNAR };
+
+        for(int i=0; i<encodings.length; i++){
+            for(int j=0; j<transports.length; j++){
+                runTransport(report, encodings[i], transports[j]);
+            }
+        }
+    }
+
+    public void testBinaryIsSmaller()
+        throws Exception
+    {
+        MeasurementReport report = genReport(new Random(42));
+        MeasurementSendReport_args args = new MeasurementSendReport_args();
+
+        args.setAgentToken(report.getAgentToken());
+        args.setReport(report);
+
+        int legacy = toWire(args, LEGACY).length;
+        int raw = toWire(args, LatherStreamCoder.COMPRESSION_NONE).length;
+
+        // Base64 inflates by a third, compression only shrinks it further
+        assertTrue(raw * 4 <= legacy * 3 + 4);
+        assertTrue(toWire(args, LatherStreamCoder.COMPRESSION_GZIP).length < raw);
+        assertTrue(toWire(args, LatherStreamCoder.COMPRESSION_DEFLATE).length < raw);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.data;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.hyperic.hq.product.MetricValue;
+
+/**
+ * Tests the MeasurementColumns class.
+ */
+public class MeasurementColumnsTest extends TestCase {
+
+    public MeasurementColumnsTest(String name) {
+        super(name);
+    }
+
+    private MeasurementColumns createBatch(int size) {
+        MeasurementColumns columns = new MeasurementColumns(size);
+        long base = 1356998400000L;
+        for (int i = 0; i < size; i++) {
+            columns.set(i, 10000 + (i / 5), 7 * i, base + (i * 60000L), i * 1.5);
+        }
+        return columns;
+    }
+
+    public void testEncodeDecode() throws Exception {
+        MeasurementColumns columns = createBatch(500);
+        MeasurementColumns decoded = MeasurementColumns.decode(columns.encode());
+
+        assertEquals(columns.size(), decoded.size());
+        for (int i = 0; i < columns.size(); i++) {
+            assertEquals(columns.getClientId(i), decoded.getClientId(i));
+            assertEquals(columns.getDsnId(i), decoded.getDsnId(i));
+            assertEquals(columns.getTimestamp(i), decoded.getTimestamp(i));
+            assertEquals(columns.getValue(i), decoded.getValue(i), 0);
+        }
+    }
+
+    public void testEncodeDecodeExtremes() throws Exception {
+        MeasurementColumns columns = new MeasurementColumns(4);
+        columns.set(0, Integer.MAX_VALUE, Integer.MAX_VALUE, 5, Double.NaN);
+        columns.set(1, Integer.MIN_VALUE, -1, 0, Double.POSITIVE_INFINITY);
+        columns.set(2, 0, 0, Long.MAX_VALUE / 2, -0.0);
+        columns.set(3, -5, 1, 1, Double.MIN_VALUE);
+        MeasurementColumns decoded = MeasurementColumns.decode(columns.encode());
+
+        for (int i = 0; i < columns.size(); i++) {
+            assertEquals(columns.getClientId(i), decoded.getClientId(i));
+            assertEquals(columns.getDsnId(i), decoded.getDsnId(i));
+            assertEquals(columns.getTimestamp(i), decoded.getTimestamp(i));
+            assertEquals(Double.doubleToLongBits(columns.getValue(i)),
+                         Double.doubleToLongBits(decoded.getValue(i)));
+        }
+    }
+
+    public void testEmptyBatch() throws Exception {
+        assertEquals(0, MeasurementColumns.decode(new MeasurementColumns(0).encode()).size());
+    }
+
+    public void testEncodingIsCompact() throws Exception {
+        // 500 points of 60s apart fit in far less than the 24 bytes per
+        // point the raw fields take
+        assertTrue(createBatch(500).encode().length < 500 * 16);
+    }
+
+    public void testTruncatedData() throws Exception {
+        byte[] data = createBatch(10).encode();
+        byte[] truncated = new byte[data.length - 4];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+        try {
+            MeasurementColumns.decode(truncated);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // expected outcome
+        }
+    }
+
+    public void testDSNListRoundTrip() throws Exception {
+        MeasurementReportConstructor con = new MeasurementReportConstructor();
+        con.addDataPoint(1, 123, new MetricValue(3, 4));
+        con.addDataPoint(1, 123, new MetricValue(2, 75));
+        con.addDataPoint(2, 456, new MetricValue(8, 67));
+        con.addDataPoint(2, 789, new MetricValue(9, 172));
+
+        MeasurementColumns columns = MeasurementColumns.fromDSNLists(con.constructDSNList());
+        assertEquals(4, columns.size());
+
+        DSNList[] cids = MeasurementColumns.decode(columns.encode()).toDSNLists();
+        int num = 0;
+        for (int i = 0; i < cids.length; i++) {
+            ValueList[] dsns = cids[i].getDsns();
+            for (int j = 0; j < dsns.length; j++) {
+                num += dsns[j].getValues().length;
+            }
+        }
+        assertEquals(4, num);
+    }
+}
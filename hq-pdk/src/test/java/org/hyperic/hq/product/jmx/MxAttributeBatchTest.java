@@ -0,0 +1,230 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.product.jmx;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+
+import junit.framework.TestCase;
+
+public class MxAttributeBatchTest extends TestCase {
+
+    private static final long WINDOW = 2000;
+    private static final long INTERVAL = 60 * 1000;
+    private static final String URL = "service:jmx:rmi:///jndi/rmi://localhost:1099/jmxrmi";
+
+    /**
+     * Serves the attributes from a map instead of an MBean server, and
+     * records the round trips made to it.
+     */
+    private static class LocalBatch extends MxAttributeBatch {
+        private final Map<String,Object> attrs = new HashMap<String,Object>();
+        //attributes which getAttributes() leaves out
+        private final List<String> unbatchable = new ArrayList<String>();
+        private final List<List<String>> getAttributes = new ArrayList<List<String>>();
+        private final List<String> getAttribute = new ArrayList<String>();
+
+        private LocalBatch() {
+            super(WINDOW);
+        }
+
+        AttributeList getAttributes(Properties config, ObjectName objName, String[] names) {
+            this.getAttributes.add(Arrays.asList(names));
+            AttributeList res = new AttributeList();
+            for (int i=0; i<names.length; i++) {
+                if (this.attrs.containsKey(names[i]) && !this.unbatchable.contains(names[i])) {
+                    res.add(new Attribute(names[i], this.attrs.get(names[i])));
+                }
+            }
+            return res;
+        }
+
+        Object getAttribute(Properties config, ObjectName objName, String name)
+            throws AttributeNotFoundException {
+            this.getAttribute.add(name);
+            if (!this.attrs.containsKey(name)) {
+                throw new AttributeNotFoundException(name);
+            }
+            return this.attrs.get(name);
+        }
+    }
+
+    private LocalBatch batch;
+    private Properties config;
+    private ObjectName objName;
+
+    public MxAttributeBatchTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        this.batch = new LocalBatch();
+        this.batch.attrs.put("HeapUsed", new Long(100));
+        this.batch.attrs.put("HeapMax", new Long(1000));
+        this.batch.attrs.put("Threads", new Integer(42));
+        this.config = new Properties();
+        this.config.setProperty(MxUtil.PROP_JMX_URL, URL);
+        this.objName = new ObjectName("java.lang:type=Memory");
+    }
+
+    private Object read(String attr, long now) throws Exception {
+        return this.batch.getValue(this.config, this.objName, attr, now);
+    }
+
+    //read every attribute once per interval, a few ms apart
+    private void collect(long now, String[] attrs) throws Exception {
+        for (int i=0; i<attrs.length; i++) {
+            assertEquals(this.batch.attrs.get(attrs[i]), read(attrs[i], now + i));
+        }
+    }
+
+    public void testAttributesShareOneRoundTripOnceLearned() throws Exception {
+        String[] attrs = { "HeapUsed", "HeapMax", "Threads" };
+        collect(0, attrs);
+        collect(INTERVAL, attrs);
+        // Each attribute was read on its own while its interval was learned
+        assertEquals(6, this.batch.getAttribute.size());
+        assertEquals(0, this.batch.getAttributes.size());
+
+        collect(2 * INTERVAL, attrs);
+        assertEquals(6, this.batch.getAttribute.size());
+        assertEquals(1, this.batch.getAttributes.size());
+        assertEquals(3, this.batch.getAttributes.get(0).size());
+        assertEquals(new Long(7), this.batch.getRoundTrips().get(URL));
+    }
+
+    public void testValuesAreOnlyServedWithinTheWindow() throws Exception {
+        String[] attrs = { "HeapUsed", "HeapMax" };
+        collect(0, attrs);
+        collect(INTERVAL, attrs);
+        collect(2 * INTERVAL, attrs);
+        assertEquals(1, this.batch.getAttributes.size());
+
+        // Past the window the value is read again, not served from the batch
+        this.batch.attrs.put("HeapMax", new Long(2000));
+        assertEquals(new Long(2000), read("HeapMax", 2 * INTERVAL + WINDOW + 1));
+    }
+
+    public void testMetricSetsItsOwnWindow() throws Exception {
+        assertEquals(WINDOW, this.batch.getWindow(this.config));
+        this.config.setProperty(MxAttributeBatch.PROP_WINDOW, "bogus");
+        assertEquals(WINDOW, this.batch.getWindow(this.config));
+
+        // Served from the batch past the default window
+        this.config.setProperty(MxAttributeBatch.PROP_WINDOW, String.valueOf(4 * WINDOW));
+        String[] attrs = { "HeapUsed", "HeapMax" };
+        collect(0, attrs);
+        collect(INTERVAL, attrs);
+        collect(2 * INTERVAL, attrs);
+        this.batch.attrs.put("HeapMax", new Long(2000));
+        assertEquals(new Long(1000), read("HeapMax", 2 * INTERVAL + WINDOW + 1));
+        assertEquals(1, this.batch.getAttributes.size());
+    }
+
+    public void testMissingAttributeIsReadOnItsOwn() throws Exception {
+        String[] attrs = { "HeapUsed", "HeapMax", "Threads" };
+        this.batch.unbatchable.add("Threads");
+        collect(0, attrs);
+        collect(INTERVAL, attrs);
+        int single = this.batch.getAttribute.size();
+
+        // Left out of the batch, so read on its own with the real value
+        collect(2 * INTERVAL, attrs);
+        assertEquals(single + 1, this.batch.getAttribute.size());
+        assertEquals("Threads", this.batch.getAttribute.get(single));
+
+        // And no longer asked for in the next batches
+        collect(3 * INTERVAL, attrs);
+        assertEquals(2, this.batch.getAttributes.size());
+        assertFalse(this.batch.getAttributes.get(1).contains("Threads"));
+        assertEquals(single + 2, this.batch.getAttribute.size());
+    }
+
+    public void testMissingAttributeIsRetried() throws Exception {
+        String[] attrs = { "HeapUsed", "HeapMax", "Threads" };
+        this.batch.unbatchable.add("Threads");
+        collect(0, attrs);
+        collect(INTERVAL, attrs);
+        collect(2 * INTERVAL, attrs);
+        assertTrue(this.batch.getAttributes.get(0).contains("Threads"));
+        collect(3 * INTERVAL, attrs);
+        assertFalse(this.batch.getAttributes.get(1).contains("Threads"));
+
+        // Once the MBean server returns it again, so does the batch
+        this.batch.unbatchable.clear();
+        long now = 4 * INTERVAL;
+        for (; now < 2 * INTERVAL + MxAttributeBatch.RETRY; now += INTERVAL) {
+            collect(now, attrs);
+        }
+        collect(now, attrs);
+        List<String> last = this.batch.getAttributes.get(this.batch.getAttributes.size() - 1);
+        assertEquals(3, last.size());
+        assertTrue(last.contains("Threads"));
+    }
+
+    public void testAttributesExpireFromTheBatch() throws Exception {
+        String[] attrs = { "HeapUsed", "HeapMax" };
+        collect(0, attrs);
+        collect(INTERVAL, attrs);
+
+        // HeapMax is no longer collected
+        long now = INTERVAL;
+        for (now += INTERVAL; now <= INTERVAL + MxAttributeBatch.EXPIRE; now += INTERVAL) {
+            read("HeapUsed", now);
+        }
+        int batches = this.batch.getAttributes.size();
+        read("HeapUsed", now);
+        read("HeapUsed", now + INTERVAL);
+        assertEquals(batches, this.batch.getAttributes.size());
+    }
+
+    public void testCompositeAttributesShareARead() throws Exception {
+        String[] keys = { "used", "max" };
+        CompositeType type =
+            new CompositeType("MemoryUsage", "MemoryUsage", keys, keys,
+                              new OpenType[] { SimpleType.LONG, SimpleType.LONG });
+        this.batch.attrs.put("Usage",
+                             new CompositeDataSupport(type, keys,
+                                                      new Object[] { new Long(10), new Long(20) }));
+
+        assertEquals(new Long(10), read("Composite.Usage.used", 0));
+        assertEquals(new Long(20), read("Composite.Usage.max", 1));
+        assertEquals(1, this.batch.getAttribute.size());
+    }
+}
@@ -0,0 +1,446 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.snmp;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.snmp4j.PDU;
+import org.snmp4j.mp.SnmpConstants;
+import org.snmp4j.smi.Integer32;
+import org.snmp4j.smi.Null;
+import org.snmp4j.smi.OID;
+import org.snmp4j.smi.Variable;
+import org.snmp4j.smi.VariableBinding;
+
+/**
+ * Tests SNMPRequestBatch against an in-process agent which answers
+ * requests from a MIB held in memory and counts them.
+ */
+public class SNMPRequestBatchTest extends TestCase {
+
+    private static final long START = 1356998400000L;
+    private static final long INTERVAL = 60000;
+
+    private static final String SYSTEM = "1.3.6.1.2.1.1";
+    private static final String IF_ENTRY = "1.3.6.1.2.1.2.2.1";
+    private static final String IF_OPER_STATUS = IF_ENTRY + ".8";
+    private static final String IF_IN_OCTETS = IF_ENTRY + ".10";
+    private static final String IF_OUT_OCTETS = IF_ENTRY + ".16";
+    private static final int NUM_INTERFACES = 50;
+
+    /**
+     * Stands in for a remote agent, answering GET, GETNEXT and GETBULK
+     * the way an agent of the session's version would.
+     */
+    private static class LocalAgent extends SNMPSession_v1 {
+        private final TreeMap mib = new TreeMap();
+        private int requests = 0;
+        // Requests with more varbinds are answered tooBig
+        private int maxVarBinds = Integer.MAX_VALUE;
+        // Set to hold GETBULK requests until released
+        private CountDownLatch walking;
+        private CountDownLatch release;
+
+        private LocalAgent(int version) {
+            this.version = version;
+
+            for (int i = 1; i <= 9; i++) {
+                this.mib.put(new OID(SYSTEM + "." + i + ".0"), new Integer32(i));
+            }
+
+            for (int i = 1; i <= NUM_INTERFACES; i++) {
+                this.mib.put(new OID(IF_OPER_STATUS + "." + i), new Integer32(1));
+                this.mib.put(new OID(IF_IN_OCTETS + "." + i), new Integer32(1000 + i));
+                this.mib.put(new OID(IF_OUT_OCTETS + "." + i), new Integer32(2000 + i));
+            }
+        }
+
+        private boolean isV1() {
+            return this.version == SnmpConstants.version1;
+        }
+
+        private OID getNext(OID oid) {
+            for (Iterator it = this.mib.tailMap(oid).keySet().iterator(); it.hasNext();) {
+                OID next = (OID) it.next();
+
+                if (!next.equals(oid)) {
+                    return next;
+                }
+            }
+
+            return null;
+        }
+
+        private boolean error(PDU request, PDU response, int index) {
+            response.setErrorStatus(PDU.noSuchName);
+            response.setErrorIndex(index + 1);
+
+            for (int i = 0; i < request.size(); i++) {
+                response.add(request.get(i));
+            }
+
+            return false;
+        }
+
+        private boolean add(PDU request, PDU response, OID oid, int index, boolean next) {
+            if (next) {
+                oid = getNext(oid);
+            }
+
+            Variable var = (oid == null) ? null : (Variable) this.mib.get(oid);
+
+            if (var != null) {
+                response.add(new VariableBinding(oid, var));
+
+                return true;
+            }
+
+            if (isV1()) {
+                return error(request, response, index);
+            }
+
+            if (next) {
+                response.add(new VariableBinding(request.get(index).getOid(), Null.endOfMibView));
+            } else {
+                response.add(new VariableBinding(request.get(index).getOid(), Null.noSuchObject));
+            }
+
+            return true;
+        }
+
+        PDU send(PDU request, String name) {
+            this.requests++;
+
+            PDU response = new PDU();
+
+            response.setType(PDU.RESPONSE);
+
+            if (request.size() > this.maxVarBinds) {
+                response.setErrorStatus(PDU.tooBig);
+
+                return response;
+            }
+
+            if (request.getType() == PDU.GETBULK) {
+                if (this.release != null) {
+                    this.walking.countDown();
+                    try {
+                        this.release.await();
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+
+                OID[] last = new OID[request.size()];
+
+                for (int i = 0; i < last.length; i++) {
+                    last[i] = request.get(i).getOid();
+                }
+
+                for (int r = 0; r < request.getMaxRepetitions(); r++) {
+                    for (int i = 0; i < last.length; i++) {
+                        OID next = (last[i] == null) ? null : getNext(last[i]);
+
+                        if (next == null) {
+                            response.add(new VariableBinding(request.get(i).getOid(), Null.endOfMibView));
+                        } else {
+                            response.add(new VariableBinding(next, (Variable) this.mib.get(next)));
+                        }
+
+                        last[i] = next;
+                    }
+                }
+
+                return response;
+            }
+
+            for (int i = 0; i < request.size(); i++) {
+                if (!add(request, response, request.get(i).getOid(), i,
+                         request.getType() == PDU.GETNEXT)) {
+                    break;
+                }
+            }
+
+            return response;
+        }
+    }
+
+    public SNMPRequestBatchTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        SNMPRequestBatch.configure(new Properties());
+    }
+
+    private static String scalar(int i) {
+        return SYSTEM + "." + i + ".0";
+    }
+
+    private static SNMPValue get(SNMPRequestBatch batch, String oid, long now) throws Exception {
+        return batch.getValue(new OID(oid), oid, true, now);
+    }
+
+    public void testScalarsOfACollectionShareOneRequest() throws Exception {
+        LocalAgent agent = new LocalAgent(SnmpConstants.version2c);
+        SNMPRequestBatch batch = new SNMPRequestBatch(agent);
+
+        // The first two collections learn the OIDs and their interval
+        for (int c = 0; c < 2; c++) {
+            for (int i = 1; i <= 5; i++) {
+                get(batch, scalar(i), START + (c * INTERVAL) + i);
+            }
+        }
+        assertEquals(10, agent.requests);
+
+        for (int c = 2; c < 5; c++) {
+            for (int i = 1; i <= 5; i++) {
+                assertEquals(i, get(batch, scalar(i), START + (c * INTERVAL) + i).toLong());
+            }
+        }
+        assertEquals(13, agent.requests);
+    }
+
+    public void testRequestsAreSplitToFitTheAgent() throws Exception {
+        Properties props = new Properties();
+        props.setProperty(SNMPRequestBatch.PROP_MAX_VARBINDS, "4");
+        SNMPRequestBatch.configure(props);
+
+        LocalAgent agent = new LocalAgent(SnmpConstants.version2c);
+        SNMPRequestBatch batch = new SNMPRequestBatch(agent);
+        agent.maxVarBinds = 3;
+
+        for (int c = 0; c < 2; c++) {
+            for (int i = 1; i <= 9; i++) {
+                get(batch, scalar(i), START + (c * INTERVAL) + i);
+            }
+        }
+        agent.requests = 0;
+
+        // 4 varbinds are tooBig, after which requests carry 2
+        for (int i = 1; i <= 9; i++) {
+            assertEquals(i, get(batch, scalar(i), START + (2 * INTERVAL) + i).toLong());
+        }
+        assertEquals(6, agent.requests);
+
+        agent.requests = 0;
+        for (int i = 1; i <= 9; i++) {
+            get(batch, scalar(i), START + (3 * INTERVAL) + i);
+        }
+        assertEquals(5, agent.requests);
+    }
+
+    public void testMissingOIDLeavesTheBatchInV1() throws Exception {
+        LocalAgent agent = new LocalAgent(SnmpConstants.version1);
+        SNMPRequestBatch batch = new SNMPRequestBatch(agent);
+        String missing = SYSTEM + ".99.0";
+
+        for (int c = 0; c < 3; c++) {
+            long now = START + (c * INTERVAL);
+            get(batch, scalar(1), now);
+            get(batch, missing, now + 1);
+            get(batch, scalar(2), now + 2);
+        }
+        // Collection 2 is a batch failed by the missing OID, the batch
+        // without it and the missing OID on its own
+        assertEquals(9, agent.requests);
+
+        agent.requests = 0;
+        long now = START + (3 * INTERVAL);
+        assertEquals(1, get(batch, scalar(1), now).toLong());
+        get(batch, missing, now + 1);
+        assertEquals(2, get(batch, scalar(2), now + 2).toLong());
+        assertEquals(2, agent.requests);
+    }
+
+    public void testMissingOIDIsAnErrorInV2c() throws Exception {
+        LocalAgent agent = new LocalAgent(SnmpConstants.version2c);
+        SNMPRequestBatch batch = new SNMPRequestBatch(agent);
+        String missing = SYSTEM + ".99.0";
+
+        for (int c = 0; c < 3; c++) {
+            long now = START + (c * INTERVAL);
+            get(batch, scalar(1), now);
+            try {
+                get(batch, missing, now + 1);
+                fail("Expected MIBLookupException");
+            } catch (MIBLookupException e) {
+            }
+        }
+        // Table values are returned as they are
+        assertTrue(batch.getValue(new OID(missing), missing, false, START).var.isException());
+    }
+
+    private static void assertColumn(List values, String column, int base) {
+        assertEquals(NUM_INTERFACES, values.size());
+
+        for (int i = 0; i < NUM_INTERFACES; i++) {
+            SNMPValue value = (SNMPValue) values.get(i);
+
+            assertEquals(column + "." + (i + 1), value.getOID());
+            assertEquals(base + i + 1, Integer.parseInt(value.toString()));
+        }
+    }
+
+    private void walkColumns(int version, int maxRequests) throws Exception {
+        LocalAgent agent = new LocalAgent(version);
+        SNMPRequestBatch batch = new SNMPRequestBatch(agent);
+        String[] columns = { IF_IN_OCTETS, IF_OUT_OCTETS, IF_OPER_STATUS };
+
+        for (int c = 0; c < 2; c++) {
+            for (int i = 0; i < columns.length; i++) {
+                batch.getColumn(new OID(columns[i]), columns[i], START + (c * INTERVAL) + i);
+            }
+        }
+        int learning = agent.requests;
+
+        agent.requests = 0;
+        long now = START + (2 * INTERVAL);
+        assertColumn(batch.getColumn(new OID(IF_IN_OCTETS), IF_IN_OCTETS, now), IF_IN_OCTETS, 1000);
+        assertColumn(batch.getColumn(new OID(IF_OUT_OCTETS), IF_OUT_OCTETS, now + 1), IF_OUT_OCTETS, 2000);
+        assertEquals(1, ((SNMPValue) batch.getColumn(new OID(IF_OPER_STATUS), IF_OPER_STATUS, now + 2).get(0)).toLong());
+
+        // The table is walked once for all three columns
+        assertTrue(agent.requests <= maxRequests);
+        assertTrue(agent.requests < learning / 2);
+    }
+
+    public void testColumnsOfATableAreWalkedTogether() throws Exception {
+        walkColumns(SnmpConstants.version2c, 7);
+    }
+
+    public void testColumnsOfATableAreWalkedTogetherInV1() throws Exception {
+        walkColumns(SnmpConstants.version1, NUM_INTERFACES + 2);
+    }
+
+    public void testWalkFitsTheAgent() throws Exception {
+        LocalAgent agent = new LocalAgent(SnmpConstants.version2c);
+        SNMPRequestBatch batch = new SNMPRequestBatch(agent);
+        String[] columns = { IF_IN_OCTETS, IF_OUT_OCTETS, IF_OPER_STATUS };
+
+        for (int c = 0; c < 3; c++) {
+            long now = START + (c * INTERVAL);
+            if (c == 2) {
+                agent.maxVarBinds = 2;
+            }
+            for (int i = 1; i <= 4; i++) {
+                get(batch, scalar(i), now + i);
+            }
+            // Walked together in requests no bigger than the scalars
+            // were once the agent answered tooBig
+            for (int i = 0; i < columns.length; i++) {
+                batch.getColumn(new OID(columns[i]), columns[i], now + 10 + i);
+            }
+        }
+        assertColumn(batch.getColumn(new OID(IF_OUT_OCTETS), IF_OUT_OCTETS, START + (2 * INTERVAL) + 20),
+                     IF_OUT_OCTETS, 2000);
+    }
+
+    public void testWalkToTheEndOfTheMIB() throws Exception {
+        String column = IF_OUT_OCTETS;
+
+        for (int v = 0; v < 2; v++) {
+            LocalAgent agent = new LocalAgent((v == 0) ? SnmpConstants.version1 : SnmpConstants.version2c);
+            SNMPRequestBatch batch = new SNMPRequestBatch(agent);
+
+            assertColumn(batch.getColumn(new OID(column), column, START), column, 2000);
+        }
+    }
+
+    public void testWalkDoesNotHoldUpOtherReads() throws Exception {
+        final LocalAgent agent = new LocalAgent(SnmpConstants.version2c);
+        final SNMPRequestBatch batch = new SNMPRequestBatch(agent);
+        final List[] walked = new List[2];
+        agent.walking = new CountDownLatch(1);
+        agent.release = new CountDownLatch(1);
+
+        Thread[] walkers = new Thread[walked.length];
+        for (int i = 0; i < walkers.length; i++) {
+            final int n = i;
+            walkers[i] = new Thread() {
+                public void run() {
+                    try {
+                        walked[n] = batch.getColumn(new OID(IF_IN_OCTETS), IF_IN_OCTETS, START);
+                    } catch (SNMPException e) {
+                    }
+                }
+            };
+        }
+        walkers[0].start();
+        assertTrue(agent.walking.await(10, TimeUnit.SECONDS));
+        walkers[1].start();
+
+        // Scalars are read while the table is being walked
+        assertEquals(1, get(batch, scalar(1), START).toLong());
+        while (walkers[1].getState() != Thread.State.WAITING) {
+            Thread.sleep(10);
+        }
+
+        agent.release.countDown();
+        for (int i = 0; i < walkers.length; i++) {
+            walkers[i].join(10000);
+            assertColumn(walked[i], IF_IN_OCTETS, 1000);
+        }
+
+        // The second read of the column shared the first one's walk
+        LocalAgent once = new LocalAgent(SnmpConstants.version2c);
+        new SNMPRequestBatch(once).getColumn(new OID(IF_IN_OCTETS), IF_IN_OCTETS, START);
+        assertEquals(once.requests + 1, agent.requests);
+    }
+
+    public void testRequestPermitsFollowTheConfiguration() throws Exception {
+        LocalAgent agent = new LocalAgent(SnmpConstants.version2c);
+
+        agent.setMaxRequests("1");
+        SNMPSession_v1.RequestPermits permits = agent.acquirePermit(IF_IN_OCTETS);
+        assertEquals(0, permits.semaphore.availablePermits());
+        agent.releasePermit(permits, true);
+
+        // Dropped once the target is idle, so the new limit applies
+        agent.setMaxRequests("3");
+        SNMPSession_v1.RequestPermits next = agent.acquirePermit(IF_IN_OCTETS);
+        assertTrue(permits != next);
+        assertEquals(2, next.semaphore.availablePermits());
+        agent.releasePermit(next, true);
+
+        // An invalid limit falls back to snmp.maxRequestsPerTarget
+        Properties props = new Properties();
+        props.setProperty(SNMPSession_v1.PROP_MAX_REQUESTS, "4");
+        SNMPSession_v1.configure(props);
+        agent.setMaxRequests("bogus");
+        next = agent.acquirePermit(IF_IN_OCTETS);
+        assertEquals(3, next.semaphore.availablePermits());
+        agent.releasePermit(next, true);
+        SNMPSession_v1.configure(new Properties());
+    }
+}
@@ -25,9 +25,13 @@
 
 package org.hyperic.hq.agent.client;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
 import org.hyperic.hq.appdef.Agent;
 import org.hyperic.hq.bizapp.agent.client.SecureAgentConnection;
 import org.hyperic.hq.security.ServerKeystoreConfig;
+import org.hyperic.hq.stats.ConcurrentStatsCollector;
 import org.hyperic.hq.transport.AgentProxyFactory;
 import org.hyperic.util.security.KeystoreConfig;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -47,13 +51,46 @@ public class AgentCommandsClientFactory {
     //      This is solely to maintain backwards compatibility with older HQ agents
     //      that don't handle SSL communication correctly
     private boolean acceptUnverifiedCertificates;
+    private final ConcurrentStatsCollector concurrentStatsCollector;
+    private final int maxAgentConnections;
+    private final long agentConnectionIdleTimeout;
     
     @Autowired
     public AgentCommandsClientFactory(AgentProxyFactory agentProxyFactory, ServerKeystoreConfig serverKeystoreConfig, 
-    		@Value("#{securityProperties['accept.unverified.certificates']}")boolean acceptUnverifiedCertificates) {
+    		@Value("#{securityProperties['accept.unverified.certificates']}")boolean acceptUnverifiedCertificates,
+    		ConcurrentStatsCollector concurrentStatsCollector,
+    		@Value("#{tweakProperties['hq.agentChannel.maxConnections'] }") Integer maxAgentConnections,
+    		@Value("#{tweakProperties['hq.agentChannel.idleTimeout'] }") Long agentConnectionIdleTimeout) {
         this.agentProxyFactory = agentProxyFactory;
         this.keystoreConfig = serverKeystoreConfig;
         this.acceptUnverifiedCertificates = acceptUnverifiedCertificates;
+        this.concurrentStatsCollector = concurrentStatsCollector;
+        this.maxAgentConnections = (maxAgentConnections == null) ?
+            AgentChannelPool.DEFAULT_MAX_CONNECTIONS : maxAgentConnections.intValue();
+        this.agentConnectionIdleTimeout = (agentConnectionIdleTimeout == null) ?
+            AgentChannelPool.DEFAULT_IDLE_TIMEOUT : agentConnectionIdleTimeout.longValue();
+    }
+
+    /**
+     * Commands sent to legacy transport agents share a few long lived
+     * connections per agent, see {@link AgentChannelPool}.
+     */
+    @PostConstruct
+    public void initAgentChannelPool() {
+        concurrentStatsCollector.register(ConcurrentStatsCollector.AGENT_CONNECTION_SETUP);
+        concurrentStatsCollector.register(ConcurrentStatsCollector.AGENT_CONNECTION_SETUP_TIME);
+        concurrentStatsCollector.register(ConcurrentStatsCollector.AGENT_COMMAND_TIME);
+        if (maxAgentConnections <= 0) {
+            return;
+        }
+        AgentChannelPool pool = new AgentChannelPool(maxAgentConnections, agentConnectionIdleTimeout);
+        pool.setStatsCollector(concurrentStatsCollector);
+        AgentChannelPool.setInstance(pool);
+    }
+
+    @PreDestroy
+    public void destroyAgentChannelPool() {
+        AgentChannelPool.setInstance(null);
     }
 
     public AgentCommandsClient getClient(Agent agent) {
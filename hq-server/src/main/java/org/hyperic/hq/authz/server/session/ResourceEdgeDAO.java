@@ -48,18 +48,34 @@ import org.springframework.stereotype.Repository;
 @Repository
 public class ResourceEdgeDAO
     extends HibernateDAO<ResourceEdge> {
+    private final ResourceTopology resourceTopology;
+
     @Autowired
-    ResourceEdgeDAO(SessionFactory f) {
+    ResourceEdgeDAO(SessionFactory f, ResourceTopology resourceTopology) {
         super(ResourceEdge.class, f);
+        this.resourceTopology = resourceTopology;
     }
 
     ResourceEdge create(Resource from, Resource to, int distance, ResourceRelation relation) {
         ResourceEdge res = new ResourceEdge(from, to, distance, relation);
 
         save(res);
+        resourceTopology.edgesCreated(Collections.singletonList(res));
         return res;
     }
 
+    /**
+     * @return {@link Object[]} for the distance 1 edge of each link
+     *  0 = {@link Integer} id of the child
+     *  1 = {@link Integer} id of the parent
+     *  2 = {@link String} name of the relation
+     */
+    @SuppressWarnings("unchecked")
+    List<Object[]> findLinks() {
+        String hql = "select e.to.id, e.from.id, e.relation.name from ResourceEdge e where e.distance = 1";
+        return getSession().createQuery(hql).list();
+    }
+
     Map findDescendantMap(Resource r) {
         String sql = "select e.to, e.distance from ResourceEdge e " + "where e.from = :from "
                      + "and distance > :distance";
@@ -188,6 +204,7 @@ public class ResourceEdgeDAO
         String sql = "from ResourceEdge where to_id = :to or from_id = :from)";
         @SuppressWarnings("unchecked")
         List<ResourceEdge> edges = getSession().createQuery(sql).setParameter("to", r).setParameter("from", r).list();
+        resourceTopology.edgesDeleted(edges);
         for (ResourceEdge edge : edges) {
             remove(edge);
         }
@@ -201,6 +218,7 @@ public class ResourceEdgeDAO
             .setParameter("from", r)
             .setInteger("rel_id", rel.getId())
             .list();
+        resourceTopology.edgesDeleted(edges);
         for (ResourceEdge edge : edges) {
             remove(edge);
         }
@@ -214,6 +232,7 @@ public class ResourceEdgeDAO
             .setParameter("to", child)
             .setInteger("rel_id", rel.getId())
             .list();
+        resourceTopology.edgesDeleted(edges);
         for (ResourceEdge edge : edges) {
             remove(edge);
         }
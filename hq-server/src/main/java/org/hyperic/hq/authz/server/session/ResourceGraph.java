@@ -0,0 +1,236 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.authz.server.session;
+
+import java.util.Arrays;
+
+/**
+ * An immutable parent/child hierarchy of resource ids, as the distance 1
+ * edges of one resource relation give it.  Each resource has at most one
+ * parent.
+ * <p>
+ * The ids of the resources with a parent or a child are sorted in an array
+ * and found with a binary search.  The children of each are stored next to
+ * each other in a single array, from the offset the resource has in
+ * childStart up to the offset of the next one, so the whole hierarchy takes
+ * four int arrays.
+ */
+final class ResourceGraph {
+    private static final int NONE = -1;
+    private static final int[] EMPTY = new int[0];
+
+    static final ResourceGraph EMPTY_GRAPH = build(EMPTY, EMPTY, 0);
+
+    private final int[] ids;
+    // Index of the parent of each resource, or NONE
+    private final int[] parents;
+    private final int[] childStart;
+    private final int[] children;
+
+    private ResourceGraph(int[] ids, int[] parents, int[] childStart, int[] children) {
+        this.ids = ids;
+        this.parents = parents;
+        this.childStart = childStart;
+        this.children = children;
+    }
+
+    /**
+     * @param childIds The child of each link
+     * @param parentIds The parent of each link
+     * @param size The number of links in the arrays
+     */
+    static ResourceGraph build(int[] childIds, int[] parentIds, int size) {
+        final int[] all = new int[size * 2];
+        System.arraycopy(childIds, 0, all, 0, size);
+        System.arraycopy(parentIds, 0, all, size, size);
+        Arrays.sort(all);
+        int n = 0;
+        for (int i = 0; i < all.length; i++) {
+            if (n == 0 || all[i] != all[n - 1]) {
+                all[n++] = all[i];
+            }
+        }
+        final int[] ids = copyOf(all, n);
+
+        final int[] parents = new int[n];
+        Arrays.fill(parents, NONE);
+        for (int i = 0; i < size; i++) {
+            // A later link for the same child replaces the earlier one
+            parents[Arrays.binarySearch(ids, childIds[i])] = Arrays.binarySearch(ids, parentIds[i]);
+        }
+        final int[] childStart = new int[n + 1];
+        for (int i = 0; i < n; i++) {
+            if (parents[i] != NONE) {
+                childStart[parents[i] + 1]++;
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            childStart[i + 1] += childStart[i];
+        }
+        final int[] children = new int[childStart[n]];
+        final int[] next = copyOf(childStart, n);
+        // In id order, so the children of each resource are sorted
+        for (int i = 0; i < n; i++) {
+            if (parents[i] != NONE) {
+                children[next[parents[i]]++] = i;
+            }
+        }
+        return new ResourceGraph(ids, parents, childStart, children);
+    }
+
+    /**
+     * @return the number of resources with a parent or a child.
+     */
+    int size() {
+        return ids.length;
+    }
+
+    /**
+     * @return the number of resources with a parent.
+     */
+    int getNumLinks() {
+        return children.length;
+    }
+
+    private int indexOf(int id) {
+        final int i = Arrays.binarySearch(ids, id);
+        return (i < 0) ? NONE : i;
+    }
+
+    /**
+     * @return the id of the parent of the resource, or null if it has none.
+     */
+    Integer getParent(int id) {
+        final int i = indexOf(id);
+        return (i == NONE || parents[i] == NONE) ? null : new Integer(ids[parents[i]]);
+    }
+
+    int[] getChildren(int id) {
+        final int i = indexOf(id);
+        if (i == NONE) {
+            return EMPTY;
+        }
+        return toIds(children, childStart[i], childStart[i + 1]);
+    }
+
+    /**
+     * @return the descendants of the resource, nearest first.
+     */
+    int[] getDescendants(int id) {
+        final int i = indexOf(id);
+        if (i == NONE || childStart[i] == childStart[i + 1]) {
+            return EMPTY;
+        }
+        int[] found = new int[childStart[i + 1] - childStart[i]];
+        int size = 0;
+        // Breadth first, with the array as the queue.  A cycle in bad data
+        // stops once more resources were found than have a parent.
+        for (int head = -1; head < size && size <= children.length; head++) {
+            final int parent = (head < 0) ? i : found[head];
+            for (int c = childStart[parent]; c < childStart[parent + 1]; c++) {
+                if (size == found.length) {
+                    found = copyOf(found, size * 2);
+                }
+                found[size++] = children[c];
+            }
+        }
+        return toIds(found, 0, Math.min(size, children.length));
+    }
+
+    /**
+     * @return the ancestors of the resource, its parent first.
+     */
+    int[] getAncestors(int id) {
+        int i = indexOf(id);
+        if (i == NONE || parents[i] == NONE) {
+            return EMPTY;
+        }
+        int[] found = new int[4];
+        int size = 0;
+        while (parents[i] != NONE && size < ids.length) {
+            i = parents[i];
+            if (size == found.length) {
+                found = copyOf(found, size * 2);
+            }
+            found[size++] = i;
+        }
+        return toIds(found, 0, size);
+    }
+
+    /**
+     * @return the other children of the parent of the resource.
+     */
+    int[] getSiblings(int id) {
+        final int i = indexOf(id);
+        if (i == NONE || parents[i] == NONE) {
+            return EMPTY;
+        }
+        final int parent = parents[i];
+        final int[] rtn = new int[childStart[parent + 1] - childStart[parent] - 1];
+        int size = 0;
+        for (int c = childStart[parent]; c < childStart[parent + 1]; c++) {
+            if (children[c] != i) {
+                rtn[size++] = ids[children[c]];
+            }
+        }
+        return rtn;
+    }
+
+    /**
+     * Copies the links of the graph into the arrays, leaving out those of
+     * the children the filter skips.
+     * @return the number of links copied
+     */
+    int getLinks(int[] childIds, int[] parentIds, int offset, ChildFilter filter) {
+        int size = offset;
+        for (int i = 0; i < ids.length; i++) {
+            if (parents[i] != NONE && !filter.skip(ids[i])) {
+                childIds[size] = ids[i];
+                parentIds[size] = ids[parents[i]];
+                size++;
+            }
+        }
+        return size - offset;
+    }
+
+    interface ChildFilter {
+        boolean skip(int childId);
+    }
+
+    private static int[] copyOf(int[] array, int length) {
+        final int[] rtn = new int[length];
+        System.arraycopy(array, 0, rtn, 0, Math.min(length, array.length));
+        return rtn;
+    }
+
+    private int[] toIds(int[] indexes, int from, int to) {
+        final int[] rtn = new int[to - from];
+        for (int i = from; i < to; i++) {
+            rtn[i - from] = ids[indexes[i]];
+        }
+        return rtn;
+    }
+}
@@ -0,0 +1,543 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.authz.server.session;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hyperic.hq.hibernate.SessionManager;
+import org.hyperic.hq.hibernate.SessionManager.SessionRunner;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Answers parent, child, ancestor, descendant and sibling questions about
+ * the resource hierarchy from a {@link ResourceGraph} of each resource
+ * relation held in memory, instead of querying the resource edges.
+ * <p>
+ * The graphs are loaded in the background at startup, in a session of
+ * their own, and callers query the edges until isLoaded() is true.  Edges
+ * created and deleted through the ResourceEdgeDAO are applied once their
+ * transaction commits.  Lookups answer from the graph and the links changed
+ * since it was built, and the graphs of the changed relations are rebuilt
+ * in the background every REBUILD_INTERVAL.  Only used if
+ * hq.resourceTopology is true.
+ */
+@Component
+public class ResourceTopology implements Runnable {
+    private static final long REBUILD_INTERVAL = 10 * 1000;
+    private static final int[] EMPTY = new int[0];
+
+    private final Log log = LogFactory.getLog(ResourceTopology.class);
+
+    private final ConcurrentMap<String, Relation> relations = new ConcurrentHashMap<String, Relation>();
+    private final Object loadLock = new Object();
+    private volatile boolean loaded = false;
+
+    private final boolean enabled;
+    private final TaskScheduler scheduler;
+    private ResourceEdgeDAO resourceEdgeDAO;
+
+    @Autowired
+    public ResourceTopology(@Value("#{tweakProperties['hq.resourceTopology'] }") Boolean enabled,
+                            @Value("#{scheduler}") TaskScheduler scheduler) {
+        this.enabled = (enabled == null) ? false : enabled.booleanValue();
+        this.scheduler = scheduler;
+    }
+
+    // To break the ResourceEdgeDAO - ResourceTopology circular dependency
+    @Autowired
+    public void setResourceEdgeDAO(ResourceEdgeDAO resourceEdgeDAO) {
+        this.resourceEdgeDAO = resourceEdgeDAO;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (enabled) {
+            scheduler.scheduleWithFixedDelay(this, REBUILD_INTERVAL);
+        }
+    }
+
+    /**
+     * Loads the graphs the first time, and rebuilds those which changed
+     * afterwards.
+     */
+    public void run() {
+        try {
+            if (!loaded) {
+                SessionManager.runInSession(new SessionRunner() {
+                    public void run() throws Exception {
+                        load();
+                    }
+
+                    public String getName() {
+                        return "ResourceTopology";
+                    }
+                });
+                return;
+            }
+            rebuild();
+        } catch (Throwable t) {
+            log.error("Unable to " + (loaded ? "rebuild" : "load") + " the resource graphs: " + t, t);
+        }
+    }
+
+    /**
+     * @return true if hq.resourceTopology is true and the graphs are
+     *         loaded, so the lookups can be used instead of querying the
+     *         resource edges
+     */
+    public boolean isLoaded() {
+        return enabled && loaded;
+    }
+
+    /**
+     * @return the id of the parent of the resource, or null if it has none.
+     */
+    public Integer getParent(String relation, int resourceId) {
+        final Relation rel = relations.get(relation);
+        return (rel == null) ? null : rel.getParent(resourceId);
+    }
+
+    public int[] getChildren(String relation, int resourceId) {
+        final Relation rel = relations.get(relation);
+        return (rel == null) ? EMPTY : rel.getChildren(resourceId);
+    }
+
+    /**
+     * @return the ids of the descendants of the resource, nearest first.
+     */
+    public int[] getDescendants(String relation, int resourceId) {
+        final Relation rel = relations.get(relation);
+        return (rel == null) ? EMPTY : rel.getDescendants(resourceId);
+    }
+
+    /**
+     * @return the ids of the ancestors of the resource, its parent first.
+     */
+    public int[] getAncestors(String relation, int resourceId) {
+        final Relation rel = relations.get(relation);
+        return (rel == null) ? EMPTY : rel.getAncestors(resourceId);
+    }
+
+    public int[] getSiblings(String relation, int resourceId) {
+        final Relation rel = relations.get(relation);
+        return (rel == null) ? EMPTY : rel.getSiblings(resourceId);
+    }
+
+    /**
+     * @return the graph of the relation as last built, without the links
+     *         changed since
+     */
+    ResourceGraph getGraph(String relation) {
+        final Relation rel = relations.get(relation);
+        return (rel == null) ? ResourceGraph.EMPTY_GRAPH : rel.graph;
+    }
+
+    private Relation getRelation(String name) {
+        Relation rel = relations.get(name);
+        if (rel == null) {
+            final Relation created = new Relation();
+            rel = relations.putIfAbsent(name, created);
+            if (rel == null) {
+                rel = created;
+            }
+        }
+        return rel;
+    }
+
+    /**
+     * Loads the graphs from the resource edges, in the session of the
+     * caller.
+     */
+    void load() {
+        synchronized (loadLock) {
+            if (loaded) {
+                return;
+            }
+            final long start = System.currentTimeMillis();
+            final List<Object[]> links = resourceEdgeDAO.findLinks();
+            final Map<String, int[]> counts = new HashMap<String, int[]>();
+            for (Object[] link : links) {
+                int[] count = counts.get(link[2]);
+                if (count == null) {
+                    count = new int[1];
+                    counts.put((String) link[2], count);
+                }
+                count[0]++;
+            }
+            for (Map.Entry<String, int[]> entry : counts.entrySet()) {
+                final int size = entry.getValue()[0];
+                final int[] childIds = new int[size];
+                final int[] parentIds = new int[size];
+                int n = 0;
+                for (Object[] link : links) {
+                    if (entry.getKey().equals(link[2])) {
+                        childIds[n] = ((Integer) link[0]).intValue();
+                        parentIds[n] = ((Integer) link[1]).intValue();
+                        n++;
+                    }
+                }
+                getRelation(entry.getKey()).load(ResourceGraph.build(childIds, parentIds, size));
+            }
+            loaded = true;
+            log.info("Loaded " + links.size() + " resource links of " + counts.size() +
+                     " relations in " + (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
+    /**
+     * Rebuilds the graphs of the relations changed since they were built.
+     */
+    void rebuild() {
+        for (Relation rel : relations.values()) {
+            rel.rebuild();
+        }
+    }
+
+    /**
+     * Applies the edges to the graphs once the current transaction commits.
+     */
+    void edgesCreated(Collection<ResourceEdge> edges) {
+        edgesChanged(edges, true);
+    }
+
+    /**
+     * Removes the edges from the graphs once the current transaction
+     * commits.
+     */
+    void edgesDeleted(Collection<ResourceEdge> edges) {
+        edgesChanged(edges, false);
+    }
+
+    private void edgesChanged(Collection<ResourceEdge> edges, final boolean created) {
+        if (!enabled) {
+            return;
+        }
+        final int[] childIds = new int[edges.size()];
+        final int[] parentIds = new int[edges.size()];
+        final String[] names = new String[edges.size()];
+        int n = 0;
+        for (ResourceEdge edge : edges) {
+            // Each link has an edge both ways, either will do
+            if (edge.getDistance() == 1) {
+                parentIds[n] = edge.getFrom().getId().intValue();
+                childIds[n] = edge.getTo().getId().intValue();
+            } else if (edge.getDistance() == -1) {
+                childIds[n] = edge.getFrom().getId().intValue();
+                parentIds[n] = edge.getTo().getId().intValue();
+            } else {
+                continue;
+            }
+            names[n++] = edge.getRelation().getName();
+        }
+        if (n == 0) {
+            return;
+        }
+        final int size = n;
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            apply(childIds, parentIds, names, size, created);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            public void suspend() {
+            }
+
+            public void resume() {
+            }
+
+            public void flush() {
+            }
+
+            public void beforeCommit(boolean readOnly) {
+            }
+
+            public void beforeCompletion() {
+            }
+
+            public void afterCompletion(int status) {
+            }
+
+            public void afterCommit() {
+                apply(childIds, parentIds, names, size, created);
+            }
+        });
+    }
+
+    void apply(int[] childIds, int[] parentIds, String[] names, int size, boolean created) {
+        for (int i = 0; i < size; i++) {
+            final Relation rel = getRelation(names[i]);
+            if (created) {
+                rel.link(childIds[i], parentIds[i]);
+            } else {
+                rel.unlink(childIds[i], parentIds[i]);
+            }
+        }
+    }
+
+    /**
+     * The graph of a relation, and the links changed since it was built.
+     * Changes are kept from startup, so those made while the graphs load
+     * are applied to them too.
+     */
+    private final class Relation {
+        private volatile ResourceGraph graph = ResourceGraph.EMPTY_GRAPH;
+        private volatile boolean dirty = false;
+        // Child id to its new parent id, or null if it has none.  Guarded
+        // by the Relation.
+        private final Map<Integer, Integer> changed = new HashMap<Integer, Integer>();
+        // New parent id to the children in changed which have it.  Guarded
+        // by the Relation.
+        private final Map<Integer, SortedSet<Integer>> added = new HashMap<Integer, SortedSet<Integer>>();
+
+        private synchronized void load(ResourceGraph loadedGraph) {
+            graph = loadedGraph;
+        }
+
+        private synchronized void link(int childId, int parentId) {
+            setParent(new Integer(childId), new Integer(parentId));
+        }
+
+        private synchronized void unlink(int childId, int parentId) {
+            final Integer child = new Integer(childId);
+            final Integer current;
+            if (changed.containsKey(child)) {
+                current = changed.get(child);
+            } else if (loaded) {
+                current = graph.getParent(childId);
+            } else {
+                // The link was in the database, so it will be loaded
+                current = new Integer(parentId);
+            }
+            // Don't drop a link to a new parent made since
+            if (current != null && current.intValue() == parentId) {
+                setParent(child, null);
+            }
+        }
+
+        private void setParent(Integer child, Integer parent) {
+            if (changed.containsKey(child)) {
+                removeAdded(child, changed.get(child));
+            }
+            changed.put(child, parent);
+            if (parent != null) {
+                SortedSet<Integer> children = added.get(parent);
+                if (children == null) {
+                    children = new TreeSet<Integer>();
+                    added.put(parent, children);
+                }
+                children.add(child);
+            }
+            dirty = true;
+        }
+
+        private void removeAdded(Integer child, Integer parent) {
+            if (parent == null) {
+                return;
+            }
+            final SortedSet<Integer> children = added.get(parent);
+            children.remove(child);
+            if (children.isEmpty()) {
+                added.remove(parent);
+            }
+        }
+
+        /**
+         * Builds the graph with the changes outside of the lock, so lookups
+         * go on meanwhile, then swaps it in and drops the changes it holds.
+         */
+        private void rebuild() {
+            final ResourceGraph base;
+            final Map<Integer, Integer> snapshot;
+            synchronized (this) {
+                if (changed.isEmpty()) {
+                    return;
+                }
+                base = graph;
+                snapshot = new HashMap<Integer, Integer>(changed);
+            }
+            final int max = base.getNumLinks() + snapshot.size();
+            final int[] childIds = new int[max];
+            final int[] parentIds = new int[max];
+            int size = base.getLinks(childIds, parentIds, 0, new ResourceGraph.ChildFilter() {
+                public boolean skip(int childId) {
+                    return snapshot.containsKey(new Integer(childId));
+                }
+            });
+            for (Map.Entry<Integer, Integer> entry : snapshot.entrySet()) {
+                if (entry.getValue() != null) {
+                    childIds[size] = entry.getKey().intValue();
+                    parentIds[size] = entry.getValue().intValue();
+                    size++;
+                }
+            }
+            final ResourceGraph built = ResourceGraph.build(childIds, parentIds, size);
+            synchronized (this) {
+                if (graph != base) {
+                    return;
+                }
+                graph = built;
+                for (Map.Entry<Integer, Integer> entry : snapshot.entrySet()) {
+                    final Integer child = entry.getKey();
+                    final Integer parent = changed.get(child);
+                    // Unless it changed again while building
+                    if ((parent == null) ? entry.getValue() == null : parent.equals(entry.getValue())) {
+                        changed.remove(child);
+                        removeAdded(child, parent);
+                    }
+                }
+                dirty = !changed.isEmpty();
+            }
+        }
+
+        private Integer getParent(int id) {
+            if (!dirty) {
+                return graph.getParent(id);
+            }
+            synchronized (this) {
+                return parentOf(id);
+            }
+        }
+
+        private int[] getChildren(int id) {
+            if (!dirty) {
+                return graph.getChildren(id);
+            }
+            synchronized (this) {
+                return childrenOf(id);
+            }
+        }
+
+        private int[] getDescendants(int id) {
+            if (!dirty) {
+                return graph.getDescendants(id);
+            }
+            synchronized (this) {
+                // A cycle in bad data stops once more resources were found
+                // than can have a parent
+                final int limit = graph.getNumLinks() + changed.size();
+                int[] found = new int[16];
+                int size = 0;
+                for (int head = -1; head < size && size <= limit; head++) {
+                    final int parent = (head < 0) ? id : found[head];
+                    for (int child : childrenOf(parent)) {
+                        if (size == found.length) {
+                            found = copyOf(found, size * 2);
+                        }
+                        found[size++] = child;
+                    }
+                }
+                return copyOf(found, Math.min(size, limit));
+            }
+        }
+
+        private int[] getAncestors(int id) {
+            if (!dirty) {
+                return graph.getAncestors(id);
+            }
+            synchronized (this) {
+                final int limit = graph.getNumLinks() + changed.size();
+                int[] found = new int[4];
+                int size = 0;
+                for (Integer parent = parentOf(id); parent != null && size < limit;
+                     parent = parentOf(parent.intValue())) {
+                    if (size == found.length) {
+                        found = copyOf(found, size * 2);
+                    }
+                    found[size++] = parent.intValue();
+                }
+                return copyOf(found, size);
+            }
+        }
+
+        private int[] getSiblings(int id) {
+            if (!dirty) {
+                return graph.getSiblings(id);
+            }
+            synchronized (this) {
+                final Integer parent = parentOf(id);
+                if (parent == null) {
+                    return EMPTY;
+                }
+                final int[] children = childrenOf(parent.intValue());
+                final int[] rtn = new int[children.length];
+                int size = 0;
+                for (int child : children) {
+                    if (child != id) {
+                        rtn[size++] = child;
+                    }
+                }
+                return copyOf(rtn, size);
+            }
+        }
+
+        private Integer parentOf(int id) {
+            final Integer child = new Integer(id);
+            return changed.containsKey(child) ? changed.get(child) : graph.getParent(id);
+        }
+
+        private int[] childrenOf(int id) {
+            final int[] built = graph.getChildren(id);
+            final SortedSet<Integer> moved = added.get(new Integer(id));
+            final int[] rtn = new int[built.length + ((moved == null) ? 0 : moved.size())];
+            int size = 0;
+            for (int child : built) {
+                if (!changed.containsKey(new Integer(child))) {
+                    rtn[size++] = child;
+                }
+            }
+            if (moved != null) {
+                for (Integer child : moved) {
+                    rtn[size++] = child.intValue();
+                }
+            }
+            // Sorted, as the graph keeps them
+            Arrays.sort(rtn, 0, size);
+            return copyOf(rtn, size);
+        }
+    }
+
+    private static int[] copyOf(int[] array, int length) {
+        final int[] rtn = new int[length];
+        System.arraycopy(array, 0, rtn, 0, Math.min(length, array.length));
+        return rtn;
+    }
+}
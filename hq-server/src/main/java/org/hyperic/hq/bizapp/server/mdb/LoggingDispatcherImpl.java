@@ -29,6 +29,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
+import javax.annotation.PostConstruct;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageListener;
@@ -37,7 +38,10 @@ import javax.jms.ObjectMessage;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hyperic.hq.authz.server.shared.ResourceDeletedException;
+import org.hyperic.hq.common.util.LocalEventBus;
+import org.hyperic.hq.common.util.LocalEventListener;
 import org.hyperic.hq.events.AbstractEvent;
+import org.hyperic.hq.events.EventConstants;
 import org.hyperic.hq.events.LoggableInterface;
 import org.hyperic.hq.events.server.session.EventLog;
 import org.hyperic.hq.events.shared.EventLogManager;
@@ -49,16 +53,22 @@ import org.springframework.beans.factory.annotation.Autowired;
  * 
  * Bound to topic/eventsTopic 
  */
-public class LoggingDispatcherImpl implements MessageListener {
+public class LoggingDispatcherImpl implements MessageListener, LocalEventListener {
     private final Log log = LogFactory.getLog(LoggingDispatcherImpl.class);
     private EventLogManager eventLogManager;
+    private LocalEventBus localEventBus;
 
     @Autowired
-    public LoggingDispatcherImpl(EventLogManager eventLogManager) {
+    public LoggingDispatcherImpl(EventLogManager eventLogManager, LocalEventBus localEventBus) {
         this.eventLogManager = eventLogManager;
+        this.localEventBus = localEventBus;
+    }
+
+    @PostConstruct
+    public void subscribe() {
+        localEventBus.subscribe(EventConstants.EVENTS_TOPIC, "LoggingDispatcher", this);
     }
 
-    @SuppressWarnings("unchecked")
     public void onMessage(Message inMessage) {
         if (!(inMessage instanceof ObjectMessage)) {
             return;
@@ -67,20 +77,23 @@ public class LoggingDispatcherImpl implements MessageListener {
         ObjectMessage om = (ObjectMessage) inMessage;
             
         try {
-            Object obj = om.getObject();
-            
-            if (obj instanceof AbstractEvent) {
-                AbstractEvent event = (AbstractEvent) obj;
-                logEvent(event);
-            } else if (obj instanceof Collection<?>) {
-                Collection<AbstractEvent> events = (Collection<AbstractEvent>) obj;
-                logEvents(events);
-            }
+            onObject(om.getObject());
         } catch (JMSException e) {
             log.error("Cannot open message object", e);
         }
         
     }
+
+    @SuppressWarnings("unchecked")
+    public void onObject(Object obj) {
+        if (obj instanceof AbstractEvent) {
+            AbstractEvent event = (AbstractEvent) obj;
+            logEvent(event);
+        } else if (obj instanceof Collection<?>) {
+            Collection<AbstractEvent> events = (Collection<AbstractEvent>) obj;
+            logEvents(events);
+        }
+    }
     
     /**
      * Log the event if it supports logging.
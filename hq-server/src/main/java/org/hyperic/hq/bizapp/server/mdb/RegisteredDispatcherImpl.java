@@ -29,12 +29,16 @@ import javax.jms.ObjectMessage;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hyperic.hq.bizapp.server.shared.HeartbeatCurrentTime;
+import org.hyperic.hq.common.util.LocalEventBus;
+import org.hyperic.hq.common.util.LocalEventListener;
 import org.hyperic.hq.events.AbstractEvent;
+import org.hyperic.hq.events.EventConstants;
 import org.hyperic.hq.events.EventTypeException;
 import org.hyperic.hq.events.HeartBeatEvent;
 import org.hyperic.hq.events.TriggerInterface;
 import org.hyperic.hq.events.ext.RegisterableTriggerInterface;
 import org.hyperic.hq.events.ext.RegisteredTriggers;
+import org.hyperic.hq.measurement.ext.MeasurementEvent;
 import org.hyperic.hq.stats.ConcurrentStatsCollector;
 import org.hyperic.util.TimeUtil;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -51,23 +55,27 @@ import org.springframework.beans.factory.annotation.Autowired;
  * We are specifically NOT interacting with database or Hibernate sessions during message processing for performance reasons
  * Bound to topic/eventsTopic
  */
-public class RegisteredDispatcherImpl implements MessageListener, HeartbeatCurrentTime {
+public class RegisteredDispatcherImpl implements MessageListener, LocalEventListener, HeartbeatCurrentTime {
     private final Log log = LogFactory.getLog(RegisteredDispatcherImpl.class);
     
     private RegisteredTriggers registeredTriggers;
     private ConcurrentStatsCollector concurrentStatsCollector;
+    private LocalEventBus localEventBus;
     private AtomicLong heartbeatTime = new AtomicLong();
     
     @Autowired
-    public RegisteredDispatcherImpl(RegisteredTriggers registeredTriggers, ConcurrentStatsCollector concurrentStatsCollector) {
+    public RegisteredDispatcherImpl(RegisteredTriggers registeredTriggers, ConcurrentStatsCollector concurrentStatsCollector,
+                                    LocalEventBus localEventBus) {
         this.registeredTriggers = registeredTriggers;
         this.concurrentStatsCollector = concurrentStatsCollector;
+        this.localEventBus = localEventBus;
         this.heartbeatTime.set(System.currentTimeMillis());
     }
     
     @PostConstruct
     public void initStatsCollector() {
     	concurrentStatsCollector.register(ConcurrentStatsCollector.EVENT_PROCESSING_TIME);
+    	localEventBus.subscribe(EventConstants.EVENTS_TOPIC, "RegisteredDispatcher", this);
     }
 
     /**
@@ -76,6 +84,15 @@ public class RegisteredDispatcherImpl implements MessageListener, HeartbeatCurre
      * @param event The event.
      */
     private void dispatchEvent(AbstractEvent event) {
+        if (event instanceof MeasurementEvent) {
+            // Plain thresholds are compared in one go, without the triggers
+            try {
+                registeredTriggers.evaluateThresholds((MeasurementEvent) event);
+            } catch (Exception e) {
+                log.error("Failed to dispatch event", e);
+            }
+        }
+
         // Get interested triggers
         Collection<RegisterableTriggerInterface> triggers = getInterestedTriggers(event);
 
@@ -109,7 +126,6 @@ public class RegisteredDispatcherImpl implements MessageListener, HeartbeatCurre
      * The onMessage method
      * 
      */
-    @SuppressWarnings("unchecked")
     public void onMessage(Message inMessage) {
         if (!(inMessage instanceof ObjectMessage)) {
             return;
@@ -124,7 +140,16 @@ public class RegisteredDispatcherImpl implements MessageListener, HeartbeatCurre
             log.error("Cannot open message object", e);
             return;
         }
+        onObject(obj);
+    }
 
+    /**
+     * Dispatches the events published to the local event bus, or received
+     * in a message.
+     */
+    @SuppressWarnings("unchecked")
+    public void onObject(Object obj) {
+        final boolean debug = log.isDebugEnabled();
         if (obj instanceof HeartBeatEvent) {
             final HeartBeatEvent event = (HeartBeatEvent) obj;
             final long timestamp = event.getTimestamp();
@@ -2,6 +2,7 @@
 
 package org.hyperic.hq.bizapp.server.mdb;
 
+import javax.annotation.PostConstruct;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageListener;
@@ -9,46 +10,57 @@ import javax.jms.ObjectMessage;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.hyperic.hq.common.util.LocalEventBus;
+import org.hyperic.hq.common.util.LocalEventListener;
 import org.hyperic.hq.control.ControlEvent;
 import org.hyperic.hq.control.server.session.ServerRestartHandler;
 import org.hyperic.hq.control.shared.ControlConstants;
+import org.hyperic.hq.events.EventConstants;
 import org.springframework.beans.factory.annotation.Autowired;
 
 /**
  * Bound to topic/eventsTopic
  */
-public class ServerRestartedListener implements MessageListener {
+public class ServerRestartedListener implements MessageListener, LocalEventListener {
 
     private ServerRestartHandler serverRestartHandler;
+    private LocalEventBus localEventBus;
 
     private final Log log = LogFactory.getLog(ServerRestartedListener.class);
 
     @Autowired
-    public ServerRestartedListener(ServerRestartHandler serverRestartHandler) {
+    public ServerRestartedListener(ServerRestartHandler serverRestartHandler, LocalEventBus localEventBus) {
         this.serverRestartHandler = serverRestartHandler;
+        this.localEventBus = localEventBus;
     }
 
-
+    @PostConstruct
+    public void subscribe() {
+        localEventBus.subscribe(EventConstants.EVENTS_TOPIC, "ServerRestartedListener", this);
+    }
 
     public void onMessage(Message message) {
         if (message instanceof ObjectMessage) {
             try {
-                final Object messageObject = ((ObjectMessage) message).getObject();
-                if (messageObject instanceof ControlEvent) {
-                    ControlEvent event = (ControlEvent) messageObject;
-                    if ((event.getAction().equals("restart") || event.getAction().equals("start")) &&
-                        event.getStatus().equals(ControlConstants.STATUS_COMPLETED) && event.getResource().isServer()) {
-                        try {
-                            serverRestartHandler.serverRestarted(event.getResource());
-                        } catch (Exception e) {
-                            log.error("Error processing possible server restart event", e);
-                        }
-                    }
-                }
+                onObject(((ObjectMessage) message).getObject());
             } catch (JMSException e) {
                 log.error("Error processing possible server restart event", e);
             }
         }
     }
 
+    public void onObject(Object messageObject) {
+        if (messageObject instanceof ControlEvent) {
+            ControlEvent event = (ControlEvent) messageObject;
+            if ((event.getAction().equals("restart") || event.getAction().equals("start")) &&
+                event.getStatus().equals(ControlConstants.STATUS_COMPLETED) && event.getResource().isServer()) {
+                try {
+                    serverRestartHandler.serverRestarted(event.getResource());
+                } catch (Exception e) {
+                    log.error("Error processing possible server restart event", e);
+                }
+            }
+        }
+    }
+
 }
@@ -101,7 +101,9 @@ import org.hyperic.hq.control.shared.ControlManager;
 import org.hyperic.hq.events.EventConstants;
 import org.hyperic.hq.ha.HAService;
 import org.hyperic.hq.ha.HAUtil;
+import org.hyperic.hq.measurement.data.MeasurementReport;
 import org.hyperic.hq.measurement.data.TrackEventReport;
+import org.hyperic.hq.measurement.server.session.DataInserterBusyException;
 import org.hyperic.hq.measurement.server.session.DataInserterException;
 import org.hyperic.hq.measurement.shared.ConfigChangedEvent;
 import org.hyperic.hq.measurement.shared.MeasurementConfigEntity;
@@ -503,11 +505,17 @@ public class LatherDispatcherImpl implements LatherDispatcher {
 
         try {
             reportProcessor.handleMeasurementReport(args.getReport());
+        } catch (DataInserterBusyException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Asking the agent to resend its report later: " + e.getMessage());
+            }
+            throw new LatherRemoteException(MeasurementSendReport_result.SERVER_BUSY);
         } catch (DataInserterException e) {
             throw new LatherRemoteException("Unable to insert data " + e, e);
         }
 
         res.setTime(now());
+        res.setReportEncoding(MeasurementReport.ENCODING_CURRENT);
         return res;
     }
 
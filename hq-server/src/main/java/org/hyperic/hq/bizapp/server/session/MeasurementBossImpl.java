@@ -110,6 +110,8 @@ import org.hyperic.hq.measurement.server.session.Measurement;
 import org.hyperic.hq.measurement.server.session.MeasurementTemplate;
 import org.hyperic.hq.measurement.shared.AvailabilityManager;
 import org.hyperic.hq.measurement.shared.DataManager;
+import org.hyperic.hq.measurement.shared.GroupHealth;
+import org.hyperic.hq.measurement.shared.GroupHealthManager;
 import org.hyperic.hq.measurement.shared.HighLowMetricValue;
 import org.hyperic.hq.measurement.shared.MeasurementManager;
 import org.hyperic.hq.measurement.shared.ProblemMetricManager;
@@ -158,6 +160,7 @@ public class MeasurementBossImpl implements MeasurementBoss {
     private final VirtualManager virtualManager;
     private final ApplicationManager applicationManager;
     private final ProblemMetricManager problemMetricManager;
+    private final GroupHealthManager groupHealthManager;
 
     @Autowired
     public MeasurementBossImpl(SessionManager sessionManager, AuthBoss authBoss,
@@ -169,7 +172,8 @@ public class MeasurementBossImpl implements MeasurementBoss {
                                ResourceGroupManager resourceGroupManager,
                                ServerManager serverManager, ServiceManager serviceManager,
                                VirtualManager virtualManager, ApplicationManager applicationManager, 
-                               ProblemMetricManager problemMetricManager) {
+                               ProblemMetricManager problemMetricManager,
+                               GroupHealthManager groupHealthManager) {
         this.sessionManager = sessionManager;
         this.authBoss = authBoss;
         this.measurementManager = measurementManager;
@@ -185,6 +189,7 @@ public class MeasurementBossImpl implements MeasurementBoss {
         this.virtualManager = virtualManager;
         this.applicationManager = applicationManager;
         this.problemMetricManager = problemMetricManager;
+        this.groupHealthManager = groupHealthManager;
     }
     
     @Transactional(readOnly = true)
@@ -2336,6 +2341,10 @@ public class MeasurementBossImpl implements MeasurementBoss {
         if (groupResource == null || groupResource.isInAsyncDeleteState()) {
             return MeasurementConstants.AVAIL_UNKNOWN;
         }
+        final GroupHealth health = groupHealthManager.getGroupHealth(group);
+        if (health != null) {
+            return getCalculatedGroupAvailability(health);
+        }
         if (measCache == null) {
             measCache = measurementManager.getAvailMeasurementsByResource(Collections.singleton(group));
         }
@@ -2677,6 +2686,12 @@ public class MeasurementBossImpl implements MeasurementBoss {
 
         List resources;
         if (entId.isGroup()) {
+            final ResourceGroup group = resourceGroupManager.findResourceGroupById(subject, entId.getId());
+            final GroupHealth health = (group == null) ? null : groupHealthManager.getGroupHealth(group);
+            if (health != null) {
+                return new MeasurementSummary(new Integer(health.getNumUp()),
+                    new Integer(health.getNumUnavailable()), new Integer(health.getNumUnknown()));
+            }
             resources = getResourceIds(subject, entId, null);
         } else if (entId.isApplication()) {
             AppdefEntityValue aev = new AppdefEntityValue(entId, subject);
@@ -2957,6 +2972,21 @@ public class MeasurementBossImpl implements MeasurementBoss {
         return result;
     }
 
+    /**
+     * @return the same as {@link #getCalculatedGroupAvailability(double[])}
+     *         for the availability of the members counted in the health.
+     */
+    protected double getCalculatedGroupAvailability(GroupHealth health) {
+        if (health.getNumMembers() == 0) {
+            return MeasurementConstants.AVAIL_UNKNOWN;
+        }
+        // Members being deleted count as unknown
+        return getSummaryValue(health.getCount(GroupHealth.DOWN) > 0, health.getCount(GroupHealth.UP) > 0,
+            health.getCount(GroupHealth.UNKNOWN) > 0 || health.getCount(GroupHealth.DELETED) > 0,
+            health.getCount(GroupHealth.WARN) > 0, health.getCount(GroupHealth.PAUSED) > 0,
+            health.getCount(GroupHealth.POWERED_OFF) > 0);
+    }
+
     /**
      * Here is the table for these states evaluated in this order: All Red = Red,
      * All Green = Green, All Yellow = Yellow, All Grey = Grey, All Orange = Orange,
@@ -0,0 +1,248 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+
+package org.hyperic.hq.bizapp.server.trigger.conditional;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hyperic.hq.events.ext.RegisterableTriggerInterface;
+import org.hyperic.hq.measurement.ext.MeasurementEvent;
+
+/**
+ * The {@link MeasurementThresholdTrigger}s of all measurements, compiled
+ * into arrays of operators and thresholds for each measurement.  An event
+ * is compared with every threshold of its measurement in one loop, and
+ * only a threshold which is met creates a TriggerFiredEvent, through its
+ * trigger.
+ * <p>
+ * The operator and threshold of a trigger are read when it is added.  The
+ * arrays of a measurement are replaced whenever one of its triggers is
+ * added or removed, so that events are evaluated without locks.
+ */
+public class CompiledThresholdTriggers {
+
+    /**
+     * The thresholds of one measurement, never changed once built.
+     */
+    private static final class Thresholds {
+        private final int[] operators;
+        private final double[] thresholds;
+        private final MeasurementThresholdTrigger[] triggers;
+
+        private Thresholds(List<MeasurementThresholdTrigger> triggers) {
+            final int size = triggers.size();
+            this.operators = new int[size];
+            this.thresholds = new double[size];
+            this.triggers = triggers.toArray(new MeasurementThresholdTrigger[size]);
+            for (int i = 0; i < size; i++) {
+                this.operators[i] = this.triggers[i].getOperator();
+                this.thresholds[i] = this.triggers[i].getThreshold();
+            }
+        }
+    }
+
+    private final Log log = LogFactory.getLog(CompiledThresholdTriggers.class);
+    private final Map<Integer, Thresholds> thresholds = new ConcurrentHashMap<Integer, Thresholds>();
+    // The measurement of each trigger, guarded by this
+    private final Map<Integer, Integer> measurements = new HashMap<Integer, Integer>();
+
+    /**
+     * @return true if the trigger is a plain comparison of a measurement
+     *         with a threshold, which can be compiled.
+     */
+    public static boolean isCompilable(RegisterableTriggerInterface trigger) {
+        // Subclasses may evaluate events differently
+        if (trigger == null || trigger.getClass() != MeasurementThresholdTrigger.class) {
+            return false;
+        }
+        MeasurementThresholdTrigger threshold = (MeasurementThresholdTrigger) trigger;
+        return threshold.getMeasurementID() != null &&
+               MeasurementThresholdTrigger.isValidOperator(threshold.getOperator());
+    }
+
+    /**
+     * Adds a trigger, replacing one with the same id.
+     * @throws IllegalArgumentException if the trigger is not compilable
+     */
+    public synchronized void add(RegisterableTriggerInterface trigger) {
+        if (!isCompilable(trigger)) {
+            throw new IllegalArgumentException("Trigger " + trigger.getId() +
+                                               " is not a compilable threshold");
+        }
+        MeasurementThresholdTrigger add = (MeasurementThresholdTrigger) trigger;
+        remove(add.getId());
+
+        final Integer mid = add.getMeasurementID();
+        List<MeasurementThresholdTrigger> triggers = getTriggerList(mid);
+        triggers.add(add);
+        thresholds.put(mid, new Thresholds(triggers));
+        measurements.put(add.getId(), mid);
+    }
+
+    /**
+     * @return the measurement the trigger was on, or null if the trigger was
+     *         not compiled.
+     */
+    public synchronized Integer remove(Integer triggerId) {
+        final Integer mid = measurements.remove(triggerId);
+        if (mid == null) {
+            return null;
+        }
+        List<MeasurementThresholdTrigger> triggers = getTriggerList(mid);
+        for (int i = 0; i < triggers.size(); i++) {
+            if (triggers.get(i).getId().equals(triggerId)) {
+                triggers.remove(i);
+                break;
+            }
+        }
+        if (triggers.isEmpty()) {
+            thresholds.remove(mid);
+        } else {
+            thresholds.put(mid, new Thresholds(triggers));
+        }
+        return mid;
+    }
+
+    public synchronized void clear() {
+        thresholds.clear();
+        measurements.clear();
+    }
+
+    private List<MeasurementThresholdTrigger> getTriggerList(Integer mid) {
+        Thresholds compiled = thresholds.get(mid);
+        List<MeasurementThresholdTrigger> rtn = new ArrayList<MeasurementThresholdTrigger>();
+        if (compiled != null) {
+            for (MeasurementThresholdTrigger trigger : compiled.triggers) {
+                rtn.add(trigger);
+            }
+        }
+        return rtn;
+    }
+
+    public synchronized MeasurementThresholdTrigger getTrigger(Integer triggerId) {
+        final Integer mid = measurements.get(triggerId);
+        if (mid == null) {
+            return null;
+        }
+        for (MeasurementThresholdTrigger trigger : thresholds.get(mid).triggers) {
+            if (trigger.getId().equals(triggerId)) {
+                return trigger;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the enabled triggers of the measurement.
+     */
+    public Collection<RegisterableTriggerInterface> getTriggers(Integer mid) {
+        final Thresholds compiled = thresholds.get(mid);
+        if (compiled == null) {
+            return new ArrayList<RegisterableTriggerInterface>(0);
+        }
+        List<RegisterableTriggerInterface> rtn =
+            new ArrayList<RegisterableTriggerInterface>(compiled.triggers.length);
+        for (MeasurementThresholdTrigger trigger : compiled.triggers) {
+            if (trigger.isEnabled()) {
+                rtn.add(trigger);
+            }
+        }
+        return rtn;
+    }
+
+    /**
+     * @return true if the measurement has compiled triggers, enabled or not.
+     */
+    public boolean hasTriggers(Integer mid) {
+        return thresholds.containsKey(mid);
+    }
+
+    /**
+     * @return true if the measurement has an enabled trigger.
+     */
+    public boolean isInterested(Integer mid) {
+        final Thresholds compiled = thresholds.get(mid);
+        if (compiled == null) {
+            return false;
+        }
+        for (MeasurementThresholdTrigger trigger : compiled.triggers) {
+            if (trigger.isEnabled()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compares the value of the event with every enabled threshold of its
+     * measurement, firing the triggers whose condition is met and telling
+     * the others that they did not fire.
+     * @return the number of triggers fired.
+     */
+    public int evaluate(MeasurementEvent event) {
+        final Thresholds compiled = thresholds.get(event.getInstanceId());
+        if (compiled == null) {
+            return 0;
+        }
+        final double value = event.getValue().getValue();
+        final int[] operators = compiled.operators;
+        final double[] limits = compiled.thresholds;
+        final MeasurementThresholdTrigger[] triggers = compiled.triggers;
+        int fired = 0;
+
+        for (int i = 0; i < operators.length; i++) {
+            if (!triggers[i].isEnabled()) {
+                continue;
+            }
+            try {
+                if (MeasurementThresholdTrigger.isMet(operators[i], value, limits[i])) {
+                    triggers[i].fire(event);
+                    fired++;
+                } else {
+                    triggers[i].notMet(event);
+                }
+            } catch (RuntimeException e) {
+                // Don't let one trigger keep the others from the event
+                log.error("Failed to dispatch event to trigger " + triggers[i].getId(), e);
+            }
+        }
+        return fired;
+    }
+
+    /**
+     * @return the number of compiled triggers.
+     */
+    public synchronized int size() {
+        return measurements.size();
+    }
+}
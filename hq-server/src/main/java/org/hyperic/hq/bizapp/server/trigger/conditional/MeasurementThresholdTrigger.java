@@ -53,13 +53,6 @@ public class MeasurementThresholdTrigger
 
     private final Log log = LogFactory.getLog(getClass().getName());
 
-    private final int OPER_LE = ConditionalTriggerSchema.OPER_LE;
-    private final int OPER_LT = ConditionalTriggerSchema.OPER_LT;
-    private final int OPER_EQ = ConditionalTriggerSchema.OPER_EQ;
-    private final int OPER_GT = ConditionalTriggerSchema.OPER_GT;
-    private final int OPER_GE = ConditionalTriggerSchema.OPER_GE;
-    private final int OPER_NE = ConditionalTriggerSchema.OPER_NE;
-
     private final String[] OPER_STRS = ConditionalTriggerSchema.OPER_STRS;
 
     private int operator;
@@ -193,12 +186,41 @@ public class MeasurementThresholdTrigger
         metricId = measID;
     }
 
-    private void logComparison(String operator, double compVal) {
+    private void logComparison(double compVal) {
         if (log.isDebugEnabled()) {
-            log.debug("Evaluating if " + compVal + " " + operator + " " + threshold);
+            log.debug("Evaluating if " + compVal + " " + OPER_STRS[operator] + " " + threshold);
+        }
+    }
+
+    /**
+     * @return true if the value compares to the threshold as the operator
+     *         says, which makes the trigger fire.
+     */
+    static boolean isMet(int operator, double compVal, double threshold) {
+        switch (operator) {
+            case ConditionalTriggerSchema.OPER_LE:
+                return compVal <= threshold;
+            case ConditionalTriggerSchema.OPER_LT:
+                return compVal < threshold;
+            case ConditionalTriggerSchema.OPER_EQ:
+                return compVal == threshold;
+            case ConditionalTriggerSchema.OPER_GT:
+                return compVal > threshold;
+            case ConditionalTriggerSchema.OPER_GE:
+                return compVal >= threshold;
+            case ConditionalTriggerSchema.OPER_NE:
+                return compVal != threshold;
+            default:
+                // Wow -- we should never get here -- throw an assertion
+                throw new RuntimeException("Invalid threshold operation!");
         }
     }
 
+    static boolean isValidOperator(int operator) {
+        return operator >= ConditionalTriggerSchema.OPER_LE &&
+               operator <= ConditionalTriggerSchema.OPER_NE;
+    }
+
     public void processEvent(AbstractEvent e) throws EventTypeException {
         if (!(e instanceof MeasurementEvent)) {
             throw new EventTypeException("Invalid event type passed, " + "expected MeasurementEvent");
@@ -208,33 +230,10 @@ public class MeasurementThresholdTrigger
             return;
         }
 
-        boolean fire;
         MeasurementEvent event = (MeasurementEvent) e;
-        MetricValue val = event.getValue();
-        double compVal = val.getValue();
-
-        if (operator == OPER_LE) {
-            fire = compVal <= threshold;
-            logComparison("<=", compVal);
-        } else if (operator == OPER_LT) {
-            fire = compVal < threshold;
-            logComparison("<", compVal);
-        } else if (operator == OPER_EQ) {
-            fire = compVal == threshold;
-            logComparison("==", compVal);
-        } else if (operator == OPER_GT) {
-            fire = compVal > threshold;
-            logComparison(">", compVal);
-        } else if (operator == OPER_GE) {
-            fire = compVal >= threshold;
-            logComparison(">=", compVal);
-        } else if (operator == OPER_NE) {
-            fire = compVal != threshold;
-            logComparison("!=", compVal);
-        } else {
-            // Wow -- we should never get here -- throw an assertion
-            throw new RuntimeException("Invalid threshold operation!");
-        }
+        double compVal = event.getValue().getValue();
+        boolean fire = isMet(operator, compVal, threshold);
+        logComparison(compVal);
 
         // Don't do any more if condition was unmet
         if (fire == false) {
@@ -242,10 +241,25 @@ public class MeasurementThresholdTrigger
             return;
         }
 
+        fire(event);
+    }
+
+    /**
+     * Fires the actions of the trigger for an event which met the condition.
+     */
+    void fire(MeasurementEvent event) {
         TriggerFiredEvent tfe = prepareTriggerFiredEvent(event);
-        tfe.setMessage("Metric(" + metricId + ") value " + val + " " + OPER_STRS[operator] + " " + threshold);
+        tfe.setMessage("Metric(" + metricId + ") value " + event.getValue() + " " +
+                       OPER_STRS[operator] + " " + threshold);
         fireActions(tfe);
+    }
 
+    /**
+     * Tells the alert condition evaluator about an event which did not meet
+     * the condition.
+     */
+    void notMet(MeasurementEvent event) {
+        notFired(event);
     }
 
     public void setMeasurementID(Integer val) {
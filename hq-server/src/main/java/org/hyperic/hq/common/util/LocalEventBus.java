@@ -0,0 +1,252 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.common.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hyperic.hq.stats.ConcurrentStatsCollector;
+import org.hyperic.util.stats.StatCollector;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Hands the messages published to a topic to the listeners in this JVM
+ * which subscribed to it, without serializing them as the in-VM JMS
+ * broker does.  Each listener has a bounded ring buffer of messages and a
+ * thread of its own taking them from it, as each JMS listener has one
+ * consumer.  A publisher waits while the buffer of a listener is full.
+ * <p>
+ * Every listener gets the published object itself, so it must not be
+ * changed once published.  The bus is only used if hq.events.bus is
+ * "local", and only for topics with local listeners, anything else is
+ * left to JMS.
+ */
+@Component
+public class LocalEventBus {
+    public static final String MODE_JMS = "jms";
+    public static final String MODE_LOCAL = "local";
+    private static final int DEFAULT_CAPACITY = 1024;
+    private static final long POLL_INTERVAL = 1000;
+
+    private final Log log = LogFactory.getLog(LocalEventBus.class);
+    private final Map<String, List<Subscription>> topics =
+        new ConcurrentHashMap<String, List<Subscription>>();
+    private final AtomicBoolean shutdown = new AtomicBoolean(false);
+
+    private final ConcurrentStatsCollector concurrentStatsCollector;
+    private final boolean enabled;
+    private final int capacity;
+
+    @Autowired
+    public LocalEventBus(ConcurrentStatsCollector concurrentStatsCollector,
+                         @Value("#{tweakProperties['hq.events.bus'] }") String mode,
+                         @Value("#{tweakProperties['hq.events.bus.capacity'] }") Integer capacity) {
+        this.concurrentStatsCollector = concurrentStatsCollector;
+        if (mode != null && !MODE_LOCAL.equalsIgnoreCase(mode) && !MODE_JMS.equalsIgnoreCase(mode)) {
+            log.warn("Unknown event bus '" + mode + "', using " + MODE_JMS);
+        }
+        this.enabled = MODE_LOCAL.equalsIgnoreCase(mode);
+        this.capacity = (capacity == null) ? DEFAULT_CAPACITY : Math.max(1, capacity.intValue());
+    }
+
+    /**
+     * @return true if hq.events.bus is "local"
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @PostConstruct
+    void initialize() {
+        if (!enabled) {
+            return;
+        }
+        log.info("Delivering events to local listeners through buffers of " + capacity + " messages");
+        concurrentStatsCollector.register(ConcurrentStatsCollector.LOCAL_EVENT_BUS_PUBLISH_TIME);
+        concurrentStatsCollector.register(new StatCollector() {
+            public long getVal() {
+                return getQueueSize();
+            }
+            public String getId() {
+                return ConcurrentStatsCollector.LOCAL_EVENT_BUS_QUEUE_SIZE;
+            }
+        });
+    }
+
+    /**
+     * Subscribes a listener to a topic, if the bus is enabled.
+     *
+     * @param name The name of the listener, which names its thread
+     */
+    public void subscribe(String topic, String name, LocalEventListener listener) {
+        if (!enabled) {
+            return;
+        }
+        final Subscription sub = new Subscription(name, listener);
+        synchronized (topics) {
+            List<Subscription> subs = topics.get(topic);
+            if (subs == null) {
+                subs = new CopyOnWriteArrayList<Subscription>();
+                topics.put(topic, subs);
+            }
+            subs.add(sub);
+        }
+        sub.consumer.start();
+        if (log.isDebugEnabled()) {
+            log.debug(name + " subscribed to " + topic);
+        }
+    }
+
+    /**
+     * Hands a message to each listener subscribed to the topic, waiting for
+     * room in their buffers.
+     *
+     * @return false if the bus is disabled or shut down, or nothing in this
+     *         JVM subscribed to the topic, in which case the message has to
+     *         be sent with JMS.
+     */
+    public boolean publish(String topic, Object obj) {
+        if (!enabled || shutdown.get()) {
+            return false;
+        }
+        final List<Subscription> subs = topics.get(topic);
+        if (subs == null || subs.isEmpty()) {
+            return false;
+        }
+        try {
+            for (Subscription sub : subs) {
+                sub.put(obj);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted while publishing to " + topic + ".  Some events may be lost");
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of messages waiting in the buffers of all the
+     *         listeners.
+     */
+    int getQueueSize() {
+        int size = 0;
+        for (List<Subscription> subs : topics.values()) {
+            for (Subscription sub : subs) {
+                size += sub.ring.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Stops the listener threads once they have taken every message
+     * published before.
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        if (!shutdown.compareAndSet(false, true)) {
+            return;
+        }
+        for (List<Subscription> subs : topics.values()) {
+            for (Subscription sub : subs) {
+                sub.consumer.join();
+            }
+        }
+    }
+
+    private class Subscription implements Runnable {
+        private final String name;
+        private final LocalEventListener listener;
+        private final BlockingQueue<Object> ring;
+        private final Thread consumer;
+        // Published by the listener itself while its buffer was full, so it
+        // can't wait for room.  Only used by the consumer thread.
+        private final List<Object> overflow = new ArrayList<Object>();
+
+        private Subscription(String name, LocalEventListener listener) {
+            this.name = name;
+            this.listener = listener;
+            this.ring = new ArrayBlockingQueue<Object>(capacity);
+            this.consumer = new Thread(this, "LocalEventBus-" + name);
+            this.consumer.setDaemon(true);
+        }
+
+        private void put(Object obj) throws InterruptedException {
+            if (Thread.currentThread() != consumer) {
+                ring.put(obj);
+            } else if (!overflow.isEmpty() || !ring.offer(obj)) {
+                overflow.add(obj);
+            }
+        }
+
+        public void run() {
+            while (!shutdown.get() || !ring.isEmpty()) {
+                Object obj;
+                try {
+                    obj = ring.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (obj == null) {
+                    continue;
+                }
+                deliver(obj);
+                while (!overflow.isEmpty()) {
+                    // What is in the buffer was published first
+                    final List<Object> pending = new ArrayList<Object>(capacity + overflow.size());
+                    ring.drainTo(pending);
+                    pending.addAll(overflow);
+                    overflow.clear();
+                    for (Object next : pending) {
+                        deliver(next);
+                    }
+                }
+            }
+        }
+
+        private void deliver(Object obj) {
+            try {
+                listener.onObject(obj);
+            } catch (RuntimeException e) {
+                log.error(name + " failed to process a message: " + e, e);
+            }
+        }
+    }
+}
@@ -42,11 +42,14 @@ public class Messenger implements MessagePublisher {
 
     private JmsTemplate eventsJmsTemplate;
     private ConcurrentStatsCollector concurrentStatsCollector;
+    private LocalEventBus localEventBus;
     
     @Autowired
-    public Messenger(JmsTemplate eventsJmsTemplate, ConcurrentStatsCollector concurrentStatsCollector) {
+    public Messenger(JmsTemplate eventsJmsTemplate, ConcurrentStatsCollector concurrentStatsCollector,
+                     LocalEventBus localEventBus) {
         this.eventsJmsTemplate = eventsJmsTemplate;
         this.concurrentStatsCollector = concurrentStatsCollector;
+        this.localEventBus = localEventBus;
     }
 
     /**
@@ -65,11 +68,17 @@ public class Messenger implements MessagePublisher {
     }
 
     /**
-     * Send message to a Topic.
+     * Send message to a Topic, handing it to the listeners in this JVM if
+     * the local event bus is enabled and any are subscribed to the topic.
      * TODO make use of future method timing aspect to tie to ConcurrentStatsCollector and remove from code
      */
     public void publishMessage(String name, Serializable sObj) {
         final long start = System.currentTimeMillis();
+        if (localEventBus.publish(name, sObj)) {
+            concurrentStatsCollector.addStat(System.currentTimeMillis() - start,
+                ConcurrentStatsCollector.LOCAL_EVENT_BUS_PUBLISH_TIME);
+            return;
+        }
         eventsJmsTemplate.convertAndSend(name, sObj);
         final long end= System.currentTimeMillis();
         concurrentStatsCollector.addStat((end- start), ConcurrentStatsCollector.JMS_TOPIC_PUBLISH_TIME);
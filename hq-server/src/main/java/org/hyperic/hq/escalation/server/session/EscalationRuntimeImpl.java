@@ -26,16 +26,12 @@ package org.hyperic.hq.escalation.server.session;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -58,7 +54,9 @@ import org.hyperic.hq.events.server.session.ClassicEscalationAlertType;
 import org.hyperic.hq.galerts.server.session.GalertEscalationAlertType;
 import org.hyperic.hq.galerts.server.session.GalertLogDAO;
 import org.hyperic.hq.stats.ConcurrentStatsCollector;
+import org.hyperic.util.stats.StatCollector;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.transaction.support.TransactionSynchronization;
@@ -81,16 +79,21 @@ import org.springframework.transaction.support.TransactionSynchronizationManager
  * EscalationRunner | ->EsclManager.executeState
  * 
  * 
- * The Runtime puts {@link EscalationState}s into the schedule. When the
- * schedule determines the state's time is ready to run, the task is passed off
- * into an EscalationRunner (which comes from a thread pool) and kicked off.
+ * The Runtime puts {@link EscalationState}s into the schedule, an
+ * {@link EscalationTimer}. When the schedule determines the state's time is
+ * ready to run, the task is passed off into an EscalationRunner (which comes
+ * from a thread pool) and kicked off.
  */
 @Component
 public class EscalationRuntimeImpl implements EscalationRuntime {
 
 	private final ThreadLocal _batchUnscheduleTxnListeners = new ThreadLocal();
 
-	private final Timer _schedule = new Timer("EscalationRuntime", true);
+	private static final int DEFAULT_THREADS = 3;
+	private static final long DEFAULT_TICK = 1000;
+	private static final int WHEEL_SIZE = 512;
+
+	private final EscalationTimer _schedule;
 	private final Map _stateIdsToTasks = new HashMap();
 	private final Map _esclEntityIdsToStateIds = new HashMap();
 
@@ -109,7 +112,9 @@ public class EscalationRuntimeImpl implements EscalationRuntime {
 	@Autowired
 	public EscalationRuntimeImpl(EscalationStateDAO escalationStateDao,
 			AuthzSubjectManager authzSubjectManager, AlertDAO alertDAO,
-			GalertLogDAO galertLogDAO, ConcurrentStatsCollector concurrentStatsCollector) {
+			GalertLogDAO galertLogDAO, ConcurrentStatsCollector concurrentStatsCollector,
+			@Value("#{tweakProperties['hq.escalation.threads'] }") Integer threads,
+			@Value("#{tweakProperties['hq.escalation.tick'] }") Long tick) {
 		this.escalationStateDao = escalationStateDao;
 		this.authzSubjectManager = authzSubjectManager;
 		this.alertDAO = alertDAO;
@@ -118,40 +123,67 @@ public class EscalationRuntimeImpl implements EscalationRuntime {
 		// Want threads to never die (XXX, scottmf, keeping current
 		// functionality to get rid of
 		// backport apis but don't think this is a good idea)
-		// 3 threads to service requests
-		_executor = new ThreadPoolExecutor(3, 3, Long.MAX_VALUE, TimeUnit.SECONDS, new LinkedBlockingQueue());
+		// hq.escalation.threads threads to service requests, 3 by default
+		final int numThreads = (threads == null) ? DEFAULT_THREADS : Math.max(1, threads.intValue());
+		_executor = new ThreadPoolExecutor(numThreads, numThreads, Long.MAX_VALUE, TimeUnit.SECONDS, new LinkedBlockingQueue());
+		_schedule = new EscalationTimer("EscalationRuntime",
+				(tick == null) ? DEFAULT_TICK : Math.max(1, tick.longValue()), WHEEL_SIZE,
+				new ScheduleWatcher());
 	}
 	
 	@PostConstruct
 	public void initStatsCollection() {
 		concurrentStatsCollector.register(ConcurrentStatsCollector.ESCALATION_EXECUTE_STATE_TIME);
+		concurrentStatsCollector.register(ConcurrentStatsCollector.ESCALATION_LATENESS);
+		concurrentStatsCollector.register(new StatCollector() {
+			public long getVal() {
+				return _schedule.size();
+			}
+			public String getId() {
+				return ConcurrentStatsCollector.ESCALATIONS_SCHEDULED;
+			}
+		});
+		concurrentStatsCollector.register(new StatCollector() {
+			public long getVal() {
+				return _executor.getQueue().size();
+			}
+			public String getId() {
+				return ConcurrentStatsCollector.ESCALATION_QUEUE_SIZE;
+			}
+		});
+		_schedule.start();
 	}
 	
 	@PreDestroy 
 	public final void destroy() { 
 	    this._executor.shutdown() ;
-	    this._schedule.cancel() ;
+	    this._schedule.stop() ;
 	}//EOM 
 
 	/**
 	 * This class is invoked when the clock daemon wakes up and decides that it
-	 * is time to look at an escalation.
+	 * is time to look at the escalations which came due in a tick.
 	 */
-	private class ScheduleWatcher extends TimerTask {
-		private final Integer _stateId;
-		private final Executor _executor;
-
-		private ScheduleWatcher(Integer stateId, Executor executor) {
-			_stateId = stateId;
-			_executor = executor;
-		}
-
-		@Override
-        public void run() {
-			try {
-				_executor.execute(new EscalationRunner(_stateId));
-			}  catch(Throwable t) {
-				log.error(t,t); 
+	private class ScheduleWatcher implements EscalationTimer.Handler {
+		public void expired(List<EscalationTimer.Timeout> timeouts) {
+			final long now = System.currentTimeMillis();
+			final List<EscalationTimer.Timeout> due = new ArrayList<EscalationTimer.Timeout>(timeouts.size());
+			synchronized (_stateIdsToTasks) {
+				for (EscalationTimer.Timeout timeout : timeouts) {
+					// Skip the states rescheduled or unscheduled since they came due
+					if (_stateIdsToTasks.get(timeout.getStateId()) == timeout) {
+						due.add(timeout);
+					}
+				}
+			}
+			for (EscalationTimer.Timeout timeout : due) {
+				try {
+					concurrentStatsCollector.addStat(now - timeout.getTime(),
+							ConcurrentStatsCollector.ESCALATION_LATENESS);
+					_executor.execute(new EscalationRunner(timeout.getStateId()));
+				}  catch(Throwable t) {
+					log.error(t,t); 
+				}
 			}
 		}
 	}
@@ -286,8 +318,11 @@ public class EscalationRuntimeImpl implements EscalationRuntime {
 
 	private void unscheduleEscalation_(Integer stateId) {
 		synchronized (_stateIdsToTasks) {
-			doUnscheduleEscalation_(stateId);
-			_esclEntityIdsToStateIds.values().remove(stateId);
+			EscalationTimer.Timeout task = doUnscheduleEscalation_(stateId);
+			// the entity is only mapped to the state while it is scheduled
+			if (task != null && stateId.equals(_esclEntityIdsToStateIds.get(task.getEntityId()))) {
+				_esclEntityIdsToStateIds.remove(task.getEntityId());
+			}
 		}
 	}
 
@@ -302,18 +337,20 @@ public class EscalationRuntimeImpl implements EscalationRuntime {
 		}
 	}
 
-	private void doUnscheduleEscalation_(Integer stateId) {
-		if (stateId != null) {
-			TimerTask task = (TimerTask) _stateIdsToTasks.remove(stateId);
+	private EscalationTimer.Timeout doUnscheduleEscalation_(Integer stateId) {
+		if (stateId == null) {
+			return null;
+		}
+		EscalationTimer.Timeout task = (EscalationTimer.Timeout) _stateIdsToTasks.remove(stateId);
 
-			if (task != null) {
-				task.cancel();
-				log.debug("Canceled state[" + stateId + "]");
-			} else {
-				log.debug("Canceling state[" + stateId + "] but was "
-						+ "not found");
-			}
+		if (task != null) {
+			_schedule.cancel(task);
+			log.debug("Canceled state[" + stateId + "]");
+		} else {
+			log.debug("Canceling state[" + stateId + "] but was "
+					+ "not found");
 		}
+		return task;
 	}
 
 	/**
@@ -447,22 +484,21 @@ public class EscalationRuntimeImpl implements EscalationRuntime {
 		}
 
 		synchronized (_stateIdsToTasks) {
-			   ScheduleWatcher task = (ScheduleWatcher) _stateIdsToTasks.get(stateId);
+			EscalationTimer.Timeout task = (EscalationTimer.Timeout) _stateIdsToTasks.get(stateId);
 
 			if (task != null) {
 				// Previously scheduled. Unschedule
-				task.cancel();
+				_schedule.cancel(task);
 				log.debug("Rescheduling state[" + stateId + "]");
 			} else {
 				log.debug("Scheduling state[" + stateId + "]");
 			}
 			
-			 task = new ScheduleWatcher(stateId, _executor);
-			 _schedule.schedule(task, new Date(schedTime));
+			EscalatingEntityIdentifier entityId = new EscalatingEntityIdentifier(state);
+			task = _schedule.schedule(stateId, entityId, schedTime);
 
 			_stateIdsToTasks.put(stateId, task);
-			_esclEntityIdsToStateIds.put(new EscalatingEntityIdentifier(state),
-					stateId);
+			_esclEntityIdsToStateIds.put(entityId, stateId);
 		}
 	}
 
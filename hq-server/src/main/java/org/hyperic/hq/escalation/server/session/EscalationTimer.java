@@ -0,0 +1,231 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+
+package org.hyperic.hq.escalation.server.session;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Schedules escalation states on a hashed timing wheel.  Time is cut into
+ * ticks, and each state is put into the slot of the wheel its tick falls in,
+ * along with the number of turns of the wheel left before it is due.  Both
+ * scheduling and canceling are constant time however many states are
+ * scheduled, where a {@link java.util.Timer} keeps them in a heap.
+ * <p>
+ * Once a tick has passed, the states which came due in it are handed to the
+ * {@link Handler} together, so a state may run up to a tick late.
+ */
+class EscalationTimer {
+    private final Log log = LogFactory.getLog(EscalationTimer.class);
+
+    private final long tickDuration;
+    private final List<Set<Timeout>> wheel;
+    private final int mask;
+    private final Handler handler;
+    private final long startTime;
+    private final Thread worker;
+
+    // Guarded by this
+    private long tick = 0;
+    private int size = 0;
+    private volatile boolean shutdown = false;
+
+    /**
+     * Handles the states which came due in a tick.
+     */
+    interface Handler {
+        void expired(List<Timeout> timeouts);
+    }
+
+    /**
+     * A scheduled escalation state.
+     */
+    static class Timeout {
+        private final Integer stateId;
+        private final EscalatingEntityIdentifier entityId;
+        private final long time;
+        private final int slot;
+        private long rounds;
+        private boolean cancelled = false;
+
+        private Timeout(Integer stateId, EscalatingEntityIdentifier entityId, long time, int slot, long rounds) {
+            this.stateId = stateId;
+            this.entityId = entityId;
+            this.time = time;
+            this.slot = slot;
+            this.rounds = rounds;
+        }
+
+        Integer getStateId() {
+            return stateId;
+        }
+
+        EscalatingEntityIdentifier getEntityId() {
+            return entityId;
+        }
+
+        /**
+         * @return the time the state was due
+         */
+        long getTime() {
+            return time;
+        }
+    }
+
+    /**
+     * @param tickDuration The length of a tick, in milliseconds
+     * @param wheelSize The number of slots, rounded up to a power of two
+     */
+    EscalationTimer(String name, long tickDuration, int wheelSize, Handler handler) {
+        this(name, tickDuration, wheelSize, handler, System.currentTimeMillis());
+    }
+
+    /**
+     * @param startTime The time the first tick starts at
+     */
+    EscalationTimer(String name, long tickDuration, int wheelSize, Handler handler, long startTime) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("tickDuration must be positive: " + tickDuration);
+        }
+        int slots = 1;
+        while (slots < wheelSize) {
+            slots <<= 1;
+        }
+        this.tickDuration = tickDuration;
+        this.wheel = new ArrayList<Set<Timeout>>(slots);
+        for (int i = 0; i < slots; i++) {
+            wheel.add(new LinkedHashSet<Timeout>());
+        }
+        this.mask = slots - 1;
+        this.handler = handler;
+        this.startTime = startTime;
+        this.worker = new Thread(name) {
+            public void run() {
+                work();
+            }
+        };
+        this.worker.setDaemon(true);
+    }
+
+    void start() {
+        worker.start();
+    }
+
+    void stop() {
+        shutdown = true;
+        worker.interrupt();
+    }
+
+    /**
+     * Schedules the state to be handed to the handler once the tick holding
+     * the time has passed, or after the next tick if that is later.
+     */
+    synchronized Timeout schedule(Integer stateId, EscalatingEntityIdentifier entityId, long time) {
+        // The first tick ending at or after the time
+        long due = (time - startTime + tickDuration - 1) / tickDuration;
+        due = Math.max(due, tick + 1);
+        final Timeout timeout =
+            new Timeout(stateId, entityId, time, (int) (due & mask), (due - tick - 1) / wheel.size());
+        wheel.get(timeout.slot).add(timeout);
+        size++;
+        return timeout;
+    }
+
+    /**
+     * @return false if the timeout was already handed to the handler, or
+     *         canceled.
+     */
+    synchronized boolean cancel(Timeout timeout) {
+        if (timeout.cancelled || !wheel.get(timeout.slot).remove(timeout)) {
+            return false;
+        }
+        timeout.cancelled = true;
+        size--;
+        return true;
+    }
+
+    /**
+     * @return the number of states scheduled
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    private void work() {
+        while (!shutdown) {
+            final long next;
+            synchronized (this) {
+                next = startTime + ((tick + 1) * tickDuration);
+            }
+            final long wait = next - System.currentTimeMillis();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+            }
+            try {
+                advance(System.currentTimeMillis());
+            } catch (Throwable t) {
+                log.error(t, t);
+            }
+        }
+    }
+
+    /**
+     * Hands the states due in the ticks which ended by now to the handler.
+     */
+    void advance(long now) {
+        final List<Timeout> expired = new ArrayList<Timeout>();
+        synchronized (this) {
+            while (startTime + ((tick + 1) * tickDuration) <= now) {
+                tick++;
+                final Set<Timeout> slot = wheel.get((int) (tick & mask));
+                for (final Iterator<Timeout> it = slot.iterator(); it.hasNext();) {
+                    final Timeout timeout = it.next();
+                    if (timeout.rounds > 0) {
+                        timeout.rounds--;
+                        continue;
+                    }
+                    it.remove();
+                    size--;
+                    expired.add(timeout);
+                }
+            }
+        }
+        if (!expired.isEmpty()) {
+            handler.expired(expired);
+        }
+    }
+}
@@ -30,10 +30,13 @@ import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.hyperic.hq.bizapp.server.trigger.conditional.CompiledThresholdTriggers;
+import org.hyperic.hq.bizapp.server.trigger.conditional.MeasurementThresholdTrigger;
 import org.hyperic.hq.bizapp.server.trigger.conditional.ValueChangeTrigger;
 import org.hyperic.hq.events.AbstractEvent;
 import org.hyperic.hq.events.server.session.AlertRegulator;
 import org.hyperic.hq.measurement.ext.MeasurementEvent;
+import org.hyperic.hq.measurement.server.session.MeasurementInterestIndex;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
 
@@ -53,12 +56,24 @@ public class RegisteredTriggers implements RegisterableTriggerRepository {
 
     private final AlertRegulator alertRegulator;
 
+    // Measurement thresholds, which are kept out of the triggers map
+    private final CompiledThresholdTriggers thresholdTriggers = new CompiledThresholdTriggers();
+
+    // The measurements with triggers registered for their MeasurementEvents
+    private final MeasurementInterestIndex.Interest measurementInterest;
+
     private final Log log = LogFactory.getLog(RegisteredTriggers.class);
 
-    @Autowired
     public RegisteredTriggers(AlertRegulator alertRegulator) {
-        this.alertRegulator = alertRegulator;
+        this(alertRegulator, new MeasurementInterestIndex());
+    }
 
+    @Autowired
+    public RegisteredTriggers(AlertRegulator alertRegulator,
+                              MeasurementInterestIndex measurementInterestIndex) {
+        this.alertRegulator = alertRegulator;
+        this.measurementInterest =
+            measurementInterestIndex.getInterest(MeasurementInterestIndex.ALERT_TRIGGERS);
     }
 
     Map<TriggerEventKey, Map<Integer, RegisterableTriggerInterface>> getTriggers() {
@@ -66,9 +81,63 @@ public class RegisteredTriggers implements RegisterableTriggerRepository {
     }
    
     public void init() {
-        this.triggers = new ConcurrentHashMap<TriggerEventKey, Map<Integer, RegisterableTriggerInterface>>();
+        synchronized (triggerUpdateLock) {
+            this.triggers = new ConcurrentHashMap<TriggerEventKey, Map<Integer, RegisterableTriggerInterface>>();
+            thresholdTriggers.clear();
+            measurementInterest.clear();
+        }
+    }
+
+    private boolean isMeasurementEventKey(TriggerEventKey key) {
+        // Keys compare event classes by name
+        return key.getEventClass() != null &&
+            MeasurementEvent.class.getName().equals(key.getEventClass().getName());
+    }
+
+    private void watch(TriggerEventKey key) {
+        if (!isMeasurementEventKey(key)) {
+            return;
+        }
+        if (key.getInstanceId() == KEY_ALL.intValue()) {
+            measurementInterest.watchAll();
+        } else {
+            measurementInterest.watch(key.getInstanceId());
+        }
+    }
+
+    private void unwatch(TriggerEventKey key) {
+        if (!isMeasurementEventKey(key)) {
+            return;
+        }
+        if (key.getInstanceId() == KEY_ALL.intValue()) {
+            measurementInterest.unwatchAll();
+        } else if (!triggers.containsKey(key) &&
+                   !thresholdTriggers.hasTriggers(new Integer(key.getInstanceId()))) {
+            measurementInterest.unwatch(key.getInstanceId());
+        }
     }
 
+    /**
+     * Compares the event with the measurement thresholds, which
+     * getInterestedTriggers does not return.
+     * @return the number of threshold triggers fired.
+     */
+    public int evaluateThresholds(MeasurementEvent event) {
+        // All alerts are disabled, so no triggers should be processing events
+        if (!alertRegulator.alertsAllowed()) {
+            return 0;
+        }
+        return thresholdTriggers.evaluate(event);
+    }
+
+    CompiledThresholdTriggers getThresholdTriggers() {
+        return thresholdTriggers;
+    }
+
+    /**
+     * The returned triggers do not include {@link MeasurementThresholdTrigger}s,
+     * which are compiled and evaluated by {@link #evaluateThresholds(MeasurementEvent)}.
+     */
     public Collection<RegisterableTriggerInterface> getInterestedTriggers(AbstractEvent event,
                                                                           Integer instanceId) {
         HashSet<RegisterableTriggerInterface> trigs = new HashSet<RegisterableTriggerInterface>();
@@ -99,6 +168,14 @@ public class RegisteredTriggers implements RegisterableTriggerRepository {
     }
 
     public void addTrigger(RegisterableTriggerInterface trigger) {
+        if (CompiledThresholdTriggers.isCompilable(trigger)) {
+            Integer mid = ((MeasurementThresholdTrigger) trigger).getMeasurementID();
+            synchronized (triggerUpdateLock) {
+                thresholdTriggers.add(trigger);
+                watch(new TriggerEventKey(MeasurementEvent.class, mid.intValue()));
+            }
+            return;
+        }
         Class<?>[] types = trigger.getInterestedEventTypes();
         for (Class<?> type : types) {
             // Now get the instances
@@ -117,6 +194,7 @@ public class RegisteredTriggers implements RegisterableTriggerRepository {
                         .get(key);
                     if (triggersById == null) {
                         triggersById = new ConcurrentHashMap<Integer, RegisterableTriggerInterface>();
+                        watch(key);
                     }
                     triggersById.put(trigger.getId(), trigger);
                     triggers.put(key, triggersById);
@@ -126,18 +204,36 @@ public class RegisteredTriggers implements RegisterableTriggerRepository {
     }
 
     void setTriggers(Map<TriggerEventKey, Map<Integer, RegisterableTriggerInterface>> triggers) {
-        this.triggers = triggers;
+        synchronized (triggerUpdateLock) {
+            this.triggers = triggers;
+            thresholdTriggers.clear();
+            measurementInterest.clear();
+            for (TriggerEventKey key : triggers.keySet()) {
+                watch(key);
+            }
+        }
+    }
+
+    MeasurementInterestIndex.Interest getMeasurementInterest() {
+        return measurementInterest;
     }
 
     public void removeTrigger(Integer triggerId) {
         synchronized (triggerUpdateLock) {
-            for (Iterator<Map<Integer, RegisterableTriggerInterface>> triggerMaps = triggers
-                .values().iterator(); triggerMaps.hasNext();) {
-                Map<Integer, RegisterableTriggerInterface> triggerIdsToTriggers = triggerMaps
+            Integer mid = thresholdTriggers.remove(triggerId);
+            if (mid != null) {
+                unwatch(new TriggerEventKey(MeasurementEvent.class, mid.intValue()));
+                return;
+            }
+            for (Iterator<Map.Entry<TriggerEventKey, Map<Integer, RegisterableTriggerInterface>>> triggerMaps = triggers
+                .entrySet().iterator(); triggerMaps.hasNext();) {
+                Map.Entry<TriggerEventKey, Map<Integer, RegisterableTriggerInterface>> ent = triggerMaps
                     .next();
+                Map<Integer, RegisterableTriggerInterface> triggerIdsToTriggers = ent.getValue();
                 triggerIdsToTriggers.remove(triggerId);
                 if (triggerIdsToTriggers.isEmpty()) {
                     triggerMaps.remove();
+                    unwatch(ent.getKey());
                 }
             }
         }
@@ -145,6 +241,10 @@ public class RegisteredTriggers implements RegisterableTriggerRepository {
 
     public RegisterableTriggerInterface getTriggerById(Integer triggerId) {
         synchronized (triggerUpdateLock) {
+            RegisterableTriggerInterface threshold = thresholdTriggers.getTrigger(triggerId);
+            if (threshold != null) {
+                return threshold;
+            }
             for (Map<Integer, RegisterableTriggerInterface> triggerIdsToTriggers : triggers
                 .values()) {
                 RegisterableTriggerInterface trigger = triggerIdsToTriggers
@@ -201,6 +301,10 @@ event, event.getInstanceId());
             if (trigs.size() > 0) {
                 return true;
             }
+            if (event instanceof MeasurementEvent && alertRegulator.alertsAllowed() &&
+                thresholdTriggers.isInterested(event.getInstanceId())) {
+                return true;
+            }
         }
 
         // Check the triggers that are interested in all instances
@@ -317,7 +317,37 @@ public class AlertDAO
             return lastAlerts;
         }
 
-        
+
+    /**
+     * @return {@link Map} of {@link Resource} id to the number of unfixed
+     *         {@link Alert}s of its alert definitions.  Resources without
+     *         any are left out.
+     */
+    @SuppressWarnings("unchecked")
+    public Map<Integer,Integer> countUnfixedByResource(Collection<Resource> resources) {
+        final String hql = new StringBuilder(256)
+            .append("select ad.resource.id, count(a) ")
+            .append("from Alert a ")
+            .append("join a.alertDefinition ad ")
+            .append("where ad.resource in (:resources) ")
+            .append("and ad.deleted = false ")
+            .append("and a.fixed = false ")
+            .append("group by ad.resource.id")
+            .toString();
+        final List<Resource> resList = new ArrayList<Resource>(resources);
+        final Map<Integer,Integer> rtn = new HashMap<Integer,Integer>();
+        for (int i = 0; i < resList.size(); i += BATCH_SIZE) {
+            final int end = Math.min(i + BATCH_SIZE, resList.size());
+            final List<Object[]> counts = createQuery(hql)
+                .setParameterList("resources", resList.subList(i, end))
+                .list();
+            for (final Object[] o : counts) {
+                rtn.put((Integer) o[0], new Integer(((Number) o[1]).intValue()));
+            }
+        }
+        return rtn;
+    }
+
         /**
          * @param {@link List} of {@link AlertDefinition}s
          * Deletes all {@link Alert}s associated with the {@link AlertDefinition}s
@@ -70,6 +70,7 @@ import org.hyperic.hq.measurement.server.session.AlertConditionsSatisfiedZEvent;
 import org.hyperic.hq.measurement.server.session.AlertConditionsSatisfiedZEventSource;
 import org.hyperic.hq.measurement.server.session.Measurement;
 import org.hyperic.hq.measurement.server.session.MeasurementDAO;
+import org.hyperic.hq.measurement.shared.GroupHealthManager;
 import org.hyperic.hq.stats.ConcurrentStatsCollector;
 import org.hyperic.util.pager.PageControl;
 import org.hyperic.util.pager.PageList;
@@ -121,6 +122,8 @@ public class AlertManagerImpl implements AlertManager,
 
     private PermissionManager permissionManager;
 
+    private GroupHealthManager groupHealthManager;
+
     @Autowired
     public AlertManagerImpl(AlertPermissionManager alertPermissionManager,
                             AlertDefinitionDAO alertDefDao, AlertActionLogDAO alertActionLogDAO,
@@ -130,7 +133,8 @@ public class AlertManagerImpl implements AlertManager,
                             AuthzSubjectManager authzSubjectManager,
                             EscalationManager escalationManager, MessagePublisher messagePublisher,
                             AlertRegulator alertRegulator, ConcurrentStatsCollector concurrentStatsCollector,
-                            PermissionManager permissionManager) {
+                            PermissionManager permissionManager,
+                            GroupHealthManager groupHealthManager) {
         this.permissionManager = permissionManager;
         this.alertPermissionManager = alertPermissionManager;
         this.alertDefDao = alertDefDao;
@@ -145,6 +149,7 @@ public class AlertManagerImpl implements AlertManager,
         this.alertRegulator = alertRegulator;
         this.messagePublisher = messagePublisher;
         this.concurrentStatsCollector = concurrentStatsCollector;
+        this.groupHealthManager = groupHealthManager;
     }
 
     @PostConstruct
@@ -176,6 +181,7 @@ public class AlertManagerImpl implements AlertManager,
         alert.setAlertDefinition(def);
         alert.setCtime(ctime);
         alertDAO.save(alert);
+        groupHealthManager.alertOpened(def.getResource());
         return alert;
     }
 
@@ -185,6 +191,9 @@ public class AlertManagerImpl implements AlertManager,
      * 
      */
     public void setAlertFixed(Alert alert) {
+        if (!alert.isFixed()) {
+            groupHealthManager.alertFixed(alert.getAlertDefinition().getResource());
+        }
         alert.setFixed(true);
 
         // If the alert definition is set to "recover", then we should enable
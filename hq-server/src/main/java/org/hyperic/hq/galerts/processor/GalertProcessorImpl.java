@@ -39,6 +39,8 @@ import org.hyperic.hq.galerts.server.session.GalertDef;
 import org.hyperic.hq.galerts.server.session.GalertDefDAO;
 import org.hyperic.hq.hibernate.SessionManager;
 import org.hyperic.hq.hibernate.SessionManager.SessionRunner;
+import org.hyperic.hq.measurement.server.session.MeasurementInterestIndex;
+import org.hyperic.hq.measurement.server.session.MeasurementZevent.MeasurementZeventSource;
 import org.hyperic.hq.zevents.Zevent;
 import org.hyperic.hq.zevents.ZeventEnqueuer;
 import org.hyperic.hq.zevents.ZeventSourceId;
@@ -80,8 +82,14 @@ public class GalertProcessorImpl implements GalertProcessor {
     // ZeventSourceId -> Set of {@link Gtrigger}s
     private Map _listeners = new HashMap();
 
+    // The measurements of the MeasurementZeventSources in _listeners
+    private final MeasurementInterestIndex.Interest _measurementInterest;
+
     @Autowired
-    public GalertProcessorImpl(ZeventEnqueuer zEventManager, GalertDefDAO galertDefDAO) {
+    public GalertProcessorImpl(ZeventEnqueuer zEventManager, GalertDefDAO galertDefDAO,
+                               MeasurementInterestIndex measurementInterestIndex) {
+        _measurementInterest =
+            measurementInterestIndex.getInterest(MeasurementInterestIndex.GROUP_ALERTS);
         _zMan = zEventManager;
         _zMan.addBufferedGlobalListener(new EventListener(this));
         this._defDAO = galertDefDAO;
@@ -203,6 +211,9 @@ public class GalertProcessorImpl implements GalertProcessor {
                     _listeners.put(sourceId, listeners);
                 }
                 listeners.add(t);
+                if (sourceId instanceof MeasurementZeventSource) {
+                    _measurementInterest.watch(((MeasurementZeventSource)sourceId).getId());
+                }
             }
         }
     }
@@ -221,6 +232,9 @@ public class GalertProcessorImpl implements GalertProcessor {
                 Set listeners = (Set)_listeners.get(sourceId);
 
                 listeners.remove(t);
+                if (listeners.isEmpty() && sourceId instanceof MeasurementZeventSource) {
+                    _measurementInterest.unwatch(((MeasurementZeventSource)sourceId).getId());
+                }
             }
         }
     }
@@ -27,6 +27,7 @@ package org.hyperic.hq.measurement;
 
 import java.beans.Introspector;
 import java.util.Date;
+import java.util.List;
 import java.util.Properties;
 
 import javax.annotation.PostConstruct;
@@ -44,6 +45,8 @@ import org.hyperic.hq.context.Bootstrap;
 import org.hyperic.hq.events.shared.AlertManager;
 import org.hyperic.hq.events.shared.EventLogManager;
 import org.hyperic.hq.ha.HAUtil;
+import org.hyperic.hq.measurement.server.session.DataPoint;
+import org.hyperic.hq.measurement.server.session.StreamingRollup;
 import org.hyperic.hq.measurement.shared.DataCompress;
 import org.hyperic.hq.measurement.shared.DataManager;
 import org.hyperic.hq.measurement.shared.MeasurementManager;
@@ -64,6 +67,7 @@ public class DataPurgeJob implements Runnable {
     private AlertManager alertManager;
     private DataManager dataManager;
     private ConcurrentStatsCollector concurrentStatsCollector;
+    private StreamingRollup streamingRollup;
     private long _lastAnalyze = 0l;
     private static final long ANALYZE_INTERVAL = Integer.parseInt(System.getProperty(
         "data.purge.analyze.interval", "6")) * MeasurementConstants.HOUR;
@@ -84,7 +88,7 @@ public class DataPurgeJob implements Runnable {
                         MeasurementManager measurementManager, EventLogManager eventLogManager,
                         DataCompress dataCompress,
                         ConcurrentStatsCollector concurrentStatsCollector, AlertManager alertManager,
-                        DataManager dataManager) {
+                        DataManager dataManager, StreamingRollup streamingRollup) {
         this.serverConfigManager = serverConfigManager;
         this.measurementManager = measurementManager;
         this.eventLogManager = eventLogManager;
@@ -92,6 +96,7 @@ public class DataPurgeJob implements Runnable {
         this.concurrentStatsCollector = concurrentStatsCollector;
         this.alertManager = alertManager;
         this.dataManager = dataManager;
+        this.streamingRollup = streamingRollup;
     }
 
     @PostConstruct
@@ -274,10 +279,19 @@ public class DataPurgeJob implements Runnable {
         //begin + toInterval <= now (2:00:00<=2:00:00) otherwise it will enter the while one hour later
         while (begin + toInterval <= now) {
             long end = begin + toInterval;
+            if (toInterval == MeasurementConstants.HOUR && streamingRollup.isCovering(begin) &&
+                !streamingRollup.isGraceOver(begin, now())) {
+                log.info("Waiting for late data before compressing " + TimeUtil.toString(begin));
+                break;
+            }
             log.info("Compression interval: " + TimeUtil.toString(begin) + " to " +
                      TimeUtil.toString(end));
             try {
-                dataCompress.compressData(toInterval, now, begin, end);
+                if (toInterval == MeasurementConstants.HOUR) {
+                    compressHour(begin, end);
+                } else {
+                    dataCompress.compressData(toInterval, now, begin, end);
+                }
             } catch (Exception e) {
                 // Just log the error and continue
                 log.debug("Exception when inserting data " + " at " + TimeUtil.toString(begin), e);
@@ -285,10 +299,65 @@ public class DataPurgeJob implements Runnable {
             // Increment for next iteration.
             begin = end;
         }
+        if (toInterval == MeasurementConstants.HOUR) {
+            recompressLateData(now);
+        }
         log.info("Done (" + (watch.getElapsed() / 1000) + " seconds)");
         // Return the last interval that was compressed.
         return begin;
     }
+
+    /**
+     * Compress an hour of data, from the rollup kept in memory if there is
+     * one and with SQL otherwise.
+     */
+    private void compressHour(long begin, long end) {
+        List<DataPoint> rollups = streamingRollup.close(begin);
+        if (rollups == null) {
+            // Compress the raw data of the hour ending at end
+            dataCompress.compressData(MeasurementConstants.HOUR, end, begin, end);
+            return;
+        }
+        dataCompress.insertCompressedData(MeasurementConstants.HOUR, rollups);
+        if (streamingRollup.isVerifying()) {
+            dataCompress.verifyCompressedData(MeasurementConstants.HOUR, begin);
+        }
+    }
+
+    /**
+     * Compress the hours which got data after they were compressed again,
+     * along with the 6 hour and daily data they were compressed into.
+     */
+    private void recompressLateData(long now) {
+        for (Long hour : streamingRollup.takeLateHours()) {
+            final long begin = hour.longValue();
+            if (begin < now - this.purgeRaw) {
+                log.debug("Not compressing late data at " + TimeUtil.toString(begin) +
+                          ", it is older than the raw data kept");
+                continue;
+            }
+            log.info("Compressing late data at " + TimeUtil.toString(begin));
+            try {
+                recompressData(MeasurementConstants.HOUR, begin, begin + MeasurementConstants.HOUR);
+                recompressData(MeasurementConstants.SIX_HOUR,
+                    TimingVoodoo.roundDownTime(begin, MeasurementConstants.SIX_HOUR), now);
+                recompressData(MeasurementConstants.DAY,
+                    TimingVoodoo.roundDownTime(begin, MeasurementConstants.DAY), now);
+            } catch (Exception e) {
+                // Just log the error and continue
+                log.debug("Exception when inserting data " + " at " + TimeUtil.toString(begin), e);
+            }
+        }
+    }
+
+    private void recompressData(long toInterval, long begin, long now) {
+        if (dataCompress.getCompressionStartTime(toInterval, now) <= begin) {
+            // Not compressed yet
+            return;
+        }
+        dataCompress.purgeMeasurements(toInterval, begin, begin);
+        dataCompress.compressData(toInterval, now, begin, begin + toInterval);
+    }
     
     void truncateMeasurementData(long truncateBefore) {
         dataCompress.truncateMeasurementData(truncateBefore);
@@ -0,0 +1,261 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+
+package org.hyperic.hq.measurement.server.session;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hyperic.hq.measurement.shared.DataManager;
+import org.hyperic.hq.stats.ConcurrentStatsCollector;
+import org.hyperic.util.stats.StatCollector;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * A {@link DataInserter} which queues the data of all report threads and
+ * returns, leaving a few writer threads to insert it.  Each writer takes
+ * as many queued lists as fit in one batch and inserts them with a single
+ * call to addData in the data manager, so a busy server commits a few
+ * large transactions rather than one per report.
+ * <p>
+ * The queue is bounded by the number of data points in it.  Data which
+ * doesn't fit is refused with a {@link DataInserterBusyException}, so the
+ * agent sends it again later instead of the report thread blocking.
+ * Queued data is lost if the server dies, which is why the inserter is
+ * only used if hq.dataInserter.async is set.
+ */
+@Component
+public class AsynchronousDataInserter implements DataInserter<DataPoint> {
+    private static final int DEFAULT_MAX_QUEUED_POINTS = 500000;
+    private static final int DEFAULT_BATCH_SIZE = 10000;
+    private static final int DEFAULT_WRITERS = 3;
+    private static final long POLL_INTERVAL = 1000;
+
+    private final Log log = LogFactory.getLog(AsynchronousDataInserter.class);
+    private final Object lock = new Object();
+    private final BlockingQueue<List<DataPoint>> queue = new LinkedBlockingQueue<List<DataPoint>>();
+    private final AtomicInteger queuedPoints = new AtomicInteger();
+    private final AtomicBoolean shutdown = new AtomicBoolean(false);
+    private final List<Thread> writers = new ArrayList<Thread>();
+
+    private final DataManager dataManager;
+    private final ConcurrentStatsCollector concurrentStatsCollector;
+    private final boolean enabled;
+    private final int maxQueuedPoints;
+    private final int batchSize;
+    private final int numWriters;
+
+    @Autowired
+    public AsynchronousDataInserter(DataManager dataManager,
+                                    ConcurrentStatsCollector concurrentStatsCollector,
+                                    @Value("#{tweakProperties['hq.dataInserter.async'] }") Boolean enabled,
+                                    @Value("#{tweakProperties['hq.dataInserter.maxQueuedPoints'] }") Integer maxQueuedPoints,
+                                    @Value("#{tweakProperties['hq.dataInserter.batchSize'] }") Integer batchSize,
+                                    @Value("#{tweakProperties['hq.dataInserter.writers'] }") Integer numWriters) {
+        this.dataManager = dataManager;
+        this.concurrentStatsCollector = concurrentStatsCollector;
+        this.enabled = (enabled == null) ? false : enabled.booleanValue();
+        this.maxQueuedPoints = (maxQueuedPoints == null) ?
+            DEFAULT_MAX_QUEUED_POINTS : maxQueuedPoints.intValue();
+        this.batchSize = (batchSize == null) ? DEFAULT_BATCH_SIZE : Math.max(1, batchSize.intValue());
+        this.numWriters = (numWriters == null) ? DEFAULT_WRITERS : Math.max(1, numWriters.intValue());
+    }
+
+    /**
+     * @return true if hq.dataInserter.async is set, in which case the
+     *         writers are running.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @PostConstruct
+    void initialize() {
+        if (!enabled) {
+            return;
+        }
+        log.info("starting AsynchronousDataInserter with " + numWriters + " writers, " +
+                 "batches of " + batchSize + " and at most " + maxQueuedPoints + " queued points");
+        for (int i = 0; i < numWriters; i++) {
+            Thread writer = new Thread("AsynchronousDataInserter" + i) {
+                public void run() {
+                    drain();
+                }
+            };
+            writer.setDaemon(true);
+            writers.add(writer);
+            writer.start();
+        }
+        concurrentStatsCollector.register(ConcurrentStatsCollector.DATA_INSERTER_BATCH_SIZE);
+        concurrentStatsCollector.register(ConcurrentStatsCollector.DATA_INSERTER_COMMIT_TIME);
+        concurrentStatsCollector.register(ConcurrentStatsCollector.DATA_INSERTER_REFUSED);
+        concurrentStatsCollector.register(new StatCollector() {
+            public long getVal() {
+                return queuedPoints.get();
+            }
+            public String getId() {
+                return ConcurrentStatsCollector.DATA_INSERTER_QUEUE_SIZE;
+            }
+        });
+    }
+
+    public void insertData(List<DataPoint> metricData) throws InterruptedException, DataInserterException {
+        insertData(metricData, false);
+    }
+
+    /**
+     * @param isPriority priority data is queued even if the queue is full
+     * @throws DataInserterBusyException if the queue is full
+     */
+    public void insertData(List<DataPoint> metricData, boolean isPriority)
+        throws InterruptedException, DataInserterException {
+        final int size = metricData.size();
+        if (!isPriority && queuedPoints.get() + size > maxQueuedPoints) {
+            concurrentStatsCollector.addStat(size, ConcurrentStatsCollector.DATA_INSERTER_REFUSED);
+            throw new DataInserterBusyException(
+                "Unable to queue " + size + " data points, " + queuedPoints.get() +
+                " are waiting to be inserted");
+        }
+        enqueue(metricData);
+    }
+
+    /**
+     * Data calculated by the server can't be sent again, so it is always
+     * queued.
+     */
+    public void insertDataFromServer(List<DataPoint> metricData)
+        throws InterruptedException, DataInserterException {
+        enqueue(metricData);
+    }
+
+    private void enqueue(List<DataPoint> metricData) {
+        if (metricData.isEmpty()) {
+            return;
+        }
+        if (shutdown.get()) {
+            // The writers may be gone
+            dataManager.addData(metricData);
+            return;
+        }
+        queuedPoints.addAndGet(metricData.size());
+        queue.add(metricData);
+    }
+
+    public Object getLock() {
+        return lock;
+    }
+
+    /**
+     * @return the number of data points waiting to be inserted.
+     */
+    int getQueuedPoints() {
+        return queuedPoints.get();
+    }
+
+    private void drain() {
+        while (true) {
+            List<DataPoint> batch;
+            try {
+                batch = nextBatch();
+            } catch (InterruptedException e) {
+                // Only happens on shutdown, anything left is inserted by it
+                return;
+            }
+            if (batch == null) {
+                if (shutdown.get()) {
+                    return;
+                }
+                continue;
+            }
+            write(batch);
+        }
+    }
+
+    /**
+     * @return the lists at the head of the queue coalesced into about
+     *         batchSize points, or null if nothing was queued within the
+     *         poll interval.
+     */
+    private List<DataPoint> nextBatch() throws InterruptedException {
+        List<DataPoint> first = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+        if (first == null) {
+            return null;
+        }
+        List<DataPoint> batch = new ArrayList<DataPoint>(Math.max(batchSize, first.size()));
+        batch.addAll(first);
+        List<DataPoint> next;
+        while (batch.size() < batchSize && (next = queue.poll()) != null) {
+            batch.addAll(next);
+        }
+        return batch;
+    }
+
+    private void write(List<DataPoint> batch) {
+        final long start = System.currentTimeMillis();
+        try {
+            if (!dataManager.addData(batch)) {
+                log.warn("Unable to insert a batch of " + batch.size() + " data points");
+            }
+        } catch (RuntimeException e) {
+            log.error("Unable to insert a batch of " + batch.size() + " data points: " + e, e);
+        } finally {
+            queuedPoints.addAndGet(-batch.size());
+            concurrentStatsCollector.addStat(batch.size(), ConcurrentStatsCollector.DATA_INSERTER_BATCH_SIZE);
+            concurrentStatsCollector.addStat(System.currentTimeMillis() - start,
+                ConcurrentStatsCollector.DATA_INSERTER_COMMIT_TIME);
+        }
+    }
+
+    /**
+     * Stops the writers once they have inserted everything queued.
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        if (!shutdown.compareAndSet(false, true)) {
+            return;
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        // Whatever was queued while the writers were stopping
+        List<DataPoint> batch;
+        while ((batch = queue.poll()) != null) {
+            write(batch);
+        }
+    }
+}
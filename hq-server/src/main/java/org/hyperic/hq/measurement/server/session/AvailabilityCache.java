@@ -25,8 +25,11 @@
 
 package org.hyperic.hq.measurement.server.session;
 
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
 
 import net.sf.ehcache.Cache;
 import net.sf.ehcache.CacheManager;
@@ -34,6 +37,8 @@ import net.sf.ehcache.Element;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Repository;
 
 /**
@@ -42,6 +47,15 @@ import org.springframework.stereotype.Repository;
  * OR Backfiller operations.  In big environments it will be very contentious
  * and due to its nature may not have the data being sought at any given time.
  * Use AvailabilityManager.getLastAvail().
+ * <p>
+ * Measurement ids are split into shards, see {@link #getShard(Integer)}, and
+ * each shard has a transaction of its own so that availability for
+ * measurements in different shards may be updated at the same time.
+ * {@link #beginTran()} begins a transaction on every shard.
+ * <p>
+ * The platform availability measurements given to
+ * {@link #watchDeadlines(Collection)} are indexed on when they are next
+ * expected to report, and the index follows every change to the cache.
  */
 @Repository
 public class AvailabilityCache {
@@ -50,11 +64,13 @@ public class AvailabilityCache {
 	static final String CACHENAME          = "AvailabilityCache";
 	static final int    CACHESIZE          = 20000;
 	static final int    CACHESIZEINCREMENT = 1000;
+	static final int    DEFAULT_SHARDS     = 8;
 
 	private final Object _cacheLock = new Object();
-	private final Map _tranCacheState = new HashMap();
-	private Thread _tranThread;
-	private boolean _inTran = false;
+	private final Shard[] _shards;
+	private final AvailabilityDeadlines _deadlines = new AvailabilityDeadlines();
+	// Set once the backfiller indexes the deadlines of every platform
+	private volatile boolean _watchingDeadlines = false;
 
 	// The internal EhCache
 	private Cache _cache;
@@ -64,9 +80,18 @@ public class AvailabilityCache {
 
 	private final Log _log = LogFactory.getLog(AvailabilityCache.class);
 
-
+	private static class Shard {
+		// Held by the thread in a transaction on the shard
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Map<Integer, DataPoint> tranCacheState = new HashMap<Integer, DataPoint>();
+	}
 
 	public AvailabilityCache() {
+		this(null);
+	}
+
+	@Autowired
+	public AvailabilityCache(@Value("#{tweakProperties['hq.availability.shards'] }") Integer shards) {
 		CacheManager cm = CacheManager.getInstance();
 		// Allow configuration of this cache throgh ehcache.xml
 		_cache = cm.getCache(CACHENAME);
@@ -81,81 +106,120 @@ public class AvailabilityCache {
 
 		_cacheSize = 0;
 		_cacheMaxSize = _cache.getCacheConfiguration().getMaxElementsInMemory();
+
+		int numShards = (shards == null || shards.intValue() < 1) ? DEFAULT_SHARDS : shards.intValue();
+		_shards = new Shard[numShards];
+		for (int i=0; i<numShards; i++) {
+			_shards[i] = new Shard();
+		}
 	}
 
+	public int getNumShards() {
+		return _shards.length;
+	}
 
+	/**
+	 * @return the shard which holds the transaction state of the Measurement
+	 */
+	public int getShard(Integer metricId) {
+		return (metricId.intValue() & Integer.MAX_VALUE) % _shards.length;
+	}
+
+	/**
+	 * @return the number of threads waiting to begin a transaction on the shard
+	 */
+	public int getQueueLength(int shard) {
+		return _shards[shard].lock.getQueueLength();
+	}
 
 	private void captureCacheState(Integer metricId) {
-		synchronized (_tranCacheState) {
-			if (!_inTran || !Thread.currentThread().equals(_tranThread)) {
-				return;
-			}
-			if (_tranCacheState.containsKey(metricId)) {
-				return;
-			}
-			DataPoint pt;
-			pt = (DataPoint)get(metricId);
-			// doesn't matter if point is null
-			_tranCacheState.put(metricId, pt);
+		Shard shard = _shards[getShard(metricId)];
+		if (!shard.lock.isHeldByCurrentThread()) {
+			return;
+		}
+		if (shard.tranCacheState.containsKey(metricId)) {
+			return;
 		}
+		// doesn't matter if point is null
+		shard.tranCacheState.put(metricId, get(metricId));
 	}
 
+	/**
+	 * Roll back the cache transactions the currentThread has begun.
+	 */
 	public void rollbackTran() {
-		synchronized (_tranCacheState) {
-			if (!_inTran || !Thread.currentThread().equals(_tranThread)) {
-				return;
-			}
-			_inTran = false;
-			// scottmf, when I use an iterator here, under certain circumstances
-			// ConcurrentModificationException is thrown.  It is very hard
-			// to reproduce and not straight forward
-			Integer[] keys = (Integer[])_tranCacheState.keySet().toArray(new Integer[0]);
-			for (int i=0; i<keys.length; i++) {
-				DataPoint pt = (DataPoint)_tranCacheState.get(keys[i]);
-				if (pt == null) {
-					remove(keys[i]);
+		for (int i=0; i<_shards.length; i++) {
+			rollbackTran(i);
+		}
+	}
+
+	public void rollbackTran(int shardNum) {
+		Shard shard = _shards[shardNum];
+		if (!shard.lock.isHeldByCurrentThread()) {
+			return;
+		}
+		try {
+			for (Map.Entry<Integer, DataPoint> entry : shard.tranCacheState.entrySet()) {
+				if (entry.getValue() == null) {
+					remove(entry.getKey());
 				} else {
-					put(keys[i], pt);
+					putInCache(entry.getKey(), entry.getValue());
 				}
 			}
-			_tranThread = null;
-			_tranCacheState.clear();
-			_tranCacheState.notifyAll();
+		} finally {
+			shard.tranCacheState.clear();
+			shard.lock.unlock();
 		}
 	}
 
+	/**
+	 * Commit the cache transactions the currentThread has begun.
+	 */
 	public void commitTran() {
-		synchronized (_tranCacheState) {
-			if (!_inTran || !Thread.currentThread().equals(_tranThread)) {
-				return;
-			}
-			_inTran = false;
-			_tranThread = null;
-			_tranCacheState.clear();
-			_tranCacheState.notifyAll();
+		for (int i=0; i<_shards.length; i++) {
+			commitTran(i);
 		}
 	}
 
+	public void commitTran(int shardNum) {
+		Shard shard = _shards[shardNum];
+		if (!shard.lock.isHeldByCurrentThread()) {
+			return;
+		}
+		shard.tranCacheState.clear();
+		shard.lock.unlock();
+	}
+
 	/**
+	 * Begin a transaction on every shard, waiting for any other thread in
+	 * a transaction on one of them to end.
 	 * @return true if a new cache transaction was started, false if the
 	 * currentThread was already participating in the current transaction
 	 */
 	public boolean beginTran() {
-		synchronized (_tranCacheState) {
-			if (_inTran && Thread.currentThread().equals(_tranThread)) {
-				return false;
-			}
-			while (_inTran) {
-				try {
-					_tranCacheState.wait();
-				} catch (InterruptedException e) {
-				}
-			}
-			_inTran = true;
-			_tranThread = Thread.currentThread();
-			_tranCacheState.clear();
-			return true;
+		boolean rtn = false;
+		// Always in shard order, so that threads beginning more than one
+		// transaction can't deadlock
+		for (int i=0; i<_shards.length; i++) {
+			rtn |= beginTran(i);
+		}
+		return rtn;
+	}
+
+	/**
+	 * Begin a transaction on a single shard, waiting for any other thread
+	 * in a transaction on it to end.
+	 * @return true if a new cache transaction was started, false if the
+	 * currentThread was already participating in the current transaction
+	 */
+	public boolean beginTran(int shardNum) {
+		Shard shard = _shards[shardNum];
+		if (shard.lock.isHeldByCurrentThread()) {
+			return false;
 		}
+		shard.lock.lock();
+		shard.tranCacheState.clear();
+		return true;
 	}
 
 	/**
@@ -170,6 +234,7 @@ public class AvailabilityCache {
 
 			if (e == null) {
 				_cache.put(new Element(id, defaultState));
+				_deadlines.update(id, defaultState);
 				return defaultState;
 			}
 
@@ -183,6 +248,7 @@ public class AvailabilityCache {
 	 */
 	public boolean remove(Integer id) {
 		synchronized (_cacheLock) {
+			_deadlines.update(id, null);
 			return _cache.remove(id);
 		}
 	}
@@ -210,29 +276,88 @@ public class AvailabilityCache {
 	 * @param state The DataPoint to store for the given id.
 	 */
 	public void put(Integer id, DataPoint state) {
+		final int shard = getShard(id);
+		boolean newTran = false;
+		try {
+			newTran = beginTran(shard);
+			captureCacheState(id);
+			putInCache(id, state);
+		} finally {
+			if (newTran) {
+				commitTran(shard);
+			}
+		}
+	}
+
+	private void putInCache(Integer id, DataPoint state) {
 		synchronized (_cacheLock) {
-			boolean newTran = false;
-			try {
-				newTran = beginTran();
-				captureCacheState(id);
-				if (!_cache.isKeyInCache(id)) {
-					if (isFull()) {
-						incrementCacheSize();
-					}
-					_cache.put(new Element(id, state));
-					_cacheSize++;
-				} else {
-					// Update only, don't increment counter.
-					_cache.put(new Element(id, state));
-				}
-			} finally {
-				if (newTran) {
-					commitTran();
+			if (!_cache.isKeyInCache(id)) {
+				if (isFull()) {
+					incrementCacheSize();
 				}
+				_cache.put(new Element(id, state));
+				_cacheSize++;
+			} else {
+				// Update only, don't increment counter.
+				_cache.put(new Element(id, state));
 			}
+			_deadlines.update(id, state);
+		}
+	}
+
+	/**
+	 * Index the availability deadlines of the measurements, in place of
+	 * any indexed before.
+	 */
+	public void watchDeadlines(Collection<Measurement> measurements) {
+		synchronized (_cacheLock) {
+			_deadlines.unwatchAll();
+			for (Measurement meas : measurements) {
+				watchDeadline(meas);
+			}
+			_watchingDeadlines = true;
+		}
+	}
+
+	/**
+	 * Index the availability deadline of the measurement, or move it on if
+	 * its interval changed.
+	 */
+	public void watchDeadline(Measurement meas) {
+		synchronized (_cacheLock) {
+			Element e = _cache.get(meas.getId());
+			DataPoint last = (e == null) ? null : (DataPoint)e.getObjectValue();
+			_deadlines.watch(meas.getId(), meas.getInterval(), last);
 		}
 	}
 
+	/**
+	 * @return true if the deadlines are indexed but not the one of this
+	 * measurement, as for a platform which was just created or enabled.
+	 */
+	public boolean isDeadlineMissing(Integer id) {
+		return _watchingDeadlines && !_deadlines.isWatched(id);
+	}
+
+	public void unwatchDeadline(Integer id) {
+		_deadlines.unwatch(id);
+	}
+
+	/**
+	 * @return the watched measurements which were expected to report
+	 * before now, and the ones last seen down or paused.
+	 */
+	public List<Integer> getExpired(long now) {
+		return _deadlines.getExpired(now);
+	}
+
+	/**
+	 * @return the number of measurements whose deadlines are indexed
+	 */
+	public int getNumWatched() {
+		return _deadlines.size();
+	}
+
 	/**
 	 * Get the total cache size
 	 * @return The total cache size, as determined by EhCache.
@@ -247,16 +372,17 @@ public class AvailabilityCache {
 	 * Remove all elements from the AvailabilityCache.
 	 */
 	void clear() {
-		synchronized (_cacheLock) {
-			boolean newTran = false;
-			try {
-				newTran = beginTran();
+		boolean newTran = false;
+		try {
+			newTran = beginTran();
+			synchronized (_cacheLock) {
 				_cache.removeAll();
 				_cacheSize = 0;
-			} finally {
-				if (newTran) {
-					commitTran();
-				}
+				_deadlines.expireAll();
+			}
+		} finally {
+			if (newTran) {
+				commitTran();
 			}
 		}
 	}
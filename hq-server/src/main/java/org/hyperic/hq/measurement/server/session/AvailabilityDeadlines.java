@@ -0,0 +1,167 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.server.session;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.hyperic.hq.measurement.MeasurementConstants;
+
+/**
+ * Indexes the platform availability measurements on the time by which each
+ * is expected to report again, so the backfiller can find the ones which
+ * may be down without looking at every platform.
+ * <p>
+ * A deadline is the timestamp of the last availability cached for the
+ * measurement plus its minimum downtime.  Measurements last seen down or
+ * paused, or with nothing cached, have already expired and stay expired
+ * until they report up again.  Only watched measurements are indexed, the
+ * others are ignored.
+ */
+class AvailabilityDeadlines {
+    private static final long MINUTE = MeasurementConstants.MINUTE;
+    private static final long EXPIRED = Long.MIN_VALUE;
+
+    private final Map<Integer, Long> intervals = new HashMap<Integer, Long>();
+    private final Map<Integer, Deadline> deadlines = new HashMap<Integer, Deadline>();
+    private final TreeSet<Deadline> byTime = new TreeSet<Deadline>();
+
+    private static final class Deadline implements Comparable<Deadline> {
+        private final long time;
+        private final int mid;
+
+        private Deadline(long time, int mid) {
+            this.time = time;
+            this.mid = mid;
+        }
+
+        public int compareTo(Deadline d) {
+            if (time != d.time) {
+                return (time < d.time) ? -1 : 1;
+            }
+            return (mid < d.mid) ? -1 : ((mid == d.mid) ? 0 : 1);
+        }
+    }
+
+    /**
+     * @return how long a platform must not report before it is marked down,
+     *         see BackfillPointsServiceImpl.
+     */
+    static long getMinDowntime(long interval) {
+        return Math.max(2 * interval, 3 * MINUTE);
+    }
+
+    static long getDeadline(DataPoint last, long interval) {
+        if (last == null) {
+            return EXPIRED;
+        }
+        final double val = last.getValue();
+        if (val == MeasurementConstants.AVAIL_DOWN || val == MeasurementConstants.AVAIL_PAUSED ||
+            val == MeasurementConstants.AVAIL_NULL) {
+            return EXPIRED;
+        }
+        return last.getTimestamp() + getMinDowntime(interval);
+    }
+
+    /**
+     * Starts or keeps watching a measurement.
+     * @param last The availability cached for it, may be null
+     */
+    synchronized void watch(Integer mid, long interval, DataPoint last) {
+        intervals.put(mid, new Long(interval));
+        setDeadline(mid, getDeadline(last, interval));
+    }
+
+    synchronized void unwatch(Integer mid) {
+        intervals.remove(mid);
+        final Deadline d = deadlines.remove(mid);
+        if (d != null) {
+            byTime.remove(d);
+        }
+    }
+
+    synchronized void unwatchAll() {
+        intervals.clear();
+        deadlines.clear();
+        byTime.clear();
+    }
+
+    synchronized boolean isWatched(Integer mid) {
+        return intervals.containsKey(mid);
+    }
+
+    /**
+     * Moves the deadline of a watched measurement on to its new
+     * availability.
+     */
+    synchronized void update(Integer mid, DataPoint last) {
+        final Long interval = intervals.get(mid);
+        if (interval != null) {
+            setDeadline(mid, getDeadline(last, interval.longValue()));
+        }
+    }
+
+    /**
+     * Expires every watched measurement, as if nothing was cached for them.
+     */
+    synchronized void expireAll() {
+        byTime.clear();
+        deadlines.clear();
+        for (Integer mid : intervals.keySet()) {
+            setDeadline(mid, EXPIRED);
+        }
+    }
+
+    private void setDeadline(Integer mid, long time) {
+        final Deadline d = new Deadline(time, mid.intValue());
+        final Deadline old = deadlines.put(mid, d);
+        if (old != null) {
+            byTime.remove(old);
+        }
+        byTime.add(d);
+    }
+
+    /**
+     * @return the measurements whose deadline is before now, oldest first.
+     */
+    synchronized List<Integer> getExpired(long now) {
+        final List<Integer> rtn = new ArrayList<Integer>();
+        for (Deadline d : byTime) {
+            if (d.time >= now) {
+                break;
+            }
+            rtn.add(new Integer(d.mid));
+        }
+        return rtn;
+    }
+
+    synchronized int size() {
+        return intervals.size();
+    }
+}
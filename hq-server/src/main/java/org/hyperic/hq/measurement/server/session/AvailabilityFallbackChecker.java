@@ -159,7 +159,8 @@ public class AvailabilityFallbackChecker {
         }
         if (debug) log.debug("marking " + resPlatforms.size() + " platforms down, resourceIds=" + resPlatforms);
         List<DataPoint> datapoints = getAllHierarchyMeasurementData(resPlatforms);
-        // HHQ-5726 - only one thread can access availabilityManager.addData() at once
+        // HHQ-5726 - addData() takes the cache shards it needs, the monitor
+        // keeps these batches from interleaving with the other checks
         synchronized (availabilityCache) {
             for (int i=0; i<datapoints.size(); i+=MAX_UPDATES_PER_BATCH) {
                 int max = Math.min(i + MAX_UPDATES_PER_BATCH, datapoints.size());
@@ -58,6 +58,7 @@ import org.hyperic.hq.appdef.shared.AppdefUtil;
 import org.hyperic.hq.authz.server.session.AuthzSubject;
 import org.hyperic.hq.authz.server.session.Resource;
 import org.hyperic.hq.authz.server.session.ResourceGroup;
+import org.hyperic.hq.authz.server.session.ResourceTopology;
 import org.hyperic.hq.authz.shared.AuthzConstants;
 import org.hyperic.hq.authz.shared.AuthzSubjectManager;
 import org.hyperic.hq.authz.shared.PermissionManagerFactory;
@@ -74,6 +75,7 @@ import org.hyperic.hq.measurement.TimingVoodoo;
 import org.hyperic.hq.measurement.ext.DownMetricValue;
 import org.hyperic.hq.measurement.ext.MeasurementEvent;
 import org.hyperic.hq.measurement.shared.AvailabilityManager;
+import org.hyperic.hq.measurement.shared.GroupHealthManager;
 import org.hyperic.hq.measurement.shared.HighLowMetricValue;
 import org.hyperic.hq.measurement.shared.MeasurementManager;
 import org.hyperic.hq.product.AvailabilityMetricValue;
@@ -83,6 +85,7 @@ import org.hyperic.hq.stats.ConcurrentStatsCollector;
 import org.hyperic.hq.zevents.ZeventManager;
 import org.hyperic.util.pager.PageControl;
 import org.hyperic.util.pager.PageList;
+import org.hyperic.util.stats.StatCollector;
 import org.hyperic.util.timer.StopWatch;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
@@ -136,12 +139,17 @@ public class AvailabilityManagerImpl implements AvailabilityManager {
     private AvailabilityCache availabilityCache;
     private ConcurrentStatsCollector concurrentStatsCollector;
     private AgentDAO agentDAO;
+    private ResourceTopology resourceTopology;
+    private GroupHealthManager groupHealthManager;
+    // AVAIL_SHARD_TIME stat id of each AvailabilityCache shard
+    private String[] shardTimeStats;
     
     @Autowired
     public AvailabilityManagerImpl(AuthzSubjectManager authzSubjectManager, ResourceManager resourceManager,
             ResourceGroupManager groupManager, MessagePublisher messenger, AvailabilityDataDAO availabilityDataDAO,
             MeasurementDAO measurementDAO, MessagePublisher messagePublisher, RegisteredTriggers registeredTriggers,
-            AvailabilityCache availabilityCache, AgentDAO agentDAO, ConcurrentStatsCollector concurrentStatsCollector) {
+            AvailabilityCache availabilityCache, AgentDAO agentDAO, ConcurrentStatsCollector concurrentStatsCollector,
+            ResourceTopology resourceTopology, GroupHealthManager groupHealthManager) {
         this.authzSubjectManager = authzSubjectManager;
         this.resourceManager = resourceManager;
         this.groupManager = groupManager;
@@ -153,6 +161,8 @@ public class AvailabilityManagerImpl implements AvailabilityManager {
         this.availabilityCache = availabilityCache;
         this.concurrentStatsCollector = concurrentStatsCollector;
         this.agentDAO = agentDAO;
+        this.resourceTopology = resourceTopology;
+        this.groupHealthManager = groupHealthManager;
         //this.measurementIDsMonitoredByServer = new HashSet<Integer>();
         this.fallbackCheckQue = new AvailabilityFallbackCheckQue();
     }
@@ -160,6 +170,20 @@ public class AvailabilityManagerImpl implements AvailabilityManager {
     @PostConstruct
     public void initStatsCollector() {
         concurrentStatsCollector.register(ConcurrentStatsCollector.AVAIL_MANAGER_METRICS_INSERTED);
+        shardTimeStats = new String[availabilityCache.getNumShards()];
+        for (int i = 0; i < shardTimeStats.length; i++) {
+            final int shard = i;
+            shardTimeStats[i] = ConcurrentStatsCollector.AVAIL_SHARD_TIME + "_" + i;
+            concurrentStatsCollector.register(shardTimeStats[i]);
+            concurrentStatsCollector.register(new StatCollector() {
+                public String getId() {
+                    return ConcurrentStatsCollector.AVAIL_SHARD_QUEUE_DEPTH + "_" + shard;
+                }
+                public long getVal() {
+                    return availabilityCache.getQueueLength(shard);
+                }
+            });
+        }
     }
 
     // To break AvailabilityManager - MeasurementManager circular dependency
@@ -186,6 +210,24 @@ public class AvailabilityManagerImpl implements AvailabilityManager {
         return measurementDAO.findAvailMeasurementsByInstances(AppdefEntityConstants.APPDEF_TYPE_PLATFORM, null);
     }
 
+    /**
+     * Indexes the availability deadline of a platform which was just enabled
+     * or reported for the first time, so the backfiller checks it from then
+     * on rather than from its next resync of every platform.  Other
+     * measurements are ignored.
+     */
+    public void watchAvailabilityDeadline(Measurement meas) {
+        if (meas == null || !meas.isEnabled() || meas.getResource() == null ||
+            !availabilityCache.isDeadlineMissing(meas.getId())) {
+            return;
+        }
+        final MeasurementTemplate template = meas.getTemplate();
+        if (template.isAvailability() &&
+            template.getMonitorableType().getAppdefType() == AppdefEntityConstants.APPDEF_TYPE_PLATFORM) {
+            availabilityCache.watchDeadline(meas);
+        }
+    }
+
     
     public AvailabilityFallbackCheckQue getFallbackCheckQue() {
     	return this.fallbackCheckQue;
@@ -264,6 +306,13 @@ public class AvailabilityManagerImpl implements AvailabilityManager {
     @Transactional(readOnly = true)
     public Map<Integer, List<Measurement>> getAvailMeasurementChildren(List<Integer> resourceIds,
             String resourceRelationType) {
+        if (resourceTopology.isLoaded()) {
+            final Map<Integer, int[]> descendants = new HashMap<Integer, int[]>(resourceIds.size());
+            for (Integer resourceId : resourceIds) {
+                descendants.put(resourceId, resourceTopology.getDescendants(resourceRelationType, resourceId));
+            }
+            return getAvailMeasurements(descendants);
+        }
         final List<Object[]> objects = measurementDAO.findRelatedAvailMeasurements(resourceIds, resourceRelationType);
         return convertAvailMeasurementListToMap(objects);
     }
@@ -287,6 +336,13 @@ public class AvailabilityManagerImpl implements AvailabilityManager {
     @Transactional(readOnly = true)
     public Map<Integer, List<Measurement>> getAvailMeasurementParent(List<Integer> resourceIds,
             String resourceRelationType) {
+        if (resourceTopology.isLoaded()) {
+            final Map<Integer, int[]> ancestors = new HashMap<Integer, int[]>(resourceIds.size());
+            for (Integer resourceId : resourceIds) {
+                ancestors.put(resourceId, resourceTopology.getAncestors(resourceRelationType, resourceId));
+            }
+            return getAvailMeasurements(ancestors);
+        }
         final List<Object[]> objects = measurementDAO.findParentAvailMeasurements(resourceIds, resourceRelationType);
         return convertAvailMeasurementListToMap(objects);
     }
@@ -297,10 +353,53 @@ public class AvailabilityManagerImpl implements AvailabilityManager {
     @Transactional(readOnly = true)
     public Map<Integer, List<Measurement>> getAvailMeasurementDirectParent(List<Integer> resourceIds,
             String resourceRelationType) {
+        if (resourceTopology.isLoaded()) {
+            final Map<Integer, int[]> parents = new HashMap<Integer, int[]>(resourceIds.size());
+            for (Integer resourceId : resourceIds) {
+                final Integer parent = resourceTopology.getParent(resourceRelationType, resourceId);
+                if (parent != null) {
+                    parents.put(resourceId, new int[] { parent.intValue() });
+                }
+            }
+            return getAvailMeasurements(parents);
+        }
         final List<Object[]> objects = measurementDAO.findDirectParentAvailMeasurements(resourceIds, resourceRelationType);
         return convertAvailMeasurementListToMap(objects);
     }
 
+    /**
+     * @param related {@link Map} of {@link Integer} resource id to the ids
+     *        of the resources related to it, in order
+     * @return {@link Map} of {@link Integer} resource id to the availability
+     *         {@link Measurement}s of the related resources, in the same
+     *         order, for the resources with any
+     */
+    private Map<Integer, List<Measurement>> getAvailMeasurements(Map<Integer, int[]> related) {
+        final Set<Integer> ids = new HashSet<Integer>();
+        for (int[] resourceIds : related.values()) {
+            for (int id : resourceIds) {
+                ids.add(new Integer(id));
+            }
+        }
+        final Map<Integer, Measurement> avail = measurementDAO.findAvailMeasurementsByResourceIds(ids);
+        final Map<Integer, List<Measurement>> rtn = new HashMap<Integer, List<Measurement>>(related.size());
+        for (Map.Entry<Integer, int[]> entry : related.entrySet()) {
+            List<Measurement> measurements = null;
+            for (int id : entry.getValue()) {
+                final Measurement m = avail.get(new Integer(id));
+                if (m == null) {
+                    continue;
+                }
+                if (measurements == null) {
+                    measurements = new ArrayList<Measurement>();
+                    rtn.put(entry.getKey(), measurements);
+                }
+                measurements.add(m);
+            }
+        }
+        return rtn;
+    }
+
 
     private Map<Integer, List<Measurement>> convertAvailMeasurementListToMap(List<Object[]> objects) {
         final Map<Integer, List<Measurement>> rtn = new HashMap<Integer, List<Measurement>>(objects.size());
@@ -909,35 +1008,27 @@ public class AvailabilityManagerImpl implements AvailabilityManager {
         }
         Collection<DataPoint> pointsToUpdate = this.fallbackCheckQue.beforeDataUpdate(availDataPoints, addedByServer);
         List<DataPoint> availPoints =  new ArrayList<DataPoint>(pointsToUpdate);
-        
-        List<DataPoint> updateList = new ArrayList<DataPoint>(availPoints.size());
-        List<DataPoint> outOfOrderAvail = new ArrayList<DataPoint>(availPoints.size());
-        Map<DataPoint, AvailabilityDataRLE> createMap = new HashMap<DataPoint, AvailabilityDataRLE>();
-        Map<DataPoint, AvailabilityDataRLE> removeMap = new HashMap<DataPoint, AvailabilityDataRLE>();
-        Map<Integer, StringBuilder> state = null;
-        Map<Integer, TreeSet<AvailabilityDataRLE>> currAvails = Collections.emptyMap();
         if (log.isDebugEnabled()) {
             log.debug(availDataPoints);
         }
-        synchronized (availabilityCache) {
+        // Each shard of the cache is updated, along with the RLE data of its
+        // measurements, in a cache transaction of its own. Threads adding
+        // data for other measurements only wait for the shard they are on.
+        List<DataPoint>[] shards = partitionByShard(availPoints);
+        List<DataPoint> added = new ArrayList<DataPoint>(availPoints.size());
+        for (int shard = 0; shard < shards.length; shard++) {
+            if (shards[shard] == null) {
+                continue;
+            }
             try {
-                availabilityCache.beginTran();
-                updateCache(availPoints, updateList, outOfOrderAvail);
-                currAvails = createCurrAvails(outOfOrderAvail, updateList); // get current DB Availability state for the measurements.
-                state = captureCurrAvailState(currAvails); // this method is called for logging.
-                updateStates(updateList, currAvails, createMap, removeMap);
-                updateOutOfOrderState(outOfOrderAvail, currAvails, createMap, removeMap);
-                flushCreateAndRemoves(createMap, removeMap);
-                checkAvailabilityState(availPoints);
-                logErrorInfo(state, availPoints, currAvails);
-                availabilityCache.commitTran();
-            } catch (Throwable e) {
-                logErrorInfo(state, availPoints, currAvails);
-                log.error(e.getMessage(), e);
-                availabilityCache.rollbackTran();
-                throw new SystemException(e);
+                addShardData(shard, shards[shard]);
+            } catch (SystemException e) {
+                // The shards already committed to the cache are rolled back
+                // in the database along with this one
+                removeFromCache(added);
+                throw e;
             }
-
+            added.addAll(shards[shard]);
         }
 
         concurrentStatsCollector.addStat(availPoints.size(), AVAIL_MANAGER_METRICS_INSERTED);
@@ -947,6 +1038,79 @@ public class AvailabilityManagerImpl implements AvailabilityManager {
         }
     }
 
+    /**
+     * Drop the points from the cache, each under the transaction of its
+     * shard so that threads adding data to it don't see a partial update.
+     */
+    private void removeFromCache(List<DataPoint> points) {
+        List<DataPoint>[] shards = partitionByShard(points);
+        for (int shard = 0; shard < shards.length; shard++) {
+            if (shards[shard] == null) {
+                continue;
+            }
+            boolean newTran = false;
+            try {
+                newTran = availabilityCache.beginTran(shard);
+                for (DataPoint pt : shards[shard]) {
+                    availabilityCache.remove(pt.getMeasurementId());
+                }
+            } finally {
+                if (newTran) {
+                    availabilityCache.commitTran(shard);
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<DataPoint>[] partitionByShard(List<DataPoint> availPoints) {
+        final List<DataPoint>[] rtn = new List[availabilityCache.getNumShards()];
+        for (DataPoint pt : availPoints) {
+            int shard = availabilityCache.getShard(pt.getMeasurementId());
+            if (rtn[shard] == null) {
+                rtn[shard] = new ArrayList<DataPoint>();
+            }
+            rtn[shard].add(pt);
+        }
+        return rtn;
+    }
+
+    private void addShardData(int shard, List<DataPoint> availPoints) {
+        final long start = System.currentTimeMillis();
+        List<DataPoint> updateList = new ArrayList<DataPoint>(availPoints.size());
+        List<DataPoint> outOfOrderAvail = new ArrayList<DataPoint>(availPoints.size());
+        Map<DataPoint, AvailabilityDataRLE> createMap = new HashMap<DataPoint, AvailabilityDataRLE>();
+        Map<DataPoint, AvailabilityDataRLE> removeMap = new HashMap<DataPoint, AvailabilityDataRLE>();
+        Map<Integer, StringBuilder> state = null;
+        Map<Integer, TreeSet<AvailabilityDataRLE>> currAvails = Collections.emptyMap();
+        List<DataPoint> changed = new ArrayList<DataPoint>(availPoints.size());
+        boolean newTran = false;
+        try {
+            newTran = availabilityCache.beginTran(shard);
+            updateCache(availPoints, updateList, outOfOrderAvail);
+            currAvails = createCurrAvails(outOfOrderAvail, updateList); // get current DB Availability state for the measurements.
+            state = captureCurrAvailState(currAvails); // this method is called for logging.
+            updateStates(updateList, currAvails, createMap, removeMap, changed);
+            updateOutOfOrderState(outOfOrderAvail, currAvails, createMap, removeMap);
+            flushCreateAndRemoves(createMap, removeMap);
+            checkAvailabilityState(availPoints);
+            logErrorInfo(state, availPoints, currAvails);
+            if (newTran) {
+                availabilityCache.commitTran(shard);
+            }
+            groupHealthManager.availabilityChanged(changed);
+        } catch (Throwable e) {
+            logErrorInfo(state, availPoints, currAvails);
+            log.error(e.getMessage(), e);
+            if (newTran) {
+                availabilityCache.rollbackTran(shard);
+            }
+            throw new SystemException(e);
+        } finally {
+            concurrentStatsCollector.addStat(System.currentTimeMillis() - start, shardTimeStats[shard]);
+        }
+    }
+
 	private void flushCreateAndRemoves(Map<DataPoint, AvailabilityDataRLE> createMap,
                                        Map<DataPoint, AvailabilityDataRLE> removeMap) {
         final StopWatch watch = new StopWatch();
@@ -1418,9 +1582,11 @@ public class AvailabilityManagerImpl implements AvailabilityManager {
      * @param currAvails - current DB state for measurement IDs.
      * @param createMap - in/out param. filled with new AvailabilityDataRLEs
      * @param removeMap - in/out param. filled with AvailabilityDataRLEs to remove.
+     * @param changed - out param. filled with the states which changed the cache.
      */
     private void updateStates(List<DataPoint> states, Map<Integer, TreeSet<AvailabilityDataRLE>> currAvails,
-            Map<DataPoint, AvailabilityDataRLE> createMap, Map<DataPoint, AvailabilityDataRLE> removeMap) {
+            Map<DataPoint, AvailabilityDataRLE> createMap, Map<DataPoint, AvailabilityDataRLE> removeMap,
+            List<DataPoint> changed) {
 
         if (states.size() == 0) {
             return;
@@ -1444,6 +1610,10 @@ public class AvailabilityManagerImpl implements AvailabilityManager {
                 }
                 if (updateCache) {
                     availabilityCache.put(state.getMeasurementId(), state);
+                    if (currState == null && availabilityCache.isDeadlineMissing(state.getMeasurementId())) {
+                        watchAvailabilityDeadline(getMeasurement(state.getMeasurementId()));
+                    }
+                    changed.add(state);
                     numUpdates++;
                 }
             } catch (BadAvailStateException e) {
@@ -1569,6 +1739,8 @@ public class AvailabilityManagerImpl implements AvailabilityManager {
         if (!mids.isEmpty()) {
             log.info("The state of the Availability cache is out of sync with the database for measurementIds='" + mids +
                      "', clearing these metrics from the Availability cache");
+            // The groups counted the cached state as well
+            groupHealthManager.availabilityOutOfSync(mids);
         }
     }
 
@@ -1707,13 +1879,11 @@ public class AvailabilityManagerImpl implements AvailabilityManager {
 
     private Integer isAvailDataRLEValid(Map<Integer, TreeSet<AvailabilityDataRLE>> currAvails) {
 
-        synchronized (availabilityCache) {
-            for (Map.Entry<Integer, TreeSet<AvailabilityDataRLE>> entry : currAvails.entrySet()) {
-                Integer mId = entry.getKey();
-                Collection<AvailabilityDataRLE> rles = entry.getValue();
-                if (!isAvailDataRLEValid(mId, availabilityCache.get(mId), rles)) {
-                    return mId;
-                }
+        for (Map.Entry<Integer, TreeSet<AvailabilityDataRLE>> entry : currAvails.entrySet()) {
+            Integer mId = entry.getKey();
+            Collection<AvailabilityDataRLE> rles = entry.getValue();
+            if (!isAvailDataRLEValid(mId, availabilityCache.get(mId), rles)) {
+                return mId;
             }
         }
         return null;
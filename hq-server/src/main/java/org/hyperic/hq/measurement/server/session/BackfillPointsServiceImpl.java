@@ -25,6 +25,7 @@
  */
 package org.hyperic.hq.measurement.server.session;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -55,6 +56,7 @@ import org.hyperic.hq.product.MetricValue;
 import org.hyperic.hq.stats.ConcurrentStatsCollector;
 import org.hyperic.util.TimeUtil;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -75,6 +77,12 @@ public class BackfillPointsServiceImpl implements BackfillPointsService {
     private static final long MINUTE = MeasurementConstants.MINUTE;
     private static final String AVAIL_BACKFILLER_NUMPLATFORMS =
         ConcurrentStatsCollector.AVAIL_BACKFILLER_NUMPLATFORMS;
+    private static final String AVAIL_BACKFILLER_NUMCHECKED =
+        ConcurrentStatsCollector.AVAIL_BACKFILLER_NUMCHECKED;
+    private static final long DEFAULT_RESYNC_INTERVAL = 30 * MINUTE;
+    // Measurement ids loaded with each query, within the limit some
+    // databases put on IN lists
+    private static final int MAX_IDS = 1000;
     private final Log log = LogFactory.getLog(BackfillPointsServiceImpl.class);
     private final AvailabilityManager availabilityManager;
     private final PermissionManager permissionManager;
@@ -83,6 +91,11 @@ public class BackfillPointsServiceImpl implements BackfillPointsService {
     private final AgentDAO agentDAO;
     private final ConcurrentStatsCollector concurrentStatsCollector;
     private final AgentManager agentManager;
+    private final MeasurementDAO measurementDAO;
+    private final boolean expiryIndex;
+    private final long resyncInterval;
+    // Only used by the backfiller, which runs one check at a time
+    private long lastResync = 0;
 
     @Autowired
     public BackfillPointsServiceImpl(AvailabilityManager availabilityManager,
@@ -91,7 +104,10 @@ public class BackfillPointsServiceImpl implements BackfillPointsService {
                                      AgentDAO agentDAO,
                                      AvailabilityCache availabilityCache,
                                      ConcurrentStatsCollector concurrentStatsCollector,
-                                     AgentManager agentManager) {
+                                     AgentManager agentManager,
+                                     MeasurementDAO measurementDAO,
+                                     @Value("#{tweakProperties['hq.availability.expiryIndex'] }") Boolean expiryIndex,
+                                     @Value("#{tweakProperties['hq.availability.expiryIndex.resync'] }") Long resyncInterval) {
         this.availabilityManager = availabilityManager;
         this.permissionManager = permissionManager;
         this.availabilityCache = availabilityCache;
@@ -99,11 +115,15 @@ public class BackfillPointsServiceImpl implements BackfillPointsService {
         this.agentDAO = agentDAO;
         this.concurrentStatsCollector = concurrentStatsCollector;
         this.agentManager = agentManager;
+        this.measurementDAO = measurementDAO;
+        this.expiryIndex = (expiryIndex == null) ? false : expiryIndex.booleanValue();
+        this.resyncInterval = (resyncInterval == null) ? DEFAULT_RESYNC_INTERVAL : resyncInterval.longValue();
     }
 
     @PostConstruct
     public void initStats() {
         concurrentStatsCollector.register(AVAIL_BACKFILLER_NUMPLATFORMS);
+        concurrentStatsCollector.register(AVAIL_BACKFILLER_NUMCHECKED);
     }
 
     public Map<Integer, ResourceDataPoint> getBackfillPlatformPoints(long current) {
@@ -183,8 +203,9 @@ public class BackfillPointsServiceImpl implements BackfillPointsService {
 
     private Map<Integer, ResourceDataPoint> getDownPlatforms(long timeInMillis) {
         final boolean debug = log.isDebugEnabled();
-        final List<Measurement> platformResources = availabilityManager.getPlatformResources();
         final long now = TimingVoodoo.roundDownTime(timeInMillis, MINUTE);
+        final List<Measurement> platformResources = getPlatformsToCheck(now);
+        concurrentStatsCollector.addStat(platformResources.size(), AVAIL_BACKFILLER_NUMCHECKED);
         final String nowTimestamp = TimeUtil.toString(now);
         final Map<Integer, ResourceDataPoint> rtn = new HashMap<Integer, ResourceDataPoint>(platformResources.size());
         final LatherDispatcher latherDispatcher = Bootstrap.getBean(LatherDispatcher.class);
@@ -200,7 +221,7 @@ public class BackfillPointsServiceImpl implements BackfillPointsService {
                  *  one full minute + latency.  Setting to a minimum of 3 minutes allows the agent time to have one
                  *  more attempt after a failure
                  */
-                final long minDowntime = Math.max(2*interval, 3*MINUTE);
+                final long minDowntime = AvailabilityDeadlines.getMinDowntime(interval);
                 final long end = getEndWindow(now, meas);
                 final long begin = getBeginWindow(end, meas);
                 final DataPoint defaultPt = new DataPoint(meas.getId().intValue(), AVAIL_NULL, end);
@@ -258,6 +279,49 @@ public class BackfillPointsServiceImpl implements BackfillPointsService {
         return rtn;
     }
     
+    /**
+     * Without hq.availability.expiryIndex every platform availability
+     * measurement is checked.  With it only those which missed their
+     * deadline in the {@link AvailabilityCache} are, except once every
+     * resync interval when all are checked and indexed again.  Platforms
+     * are indexed as they are enabled or first report availability, see
+     * AvailabilityManager.watchAvailabilityDeadline(), and the resync picks
+     * up any missed.
+     */
+    private List<Measurement> getPlatformsToCheck(long now) {
+        if (!expiryIndex) {
+            return availabilityManager.getPlatformResources();
+        }
+        if ((now - lastResync) >= resyncInterval) {
+            final List<Measurement> rtn = availabilityManager.getPlatformResources();
+            availabilityCache.watchDeadlines(rtn);
+            lastResync = now;
+            if (log.isDebugEnabled()) {
+                log.debug("indexed availability deadlines of " + rtn.size() + " platforms");
+            }
+            return rtn;
+        }
+        final List<Integer> expired = availabilityCache.getExpired(now);
+        final List<Measurement> rtn = new ArrayList<Measurement>(expired.size());
+        for (int i = 0; i < expired.size(); i += MAX_IDS) {
+            final List<Integer> mids = expired.subList(i, Math.min(i + MAX_IDS, expired.size()));
+            rtn.addAll(measurementDAO.findByIds(mids.toArray(new Integer[mids.size()])));
+        }
+        final Set<Integer> found = new HashSet<Integer>();
+        for (final Measurement meas : rtn) {
+            // Picks up a change to the interval
+            availabilityCache.watchDeadline(meas);
+            found.add(meas.getId());
+        }
+        for (final Integer mid : expired) {
+            if (!found.contains(mid)) {
+                // Deleted along with its platform
+                availabilityCache.unwatchDeadline(mid);
+            }
+        }
+        return rtn;
+    }
+
     private long getLastLatherConnectTime(Resource resource, LatherDispatcher latherDispatcher) {
         long rtn = Long.MIN_VALUE;
         try {
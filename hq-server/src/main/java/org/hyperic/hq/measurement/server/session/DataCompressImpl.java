@@ -25,11 +25,15 @@
 
 package org.hyperic.hq.measurement.server.session;
 
+import java.util.List;
+import java.util.Map;
+
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hyperic.hq.measurement.MeasurementConstants;
 import org.hyperic.hq.measurement.TimingVoodoo;
 import org.hyperic.hq.measurement.shared.DataCompress;
+import org.hyperic.hq.measurement.shared.HighLowMetricValue;
 import org.hyperic.util.TimeUtil;
 import org.hyperic.util.timer.StopWatch;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -50,6 +54,7 @@ public class DataCompressImpl implements DataCompress {
     private static final String TAB_DATA_1H = MeasurementConstants.TAB_DATA_1H;
     private static final String TAB_DATA_6H = MeasurementConstants.TAB_DATA_6H;
     private static final String TAB_DATA_1D = MeasurementConstants.TAB_DATA_1D;
+    private static final double VERIFY_TOLERANCE = 0.0001;
 
     private DataCompressionDAO dataCompressionDAO;
 
@@ -71,17 +76,62 @@ public class DataCompressImpl implements DataCompress {
     }
 
     public void compressData(long toInterval, long now, long startWindow, long endWindow) {
-        if (toInterval == MeasurementConstants.HOUR) {
-            dataCompressionDAO.compactData(dataCompressionDAO.getMeasurementUnionStatement(now),
-                TAB_DATA_1H, startWindow, endWindow);
-        } else if (toInterval == MeasurementConstants.SIX_HOUR) {
-            dataCompressionDAO.compactData(TAB_DATA_1H, TAB_DATA_6H, startWindow, endWindow);
-        } else if (toInterval == MeasurementConstants.DAY) {
-            dataCompressionDAO.compactData(TAB_DATA_6H, TAB_DATA_1D, startWindow, endWindow);
-        } else {
-            throw new UnsupportedOperationException(
-                "Cannot compress data for intervals other than 1 hour, 6 hours, or 1 day");
+        dataCompressionDAO.compactData(getFromTableName(toInterval, now),
+            getTableName(toInterval), startWindow, endWindow);
+    }
+
+    public void insertCompressedData(long toInterval, List<DataPoint> data) {
+        String tableName = getTableName(toInterval);
+        log.info("Inserting " + data.size() + " compressed data points into " + tableName);
+        dataCompressionDAO.insertAggregateData(tableName, data);
+    }
+
+    public int verifyCompressedData(long toInterval, long startWindow) {
+        final long endWindow = startWindow + toInterval;
+        final String tableName = getTableName(toInterval);
+        Map<Integer, HighLowMetricValue> expected = dataCompressionDAO.getCompactedData(
+            getFromTableName(toInterval, endWindow), startWindow, endWindow);
+        Map<Integer, HighLowMetricValue> actual = dataCompressionDAO.getAggregateData(tableName,
+            startWindow);
+        int differ = 0;
+        for (Map.Entry<Integer, HighLowMetricValue> entry : expected.entrySet()) {
+            HighLowMetricValue val = actual.remove(entry.getKey());
+            if (val == null || !isClose(val, entry.getValue())) {
+                log.warn("Data of measurement " + entry.getKey() + " in " + tableName + " at " +
+                         TimeUtil.toString(startWindow) + " is " + toString(val) +
+                         ", compressing gives " + toString(entry.getValue()));
+                differ++;
+            }
         }
+        for (Map.Entry<Integer, HighLowMetricValue> entry : actual.entrySet()) {
+            log.warn("Data of measurement " + entry.getKey() + " in " + tableName + " at " +
+                     TimeUtil.toString(startWindow) + " is " + toString(entry.getValue()) +
+                     ", compressing gives none");
+            differ++;
+        }
+        log.info("Verified " + expected.size() + " compressed data points in " + tableName +
+                 " at " + TimeUtil.toString(startWindow) + ", " + differ + " differ");
+        return differ;
+    }
+
+    private boolean isClose(HighLowMetricValue val, HighLowMetricValue expected) {
+        return isClose(val.getValue(), expected.getValue()) &&
+               isClose(val.getLowValue(), expected.getLowValue()) &&
+               isClose(val.getHighValue(), expected.getHighValue());
+    }
+
+    private boolean isClose(double val, double expected) {
+        // Values are stored rounded to 5 decimal places, and averages
+        // summed in a different order
+        return Math.abs(val - expected) <= VERIFY_TOLERANCE + Math.abs(expected) * 1e-9;
+    }
+
+    private String toString(HighLowMetricValue val) {
+        if (val == null) {
+            return "missing";
+        }
+        return "avg=" + val.getValue() + " min=" + val.getLowValue() + " max=" +
+               val.getHighValue();
     }
 
     public long getMinTimestamp(long dataInterval) {
@@ -101,18 +151,7 @@ public class DataCompressImpl implements DataCompress {
             // Need to validate this behaviour with the oracle
             // JDBC driver. If no data exists the Postgres driver
             // returns 0 for MIN() or MAX().
-            String fromTableName;
-            if (toInterval == MeasurementConstants.HOUR) {
-                fromTableName = dataCompressionDAO.getMeasurementUnionStatement(now);
-            } else if (toInterval == MeasurementConstants.SIX_HOUR) {
-                fromTableName = getTableName(MeasurementConstants.HOUR);
-            } else if (toInterval == MeasurementConstants.DAY) {
-                fromTableName = getTableName(MeasurementConstants.SIX_HOUR);
-            } else {
-                throw new UnsupportedOperationException(
-                    "Cannot compress data to intervals other than 1 hour, 6 hours, or 1 day");
-            }
-            start = dataCompressionDAO.getMinTimestamp(fromTableName);
+            start = dataCompressionDAO.getMinTimestamp(getFromTableName(toInterval, now));
 
             // No measurement data found. (Probably a new installation)
             if (start == 0) {
@@ -142,6 +181,22 @@ public class DataCompressImpl implements DataCompress {
         log.info("Done (" + ((watch.getElapsed()) / 1000) + " seconds)");
     }
 
+    /**
+     * @return the table data is compressed from to get the dataInterval
+     *         table, for HOUR the raw data of the hour before now.
+     */
+    private String getFromTableName(long dataInterval, long now) {
+        if (dataInterval == MeasurementConstants.HOUR) {
+            return dataCompressionDAO.getMeasurementUnionStatement(now);
+        } else if (dataInterval == MeasurementConstants.SIX_HOUR) {
+            return TAB_DATA_1H;
+        } else if (dataInterval == MeasurementConstants.DAY) {
+            return TAB_DATA_6H;
+        }
+        throw new UnsupportedOperationException(
+            "Cannot compress data to intervals other than 1 hour, 6 hours, or 1 day");
+    }
+
     private String getTableName(long dataInterval) {
         if (dataInterval == MeasurementConstants.HOUR) {
             return TAB_DATA_1H;
@@ -30,6 +30,9 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -37,11 +40,13 @@ import org.hibernate.SessionFactory;
 import org.hibernate.engine.SessionFactoryImplementor;
 import org.hyperic.hibernate.dialect.HQDialect;
 import org.hyperic.hq.measurement.MeasurementConstants;
+import org.hyperic.hq.measurement.shared.HighLowMetricValue;
 import org.hyperic.hq.measurement.shared.MeasTabManagerUtil;
 import org.hyperic.util.TimeUtil;
 import org.hyperic.util.jdbc.DBUtil;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementCreator;
 import org.springframework.jdbc.core.ResultSetExtractor;
@@ -58,6 +63,7 @@ public class DataCompressionDAO {
     private final Log log = LogFactory.getLog(DataCompressionDAO.class);
     private static final String MEAS_VIEW = MeasTabManagerUtil.MEAS_VIEW;
     private static final String TAB_DATA = MeasurementConstants.TAB_DATA;
+    private static final int INSERT_BATCH_SIZE = 1000;
 
     @Autowired
     public DataCompressionDAO(JdbcTemplate jdbcTemplate, SessionFactory sessionFactory) {
@@ -172,21 +178,11 @@ public class DataCompressionDAO {
 
                 public PreparedStatement createPreparedStatement(Connection con)
                     throws SQLException {
-                    String minMax;
-                    if (fromTable.endsWith(TAB_DATA)) {
-                        minMax = "AVG(value), MIN(value), MAX(value) ";
-                    } else {
-                        minMax = "AVG(value), MIN(minvalue), MAX(maxvalue) ";
-                    }
-
                     PreparedStatement insStmt = con
                         .prepareStatement("INSERT INTO " +
                                           toTable +
                                           " (measurement_id, timestamp, value, minvalue, maxvalue)" +
-                                          " (SELECT measurement_id, ? AS timestamp, " + minMax +
-                                          "FROM " + fromTable +
-                                          " WHERE timestamp >= ? AND timestamp < ? " +
-                                          "GROUP BY measurement_id)");
+                                          " (" + getCompactionQuery(fromTable) + ")");
                     insStmt.setLong(1, begin);
                     insStmt.setLong(2, begin);
                     insStmt.setLong(3, end);
@@ -199,6 +195,79 @@ public class DataCompressionDAO {
         }
     }
 
+    private String getCompactionQuery(String fromTable) {
+        String minMax;
+        if (fromTable.endsWith(TAB_DATA)) {
+            minMax = "AVG(value), MIN(value), MAX(value) ";
+        } else {
+            minMax = "AVG(value), MIN(minvalue), MAX(maxvalue) ";
+        }
+        return "SELECT measurement_id, ? AS timestamp, " + minMax + "FROM " + fromTable +
+               " WHERE timestamp >= ? AND timestamp < ? GROUP BY measurement_id";
+    }
+
+    /**
+     * Get the rows compactData would insert, without inserting them.
+     * @return the average, maximum and minimum of each measurement
+     */
+    public Map<Integer, HighLowMetricValue> getCompactedData(String fromTable, long begin,
+                                                             long end) {
+        return jdbcTemplate.query(getCompactionQuery(fromTable), new Object[] { new Long(begin), new Long(begin), new Long(end) },
+            new AggregateDataExtractor());
+    }
+
+    /**
+     * Get the rows of an aggregate table at the given timestamp.
+     * @return the average, maximum and minimum of each measurement
+     */
+    public Map<Integer, HighLowMetricValue> getAggregateData(String table, long timestamp) {
+        return jdbcTemplate.query("SELECT measurement_id, timestamp, value, minvalue, maxvalue" +
+                                  " FROM " + table + " WHERE timestamp = ?",
+            new Object[] { new Long(timestamp) }, new AggregateDataExtractor());
+    }
+
+    private static class AggregateDataExtractor
+        implements ResultSetExtractor<Map<Integer, HighLowMetricValue>> {
+        public Map<Integer, HighLowMetricValue> extractData(ResultSet rs) throws SQLException,
+            DataAccessException {
+            Map<Integer, HighLowMetricValue> rtn = new HashMap<Integer, HighLowMetricValue>();
+            while (rs.next()) {
+                rtn.put(new Integer(rs.getInt(1)), new HighLowMetricValue(rs.getDouble(3), rs.getDouble(5),
+                    rs.getDouble(4), rs.getLong(2)));
+            }
+            return rtn;
+        }
+    }
+
+    /**
+     * Insert aggregated data into an aggregate table.
+     * @param data The data points, with the average, maximum and minimum of
+     *        each measurement in a {@link HighLowMetricValue}
+     */
+    public void insertAggregateData(String table, final List<DataPoint> data) {
+        final String sql = "INSERT INTO " + table +
+                           " (measurement_id, timestamp, value, minvalue, maxvalue)" +
+                           " VALUES (?, ?, ?, ?, ?)";
+        for (int i = 0; i < data.size(); i += INSERT_BATCH_SIZE) {
+            final List<DataPoint> batch = data.subList(i, Math.min(i + INSERT_BATCH_SIZE, data.size()));
+            jdbcTemplate.batchUpdate(sql, new BatchPreparedStatementSetter() {
+                public void setValues(PreparedStatement ps, int index) throws SQLException {
+                    DataPoint pt = batch.get(index);
+                    HighLowMetricValue val = (HighLowMetricValue) pt.getMetricValue();
+                    ps.setInt(1, pt.getMeasurementId().intValue());
+                    ps.setLong(2, pt.getTimestamp());
+                    ps.setDouble(3, val.getValue());
+                    ps.setDouble(4, val.getLowValue());
+                    ps.setDouble(5, val.getHighValue());
+                }
+
+                public int getBatchSize() {
+                    return batch.size();
+                }
+            });
+        }
+    }
+
     /**
      * Get the most recent measurement.
      */
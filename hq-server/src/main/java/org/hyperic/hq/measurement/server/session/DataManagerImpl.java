@@ -49,6 +49,7 @@ import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -88,6 +89,7 @@ import org.hyperic.util.pager.PageControl;
 import org.hyperic.util.pager.PageList;
 import org.hyperic.util.timer.StopWatch;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.orm.hibernate3.HibernateTransactionManager;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Propagation;
@@ -161,9 +163,14 @@ public class DataManagerImpl implements DataManager {
     private final ZeventEnqueuer zeventManager;
     private final MessagePublisher messagePublisher;
     private final RegisteredTriggers registeredTriggers;
+    private final MeasurementInterestIndex measurementInterestIndex;
+    private final StreamingRollup streamingRollup;
+    private final MetricQueryExecutor metricQueryExecutor;
     private final ConcurrentStatsCollector concurrentStatsCollector;
     private final int transactionTimeout;
     private final TopNManager topNManager;
+    // null unless metric data is loaded with COPY where the dialect supports it
+    private final PostgreSQLCopyLoader copyLoader;
 
     
     @Autowired
@@ -173,9 +180,13 @@ public class DataManagerImpl implements DataManager {
                            AvailabilityManager availabilityManager,
                            MetricDataCache metricDataCache, ZeventEnqueuer zeventManager,
                            MessagePublisher messagePublisher, RegisteredTriggers registeredTriggers,
+                           MeasurementInterestIndex measurementInterestIndex,
+                           StreamingRollup streamingRollup,
+                           MetricQueryExecutor metricQueryExecutor,
                            ConcurrentStatsCollector concurrentStatsCollector,
                            HibernateTransactionManager transactionManager,
-                           TopNManager topNManager) {
+                           TopNManager topNManager,
+                           @Value("#{tweakProperties['hq.metricData.copyInsert'] }") Boolean copyInsert) {
         this.dbUtil = dbUtil;
         this.measurementDAO = measurementDAO;
         this.measurementManager = measurementManager;
@@ -185,9 +196,14 @@ public class DataManagerImpl implements DataManager {
         this.zeventManager = zeventManager;
         this.messagePublisher = messagePublisher;
         this.registeredTriggers = registeredTriggers;
+        this.measurementInterestIndex = measurementInterestIndex;
+        this.streamingRollup = streamingRollup;
+        this.metricQueryExecutor = metricQueryExecutor;
         this.concurrentStatsCollector = concurrentStatsCollector;
         this.transactionTimeout = transactionManager.getDefaultTimeout();
         this.topNManager = topNManager;
+        this.copyLoader = (copyInsert == null || copyInsert.booleanValue()) ?
+            new PostgreSQLCopyLoader() : null;
     }
 
     @PostConstruct
@@ -363,8 +379,21 @@ public class DataManagerImpl implements DataManager {
             try {
                 final long start = System.currentTimeMillis();
                 conn.setAutoCommit(false);
-                if (dialect.supportsMultiInsertStmt()) {
-                    succeeded = insertDataWithOneInsert(data, conn);
+                // The points which made it into the tables, without the
+                // duplicates which were dropped, and those which replaced
+                // values already there
+                List<DataPoint> written = data;
+                final List<DataPoint> merged = new ArrayList<DataPoint>();
+                if (copyLoader != null && dialect.supportsCopyStmt()) {
+                    final Map<String, Set<DataPoint>> buckets =
+                        MeasRangeObj.getInstance().bucketDataEliminateDups(data);
+                    written = getPoints(buckets);
+                    succeeded = insertDataWithCopy(buckets, conn, merged);
+                } else if (dialect.supportsMultiInsertStmt()) {
+                    final Map<String, Set<DataPoint>> buckets =
+                        MeasRangeObj.getInstance().bucketDataEliminateDups(data);
+                    written = getPoints(buckets);
+                    succeeded = insertDataWithOneInsert(buckets, conn);
                 } else {
                     succeeded = insertDataInBatch(data, conn);
                 }
@@ -378,6 +407,8 @@ public class DataManagerImpl implements DataManager {
                     }
                     
                     concurrentStatsCollector.addStat(end - start, DATA_MANAGER_INSERT_TIME);
+                    streamingRollup.add(written);
+                    streamingRollup.addRewritten(merged);
                     sendMetricEvents(data);
                 } else {
                     if (debug) {
@@ -390,6 +421,7 @@ public class DataManagerImpl implements DataManager {
                     final long end = System.currentTimeMillis();
                     
                     concurrentStatsCollector.addStat(end - start, DATA_MANAGER_INSERT_TIME);
+                    streamingRollup.addRewritten(processed);
                     sendMetricEvents(processed);
                     if (debug) {
                         log.debug("Data Insertion process took " + (end - start) + " ms");
@@ -512,7 +544,7 @@ public class DataManagerImpl implements DataManager {
 
             try {
                 conn.setAutoCommit(true);
-                addDataWithCommits(data, overwrite, conn);
+                streamingRollup.addRewritten(addDataWithCommits(data, overwrite, conn));
             } finally {
                 conn.setAutoCommit(autocommit);
             }
@@ -681,6 +713,10 @@ public class DataManagerImpl implements DataManager {
         for (DataPoint dp : data) {
 
             Integer metricId = dp.getMeasurementId();
+            // Nothing listens to the events of most measurements
+            if (!allEventsInteresting && !measurementInterestIndex.isInterested(metricId.intValue())) {
+                continue;
+            }
             MetricValue val = dp.getMetricValue();
             MeasurementEvent event = new MeasurementEvent(metricId, val);
 
@@ -756,17 +792,27 @@ public class DataManagerImpl implements DataManager {
         return res;
     }
 
+    /**
+     * @return the points of every table, as they are inserted
+     */
+    static List<DataPoint> getPoints(Map<String, Set<DataPoint>> buckets) {
+        final List<DataPoint> rtn = new ArrayList<DataPoint>();
+        for (final Set<DataPoint> dpts : buckets.values()) {
+            rtn.addAll(dpts);
+        }
+        return rtn;
+    }
+
     /**
      * Insert the metric data points to the DB with one insert statement. This
      * should only be invoked when the DB supports multi-insert statements.
      * 
-     * @param data a list of {@link DataPoint}s
+     * @param buckets the {@link DataPoint}s of each table, without duplicates
      * @return <code>true</code> if the multi-insert succeeded;
      *         <code>false</code> otherwise.
      */
-    private boolean insertDataWithOneInsert(List<DataPoint> data, Connection conn) {
+    private boolean insertDataWithOneInsert(Map<String, Set<DataPoint>> buckets, Connection conn) {
         Statement stmt = null;
-        final Map<String, Set<DataPoint>> buckets = MeasRangeObj.getInstance().bucketDataEliminateDups(data);
         final boolean debug = log.isDebugEnabled();
         String sql = "";
         final HQDialect dialect = measurementDAO.getHQDialect();
@@ -822,6 +868,57 @@ public class DataManagerImpl implements DataManager {
         return true;
     }
 
+    /**
+     * Insert the metric data points to the DB with COPY, merging those which
+     * are already there. This should only be invoked when the DB supports
+     * the COPY stmt.
+     * 
+     * @param buckets the {@link DataPoint}s of each table, without duplicates
+     * @param merged gets the points of the tables where some of them
+     *        replaced values which were already there
+     * @return <code>true</code> if the copy succeeded;
+     *         <code>false</code> otherwise.
+     */
+    private boolean insertDataWithCopy(Map<String, Set<DataPoint>> buckets, Connection conn,
+                                       List<DataPoint> merged) {
+        Statement stmt = null;
+        final boolean debug = log.isDebugEnabled();
+        final HQDialect dialect = measurementDAO.getHQDialect();
+        final boolean supportsAsyncCommit = dialect.supportsAsyncCommit();
+        String table = "";
+        try {
+            stmt = conn.createStatement();
+            if (supportsAsyncCommit) {
+                stmt.execute(dialect.getSetAsyncCommitStmt(false));
+            }
+            for (Entry<String, Set<DataPoint>> entry : buckets.entrySet()) {
+                table = entry.getKey();
+                final Set<DataPoint> dpts = entry.getValue();
+                final int rowsUpdated = copyLoader.load(conn, table, dpts, merged);
+                if (debug) {
+                    log.debug("Copied " + rowsUpdated + " rows into " + table + " (attempted " + dpts.size() + " rows)");
+                }
+                if (rowsUpdated < dpts.size()) {
+                    return false;
+                }
+            }
+            if (supportsAsyncCommit) {
+                stmt.execute(dialect.getSetAsyncCommitStmt(true));
+            }
+        } catch (SQLException e) {
+            // If there is a SQLException, then none of the data points
+            // should be inserted. Roll back the txn.
+            if (debug) {
+                log.debug("Error copying data into " + table + ": " + e +
+                          ".  Server will retry the insert in degraded mode.");
+            }
+            return false;
+        } finally {
+            DBUtil.closeStatement(LOG_CTX, stmt);
+        }
+        return true;
+    }
+
     /**
      * Insert the metric data points to the DB in batch.
      * 
@@ -1927,13 +2024,13 @@ public class DataManagerImpl implements DataManager {
         }
     }
     
-    private CharSequence getRawDataSql(Integer[] mids, long begin, long end,
+    private CharSequence getRawDataSql(Integer[] mids, String table, long begin, long end,
                                        AtomicLong publishedInterval) {
         if ((mids == null) || (mids.length == 0)) {
             return "";
         }
         if (log.isDebugEnabled()) {
-            log.debug("gathering data from begin=" + TimeUtil.toString(begin) + 
+            log.debug("gathering data from " + table + " begin=" + TimeUtil.toString(begin) + 
                       ", end=" + TimeUtil.toString(end));
         }
         final HQDialect dialect = measurementDAO.getHQDialect();
@@ -1946,32 +2043,22 @@ public class DataManagerImpl implements DataManager {
         //    queries.  But for smaller queries the measurement_id index is more effective
         final String hint = (dialect.getMetricDataHint().isEmpty() || (mids.length < 1000)) ?
             "" : " " + dialect.getMetricDataHint();
-        final String sql = new StringBuilder(1024 + (mids.length * 5))
-            .append("SELECT count(*) as cnt, sum(value) as sumvalue, ")
-            .append("min(value) as minvalue, max(value) as maxvalue, timestamp")
-            .append(" FROM :table").append(hint)
-            .append(" WHERE timestamp BETWEEN ").append(begin).append(" AND ").append(end)
-            .append(MeasTabManagerUtil.getMeasInStmt(mids, true))
-            .append(" GROUP BY timestamp")
-            .toString();
-        final String[] tables = getDataTables(begin, end, false);
-        if ((publishedInterval != null) && (tables.length == 1)) {
-            if (tables[0].equals(TAB_DATA_1H)) {
+        if (publishedInterval != null) {
+            if (table.equals(TAB_DATA_1H)) {
                 publishedInterval.set(HOUR);
-            } else if (tables[0].equals(TAB_DATA_6H)) {
+            } else if (table.equals(TAB_DATA_6H)) {
                 publishedInterval.set(HOUR * 6);
-            } else if (tables[0].equals(TAB_DATA_1D)) {
+            } else if (table.equals(TAB_DATA_1D)) {
                 publishedInterval.set(HOUR * 24);
             }
         }
-        final StringBuilder sqlBuf = new StringBuilder(128 * tables.length);
-        for (int i = 0; i < tables.length; i++) {
-            sqlBuf.append(sql.replace(":table", tables[i]));
-            if (i < (tables.length - 1)) {
-                sqlBuf.append(" UNION ALL ");
-            }
-        }
-        return sqlBuf;
+        return new StringBuilder(1024 + (mids.length * 5))
+            .append("SELECT count(*) as cnt, sum(value) as sumvalue, ")
+            .append("min(value) as minvalue, max(value) as maxvalue, timestamp")
+            .append(" FROM ").append(table).append(hint)
+            .append(" WHERE timestamp BETWEEN ").append(begin).append(" AND ").append(end)
+            .append(MeasTabManagerUtil.getMeasInStmt(mids, true))
+            .append(" GROUP BY timestamp");
     }
     
     private AggMetricValue[] getAggValueSets(final Integer[] mids,
@@ -1988,11 +2075,12 @@ public class DataManagerImpl implements DataManager {
             MeasTabManagerUtil.getMetricRanges(start, finish) :
             new MeasRange[] {new MeasRange(tables[0], start, finish)};
         final String threadName = Thread.currentThread().getName();
-        final List<Thread> threads = new ArrayList<Thread>(ranges.length);
-        final Collection<AggMetricValue[]> data = new ArrayList<AggMetricValue[]>(ranges.length);
-        final int maxThreads = 4;
+        final int buckets = (int) ((finish - start) / windowSize);
+        final List<Callable<AggMetricValue[]>> queries =
+            new ArrayList<Callable<AggMetricValue[]>>(ranges.length);
+        final int[] firstBuckets = new int[ranges.length];
         // The result encapsulates the timeframe start -> finish.  The results are gathered
-        // via sub-queries.  Each sub-query is from begin -> end
+        // via sub-queries, each against the one table holding begin -> end
         // start                                                                    finish
         // <----------------------------------------------------------------------------->
         // (begin-end)(begin-end)(begin-end)(begin-end)(begin-end)(begin-end)(begin-end)..
@@ -2001,63 +2089,60 @@ public class DataManagerImpl implements DataManager {
             final long max = range.getMaxTimestamp();
             final long begin = (min < start) ? start : min;
             final long end = (max > finish) ? finish : max;
-            waitForThreads(threads, maxThreads);
-            // XXX may want to add a thread pool or a static Executor here so that these
-            // queries don't overwhelm the DB
-            Thread thread = getNewDataWorkerThread(mids, start, finish, begin, end, windowSize,
-                                                   returnNulls, publishedInterval, threadName,
-                                                   data);
-            thread.start();
-            threads.add(thread);
-        }
-        waitForThreads(threads);
-        return mergeThreadData(start, finish, windowSize, data);
-    }
-    
-    /**
-     * @param begin - the begin time of the sub window
-     * @param end - the end time of the sub window
-     * @param start - the start time of the user specified window
-     * @param finish - the finish time of the user specified window
-     */
-    private Thread getNewDataWorkerThread(final Integer[] mids, final long start,
-                                          final long finish, final long begin, final long end,
-                                          final long windowSize, final boolean returnNulls,
-                                          final AtomicLong publishedInterval,
-                                          final String threadName,
-                                          final Collection<AggMetricValue[]> data) {
-        final boolean debug = log.isDebugEnabled();
-        final Thread thread = new Thread() {
-            @Override
-            public void run() {
-                final StopWatch watch = new StopWatch();
-                if (debug) {
-                    watch.markTimeBegin("data gatherer begin=" + TimeUtil.toString(begin) + 
-                                        ", end=" + TimeUtil.toString(end));
-                }
-                final AggMetricValue[] array = getHistDataSet(mids, start, finish, begin, end,
-                                                              windowSize, returnNulls,
-                                                              publishedInterval, threadName);
-                if (debug) {
-                    watch.markTimeEnd("data gatherer begin=" + TimeUtil.toString(begin) + 
-                                      ", end=" + TimeUtil.toString(end));
-                    log.debug(watch);
+            if (begin > end) {
+                continue;
+            }
+            final int firstBucket = Math.max(0, getBucket(buckets, finish, windowSize, begin));
+            final int lastBucket = getBucket(buckets, finish, windowSize, end);
+            firstBuckets[queries.size()] = firstBucket;
+            queries.add(new Callable<AggMetricValue[]>() {
+                public AggMetricValue[] call() {
+                    return getHistDataSet(mids, range.getTable(), start, finish, begin, end,
+                                          windowSize, firstBucket, lastBucket,
+                                          publishedInterval, threadName);
                 }
-                synchronized (data) {
-                    data.add(array);
+            });
+        }
+        // Queries of the same request thread take turns with those of others
+        final List<AggMetricValue[]> data = metricQueryExecutor.invokeAll(threadName, queries);
+        final AggMetricValue[] rtn = new AggMetricValue[buckets];
+        for (int i = 0; i < data.size(); i++) {
+            final AggMetricValue[] vals = data.get(i);
+            for (int ii = 0; ii < vals.length; ii++) {
+                final AggMetricValue val = vals[ii];
+                if (val != null) {
+                    merge(firstBuckets[i] + ii, rtn, val, val.timestamp);
                 }
             }
-        };
-        return thread;
+        }
+        return rtn;
+    }
+
+    private static int getBucket(int buckets, long finish, long windowSize, long timestamp) {
+        return (int) (buckets - ((finish - timestamp) / (float) windowSize));
     }
 
-    private AggMetricValue[] getHistDataSet(Integer[] mids, long start, long finish,
-                                            long rangeBegin, long rangeEnd,
-                                            long windowSize, final boolean returnNulls,
+    /**
+     * @param start - the start time of the user specified window
+     * @param finish - the finish time of the user specified window
+     * @param rangeBegin - the begin time of the sub window
+     * @param rangeEnd - the end time of the sub window
+     * @return the buckets from firstBucket to lastBucket of the user
+     *         specified window, which are the ones the sub window falls in
+     */
+    private AggMetricValue[] getHistDataSet(Integer[] mids, String table, long start, long finish,
+                                            long rangeBegin, long rangeEnd, long windowSize,
+                                            int firstBucket, int lastBucket,
                                             AtomicLong publishedInterval, String threadName) {
-        final CharSequence sqlBuf = getRawDataSql(mids, rangeBegin, rangeEnd, publishedInterval);
+        final boolean debug = log.isDebugEnabled();
+        final StopWatch watch = new StopWatch();
+        if (debug) {
+            watch.markTimeBegin("data gatherer begin=" + TimeUtil.toString(rangeBegin) + 
+                                ", end=" + TimeUtil.toString(rangeEnd));
+        }
+        final CharSequence sqlBuf = getRawDataSql(mids, table, rangeBegin, rangeEnd, publishedInterval);
         final int buckets = (int) ((finish - start) / windowSize);
-        final AggMetricValue[] array = new AggMetricValue[buckets];
+        final AggMetricValue[] array = new AggMetricValue[Math.max(0, lastBucket - firstBucket + 1)];
         Connection conn = null;
         Statement stmt = null;
         ResultSet rs = null;
@@ -2085,73 +2170,23 @@ public class DataManagerImpl implements DataManager {
                 if ((timestamp < start) || (timestamp > finish)) {
                     continue;
                 }
-                final int bucket = (int) (buckets - ((finish - timestamp) / (float) windowSize));
-                if (bucket < 0) {
+                final int bucket = getBucket(buckets, finish, windowSize, timestamp);
+                if (bucket < firstBucket) {
                     continue;
                 }
-                merge(bucket, array, val, timestamp);
+                merge(bucket - firstBucket, array, val, timestamp);
             }
         } catch (SQLException e) {
             throw new SystemException(e);
         } finally {
             DBUtil.closeJDBCObjects(getClass().getName(), conn, stmt, rs);
         }
-        return array;
-    }
-    
-    private AggMetricValue[] mergeThreadData(long start, long finish, long windowSize,
-                                             Collection<AggMetricValue[]> data) {
-        final int buckets = (int) ((finish - start) / windowSize);
-        final AggMetricValue[] rtn = new AggMetricValue[buckets];
-        for (final AggMetricValue[] vals : data) {
-            for (int ii = 0; ii < vals.length; ii++) {
-                final AggMetricValue val = vals[ii];
-                if (val == null) {
-                    continue;
-                }
-                if (rtn[ii] == null) {
-                    rtn[ii] = val;
-                } else {
-                    rtn[ii].merge(val);
-                }
-            }
-        }
-        return rtn;
-    }
-
-    private void waitForThreads(List<Thread> threads) {
-        for (final Thread thread : threads) {
-            while (thread.isAlive()) {
-                try {
-                    thread.join();
-                } catch (InterruptedException e) {
-                    log.debug(e, e);
-                }
-            }
-        }
-    }
-
-    private void waitForThreads(List<Thread> threads, int maxThreads) {
-        if (threads.isEmpty() || (threads.size() < maxThreads)) {
-            return;
-        }
-        int i=0;
-        while (threads.size() >= maxThreads) {
-            i = ((i >= threads.size()) || (i < 0)) ? 0 : i;
-            final Thread thread = threads.get(i);
-            try {
-                if (thread.isAlive()) {
-                    thread.join(100);
-                }
-                if (!thread.isAlive()) {
-                    threads.remove(i);
-                } else {
-                    i++;
-                }
-            } catch (InterruptedException e) {
-                log.debug(e,e);
-            }
+        if (debug) {
+            watch.markTimeEnd("data gatherer begin=" + TimeUtil.toString(rangeBegin) + 
+                              ", end=" + TimeUtil.toString(rangeEnd));
+            log.debug(watch);
         }
+        return array;
     }
 
     private void merge(PageList<HighLowMetricValue> master, PageList<HighLowMetricValue> toMerge) {
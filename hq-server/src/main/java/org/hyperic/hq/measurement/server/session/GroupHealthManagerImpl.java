@@ -0,0 +1,577 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.server.session;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hyperic.hq.application.Scheduler;
+import org.hyperic.hq.appdef.shared.AppdefEntityID;
+import org.hyperic.hq.appdef.shared.AppdefUtil;
+import org.hyperic.hq.authz.server.session.Resource;
+import org.hyperic.hq.authz.server.session.ResourceGroup;
+import org.hyperic.hq.authz.server.session.events.group.GroupDeleteRequestedEvent;
+import org.hyperic.hq.authz.server.session.events.group.GroupMembersChangedEvent;
+import org.hyperic.hq.authz.server.session.events.group.GroupRelatedEvent;
+import org.hyperic.hq.authz.shared.ResourceGroupManager;
+import org.hyperic.hq.context.Bootstrap;
+import org.hyperic.hq.events.server.session.AlertDAO;
+import org.hyperic.hq.measurement.MeasurementConstants;
+import org.hyperic.hq.measurement.shared.GroupHealth;
+import org.hyperic.hq.measurement.shared.GroupHealthManager;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Keeps the health of the groups asked for up to date as the availability
+ * of their members changes, alerts on them fire and are fixed, and their
+ * membership changes, so that it is read without loading the members and
+ * their last values each time.
+ * <p>
+ * A group is loaded from the database the first time its health is asked
+ * for.  Changes to the availability of its members and to the alerts on
+ * them are applied as they are committed, and a change to its members drops
+ * it until it is asked for again.  Alerts deleted with their definitions
+ * and members which are deleted or lose their availability measurement
+ * aren't followed, so each group kept is recomputed from the database every
+ * hq.groupHealth.reconcile ms, and the drift found is logged.  Groups with
+ * groups or applications as members aren't kept.  Only used if
+ * hq.groupHealth is true.
+ */
+@Service
+@Transactional
+public class GroupHealthManagerImpl implements GroupHealthManager, ApplicationListener<ApplicationEvent> {
+    private static final long DEFAULT_RECONCILE_INTERVAL = 15 * MeasurementConstants.MINUTE;
+
+    private final Log log = LogFactory.getLog(GroupHealthManagerImpl.class);
+
+    private final ResourceGroupManager resourceGroupManager;
+    private final MeasurementDAO measurementDAO;
+    private final AvailabilityDataDAO availabilityDataDAO;
+    private final AlertDAO alertDAO;
+    private final Scheduler scheduler;
+    private final boolean enabled;
+    private final long reconcileInterval;
+    private ScheduledFuture<?> reconcileTask;
+
+    // Everything below is guarded by this
+    private final Map<Integer, Health> groups = new HashMap<Integer, Health>();
+    private final Set<Integer> unsupported = new HashSet<Integer>();
+    private final Map<Integer, Availability> measurements = new HashMap<Integer, Availability>();
+    private final Map<Integer, Alerts> resources = new HashMap<Integer, Alerts>();
+    // Counts the changes applied, so that a value read from the database
+    // is only kept if nothing changed it since it was read
+    private long seq = 0;
+    private long membersChanged = 0;
+
+    @Autowired
+    public GroupHealthManagerImpl(ResourceGroupManager resourceGroupManager, MeasurementDAO measurementDAO,
+                                  AvailabilityDataDAO availabilityDataDAO, AlertDAO alertDAO,
+                                  Scheduler scheduler,
+                                  @Value("#{tweakProperties['hq.groupHealth'] }") Boolean enabled,
+                                  @Value("#{tweakProperties['hq.groupHealth.reconcile'] }") Long reconcileInterval) {
+        this.resourceGroupManager = resourceGroupManager;
+        this.measurementDAO = measurementDAO;
+        this.availabilityDataDAO = availabilityDataDAO;
+        this.alertDAO = alertDAO;
+        this.scheduler = scheduler;
+        this.enabled = (enabled == null) ? false : enabled.booleanValue();
+        this.reconcileInterval = (reconcileInterval == null) ? DEFAULT_RECONCILE_INTERVAL
+                                                             : reconcileInterval.longValue();
+    }
+
+    @PostConstruct
+    public void initialize() {
+        if (!enabled || reconcileInterval <= 0) {
+            return;
+        }
+        reconcileTask = scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    // Through the bean, so that it runs in a transaction
+                    Bootstrap.getBean(GroupHealthManager.class).reconcile();
+                } catch (RuntimeException e) {
+                    log.error("Unable to reconcile the health of the groups: " + e, e);
+                }
+            }
+        }, reconcileInterval, reconcileInterval);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (reconcileTask != null) {
+            reconcileTask.cancel(false);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Transactional(readOnly = true)
+    public GroupHealth getGroupHealth(ResourceGroup group) {
+        if (!enabled) {
+            return null;
+        }
+        final long start;
+        synchronized (this) {
+            final Health health = groups.get(group.getId());
+            if (health != null) {
+                return health.getSnapshot();
+            }
+            if (unsupported.contains(group.getId())) {
+                return null;
+            }
+            start = seq;
+        }
+        final Loaded loaded = load(group);
+        synchronized (this) {
+            if (loaded == null) {
+                if (membersChanged <= start) {
+                    unsupported.add(group.getId());
+                }
+                return null;
+            }
+            return install(loaded, start).getSnapshot();
+        }
+    }
+
+    public void availabilityChanged(final List<DataPoint> states) {
+        if (!enabled || states.isEmpty()) {
+            return;
+        }
+        afterCommit(new Runnable() {
+            public void run() {
+                synchronized (GroupHealthManagerImpl.this) {
+                    if (measurements.isEmpty()) {
+                        return;
+                    }
+                    for (DataPoint state : states) {
+                        final Availability avail = measurements.get(state.getMeasurementId());
+                        // Transactions of the same shard may commit out of order
+                        if (avail != null && state.getTimestamp() >= avail.timestamp) {
+                            avail.set(state.getValue());
+                            avail.timestamp = state.getTimestamp();
+                            avail.changed = ++seq;
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    public void availabilityOutOfSync(final List<Integer> mids) {
+        if (!enabled || mids.isEmpty()) {
+            return;
+        }
+        afterCommit(new Runnable() {
+            public void run() {
+                synchronized (GroupHealthManagerImpl.this) {
+                    final Set<Integer> groupIds = new HashSet<Integer>();
+                    for (Integer mid : mids) {
+                        final Availability avail = measurements.get(mid);
+                        if (avail != null) {
+                            for (Health health : avail.groups) {
+                                groupIds.add(health.groupId);
+                            }
+                        }
+                    }
+                    for (Integer groupId : groupIds) {
+                        drop(groupId);
+                    }
+                }
+            }
+        });
+    }
+
+    public void alertOpened(Resource resource) {
+        alertsChanged(resource, 1);
+    }
+
+    public void alertFixed(Resource resource) {
+        alertsChanged(resource, -1);
+    }
+
+    private void alertsChanged(Resource resource, final int delta) {
+        if (!enabled || resource == null) {
+            return;
+        }
+        final Integer id = resource.getId();
+        afterCommit(new Runnable() {
+            public void run() {
+                synchronized (GroupHealthManagerImpl.this) {
+                    final Alerts alerts = resources.get(id);
+                    if (alerts != null) {
+                        alerts.add(delta);
+                        alerts.changed = ++seq;
+                    }
+                }
+            }
+        });
+    }
+
+    public void onApplicationEvent(ApplicationEvent event) {
+        if (event instanceof GroupMembersChangedEvent || event instanceof GroupDeleteRequestedEvent) {
+            groupChanged(((GroupRelatedEvent) event).getGroup().getId());
+        }
+    }
+
+    private void groupChanged(final Integer groupId) {
+        if (!enabled) {
+            return;
+        }
+        // Dropped now so it isn't read from this transaction, and again once
+        // committed in case another one loaded it meanwhile
+        drop(groupId);
+        afterCommit(new Runnable() {
+            public void run() {
+                drop(groupId);
+            }
+        });
+    }
+
+    private synchronized void drop(Integer groupId) {
+        final Health health = groups.remove(groupId);
+        if (health != null) {
+            uninstall(health);
+        }
+        unsupported.remove(groupId);
+        membersChanged = ++seq;
+    }
+
+    @Transactional(readOnly = true)
+    public void reconcile() {
+        if (!enabled) {
+            return;
+        }
+        final long begin = System.currentTimeMillis();
+        final List<Integer> groupIds;
+        synchronized (this) {
+            groupIds = new ArrayList<Integer>(groups.keySet());
+        }
+        int drifted = 0;
+        for (Integer groupId : groupIds) {
+            final long start;
+            synchronized (this) {
+                if (!groups.containsKey(groupId)) {
+                    continue;
+                }
+                start = seq;
+            }
+            final ResourceGroup group = resourceGroupManager.getGroupById(groupId);
+            final Loaded loaded = (group == null) ? null : load(group);
+            synchronized (this) {
+                final Health health = groups.get(groupId);
+                if (health == null) {
+                    continue;
+                }
+                final GroupHealth before = health.getSnapshot();
+                if (loaded == null) {
+                    groups.remove(groupId);
+                    uninstall(health);
+                    continue;
+                }
+                final GroupHealth after = install(loaded, start).getSnapshot();
+                if (!before.equals(after)) {
+                    drifted++;
+                    if (log.isDebugEnabled()) {
+                        log.debug("Health of group " + groupId + " drifted from " + before + " to " + after);
+                    }
+                }
+            }
+        }
+        if (drifted > 0) {
+            log.info("The health of " + drifted + " of " + groupIds.size() +
+                     " groups had drifted from the database and was reloaded");
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Reconciled the health of " + groupIds.size() + " groups in " +
+                      (System.currentTimeMillis() - begin) + " ms");
+        }
+    }
+
+    /**
+     * @return the members of the group and their state in the database, or
+     *         null if some are groups or applications.
+     */
+    private Loaded load(ResourceGroup group) {
+        final List<Resource> members = resourceGroupManager.getMembers(group);
+        final Map<Integer, Measurement> avails = new HashMap<Integer, Measurement>();
+        for (Measurement m : measurementDAO.findAvailMeasurements(group)) {
+            avails.put(m.getResource().getId(), m);
+        }
+        final Loaded rtn = new Loaded(group.getId());
+        for (Resource r : members) {
+            final Measurement m = avails.get(r.getId());
+            rtn.resourceIds.add(r.getId());
+            if (r.isInAsyncDeleteState()) {
+                rtn.deleted++;
+            } else if (m != null) {
+                rtn.values.put(m.getId(), new Double(MeasurementConstants.AVAIL_UNKNOWN));
+            } else {
+                final AppdefEntityID aeid = AppdefUtil.newAppdefEntityId(r);
+                if (aeid.isGroup() || aeid.isApplication()) {
+                    return null;
+                }
+                rtn.unmeasured++;
+            }
+        }
+        if (!rtn.values.isEmpty()) {
+            final List<Integer> mids = new ArrayList<Integer>(rtn.values.keySet());
+            for (AvailabilityDataRLE rle : availabilityDataDAO.findLastAvail(mids)) {
+                rtn.values.put(rle.getMeasurement().getId(), new Double(rle.getAvailVal()));
+            }
+        }
+        if (!members.isEmpty()) {
+            rtn.alerts.putAll(alertDAO.countUnfixedByResource(members));
+        }
+        return rtn;
+    }
+
+    /**
+     * Replaces the health kept for the group with the one loaded.  Values
+     * changed since the load started are kept rather than the ones loaded,
+     * and the health isn't kept if the members changed since.  Must be
+     * called holding this.
+     */
+    private Health install(Loaded loaded, long start) {
+        final Health health = new Health(loaded);
+        final boolean keep = membersChanged <= start;
+        for (Map.Entry<Integer, Double> entry : loaded.values.entrySet()) {
+            Availability avail = measurements.get(entry.getKey());
+            final double val = entry.getValue().doubleValue();
+            if (avail == null) {
+                avail = new Availability(val);
+            } else if (avail.changed <= start) {
+                avail.set(val);
+            }
+            health.add(avail.value);
+            if (keep) {
+                avail.groups.add(health);
+                measurements.put(entry.getKey(), avail);
+            }
+        }
+        for (Integer resourceId : loaded.resourceIds) {
+            Alerts alerts = resources.get(resourceId);
+            final Integer open = loaded.alerts.get(resourceId);
+            final int num = (open == null) ? 0 : open.intValue();
+            if (alerts == null) {
+                alerts = new Alerts(num);
+            } else if (alerts.changed <= start) {
+                alerts.add(num - alerts.open);
+            }
+            health.openAlerts += alerts.open;
+            if (keep) {
+                alerts.groups.add(health);
+                resources.put(resourceId, alerts);
+            }
+        }
+        // Dropped last, so that the values of its members are kept meanwhile
+        final Health old = keep ? groups.put(loaded.groupId, health) : groups.remove(loaded.groupId);
+        if (old != null) {
+            uninstall(old);
+        }
+        return health;
+    }
+
+    /**
+     * Must be called holding this.
+     */
+    private void uninstall(Health health) {
+        for (Integer mid : health.mids) {
+            final Availability avail = measurements.get(mid);
+            if (avail != null && avail.groups.remove(health) && avail.groups.isEmpty()) {
+                measurements.remove(mid);
+            }
+        }
+        for (Integer resourceId : health.resourceIds) {
+            final Alerts alerts = resources.get(resourceId);
+            if (alerts != null && alerts.groups.remove(health) && alerts.groups.isEmpty()) {
+                resources.remove(resourceId);
+            }
+        }
+    }
+
+    private void afterCommit(final Runnable task) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            task.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            public void suspend() {
+            }
+
+            public void resume() {
+            }
+
+            public void flush() {
+            }
+
+            public void beforeCommit(boolean readOnly) {
+            }
+
+            public void beforeCompletion() {
+            }
+
+            public void afterCompletion(int status) {
+            }
+
+            public void afterCommit() {
+                task.run();
+            }
+        });
+    }
+
+    synchronized int getNumMeasurements() {
+        return measurements.size();
+    }
+
+    synchronized int getNumResources() {
+        return resources.size();
+    }
+
+    /**
+     * The members of a group and their state as read from the database.
+     */
+    private static final class Loaded {
+        private final Integer groupId;
+        private final List<Integer> resourceIds = new ArrayList<Integer>();
+        // Measurement id to its last value
+        private final Map<Integer, Double> values = new HashMap<Integer, Double>();
+        // Resource id to its number of unfixed alerts
+        private final Map<Integer, Integer> alerts = new HashMap<Integer, Integer>();
+        private int deleted = 0;
+        private int unmeasured = 0;
+
+        private Loaded(Integer groupId) {
+            this.groupId = groupId;
+        }
+    }
+
+    /**
+     * The running totals of a group kept.
+     */
+    private static final class Health {
+        private final Integer groupId;
+        private final Integer[] mids;
+        private final Integer[] resourceIds;
+        private final int[] counts = new int[GroupHealth.NUM_STATES];
+        private double availSum = 0;
+        private int openAlerts = 0;
+
+        private Health(Loaded loaded) {
+            this.groupId = loaded.groupId;
+            this.mids = loaded.values.keySet().toArray(new Integer[loaded.values.size()]);
+            this.resourceIds = loaded.resourceIds.toArray(new Integer[loaded.resourceIds.size()]);
+            counts[GroupHealth.DELETED] = loaded.deleted;
+            counts[GroupHealth.UNKNOWN] = loaded.unmeasured;
+        }
+
+        private void add(double val) {
+            final int state = GroupHealth.getState(val);
+            counts[state]++;
+            if (state <= GroupHealth.PARTIAL) {
+                availSum += val;
+            }
+        }
+
+        private void remove(double val) {
+            final int state = GroupHealth.getState(val);
+            counts[state]--;
+            if (state <= GroupHealth.PARTIAL) {
+                availSum -= val;
+            }
+        }
+
+        private GroupHealth getSnapshot() {
+            return new GroupHealth(groupId, counts, availSum, openAlerts);
+        }
+    }
+
+    /**
+     * The availability of a measurement, and the groups kept it counts in.
+     */
+    private static final class Availability {
+        private double value;
+        // Of the last state counted, the value loaded has none
+        private long timestamp = Long.MIN_VALUE;
+        private long changed = 0;
+        private final List<Health> groups = new ArrayList<Health>(2);
+
+        private Availability(double value) {
+            this.value = value;
+        }
+
+        private void set(double val) {
+            if (val == value) {
+                return;
+            }
+            for (Health health : groups) {
+                health.remove(value);
+                health.add(val);
+            }
+            value = val;
+        }
+    }
+
+    /**
+     * The number of unfixed alerts of a resource, and the groups kept it
+     * counts in.
+     */
+    private static final class Alerts {
+        private int open;
+        private long changed = 0;
+        private final List<Health> groups = new ArrayList<Health>(2);
+
+        private Alerts(int open) {
+            this.open = open;
+        }
+
+        private void add(int delta) {
+            final int num = Math.max(0, open + delta);
+            for (Health health : groups) {
+                health.openAlerts += num - open;
+            }
+            open = num;
+        }
+    }
+}
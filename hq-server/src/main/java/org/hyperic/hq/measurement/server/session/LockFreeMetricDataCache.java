@@ -0,0 +1,275 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.server.session;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.hyperic.hq.product.MetricValue;
+
+/**
+ * A MetricDataCache which holds the last value of each measurement in an
+ * open addressed table keyed on the int measurement id, without locks.
+ * <p>
+ * Each slot holds an immutable entry and is only changed with
+ * compare-and-set, so that a value older than the one cached is rejected
+ * by the thread adding it rather than by a lock around the cache.  A
+ * measurement lives in one of PROBE_LENGTH slots following its hash.  When
+ * those are all taken the entry with the oldest value is evicted, which
+ * bounds the table to the size it was created with.
+ */
+public class LockFreeMetricDataCache implements MetricDataCache {
+    private static final int PROBE_LENGTH = 32;
+    private static final double LOAD_FACTOR = 0.5;
+
+    private final AtomicReferenceArray<Entry> table;
+    private final int mask;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    private static final class Entry {
+        private final int mid;
+        private final MetricValue value;
+
+        private Entry(int mid, MetricValue value) {
+            this.mid = mid;
+            this.value = value;
+        }
+    }
+
+    /**
+     * @param maxElements The number of measurements the cache should be
+     *                    able to hold.
+     */
+    public LockFreeMetricDataCache(int maxElements) {
+        int capacity = PROBE_LENGTH;
+        while (capacity < maxElements / LOAD_FACTOR && capacity < (1 << 30)) {
+            capacity <<= 1;
+        }
+        this.table = new AtomicReferenceArray<Entry>(capacity);
+        this.mask = capacity - 1;
+    }
+
+    private int indexOf(int mid) {
+        int h = mid * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & this.mask;
+    }
+
+    private Entry find(int mid) {
+        int start = indexOf(mid);
+        for (int i = 0; i < PROBE_LENGTH; i++) {
+            Entry e = this.table.get((start + i) & this.mask);
+            if (e != null && e.mid == mid) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    public Collection<DataPoint> bulkAdd(List<DataPoint> data) {
+        HashMap<Integer,DataPoint> cachedData = new HashMap<Integer,DataPoint>(data.size());
+
+        for (DataPoint dp : data) {
+            if (add(dp.getMeasurementId(), dp.getMetricValue())) {
+                cachedData.put(dp.getMeasurementId(), dp);
+            }
+        }
+
+        return cachedData.values();
+    }
+
+    public boolean add(Integer mid, MetricValue mval) {
+        return put(mid.intValue(), mval);
+    }
+
+    private boolean put(int mid, MetricValue mval) {
+        final Entry update = new Entry(mid, mval);
+        final int start = indexOf(mid);
+
+        retry:
+        while (true) {
+            int free = -1;
+            int victim = -1;
+            Entry victimEntry = null;
+
+            for (int i = 0; i < PROBE_LENGTH; i++) {
+                final int slot = (start + i) & this.mask;
+                Entry e = this.table.get(slot);
+
+                if (e == null) {
+                    if (free < 0) {
+                        free = slot;
+                    }
+                } else if (e.mid == mid) {
+                    while (true) {
+                        if (e.value.getTimestamp() > mval.getTimestamp()) {
+                            this.rejections.incrementAndGet();
+                            return false;
+                        }
+                        if (this.table.compareAndSet(slot, e, update)) {
+                            return true;
+                        }
+                        e = this.table.get(slot);
+                        if (e == null || e.mid != mid) {
+                            // Removed or evicted in the meantime
+                            continue retry;
+                        }
+                    }
+                } else if (victimEntry == null ||
+                           e.value.getTimestamp() < victimEntry.value.getTimestamp()) {
+                    victim = slot;
+                    victimEntry = e;
+                }
+            }
+
+            if (free >= 0) {
+                if (this.table.compareAndSet(free, null, update)) {
+                    mergeDuplicates(mid, start);
+                    return true;
+                }
+            } else if (this.table.compareAndSet(victim, victimEntry, update)) {
+                this.evictions.incrementAndGet();
+                mergeDuplicates(mid, start);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Two threads adding a measurement which is not cached may each claim
+     * a slot for it, if slots are freed or evicted while they look.  The
+     * value in the later slot is folded into the first, which is the one
+     * lookups find.
+     */
+    private void mergeDuplicates(int mid, int start) {
+        int first = -1;
+
+        for (int i = 0; i < PROBE_LENGTH; i++) {
+            final int slot = (start + i) & this.mask;
+            final Entry e = this.table.get(slot);
+
+            if (e == null || e.mid != mid) {
+                continue;
+            }
+            if (first < 0) {
+                first = slot;
+                continue;
+            }
+            Entry kept = this.table.get(first);
+            while (kept != null && kept.mid == mid &&
+                   kept.value.getTimestamp() <= e.value.getTimestamp() &&
+                   !this.table.compareAndSet(first, kept, e)) {
+                kept = this.table.get(first);
+            }
+            this.table.compareAndSet(slot, e, null);
+        }
+    }
+
+    public MetricValue get(Integer mid, long timestamp) {
+        Entry e = find(mid.intValue());
+
+        if (e != null && e.value.getTimestamp() >= timestamp) {
+            this.hits.incrementAndGet();
+            return e.value;
+        }
+        this.misses.incrementAndGet();
+        return null;
+    }
+
+    public Map<Integer,MetricValue> getAll(List<Integer> mids, long timestamp) {
+        final Map<Integer,MetricValue> rtn = new HashMap<Integer,MetricValue>(mids.size());
+        int found = 0;
+
+        for (final Integer mid : mids) {
+            final Entry e = find(mid.intValue());
+            if (e != null && e.value.getTimestamp() >= timestamp) {
+                rtn.put(mid, e.value);
+                found++;
+            }
+        }
+        this.hits.addAndGet(found);
+        this.misses.addAndGet(mids.size() - found);
+        return rtn;
+    }
+
+    public void remove(Integer mid) {
+        final int id = mid.intValue();
+        final int start = indexOf(id);
+
+        for (int i = 0; i < PROBE_LENGTH; i++) {
+            final int slot = (start + i) & this.mask;
+            Entry e = this.table.get(slot);
+            while (e != null && e.mid == id && !this.table.compareAndSet(slot, e, null)) {
+                e = this.table.get(slot);
+            }
+        }
+    }
+
+    /**
+     * @return the number of measurements cached, counted slot by slot
+     *         while the cache may be changing.
+     */
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < this.table.length(); i++) {
+            if (this.table.get(i) != null) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    public int getCapacity() {
+        return this.table.length();
+    }
+
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    /**
+     * @return the number of values which were not cached because a newer
+     *         value for the measurement already was.
+     */
+    public long getRejections() {
+        return this.rejections.get();
+    }
+
+    public long getEvictions() {
+        return this.evictions.get();
+    }
+}
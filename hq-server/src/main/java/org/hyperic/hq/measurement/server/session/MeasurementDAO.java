@@ -616,6 +616,40 @@ public class MeasurementDAO extends HibernateDAO<Measurement> {
         return rtn;
     }
 
+    /**
+     * @param {@link Collection} of {@link Integer} resource ids
+     * @return {@link Map} of {@link Integer} resource id to the availability
+     *         {@link Measurement} of the resource, for the resources which
+     *         have one and were not deleted.
+     */
+    @SuppressWarnings("unchecked")
+    Map<Integer, Measurement> findAvailMeasurementsByResourceIds(Collection<Integer> resourceIds) {
+        if (resourceIds.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        final String sql = new StringBuilder(150)
+            .append("select m from Measurement m ")
+            .append("join m.template t ")
+            .append("where m.resource.resourceType is not null ")
+            .append("and m.resource.id in (:resourceIds) and ")
+            .append(ALIAS_CLAUSE)
+            .toString();
+        final List<Integer> ids = new ArrayList<Integer>(resourceIds);
+        final HQDialect dialect = getHQDialect();
+        final int max = (dialect.getMaxExpressions() <= 0) ? BATCH_SIZE : dialect.getMaxExpressions();
+        final Map<Integer, Measurement> rtn = new HashMap<Integer, Measurement>(ids.size());
+        for (int i = 0; i < ids.size(); i += max) {
+            final int end = Math.min(i + max, ids.size());
+            final List<Measurement> list = getSession().createQuery(sql)
+                .setParameterList("resourceIds", ids.subList(i, end), new IntegerType())
+                .list();
+            for (Measurement m : list) {
+                rtn.put(m.getResource().getId(), m);
+            }
+        }
+        return rtn;
+    }
+
     /**
      * @param {@link List} of {@link Integer} resource ids
      * @return {@link Object[]} 0 = {@link Integer} 1 = {@link List} of
@@ -42,8 +42,12 @@ public class MeasurementInserterHolder implements ApplicationContextAware {
     private DataInserter<TopNData> topNInserter;
 
     @Autowired
-    public MeasurementInserterHolder(SynchronousAvailDataInserter synchronousAvailDataInserter) {
+    public MeasurementInserterHolder(SynchronousAvailDataInserter synchronousAvailDataInserter,
+                                     AsynchronousDataInserter asynchronousDataInserter) {
         this.availDataInserter = synchronousAvailDataInserter;
+        if (asynchronousDataInserter.isEnabled()) {
+            this.dataInserter = asynchronousDataInserter;
+        }
     }
 
     public void setAvailDataInserter(DataInserter<DataPoint> d) {
@@ -0,0 +1,179 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+
+package org.hyperic.hq.measurement.server.session;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * Tells the ingest path which measurements anything is watching, so that
+ * no events are created for the data of those nobody is.
+ * <p>
+ * Each party which handles measurement events keeps an {@link Interest} of
+ * its own up to date, a bitset indexed by measurement id which it can also
+ * set to take every measurement.  A measurement is interesting if any of
+ * the interests has it.  Lookups take no locks.
+ */
+@Component
+public class MeasurementInterestIndex {
+    public static final String ALERT_TRIGGERS = "alertTriggers";
+    public static final String GROUP_ALERTS = "groupAlerts";
+    public static final String NOTIFICATIONS = "notifications";
+
+    private final Map<String, Interest> interestsByOwner = new LinkedHashMap<String, Interest>();
+    private volatile Interest[] interests = new Interest[0];
+
+    /**
+     * The measurements one party is watching.
+     */
+    public static class Interest {
+        private final String owner;
+        private final AtomicInteger watchingAll = new AtomicInteger();
+        // Replaced, under the lock of the interest, when it has to grow
+        private volatile AtomicLongArray bits = new AtomicLongArray(0);
+
+        private Interest(String owner) {
+            this.owner = owner;
+        }
+
+        public boolean isWatched(int mid) {
+            if (watchingAll.get() > 0) {
+                return true;
+            }
+            final AtomicLongArray words = bits;
+            final int word = mid >>> 6;
+            return (mid >= 0) && (word < words.length()) && ((words.get(word) & (1L << mid)) != 0);
+        }
+
+        public void watch(int mid) {
+            if (mid < 0) {
+                return;
+            }
+            final int word = mid >>> 6;
+            synchronized (this) {
+                AtomicLongArray words = bits;
+                if (word >= words.length()) {
+                    AtomicLongArray grown = new AtomicLongArray(Math.max(word + 1, words.length() * 2));
+                    for (int i = 0; i < words.length(); i++) {
+                        grown.set(i, words.get(i));
+                    }
+                    bits = words = grown;
+                }
+                words.set(word, words.get(word) | (1L << mid));
+            }
+        }
+
+        public void unwatch(int mid) {
+            final int word = mid >>> 6;
+            synchronized (this) {
+                final AtomicLongArray words = bits;
+                if (mid >= 0 && word < words.length()) {
+                    words.set(word, words.get(word) & ~(1L << mid));
+                }
+            }
+        }
+
+        /**
+         * Watch every measurement until a matching {@link #unwatchAll()}.
+         */
+        public void watchAll() {
+            watchingAll.incrementAndGet();
+        }
+
+        public void unwatchAll() {
+            watchingAll.decrementAndGet();
+        }
+
+        public boolean isWatchingAll() {
+            return watchingAll.get() > 0;
+        }
+
+        /**
+         * Stop watching anything, including every measurement.
+         */
+        public void clear() {
+            synchronized (this) {
+                bits = new AtomicLongArray(0);
+                watchingAll.set(0);
+            }
+        }
+
+        /**
+         * @return the number of measurements watched one by one.
+         */
+        public int size() {
+            final AtomicLongArray words = bits;
+            int rtn = 0;
+            for (int i = 0; i < words.length(); i++) {
+                rtn += Long.bitCount(words.get(i));
+            }
+            return rtn;
+        }
+
+        public String toString() {
+            return owner + "[watched=" + size() + ", all=" + isWatchingAll() + "]";
+        }
+    }
+
+    /**
+     * @return the interest of the owner, created the first time it is asked
+     *         for.
+     */
+    public Interest getInterest(String owner) {
+        synchronized (interestsByOwner) {
+            Interest rtn = interestsByOwner.get(owner);
+            if (rtn == null) {
+                rtn = new Interest(owner);
+                interestsByOwner.put(owner, rtn);
+                interests = interestsByOwner.values().toArray(new Interest[interestsByOwner.size()]);
+            }
+            return rtn;
+        }
+    }
+
+    /**
+     * @return true if any party is watching the measurement.
+     */
+    public boolean isInterested(int mid) {
+        for (final Interest interest : interests) {
+            if (interest.isWatched(mid)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public String toString() {
+        synchronized (interestsByOwner) {
+            return "MeasurementInterestIndex" + interestsByOwner.values();
+        }
+    }
+}
@@ -281,6 +281,7 @@ public class MeasurementManagerImpl implements MeasurementManager, ApplicationCo
                     anyMeasurementUpdated = anyMeasurementUpdated || measurementUpdated;
                 }
             }
+            availabilityManager.watchAvailabilityDeadline(m);
             dmList.add(m);
         }
 
@@ -1245,6 +1246,7 @@ public class MeasurementManagerImpl implements MeasurementManager, ApplicationCo
             final Measurement m = measurementDAO.findById(mid);
             m.setEnabled(true);
             m.setInterval(interval);
+            availabilityManager.watchAvailabilityDeadline(m);
         }
 
         // Update the agent schedule
@@ -1269,6 +1271,7 @@ public class MeasurementManagerImpl implements MeasurementManager, ApplicationCo
                 permissionManager.checkModifyPermission(subject.getId(), appId);
                 appIdList.add(appId);
                 meas.setEnabled(true);
+                availabilityManager.watchAvailabilityDeadline(meas);
             }
         }
         if (debug) watch.markTimeEnd("setEnabled");
@@ -1294,6 +1297,7 @@ public class MeasurementManagerImpl implements MeasurementManager, ApplicationCo
             final Measurement m = dao.findById(mid);
             m.setEnabled(true);
             m.setInterval(interval);
+            availabilityManager.watchAvailabilityDeadline(m);
         }
         final List<AppdefEntityID> aeids = Collections.singletonList(appId);
         srnManager.scheduleInBackground(aeids, true, true);
@@ -1312,6 +1316,7 @@ public class MeasurementManagerImpl implements MeasurementManager, ApplicationCo
         for (Measurement dm : metrics) {
             if (!dm.isEnabled()) {
                 dm.setEnabled(true);
+                availabilityManager.watchAvailabilityDeadline(dm);
                 sendToAgent = true;
             }
         }
@@ -1333,6 +1338,7 @@ public class MeasurementManagerImpl implements MeasurementManager, ApplicationCo
         AppdefEntityID appId = AppdefUtil.newAppdefEntityId(resource);
         permissionManager.checkModifyPermission(subject.getId(), appId);
         enqueueZeventForMeasScheduleChange(meas, interval);
+        availabilityManager.watchAvailabilityDeadline(meas);
     }
 
     /**
@@ -1560,6 +1566,7 @@ public class MeasurementManagerImpl implements MeasurementManager, ApplicationCo
             if (!event.getMeasurements().contains(key)) {
                 if (event.activate() && !m.isEnabled()) {
                     m.setEnabled(true);
+                    availabilityManager.watchAvailabilityDeadline(m);
                     if (debug) {
                         log.debug("enabling mid=" + m.getId() +
                                    " for maintenance window end");
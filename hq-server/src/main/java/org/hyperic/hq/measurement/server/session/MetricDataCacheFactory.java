@@ -0,0 +1,130 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.server.session;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hyperic.hq.stats.ConcurrentStatsCollector;
+import org.hyperic.util.stats.StatCollector;
+import org.springframework.beans.factory.FactoryBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Creates the {@link MetricDataCache} selected by the
+ * hq.metricDataCache.impl tweak property: "ehcache" for the
+ * {@link EhCacheMetricDataCache}, sized in ehcache.xml, or "lockfree" for
+ * the {@link LockFreeMetricDataCache}, sized by
+ * hq.metricDataCache.maxElements.
+ */
+@Repository
+public class MetricDataCacheFactory implements FactoryBean<MetricDataCache> {
+    public static final String IMPL_EHCACHE = "ehcache";
+    public static final String IMPL_LOCKFREE = "lockfree";
+    private static final int DEFAULT_MAX_ELEMENTS = 500000;
+
+    private final Log log = LogFactory.getLog(MetricDataCacheFactory.class);
+    private final MetricDataCache cache;
+
+    @Autowired
+    public MetricDataCacheFactory(ConcurrentStatsCollector concurrentStatsCollector,
+                                  @Value("#{tweakProperties['hq.metricDataCache.impl'] }") String impl,
+                                  @Value("#{tweakProperties['hq.metricDataCache.maxElements'] }") Integer maxElements) {
+        if (IMPL_LOCKFREE.equalsIgnoreCase(impl)) {
+            final LockFreeMetricDataCache lockFree = new LockFreeMetricDataCache(
+                (maxElements == null) ? DEFAULT_MAX_ELEMENTS : maxElements.intValue());
+            registerStats(concurrentStatsCollector, lockFree);
+            log.info("Using lock free MetricDataCache with " + lockFree.getCapacity() + " slots");
+            cache = lockFree;
+        } else {
+            if (impl != null && !IMPL_EHCACHE.equalsIgnoreCase(impl)) {
+                log.warn("Unknown MetricDataCache implementation '" + impl + "', using " +
+                         IMPL_EHCACHE);
+            }
+            cache = new EhCacheMetricDataCache();
+        }
+    }
+
+    private void registerStats(ConcurrentStatsCollector collector, final LockFreeMetricDataCache cache) {
+        collector.register(new StatCollector() {
+            private long last = 0;
+            public String getId() {
+                return ConcurrentStatsCollector.METRIC_DATA_CACHE_HITS;
+            }
+            public long getVal() {
+                long val = cache.getHits();
+                long rtn = val - last;
+                last = val;
+                return rtn;
+            }
+        });
+        collector.register(new StatCollector() {
+            private long last = 0;
+            public String getId() {
+                return ConcurrentStatsCollector.METRIC_DATA_CACHE_MISSES;
+            }
+            public long getVal() {
+                long val = cache.getMisses();
+                long rtn = val - last;
+                last = val;
+                return rtn;
+            }
+        });
+        collector.register(new StatCollector() {
+            private long last = 0;
+            public String getId() {
+                return ConcurrentStatsCollector.METRIC_DATA_CACHE_REJECTIONS;
+            }
+            public long getVal() {
+                long val = cache.getRejections();
+                long rtn = val - last;
+                last = val;
+                return rtn;
+            }
+        });
+        collector.register(new StatCollector() {
+            public String getId() {
+                return ConcurrentStatsCollector.METRIC_DATA_CACHE_SIZE;
+            }
+            public long getVal() {
+                return cache.size();
+            }
+        });
+    }
+
+    public MetricDataCache getObject() {
+        return cache;
+    }
+
+    public Class<?> getObjectType() {
+        return MetricDataCache.class;
+    }
+
+    public boolean isSingleton() {
+        return true;
+    }
+}
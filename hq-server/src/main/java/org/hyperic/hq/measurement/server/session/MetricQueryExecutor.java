@@ -0,0 +1,270 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.server.session;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hyperic.hq.common.SystemException;
+import org.hyperic.hq.stats.ConcurrentStatsCollector;
+import org.hyperic.util.stats.StatCollector;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Runs the sub-queries a historical metric query is split into, one for
+ * each metric data table, on a fixed number of threads shared by every
+ * query, rather than on threads of their own.
+ * <p>
+ * Sub-queries wait in a queue for each owner, and the threads take from
+ * the queues in turn, so that a query over many tables doesn't hold up the
+ * queries of other users queued after it.  The thread which made a query
+ * runs its own sub-queries which no thread has taken yet while it waits,
+ * so a query is never stuck behind a pool busy with others.
+ */
+@Component
+public class MetricQueryExecutor {
+    private static final int DEFAULT_THREADS = 8;
+
+    private final Log log = LogFactory.getLog(MetricQueryExecutor.class);
+    // Guarded by itself.  Owners are kept in the order their turn comes.
+    private final LinkedHashMap<Object, LinkedList<Query<?>>> queues =
+        new LinkedHashMap<Object, LinkedList<Query<?>>>();
+    private final List<Thread> workers = new ArrayList<Thread>();
+    private int queued = 0;
+    private boolean shutdown = false;
+
+    private final ConcurrentStatsCollector concurrentStatsCollector;
+    private final int numThreads;
+
+    @Autowired
+    public MetricQueryExecutor(ConcurrentStatsCollector concurrentStatsCollector,
+                               @Value("#{tweakProperties['hq.metricQuery.threads'] }") Integer numThreads) {
+        this.concurrentStatsCollector = concurrentStatsCollector;
+        this.numThreads = (numThreads == null) ? DEFAULT_THREADS : Math.max(1, numThreads.intValue());
+    }
+
+    @PostConstruct
+    void initialize() {
+        for (int i = 0; i < numThreads; i++) {
+            Thread worker = new Thread("MetricQueryExecutor" + i) {
+                public void run() {
+                    work();
+                }
+            };
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+        concurrentStatsCollector.register(ConcurrentStatsCollector.METRIC_QUERY_FAN_OUT);
+        concurrentStatsCollector.register(ConcurrentStatsCollector.METRIC_QUERY_QUEUE_WAIT_TIME);
+        concurrentStatsCollector.register(new StatCollector() {
+            public long getVal() {
+                return getQueueSize();
+            }
+            public String getId() {
+                return ConcurrentStatsCollector.METRIC_QUERY_QUEUE_SIZE;
+            }
+        });
+    }
+
+    /**
+     * A sub-query, which records how long it waited to be run.
+     */
+    private class Query<T> extends FutureTask<T> {
+        private final long queuedAt = System.currentTimeMillis();
+
+        private Query(Callable<T> callable) {
+            super(callable);
+        }
+
+        public void run() {
+            concurrentStatsCollector.addStat(System.currentTimeMillis() - queuedAt,
+                ConcurrentStatsCollector.METRIC_QUERY_QUEUE_WAIT_TIME);
+            super.run();
+        }
+    }
+
+    /**
+     * Runs the sub-queries of a query and waits for all of them.
+     *
+     * @param owner Whoever the query is run for, sub-queries of different
+     *              owners take turns
+     * @return the result of each sub-query, in order
+     * @throws SystemException if a sub-query failed, or the thread was
+     *         interrupted while waiting
+     */
+    public <T> List<T> invokeAll(Object owner, List<? extends Callable<T>> callables) {
+        final List<Query<T>> queries = new ArrayList<Query<T>>(callables.size());
+        for (Callable<T> callable : callables) {
+            queries.add(new Query<T>(callable));
+        }
+        concurrentStatsCollector.addStat(queries.size(), ConcurrentStatsCollector.METRIC_QUERY_FAN_OUT);
+        final boolean pooled = enqueue(owner, queries);
+        for (Query<T> query : queries) {
+            if (!pooled || unqueue(owner, query)) {
+                query.run();
+            }
+        }
+        final List<T> rtn = new ArrayList<T>(queries.size());
+        for (Query<T> query : queries) {
+            rtn.add(getResult(query));
+        }
+        return rtn;
+    }
+
+    private <T> T getResult(Query<T> query) {
+        try {
+            return query.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SystemException("Interrupted while waiting for metric data", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new SystemException(cause);
+        }
+    }
+
+    /**
+     * @return false if shut down, in which case the owner has to run the
+     *         queries itself.
+     */
+    private boolean enqueue(Object owner, List<? extends Query<?>> queries) {
+        synchronized (queues) {
+            if (shutdown) {
+                return false;
+            }
+            LinkedList<Query<?>> queue = queues.get(owner);
+            if (queue == null) {
+                queue = new LinkedList<Query<?>>();
+                queues.put(owner, queue);
+            }
+            queue.addAll(queries);
+            queued += queries.size();
+            queues.notifyAll();
+            return true;
+        }
+    }
+
+    /**
+     * @return true if the query had not been taken, and is no longer queued
+     */
+    private boolean unqueue(Object owner, Query<?> query) {
+        synchronized (queues) {
+            final LinkedList<Query<?>> queue = queues.get(owner);
+            if (queue == null || !queue.remove(query)) {
+                return false;
+            }
+            queued--;
+            if (queue.isEmpty()) {
+                queues.remove(owner);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return the next query of the owner whose turn it is, or null once
+     *         shut down with nothing queued.
+     */
+    private Query<?> take() throws InterruptedException {
+        synchronized (queues) {
+            while (queues.isEmpty()) {
+                if (shutdown) {
+                    return null;
+                }
+                queues.wait();
+            }
+            final Iterator<Map.Entry<Object, LinkedList<Query<?>>>> it = queues.entrySet().iterator();
+            final Map.Entry<Object, LinkedList<Query<?>>> next = it.next();
+            final Query<?> query = next.getValue().removeFirst();
+            queued--;
+            // The owner goes to the back of the line
+            it.remove();
+            if (!next.getValue().isEmpty()) {
+                queues.put(next.getKey(), next.getValue());
+            }
+            return query;
+        }
+    }
+
+    private void work() {
+        while (true) {
+            final Query<?> query;
+            try {
+                query = take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (query == null) {
+                return;
+            }
+            // Failures are thrown to the owner by the future
+            query.run();
+        }
+    }
+
+    /**
+     * @return the number of sub-queries waiting for a thread.
+     */
+    int getQueueSize() {
+        synchronized (queues) {
+            return queued;
+        }
+    }
+
+    /**
+     * Stops the threads once the queries queued have been run.
+     */
+    @PreDestroy
+    public void shutdown() {
+        synchronized (queues) {
+            shutdown = true;
+            queues.notifyAll();
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Stopping " + workers.size() + " metric query threads");
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.server.session;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.Collection;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hyperic.util.jdbc.DBUtil;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
+/**
+ * Loads metric data into the measurement data tables of a PostgreSQL
+ * database with COPY, so that the server neither parses nor plans a
+ * statement holding every value of the batch.
+ * <p>
+ * Rows are copied straight into their table.  If some of them are already
+ * there the copy is rolled back, and the rows are copied into a temporary
+ * table instead and merged from it, updating the value of the rows which
+ * exist.  The connection must not be in autocommit mode.
+ */
+class PostgreSQLCopyLoader {
+    private static final String LOG_CTX = PostgreSQLCopyLoader.class.getName();
+    private static final Log log = LogFactory.getLog(LOG_CTX);
+
+    static final String STAGE_TABLE = "hq_metric_data_stage";
+    private static final String UNIQUE_VIOLATION = "23505";
+    // The largest value which fits in the NUMERIC(24,5) value column
+    private static final double MAX_DB_NUMBER = 1e22;
+    private static final String MAX_DB_NUMBER_STR = "10000000000000000000000";
+
+    /**
+     * @return the number of rows copied or merged into the table.
+     */
+    int load(Connection conn, String table, Collection<DataPoint> data) throws SQLException {
+        return load(conn, table, data, null);
+    }
+
+    /**
+     * @param merged if not null, gets the data when some of it replaced
+     *        the value of rows which were already in the table.
+     * @return the number of rows copied or merged into the table.
+     */
+    int load(Connection conn, String table, Collection<DataPoint> data,
+             Collection<DataPoint> merged) throws SQLException {
+        final CopyManager copyManager = getCopyManager(conn);
+        final String rows = toCopyText(data);
+
+        Savepoint savepoint = conn.setSavepoint();
+        try {
+            final long copied = copyIn(copyManager, table, rows);
+            conn.releaseSavepoint(savepoint);
+            return (int) copied;
+        } catch (SQLException e) {
+            if (!UNIQUE_VIOLATION.equals(e.getSQLState())) {
+                throw e;
+            }
+            conn.rollback(savepoint);
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Duplicate keys copying into " + table + ", merging " + data.size() +
+                      " rows through " + STAGE_TABLE);
+        }
+        return merge(conn, copyManager, table, rows, data, merged);
+    }
+
+    private int merge(Connection conn, CopyManager copyManager, String table, String rows,
+                      Collection<DataPoint> data, Collection<DataPoint> merged)
+        throws SQLException {
+        Statement stmt = null;
+        try {
+            stmt = conn.createStatement();
+            stmt.execute("CREATE TEMPORARY TABLE " + STAGE_TABLE +
+                         " (measurement_id INTEGER, timestamp BIGINT, value NUMERIC(24,5))" +
+                         " ON COMMIT DROP");
+            copyIn(copyManager, STAGE_TABLE, rows);
+            int rtn = stmt.executeUpdate(
+                "UPDATE " + table + " t SET value = s.value FROM " + STAGE_TABLE + " s" +
+                " WHERE t.measurement_id = s.measurement_id AND t.timestamp = s.timestamp");
+            if (rtn > 0 && merged != null) {
+                merged.addAll(data);
+            }
+            rtn += stmt.executeUpdate(
+                "INSERT INTO " + table + " (measurement_id, timestamp, value)" +
+                " SELECT s.measurement_id, s.timestamp, s.value FROM " + STAGE_TABLE + " s" +
+                " WHERE NOT EXISTS (SELECT 1 FROM " + table + " t" +
+                " WHERE t.measurement_id = s.measurement_id AND t.timestamp = s.timestamp)");
+            stmt.execute("DROP TABLE " + STAGE_TABLE);
+            return rtn;
+        } finally {
+            DBUtil.closeStatement(LOG_CTX, stmt);
+        }
+    }
+
+    private long copyIn(CopyManager copyManager, String table, String rows) throws SQLException {
+        try {
+            return copyManager.copyIn("COPY " + table + " (measurement_id, timestamp, value) FROM STDIN",
+                                      new StringReader(rows));
+        } catch (IOException e) {
+            // Only thrown by the reader, which can't fail
+            SQLException ex = new SQLException("Unable to copy into " + table + ": " + e);
+            ex.initCause(e);
+            throw ex;
+        }
+    }
+
+    private CopyManager getCopyManager(Connection conn) throws SQLException {
+        // The connection is wrapped by the pool
+        return ((PGConnection) conn.unwrap(PGConnection.class)).getCopyAPI();
+    }
+
+    /**
+     * @return the data in the tab separated text format of COPY.
+     */
+    static String toCopyText(Collection<DataPoint> data) {
+        final StringBuilder rtn = new StringBuilder(data.size() * 32);
+        for (DataPoint pt : data) {
+            final double val = pt.getValue();
+            rtn.append(pt.getMeasurementId().intValue()).append('\t')
+               .append(pt.getTimestamp()).append('\t');
+            if (val > MAX_DB_NUMBER) {
+                log.warn("Value [" + val + "] for metric id=" + pt.getMeasurementId() +
+                         " is too big to put into the DB.  Truncating to [" + MAX_DB_NUMBER_STR + "]");
+                rtn.append(MAX_DB_NUMBER_STR);
+            } else {
+                // NUMERIC input accepts exponents, and rounds to the scale
+                rtn.append(val);
+            }
+            rtn.append('\n');
+        }
+        return rtn.toString();
+    }
+}
@@ -26,7 +26,6 @@
 package org.hyperic.hq.measurement.server.session;
 
 import java.io.IOException;
-import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
@@ -63,9 +62,8 @@ import org.hyperic.hq.authz.shared.ResourceManager;
 import org.hyperic.hq.common.SystemException;
 import org.hyperic.hq.measurement.MeasurementConstants;
 import org.hyperic.hq.measurement.TimingVoodoo;
-import org.hyperic.hq.measurement.data.DSNList;
+import org.hyperic.hq.measurement.data.MeasurementColumns;
 import org.hyperic.hq.measurement.data.MeasurementReport;
-import org.hyperic.hq.measurement.data.ValueList;
 import org.hyperic.hq.measurement.shared.MeasurementManager;
 import org.hyperic.hq.measurement.shared.ReportProcessor;
 import org.hyperic.hq.measurement.shared.SRNManager;
@@ -136,40 +134,6 @@ public class ReportProcessorImpl implements ReportProcessor {
         return System.currentTimeMillis();
     }
 
-    private void addPoint(List<DataPoint> points, List<DataPoint> priorityPts, Measurement m,
-                          MetricValue[] vals) {
-        final boolean debug = log.isDebugEnabled();
-        final StopWatch watch = new StopWatch();
-        for (MetricValue val : vals) {
-            final long now = TimingVoodoo.roundDownTime(now(), MINUTE);
-            try {
-                // this is just to check if the metricvalue is valid
-                // will throw a NumberFormatException if there is a problem
-                new BigDecimal(val.getValue());
-                DataPoint dataPoint = new DataPoint(m.getId(), val);
-                if ((priorityPts != null) && isPriority(now, dataPoint.getTimestamp())) {
-                    priorityPts.add(dataPoint);
-                } else {
-                    points.add(dataPoint);
-                }
-                if (debug) {
-                    watch.markTimeBegin("getTemplate");
-                }             
-                if (debug && m.getTemplate().isAvailability()) {
-                    log.debug("availability -> " + dataPoint);
-                }
-                if (debug) {
-                    watch.markTimeEnd("getTemplate");
-                }
-            } catch (NumberFormatException e) {
-                log.warn("Unable to insert: " + e.getMessage() + ", metric id=" + m);
-            }
-        }
-        if (debug) {
-            log.debug(watch);
-        }
-    }
-
     private final boolean isPriority(long timestamp, long metricTimestamp) {
         if (metricTimestamp >= (timestamp - PRIORITY_OFFSET)) {
             return true;
@@ -177,64 +141,105 @@ public class ReportProcessorImpl implements ReportProcessor {
         return false;
     }
 
-    protected final void addData(List<DataPoint> points, List<DataPoint> priorityPts, Measurement m, MetricValue[] dpts) {
-        final boolean debug = log.isDebugEnabled();
-        StopWatch watch = new StopWatch();
-        if (debug) {
-            watch.markTimeBegin("getInterval");
+    /**
+     * Adds a point of the measurement with its timestamp rounded down to the
+     * collection interval.
+     */
+    private void addPoint(List<DataPoint> points, List<DataPoint> priorityPts, Measurement m,
+                          long interval, long now, long timestamp, double value) {
+        // BigDecimal can't represent these and the DB won't take them
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            log.warn("Unable to insert: Infinite or NaN, metric id=" + m);
+            return;
         }
-        long interval = m.getInterval();
-        if (debug) {
-            watch.markTimeEnd("getInterval");
+        final DataPoint dataPoint =
+            new DataPoint(m.getId(), new MetricValue(value, TimingVoodoo.roundDownTime(timestamp, interval)));
+        if ((priorityPts != null) && isPriority(now, dataPoint.getTimestamp())) {
+            priorityPts.add(dataPoint);
+        } else {
+            points.add(dataPoint);
+        }
+        if (log.isDebugEnabled() && m.getTemplate().isAvailability()) {
+            log.debug("availability -> " + dataPoint);
         }
+    }
 
+    private long getInterval(Measurement m) {
+        long interval = m.getInterval();
         // Safeguard against an anomaly
         if (interval <= 0) {
             log.warn("Measurement had bogus interval[" + interval + "]: " + m);
             interval = 60 * 1000;
         }
+        return interval;
+    }
 
-        // Each datapoint corresponds to a set of measurement
-        // values for that cycle.
-        MetricValue[] passThroughs = new MetricValue[dpts.length];
-
-        for (int i = 0; i < dpts.length; i++) {
-            // Save data point to DB.
-            if (debug) {
-                watch.markTimeBegin("getTimestamp");
-            }
-            long retrieval = dpts[i].getTimestamp();
-            if (debug) {
-                watch.markTimeEnd("getTimestamp");
-            }
-            if (debug) {
-                watch.markTimeBegin("roundDownTime");
-            }
-            long adjust = TimingVoodoo.roundDownTime(retrieval, interval);
-            if (debug) {
-                watch.markTimeEnd("roundDownTime");
-            }
+    /**
+     * @return the measurement the data of the client id should be stored
+     *         for, or null if the data should be dropped.
+     */
+    private Measurement getReportedMeasurement(Integer mid, Agent agent, String agentToken,
+                                               Map<Integer, Measurement> measMap,
+                                               Map<Integer, Boolean> alreadyChecked,
+                                               Set<AppdefEntityID> toUnschedule, StopWatch watch) {
+        final boolean debug = log.isDebugEnabled();
+        if (debug) {
+            watch.markTimeBegin("getMeasurement");
+        }
+        final Measurement m = getMeasurement(mid, measMap);
+        if (debug) {
+            watch.markTimeEnd("getMeasurement");
+        }
 
-            // Create new Measurement data point with the adjusted time
-            if (debug) {
-                watch.markTimeBegin("new MetricValue");
-            }
-            MetricValue modified = new MetricValue(dpts[i].getValue(), adjust);
+        // Can't do much if we can't look up the derived measurement
+        // If the measurement is enabled, we just throw away their data
+        // instead of trying to throw it into the backfill. This is
+        // because we don't know the interval to normalize those old
+        // points for. This is still a problem for people who change their
+        // collection period, but the instances should be low.
+        if ((m == null) || !m.isEnabled()) {
+            return null;
+        }
+        // Need to check if resource was asynchronously deleted (type == null)
+        final Resource res = m.getResource();
+        if ((res == null) || res.isInAsyncDeleteState()) {
             if (debug) {
-                watch.markTimeEnd("new MetricValue");
+                log.debug("dropping metricId=" + m.getId() + " since resource is in async delete state");
             }
-            passThroughs[i] = modified;
+            return null;
         }
+
         if (debug) {
-            watch.markTimeBegin("addPoint");
+            watch.markTimeBegin("resMatchesAgent");
         }
-        addPoint(points, priorityPts, m, passThroughs);
-        if (debug) {
-            watch.markTimeEnd("addPoint");
+        // TODO reosurceMatchesAgent() and the call to getAgent() can be
+        // consolidated, the agent match can be checked by getting the agent
+        // for the instanceID from the resource
+        Boolean match = alreadyChecked.get(res.getId());
+        if (match == null) {
+            match = resourceMatchesAgent(res, agent);
+            alreadyChecked.put(res.getId(), match);
+        }
+        if (!match) {
+            String ipAddr = agent.getAddress();
+            String portString = agent.getPort().toString();
+            if (debug) {
+                log.debug("measurement (id=" + m.getId() + ", name=" +
+                          m.getTemplate().getName() + ") was sent to the " +
+                          "HQ server from agent (agentToken=" + agentToken + ", name=" +
+                          ipAddr + ", port=" + portString + ")" +
+                          " but resource (id=" + res.getId() + ", name=" +
+                          res.getName() + ") is not associated " +
+                          " with that agent.  Dropping measurement.");
+                watch.markTimeEnd("resMatchesAgent");
+            }
+            toUnschedule.add(AppdefUtil.newAppdefEntityId(res));
+            return null;
         }
         if (debug) {
-            log.debug(watch);
+            watch.markTimeEnd("resMatchesAgent");
         }
+        return m;
     }
 
     /**
@@ -242,12 +247,14 @@ public class ReportProcessorImpl implements ReportProcessor {
      * the DataManager, doing the right things with all the derived measurements
      */
     public void handleMeasurementReport(MeasurementReport report) throws DataInserterException {
-        final DSNList[] dsnLists = report.getClientIdList();
+        // Reports of current agents arrive as columns, the columns of older
+        // agents' reports are built from their DSN lists
+        final MeasurementColumns columns = report.getColumns();
         final String agentToken = report.getAgentToken();
 
-        final List<DataPoint> dataPoints = new ArrayList<DataPoint>(dsnLists.length);
-        final List<DataPoint> availPoints = new ArrayList<DataPoint>(dsnLists.length);
-        final List<DataPoint> priorityAvailPts = new ArrayList<DataPoint>(dsnLists.length);
+        final List<DataPoint> dataPoints = new ArrayList<DataPoint>(columns.size());
+        final List<DataPoint> availPoints = new ArrayList<DataPoint>();
+        final List<DataPoint> priorityAvailPts = new ArrayList<DataPoint>();
 
         final boolean debug = log.isDebugEnabled();
         final StopWatch watch = new StopWatch();
@@ -263,96 +270,49 @@ public class ReportProcessorImpl implements ReportProcessor {
             log.error("agent associated with token=" + agentToken + " is null, ignoring report");
             return;
         }
-        final Platform platform = platformManager.getPlatformByAgentId(agent.getId());
-        final Resource platformRes = (platform == null) ? null : platform.getResource();
 
-        /**
-         * idea here is that if an agent checks in don't wait for its platform
-         * availability to come in. We know that the platform is up if the agent
-         * checks in.
-         */
-        boolean setPlatformAvail = true;
         final Map<Integer, Boolean> alreadyChecked = new HashMap<Integer, Boolean>();
         final Map<Integer, Measurement> measMap = new HashMap<Integer, Measurement>();
-        for (final DSNList dsnList : dsnLists) {
-            final Integer mid = new Integer(dsnList.getClientId());
-            if (debug) {
-                watch.markTimeBegin("getMeasurement");
-            }
-            final Measurement m = getMeasurement(mid, measMap);
-            if (debug) {
-                watch.markTimeEnd("getMeasurement");
-            }
-
-            // Can't do much if we can't look up the derived measurement
-            // If the measurement is enabled, we just throw away their data
-            // instead of trying to throw it into the backfill. This is
-            // because we don't know the interval to normalize those old
-            // points for. This is still a problem for people who change their
-            // collection period, but the instances should be low.
-            if ((m == null) || !m.isEnabled()) {
-                continue;
-            }
-            // Need to check if resource was asynchronously deleted (type == null)
-            final Resource res = m.getResource();
-            if ((res == null) || res.isInAsyncDeleteState()) {
-                if (debug) {
-                    log.debug("dropping metricId=" + m.getId() + " since resource is in async delete state");
+        // client id -> measurement to store its data for, null if dropped
+        final Map<Integer, Measurement> reported = new HashMap<Integer, Measurement>();
+        final long now = TimingVoodoo.roundDownTime(now(), MINUTE);
+        Measurement m = null;
+        boolean isAvail = false;
+        long interval = 0;
+        if (debug) {
+            watch.markTimeBegin("addData");
+        }
+        // Points of a client id are contiguous, so the measurement is only
+        // looked up when the client id changes
+        for (int i = 0; i < columns.size(); i++) {
+            if ((i == 0) || (columns.getClientId(i) != columns.getClientId(i - 1))) {
+                final Integer mid = new Integer(columns.getClientId(i));
+                if (reported.containsKey(mid)) {
+                    m = reported.get(mid);
+                } else {
+                    m = getReportedMeasurement(mid, agent, agentToken, measMap, alreadyChecked,
+                                               toUnschedule, watch);
+                    reported.put(mid, m);
                 }
-                continue;
-            }
-            if ((platformRes == null) || platformRes.getId().equals(res.getId())) {
-                setPlatformAvail = false;
-            }
-            
-            if (debug) {
-                watch.markTimeBegin("resMatchesAgent");
-            }
-            // TODO reosurceMatchesAgent() and the call to getAgent() can be
-            // consolidated, the agent match can be checked by getting the agent
-            // for the instanceID from the resource
-            Boolean match = alreadyChecked.get(res.getId());
-            if (match == null) {
-                match = resourceMatchesAgent(res, agent);
-                alreadyChecked.put(res.getId(), match);
-            }
-            if (!match) {
-                String ipAddr = agent.getAddress();
-                String portString = agent.getPort().toString();
-                if (debug) {
-                    log.debug("measurement (id=" + m.getId() + ", name=" +
-                              m.getTemplate().getName() + ") was sent to the " +
-                              "HQ server from agent (agentToken=" + agentToken + ", name=" +
-                              ipAddr + ", port=" + portString + ")" +
-                              " but resource (id=" + res.getId() + ", name=" +
-                              res.getName() + ") is not associated " +
-                              " with that agent.  Dropping measurement.");
-                    watch.markTimeEnd("resMatchesAgent");
+                if (m != null) {
+                    isAvail = m.getTemplate().isAvailability();
+                    interval = getInterval(m);
                 }
-                toUnschedule.add(AppdefUtil.newAppdefEntityId(res));
-                continue;
-            }
-            if (debug) {
-                watch.markTimeEnd("resMatchesAgent");
             }
-            
-            final boolean isAvail = m.getTemplate().isAvailability();
-            final ValueList[] valLists = dsnList.getDsns();
-            if (debug) {
-                watch.markTimeBegin("addData");
-            }
-            for (ValueList valList : valLists) {
-                final MetricValue[] vals = valList.getValues();
-                if (isAvail) {
-                    addData(availPoints, priorityAvailPts, m, vals);
-                } else {
-                    addData(dataPoints, null, m, vals);
-                }
+            if (m == null) {
+                continue;
             }
-            if (debug) {
-                watch.markTimeEnd("addData");
+            if (isAvail) {
+                addPoint(availPoints, priorityAvailPts, m, interval, now,
+                         columns.getTimestamp(i), columns.getValue(i));
+            } else {
+                addPoint(dataPoints, null, m, interval, now,
+                         columns.getTimestamp(i), columns.getValue(i));
             }
         }
+        if (debug) {
+            watch.markTimeEnd("addData");
+        }
         //Since we are sending the Availability data and the Metrics data in 2 different batches
         //in agents with version >= 5.0, if this is an availability batch there is no need
         //to call the BatchAggregateDataInserter (Jira issue [HHQ-5566]) and if the BatchAggregateDataInserter
@@ -0,0 +1,365 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+
+package org.hyperic.hq.measurement.server.session;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.hyperic.hq.measurement.MeasurementConstants;
+import org.hyperic.hq.measurement.TimingVoodoo;
+import org.hyperic.hq.measurement.shared.HighLowMetricValue;
+import org.hyperic.hq.stats.ConcurrentStatsCollector;
+import org.hyperic.util.TimeUtil;
+import org.hyperic.util.stats.StatCollector;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Rolls the metric data up into hourly averages, minimums and maximums as
+ * it is inserted, so that the 1 hour table can be written from memory
+ * instead of aggregating an hour of raw data with INSERT ... SELECT.
+ * <p>
+ * The data of each hour is accumulated until the DataPurgeJob closes the
+ * hour, which it does once the hour and the hq.rollup.gracePeriod after it
+ * have passed.  An hour is only rolled up from memory if all of its data
+ * went through {@link #add(List)}.  Hours which began before the server
+ * started, which got data inserted one point at a time, or which got data
+ * after they were closed are marked and left to SQL compaction.
+ */
+@Component
+public class StreamingRollup {
+    private static final long HOUR = MeasurementConstants.HOUR;
+    private static final long DEFAULT_GRACE_PERIOD = 10 * MeasurementConstants.MINUTE;
+    // The largest value which fits in the NUMERIC(24,5) value columns
+    private static final double MAX_DB_NUMBER = 1e22;
+
+    private final Log log = LogFactory.getLog(StreamingRollup.class);
+    private final Object lock = new Object();
+    // All guarded by lock
+    private final Map<Long,Window> windows = new HashMap<Long,Window>();
+    private final SortedSet<Long> marked = new TreeSet<Long>();
+    private long closedBefore = 0;
+    private long firstHour = Long.MAX_VALUE;
+
+    private final ConcurrentStatsCollector concurrentStatsCollector;
+    private final boolean enabled;
+    private final long gracePeriod;
+    private final boolean verify;
+
+    /**
+     * The running aggregates of the measurements of one hour.
+     */
+    private static final class Window {
+        private final long hour;
+        private final Map<Integer,Accumulator> accumulators = new HashMap<Integer,Accumulator>();
+        private boolean closed = false;
+
+        private Window(long hour) {
+            this.hour = hour;
+        }
+
+        /**
+         * @return false if the window was closed and the value not added.
+         */
+        private synchronized boolean add(Integer mid, double val) {
+            if (closed) {
+                return false;
+            }
+            Accumulator acc = accumulators.get(mid);
+            if (acc == null) {
+                acc = new Accumulator(val);
+                accumulators.put(mid, acc);
+            } else {
+                acc.add(val);
+            }
+            return true;
+        }
+
+        private synchronized List<DataPoint> close() {
+            closed = true;
+            List<DataPoint> rtn = new ArrayList<DataPoint>(accumulators.size());
+            for (Map.Entry<Integer,Accumulator> entry : accumulators.entrySet()) {
+                Accumulator acc = entry.getValue();
+                rtn.add(new DataPoint(entry.getKey(),
+                    new HighLowMetricValue(acc.sum / acc.count, acc.max, acc.min, hour)));
+            }
+            accumulators.clear();
+            return rtn;
+        }
+
+        private synchronized int size() {
+            return accumulators.size();
+        }
+    }
+
+    private static final class Accumulator {
+        private double min;
+        private double max;
+        private double sum;
+        private int count;
+
+        private Accumulator(double val) {
+            min = max = sum = val;
+            count = 1;
+        }
+
+        private void add(double val) {
+            if (val < min) {
+                min = val;
+            }
+            if (val > max) {
+                max = val;
+            }
+            sum += val;
+            count++;
+        }
+    }
+
+    @Autowired
+    public StreamingRollup(ConcurrentStatsCollector concurrentStatsCollector,
+                           @Value("#{tweakProperties['hq.rollup.streaming'] }") Boolean enabled,
+                           @Value("#{tweakProperties['hq.rollup.gracePeriod'] }") Long gracePeriod,
+                           @Value("#{tweakProperties['hq.rollup.verify'] }") Boolean verify) {
+        this.concurrentStatsCollector = concurrentStatsCollector;
+        this.enabled = (enabled == null) ? false : enabled.booleanValue();
+        this.gracePeriod = (gracePeriod == null) ? DEFAULT_GRACE_PERIOD : gracePeriod.longValue();
+        this.verify = (verify == null) ? false : verify.booleanValue();
+    }
+
+    /**
+     * @return true if hq.rollup.streaming is set, in which case the data
+     *         is rolled up as it is inserted.
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return true if hq.rollup.verify is set, in which case each hour
+     *         rolled up from memory should be compared with SQL compaction.
+     */
+    public boolean isVerifying() {
+        return verify;
+    }
+
+    @PostConstruct
+    void initialize() {
+        initialize(System.currentTimeMillis());
+    }
+
+    void initialize(long now) {
+        if (!enabled) {
+            return;
+        }
+        synchronized (lock) {
+            // The hour the server started in is missing what came before
+            firstHour = TimingVoodoo.roundDownTime(now, HOUR) + HOUR;
+        }
+        log.info("Rolling up metric data from " + TimeUtil.toString(firstHour) + " in memory, closing hours " +
+                 gracePeriod + " ms after their end");
+        concurrentStatsCollector.register(ConcurrentStatsCollector.STREAMING_ROLLUP_LATE_POINTS);
+        concurrentStatsCollector.register(new StatCollector() {
+            public long getVal() {
+                return size();
+            }
+            public String getId() {
+                return ConcurrentStatsCollector.STREAMING_ROLLUP_SIZE;
+            }
+        });
+    }
+
+    /**
+     * Rolls up data which has been committed to the raw data tables.  Data
+     * of an hour which has already been closed marks that hour instead.
+     */
+    public void add(List<DataPoint> data) {
+        if (!enabled) {
+            return;
+        }
+        long windowHour = -1;
+        Window window = null;
+        int late = 0;
+
+        for (DataPoint pt : data) {
+            final long hour = TimingVoodoo.roundDownTime(pt.getTimestamp(), HOUR);
+            if (hour != windowHour) {
+                windowHour = hour;
+                window = getWindow(hour);
+            }
+            double val = pt.getValue();
+            if (Double.isNaN(val) || Double.isInfinite(val) || window == null ||
+                !window.add(pt.getMeasurementId(), Math.min(val, MAX_DB_NUMBER))) {
+                if (mark(hour)) {
+                    late++;
+                }
+            }
+        }
+        if (late > 0) {
+            concurrentStatsCollector.addStat(late, ConcurrentStatsCollector.STREAMING_ROLLUP_LATE_POINTS);
+        }
+    }
+
+    /**
+     * Marks the hours of data which has been inserted or updated point by
+     * point, and can't be rolled up because some of it may have replaced
+     * values already added.
+     */
+    public void addRewritten(List<DataPoint> data) {
+        if (!enabled) {
+            return;
+        }
+        long lastHour = -1;
+        for (DataPoint pt : data) {
+            final long hour = TimingVoodoo.roundDownTime(pt.getTimestamp(), HOUR);
+            if (hour != lastHour) {
+                mark(hour);
+                lastHour = hour;
+            }
+        }
+    }
+
+    private Window getWindow(long hour) {
+        synchronized (lock) {
+            if (hour < closedBefore || hour < firstHour) {
+                return null;
+            }
+            Window window = windows.get(hour);
+            if (window == null) {
+                window = new Window(hour);
+                windows.put(hour, window);
+            }
+            return window;
+        }
+    }
+
+    /**
+     * @return true if the hour has already been closed.
+     */
+    private boolean mark(long hour) {
+        synchronized (lock) {
+            marked.add(hour);
+            return hour < closedBefore;
+        }
+    }
+
+    /**
+     * @return true if the hour starting at the given time can be rolled up
+     *         from memory when it is closed.
+     */
+    public boolean isCovering(long hour) {
+        synchronized (lock) {
+            return enabled && hour >= firstHour && !marked.contains(hour);
+        }
+    }
+
+    /**
+     * @return true if the grace period for late data of the hour starting
+     *         at the given time has passed.
+     */
+    public boolean isGraceOver(long hour, long now) {
+        return hour + HOUR + gracePeriod <= now;
+    }
+
+    /**
+     * Closes the hour starting at the given time, and all hours before it.
+     * Data for them which is added afterwards marks them as late.
+     * 
+     * @return the rollup of each measurement for the hour, with the
+     *         average, maximum and minimum in a {@link HighLowMetricValue},
+     *         or null if the hour has to be compacted from the raw data.
+     */
+    public List<DataPoint> close(long hour) {
+        final boolean covering;
+        final List<Window> closed = new ArrayList<Window>();
+        synchronized (lock) {
+            covering = isCovering(hour);
+            closedBefore = Math.max(closedBefore, hour + HOUR);
+            marked.remove(hour);
+            for (Iterator<Window> it = windows.values().iterator(); it.hasNext();) {
+                Window window = it.next();
+                if (window.hour < closedBefore) {
+                    it.remove();
+                    closed.add(window);
+                    if (window.hour != hour) {
+                        // Skipped by the caller, so it has to be redone
+                        marked.add(window.hour);
+                    }
+                }
+            }
+        }
+        List<DataPoint> rtn = null;
+        for (Window window : closed) {
+            // Threads adding to it from now on mark the hour
+            List<DataPoint> rollups = window.close();
+            if (window.hour == hour) {
+                rtn = rollups;
+            }
+        }
+        if (!covering) {
+            return null;
+        }
+        return (rtn == null) ? new ArrayList<DataPoint>(0) : rtn;
+    }
+
+    /**
+     * @return the start of each closed hour which has been marked since it
+     *         was closed, and has to be compacted again.  They are unmarked.
+     */
+    public List<Long> takeLateHours() {
+        synchronized (lock) {
+            SortedSet<Long> late = marked.headSet(closedBefore);
+            List<Long> rtn = new ArrayList<Long>(late);
+            late.clear();
+            return rtn;
+        }
+    }
+
+    /**
+     * @return the number of measurement hours being rolled up.
+     */
+    int size() {
+        List<Window> open;
+        synchronized (lock) {
+            open = new ArrayList<Window>(windows.values());
+        }
+        int rtn = 0;
+        for (Window window : open) {
+            rtn += window.size();
+        }
+        return rtn;
+    }
+}
@@ -53,6 +53,13 @@ public interface AvailabilityManager {
 
     public List<Measurement> getPlatformResources();
 
+    /**
+     * Indexes the availability deadline of a platform which was just enabled
+     * or reported for the first time, so the backfiller checks it from then
+     * on.  Other measurements are ignored.
+     */
+    public void watchAvailabilityDeadline(Measurement meas);
+
     public long getDowntime(Resource resource, long begin, long end) throws MeasurementNotFoundException;
 
     public List<Integer> getAllAvailIds();
@@ -26,6 +26,10 @@
 
 package org.hyperic.hq.measurement.shared;
 
+import java.util.List;
+
+import org.hyperic.hq.measurement.server.session.DataPoint;
+
 /**
  * Local interface for DataCompress.
  */
@@ -66,6 +70,28 @@ public interface DataCompress {
      */
     void compressData(long toInterval, long now, long startWindow, long endWindow);
 
+    /**
+     * Insert data which has already been compressed, instead of compressing
+     * it from another table
+     * @param toInterval The metric interval table to insert data into (one of
+     *        MeasurementConstants.HOUR, MeasurementConstants.SIX_HOUR, or
+     *        MeasurementConstants.DAY)
+     * @param data The data points, each with the average, maximum and minimum
+     *        of a measurement in a {@link HighLowMetricValue}
+     */
+    void insertCompressedData(long toInterval, List<DataPoint> data);
+
+    /**
+     * Compare the data in an interval table with what compressing the data
+     * it is compressed from gives, logging each measurement which differs
+     * @param toInterval The metric interval table to check (one of
+     *        MeasurementConstants.HOUR, MeasurementConstants.SIX_HOUR, or
+     *        MeasurementConstants.DAY)
+     * @param startWindow Starting timestamp of the interval to check
+     * @return The number of measurements which differ
+     */
+    int verifyCompressedData(long toInterval, long startWindow);
+
     /**
      * Delete data from a dataInterval table with timestamp between startWindow
      * and endWindow
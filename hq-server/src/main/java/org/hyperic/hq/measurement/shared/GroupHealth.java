@@ -0,0 +1,174 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.shared;
+
+import java.io.Serializable;
+
+import org.hyperic.hq.measurement.MeasurementConstants;
+
+/**
+ * The health of the members of a group at one moment: how many of them
+ * are in each availability state, the average availability of those which
+ * are up, down or in between, and the number of unfixed alerts on them.
+ */
+public class GroupHealth implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // The states up to PARTIAL are the ones averaged
+    public static final int UP = 0;
+    public static final int DOWN = 1;
+    public static final int WARN = 2;
+    /** Any other value between down and up */
+    public static final int PARTIAL = 3;
+    public static final int PAUSED = 4;
+    public static final int POWERED_OFF = 5;
+    /** Unknown, or no availability measurement */
+    public static final int UNKNOWN = 6;
+    /** Not a valid availability value */
+    public static final int INVALID = 7;
+    /** Members which are being deleted */
+    public static final int DELETED = 8;
+    public static final int NUM_STATES = 9;
+
+    private final Integer groupId;
+    private final int[] counts;
+    private final double availSum;
+    private final int openAlerts;
+
+    public GroupHealth(Integer groupId, int[] counts, double availSum, int openAlerts) {
+        this.groupId = groupId;
+        this.counts = new int[NUM_STATES];
+        System.arraycopy(counts, 0, this.counts, 0, NUM_STATES);
+        this.availSum = availSum;
+        this.openAlerts = openAlerts;
+    }
+
+    /**
+     * @return the state the availability value is counted in, other than
+     *         DELETED.
+     */
+    public static int getState(double val) {
+        if (val == MeasurementConstants.AVAIL_UP) {
+            return UP;
+        } else if (val == MeasurementConstants.AVAIL_DOWN) {
+            return DOWN;
+        } else if (val == MeasurementConstants.AVAIL_WARN) {
+            return WARN;
+        } else if (val == MeasurementConstants.AVAIL_UNKNOWN) {
+            return UNKNOWN;
+        } else if (val == MeasurementConstants.AVAIL_PAUSED) {
+            return PAUSED;
+        } else if (val == MeasurementConstants.AVAIL_POWERED_OFF) {
+            return POWERED_OFF;
+        } else if (val > MeasurementConstants.AVAIL_DOWN && val < MeasurementConstants.AVAIL_UP) {
+            return PARTIAL;
+        }
+        return INVALID;
+    }
+
+    public Integer getGroupId() {
+        return groupId;
+    }
+
+    public int getCount(int state) {
+        return counts[state];
+    }
+
+    public int getNumMembers() {
+        int rtn = 0;
+        for (int i = 0; i < NUM_STATES; i++) {
+            rtn += counts[i];
+        }
+        return rtn;
+    }
+
+    public int getNumUp() {
+        return counts[UP];
+    }
+
+    /**
+     * @return the number of members which are down, warn, paused, powered
+     *         off or in between down and up.
+     */
+    public int getNumUnavailable() {
+        return counts[DOWN] + counts[WARN] + counts[PARTIAL] + counts[PAUSED] + counts[POWERED_OFF];
+    }
+
+    /**
+     * @return the number of members with an unknown or invalid
+     *         availability, leaving out those being deleted.
+     */
+    public int getNumUnknown() {
+        return counts[UNKNOWN] + counts[INVALID];
+    }
+
+    /**
+     * @return the average availability of the members which are up, down
+     *         or in between, or AVAIL_UNKNOWN if there are none.
+     */
+    public double getAvailabilityAverage() {
+        final int num = counts[UP] + counts[DOWN] + counts[WARN] + counts[PARTIAL];
+        if (num == 0) {
+            return MeasurementConstants.AVAIL_UNKNOWN;
+        }
+        return availSum / num;
+    }
+
+    public int getNumOpenAlerts() {
+        return openAlerts;
+    }
+
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (!(o instanceof GroupHealth)) {
+            return false;
+        }
+        final GroupHealth other = (GroupHealth) o;
+        for (int i = 0; i < NUM_STATES; i++) {
+            if (counts[i] != other.counts[i]) {
+                return false;
+            }
+        }
+        return groupId.equals(other.groupId) && openAlerts == other.openAlerts &&
+               Math.abs(availSum - other.availSum) < 1e-6;
+    }
+
+    public int hashCode() {
+        int rtn = groupId.hashCode();
+        for (int i = 0; i < NUM_STATES; i++) {
+            rtn = 31 * rtn + counts[i];
+        }
+        return 31 * rtn + openAlerts;
+    }
+
+    public String toString() {
+        return "GroupHealth[group=" + groupId + ", up=" + getNumUp() + ", unavailable=" +
+               getNumUnavailable() + ", unknown=" + getNumUnknown() + ", deleted=" + counts[DELETED] +
+               ", availability=" + getAvailabilityAverage() + ", openAlerts=" + openAlerts + "]";
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.shared;
+
+import java.util.List;
+
+import org.hyperic.hq.authz.server.session.Resource;
+import org.hyperic.hq.authz.server.session.ResourceGroup;
+import org.hyperic.hq.measurement.server.session.DataPoint;
+
+/**
+ * Local interface for GroupHealthManager.
+ */
+public interface GroupHealthManager {
+
+    /**
+     * @return true if hq.groupHealth is true
+     */
+    public boolean isEnabled();
+
+    /**
+     * @return the health of the group's members, or null if it isn't kept
+     *         because it is disabled or the group has groups or
+     *         applications as members.
+     */
+    public GroupHealth getGroupHealth(ResourceGroup group);
+
+    /**
+     * Counts the members of the groups kept in their new availability
+     * state once the current transaction commits.  States older than the
+     * last one counted for their measurement are ignored.
+     */
+    public void availabilityChanged(List<DataPoint> states);
+
+    /**
+     * Drops the health kept of the groups with any of these availability
+     * measurements, once the current transaction commits, so that it is
+     * loaded again from the database.  For measurements whose cached
+     * availability was found out of sync with the database.
+     */
+    public void availabilityOutOfSync(List<Integer> mids);
+
+    /**
+     * Counts an alert of the resource as open once the current transaction
+     * commits.
+     */
+    public void alertOpened(Resource resource);
+
+    /**
+     * Counts an alert of the resource as fixed once the current transaction
+     * commits.
+     */
+    public void alertFixed(Resource resource);
+
+    /**
+     * Recomputes the health of each group kept from the database, and
+     * replaces the health kept for those which drifted from it.
+     */
+    public void reconcile();
+
+}
@@ -1,37 +1,41 @@
 package org.hyperic.hq.notifications;
 
 import java.util.Collection;
-import java.util.List;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hyperic.hq.notifications.model.BaseNotification;
 import org.hyperic.hq.notifications.model.InternalResourceDetailsType;
 
+/**
+ * The notifications waiting to be sent to, or polled by, one registration.
+ * The queue is not locked, producers reserve room for their notifications in
+ * the size before adding them, so that the queue limit still holds.
+ */
 public class AccumulatedRegistrationData {
     private static final Log log = LogFactory.getLog(AccumulatedRegistrationData.class);
     private final InternalResourceDetailsType resourceContentType;
-    private final LinkedBlockingQueue<BaseNotification> accumulatedNotificationsQueue;
+    private final Queue<BaseNotification> accumulatedNotificationsQueue;
+    private final AtomicInteger size = new AtomicInteger(0);
     private final NotificationEndpoint endpoint;
     private AtomicBoolean isValid = new AtomicBoolean(true);
     private ScheduledFuture<?> schedule;
     private final int queueLimit;
     protected EndpointStatus batchPostingStatus;
     protected long creationTime;
-    private Object lock;
-    
+
     public AccumulatedRegistrationData(NotificationEndpoint endpoint, int queueLimit,
-                                       InternalResourceDetailsType resourceDetailsType,
-                                       Object lock) {
+                                       InternalResourceDetailsType resourceDetailsType) {
         this.queueLimit = queueLimit;
-        this.accumulatedNotificationsQueue = new LinkedBlockingQueue<BaseNotification>(queueLimit);
+        this.accumulatedNotificationsQueue = new ConcurrentLinkedQueue<BaseNotification>();
         this.resourceContentType = resourceDetailsType;
         this.endpoint = endpoint;
         this.creationTime = System.currentTimeMillis();
-        this.lock = lock;
     }
     
     public NotificationEndpoint getNotificationEndpoint() {
@@ -42,43 +46,50 @@ public class AccumulatedRegistrationData {
         return resourceContentType;
     }
 
-    public LinkedBlockingQueue<BaseNotification> getAccumulatedNotificationsQueue() {
-        return accumulatedNotificationsQueue;
+    /**
+     * @return the number of notifications in the queue, which may include
+     *         some being added or drained at the time
+     */
+    public int size() {
+        return size.get();
     }
 
     public <T extends BaseNotification> void addAll(Collection<T> c) {
         if (!isValid()) {
             return;
         }
-        synchronized (lock) {
-            final int size = accumulatedNotificationsQueue.size();
-            if ((c.size() + size) > queueLimit) {
+        final int num = c.size();
+        int current;
+        do {
+            current = size.get();
+            if ((num + current) > queueLimit) {
                 if (log.isDebugEnabled()) {
-                    log.debug("cannot add " + c.size() + " elements to the notifications queue, current size=" + size);
+                    log.debug("cannot add " + num + " elements to the notifications queue, current size=" + current);
                 }
-            } else {
-                accumulatedNotificationsQueue.addAll(c);
+                return;
             }
-        }
+        } while (!size.compareAndSet(current, current + num));
+        accumulatedNotificationsQueue.addAll(c);
     }
 
     public void drainTo(Collection<BaseNotification> c) {
-        synchronized (lock) {
-            accumulatedNotificationsQueue.drainTo(c);
-        }
+        drainTo(c, Integer.MAX_VALUE);
     }
     
     public boolean isValid() {
         return isValid.get();
     }
     
-    public void markInvalid() {
-        isValid.set(false);
+    /**
+     * @return false if the registration was already invalid
+     */
+    public boolean markInvalid() {
+        return isValid.compareAndSet(true, false);
     }
 
     public void clear() {
-        synchronized (lock) {
-            accumulatedNotificationsQueue.clear();
+        while (accumulatedNotificationsQueue.poll() != null) {
+            size.decrementAndGet();
         }
     }
 
@@ -90,8 +101,12 @@ public class AccumulatedRegistrationData {
         return schedule;
     }
 
-    public void drainTo(List<BaseNotification> c, int size) {
-        accumulatedNotificationsQueue.drainTo(c, size);
+    public void drainTo(Collection<BaseNotification> c, int maxSize) {
+        BaseNotification n;
+        for (int i = 0; i < maxSize && (n = accumulatedNotificationsQueue.poll()) != null; i++) {
+            c.add(n);
+            size.decrementAndGet();
+        }
     }
 
     public void merge(EndpointStatus batchPostingStatus) {
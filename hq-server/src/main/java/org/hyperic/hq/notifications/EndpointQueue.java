@@ -31,6 +31,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -39,6 +40,7 @@ import javax.annotation.PostConstruct;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hyperic.hq.context.Bootstrap;
+import org.hyperic.hq.measurement.server.session.MeasurementInterestIndex;
 import org.hyperic.hq.notifications.filtering.MetricDestinationEvaluator;
 import org.hyperic.hq.notifications.filtering.ResourceDestinationEvaluator;
 import org.hyperic.hq.notifications.model.BaseNotification;
@@ -66,12 +68,16 @@ public class EndpointQueue {
     private ThreadPoolTaskScheduler notificationExecutor;
     @Autowired
     private ConcurrentStatsCollector concurrentStatsCollector;
+    @Autowired
+    private MeasurementInterestIndex measurementInterestIndex;
     
     protected final static long EXPIRATION_DURATION = 10*60*1000;
     MetricDestinationEvaluator metricEvaluator;
     ResourceDestinationEvaluator resourceEvaluator;
     
-    private final Map<String, AccumulatedRegistrationData> registrationData = new HashMap<String, AccumulatedRegistrationData>();
+    // Each registration has a queue of its own which needs no lock, so publishing to one doesn't wait for another
+    private final ConcurrentHashMap<String, AccumulatedRegistrationData> registrationData =
+        new ConcurrentHashMap<String, AccumulatedRegistrationData>();
     private final AtomicInteger numConsumers = new AtomicInteger(0);
 
     public void register(NotificationEndpoint endpoint, Transformer<InternalNotificationReport, String> transformer) {
@@ -90,13 +96,11 @@ public class EndpointQueue {
         concurrentStatsCollector.register(NOTIFICATIONS_PUBLISHED_TO_ENDPOINT_TIME);
         concurrentStatsCollector.register(new StatCollector() {
             public long getVal() throws StatUnreachableException {
-                synchronized (registrationData) {
-                    long rtn = 0;
-                    for (final AccumulatedRegistrationData data : registrationData.values()) {
-                        rtn += data.getAccumulatedNotificationsQueue().size();
-                    }
-                    return rtn;
+                long rtn = 0;
+                for (final AccumulatedRegistrationData data : registrationData.values()) {
+                    rtn += data.size();
                 }
+                return rtn;
             }
             public String getId() {
                 return NOTIFICATION_TOTAL_QUEUE_SIZE;
@@ -108,17 +112,15 @@ public class EndpointQueue {
                          Transformer<InternalNotificationReport, String> transformer) {
         final boolean debug = log.isDebugEnabled();
         final AccumulatedRegistrationData data =
-            new AccumulatedRegistrationData(endpoint, QUEUE_LIMIT, resourceDetailsType, registrationData);
-        synchronized (registrationData) {
-            if (registrationData.containsKey(endpoint.getRegistrationId())) {
-                if (debug) log.debug("can not register endpoint=" + endpoint + " twice");
-                return;
-            }
-            final String regId = endpoint.getRegistrationId();
-            registrationData.put(regId, data);
-            numConsumers.incrementAndGet();
-            schedule(endpoint, data, transformer);
+            new AccumulatedRegistrationData(endpoint, QUEUE_LIMIT, resourceDetailsType);
+        if (registrationData.putIfAbsent(endpoint.getRegistrationId(), data) != null) {
+            if (debug) log.debug("can not register endpoint=" + endpoint + " twice");
+            return;
         }
+        numConsumers.incrementAndGet();
+        // Metric notifications are filtered by resource, so every measurement may be wanted
+        measurementInterestIndex.getInterest(MeasurementInterestIndex.NOTIFICATIONS).watchAll();
+        schedule(endpoint, data, transformer);
         if (log.isDebugEnabled()) {
             log.debug("new notification registration=" + endpoint);
         }
@@ -196,27 +198,24 @@ public class EndpointQueue {
     }
 
     public NotificationEndpoint unregister(String regID) {
-        AccumulatedRegistrationData data = null;
-        synchronized (registrationData) {
-            // don't delete the data, we want to be able to access the endpoint by registrationId
-            data = registrationData.get(regID);
-            if (data == null || !data.isValid()) {
-                if(log.isDebugEnabled()){
-                log.debug((data == null ? "No queue assigned" : "Queue is already invalid") + " for regId: " +
-                        regID);
-                }
-                return null;
-            }
-            numConsumers.decrementAndGet();
-            data.markInvalid();
-            data.clear();
-            final ScheduledFuture<?> schedule = data.getSchedule();
-            if (schedule != null) {
-                schedule.cancel(true);
-            }
-            if (log.isDebugEnabled()) {
-                log.debug("Removing the queue assigned for regId: " + regID);
+        // don't delete the data, we want to be able to access the endpoint by registrationId
+        final AccumulatedRegistrationData data = registrationData.get(regID);
+        if (data == null || !data.markInvalid()) {
+            if(log.isDebugEnabled()){
+            log.debug((data == null ? "No queue assigned" : "Queue is already invalid") + " for regId: " +
+                    regID);
             }
+            return null;
+        }
+        numConsumers.decrementAndGet();
+        measurementInterestIndex.getInterest(MeasurementInterestIndex.NOTIFICATIONS).unwatchAll();
+        data.clear();
+        final ScheduledFuture<?> schedule = data.getSchedule();
+        if (schedule != null) {
+            schedule.cancel(true);
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Removing the queue assigned for regId: " + regID);
         }
         return data.getNotificationEndpoint();
     }
@@ -228,27 +227,23 @@ public class EndpointQueue {
     public InternalNotificationReport poll(String registrationId, int maxSize) {
         final InternalNotificationReport rtn = new InternalNotificationReport();
         final List<BaseNotification> notifications = new ArrayList<BaseNotification>();
-        synchronized (registrationData) {
-            AccumulatedRegistrationData data = registrationData.get(registrationId);
-            if (data == null || !data.isValid()) {
-                return rtn;
-            }
-            data.drainTo(notifications, maxSize);
-            rtn.setNotifications(notifications);
-            rtn.setResourceDetailsType(data.getResourceContentType());
+        final AccumulatedRegistrationData data = registrationData.get(registrationId);
+        if (data == null || !data.isValid()) {
             return rtn;
         }
+        data.drainTo(notifications, maxSize);
+        rtn.setNotifications(notifications);
+        rtn.setResourceDetailsType(data.getResourceContentType());
+        return rtn;
     }
     
     public <T extends BaseNotification> void publishAsync(Map<NotificationEndpoint, Collection<T>> map) {
-        synchronized (registrationData) {
-            for (final Entry<NotificationEndpoint, Collection<T>> entry : map.entrySet()) {
-                final NotificationEndpoint endpoint = entry.getKey();
-                final Collection<T> list = entry.getValue();
-                final AccumulatedRegistrationData data = registrationData.get(endpoint.getRegistrationId());
-                if (data != null) {
-                    data.addAll(list);
-                }
+        for (final Entry<NotificationEndpoint, Collection<T>> entry : map.entrySet()) {
+            final NotificationEndpoint endpoint = entry.getKey();
+            final Collection<T> list = entry.getValue();
+            final AccumulatedRegistrationData data = registrationData.get(endpoint.getRegistrationId());
+            if (data != null) {
+                data.addAll(list);
             }
         }
     }
@@ -257,31 +252,27 @@ public class EndpointQueue {
         if (registrationID == null) {
             return null;
         }
-        synchronized (registrationData) {
-            AccumulatedRegistrationData data = registrationData.get(registrationID);
-            if (data != null) {
-                return data.getNotificationEndpoint();
-            }
+        final AccumulatedRegistrationData data = registrationData.get(registrationID);
+        if (data != null) {
+            return data.getNotificationEndpoint();
         }
         return null;
     }
     
     public EndpointAndRegStatus getEndpointAndRegStatus(String registrationID) {
-        synchronized (registrationData) {
-            AccumulatedRegistrationData ard = this.registrationData.get(registrationID);
-            if (ard!=null) {
-                RegistrationStatus regStat = new RegistrationStatus();
-                regStat.setCreationTime(ard.getCreationTime());
-                regStat.setValid(ard.isValid());
-                EndpointStatus endpointStatus = null;
-                EndpointStatus ardStatus = ard.getEndpointStatus();
-                if (ardStatus!=null) {
-                    endpointStatus = new EndpointStatus(ardStatus);
-                }
-                return new EndpointAndRegStatus(endpointStatus,regStat);
-            } else {
-                this.log.error("there is no AccumulatedRegistrationData for registration " + registrationID);
+        AccumulatedRegistrationData ard = this.registrationData.get(registrationID);
+        if (ard!=null) {
+            RegistrationStatus regStat = new RegistrationStatus();
+            regStat.setCreationTime(ard.getCreationTime());
+            regStat.setValid(ard.isValid());
+            EndpointStatus endpointStatus = null;
+            EndpointStatus ardStatus = ard.getEndpointStatus();
+            if (ardStatus!=null) {
+                endpointStatus = new EndpointStatus(ardStatus);
             }
+            return new EndpointAndRegStatus(endpointStatus,regStat);
+        } else {
+            this.log.error("there is no AccumulatedRegistrationData for registration " + registrationID);
         }
         return null;
     }
@@ -6,8 +6,9 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -20,6 +21,11 @@ public abstract class DestinationEvaluator<N extends BaseNotification> {
     // TODO~ change to write through versioning (each node would have versioning - write on one version, read another,
     // then sync between them), o/w will pose problems in scale
     protected Map<NotificationEndpoint,FilterChain<N>> destToFilter = new HashMap<NotificationEndpoint,FilterChain<N>>();
+    // the registrations as notifications are routed through them, changed along with destToFilter and read
+    // without a lock
+    private final Map<NotificationEndpoint,Route<N>> allRoutes = new ConcurrentHashMap<NotificationEndpoint,Route<N>>();
+    private final Map<Integer,Collection<Route<N>>> routesByResource = new ConcurrentHashMap<Integer,Collection<Route<N>>>();
+    private final Collection<Route<N>> unindexedRoutes = new CopyOnWriteArrayList<Route<N>>();
 
     protected abstract FilterChain<N> instantiateFilterChain(Collection<Filter<N,? extends FilteringCondition<?>>> filters);
     
@@ -50,6 +56,7 @@ public abstract class DestinationEvaluator<N extends BaseNotification> {
                     log.debug("appending the following filters to destination " + endpoint + ":\n" + filters);
                 }
             }
+            index(endpoint, filterChain);
         }
     }
 
@@ -61,6 +68,7 @@ public abstract class DestinationEvaluator<N extends BaseNotification> {
         FilterChain<N> filterChain = null;
         synchronized (destToFilter) {
             filterChain = destToFilter.remove(endpoint);
+            index(endpoint, null);
         }
         if (log.isDebugEnabled()) {
             if (filterChain == null) {
@@ -102,44 +110,144 @@ public abstract class DestinationEvaluator<N extends BaseNotification> {
                 }
                 if (filterChain.isEmpty()) {
                     destToFilter.remove(endpoint);
+                    filterChain = null;
                     if (log.isDebugEnabled()) {
                         log.debug("un-registering the following endpoint " + endpoint);
                     }
                 }
+                index(endpoint, filterChain);
             }
         }
     }
 
+    /**
+     * Routes each notification to the registrations indexed by its resource, and to those which do not
+     * filter by resource, so that the registrations of other resources are not looked at.
+     */
     public Map<NotificationEndpoint, Collection<N>> evaluate(List<N> entities) {
         final Map<NotificationEndpoint, Collection<N>> rtn = new HashMap<NotificationEndpoint, Collection<N>>();
-        final Map<NotificationEndpoint, FilterChain<N>> tmp;
-        synchronized (destToFilter) {
-            tmp = new HashMap<NotificationEndpoint, FilterChain<N>>(destToFilter);
+        for (final N entity : entities) {
+            final Integer resourceId = getResourceId(entity);
+            if (resourceId == null) {
+                route(entity, allRoutes.values(), true, rtn);
+                continue;
+            }
+            final Collection<Route<N>> routes = routesByResource.get(resourceId);
+            if (routes != null) {
+                route(entity, routes, false, rtn);
+            }
+            route(entity, unindexedRoutes, false, rtn);
         }
-        for (final Entry<NotificationEndpoint,FilterChain<N>> entry : tmp.entrySet()) {
-            final FilterChain<N> filterChain = entry.getValue();
-            final Collection<N> filteredEntities = ((Collection<N>) filterChain.filter(entities));
-            if (filteredEntities != null && !filteredEntities.isEmpty()) {
-                final NotificationEndpoint endpoint = entry.getKey();
-                Collection<N> list = rtn.get(endpoint);
-                if (list == null) {
-                    list = new ArrayList<N>();
-                    rtn.put(endpoint, list);
-                }
-                list.addAll(filteredEntities);
+        return rtn;
+    }
+
+    /**
+     * @return the id of the resource the notification is about, which the resource filters of the
+     * registrations check it against, or null to run it through every registration
+     */
+    protected Integer getResourceId(N notification) {
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void route(N entity, Collection<Route<N>> routes, boolean checkIndexed,
+                       Map<NotificationEndpoint, Collection<N>> rtn) {
+        for (final Route<N> route : routes) {
+            if (route.replaced) {
+                continue;
+            }
+            BaseNotification n = entity;
+            if (checkIndexed && route.indexed != null) {
+                n = route.indexed.apply(n);
+            }
+            for (int i=0; n != null && i<route.filters.length; i++) {
+                n = route.filters[i].apply(n);
             }
+            if (n == null) {
+                continue;
+            }
+            Collection<N> list = rtn.get(route.endpoint);
+            if (list == null) {
+                list = new ArrayList<N>();
+                rtn.put(route.endpoint, list);
+            }
+            list.add((N) n);
         }
-        Set<N> set = new HashSet<N>();
-        for (Entry<NotificationEndpoint, Collection<N>> entry : rtn.entrySet()) {
-            Collection<N> values = entry.getValue();
-            for (N v : values) {
-                boolean added = set.add(v);
-                if (!added) {
-                    log.debug(v);
+    }
+
+    /**
+     * Replaces the route of the endpoint with one for its current filters, or removes it if the chain is
+     * null.  Must be called while holding the destToFilter lock.
+     */
+    private void index(NotificationEndpoint endpoint, FilterChain<N> filterChain) {
+        final Route<N> route = (filterChain == null) ? null : new Route<N>(endpoint, filterChain);
+        final Route<N> old = (route == null) ? allRoutes.remove(endpoint) : allRoutes.put(endpoint, route);
+        if (old != null) {
+            // notifications routed until the new route is in place may miss the registration, but none
+            // passes through both routes
+            old.replaced = true;
+            if (old.resourceIds == null) {
+                unindexedRoutes.remove(old);
+            } else {
+                for (final Integer resourceId : old.resourceIds) {
+                    final Collection<Route<N>> routes = routesByResource.get(resourceId);
+                    if (routes == null) {
+                        continue;
+                    }
+                    routes.remove(old);
+                    if (routes.isEmpty()) {
+                        routesByResource.remove(resourceId);
+                    }
                 }
             }
         }
-        return rtn;
+        if (route == null) {
+            return;
+        }
+        if (route.resourceIds == null) {
+            unindexedRoutes.add(route);
+            return;
+        }
+        for (final Integer resourceId : route.resourceIds) {
+            Collection<Route<N>> routes = routesByResource.get(resourceId);
+            if (routes == null) {
+                routes = new CopyOnWriteArrayList<Route<N>>();
+                routesByResource.put(resourceId, routes);
+            }
+            routes.add(route);
+        }
     }
 
+    /**
+     * The filters of one registration, as they were when it was indexed.  The first filter by resource
+     * is the one the registration is indexed by, so it is not run again for the notifications of its
+     * resources.
+     */
+    private static class Route<N extends BaseNotification> {
+        private final NotificationEndpoint endpoint;
+        private final Filter<N,? extends FilteringCondition<?>> indexed;
+        private final Set<Integer> resourceIds;
+        private final Filter<N,? extends FilteringCondition<?>>[] filters;
+        private volatile boolean replaced = false;
+
+        @SuppressWarnings("unchecked")
+        private Route(NotificationEndpoint endpoint, FilterChain<N> filterChain) {
+            this.endpoint = endpoint;
+            Filter<N,? extends FilteringCondition<?>> indexed = null;
+            final List<Filter<N,? extends FilteringCondition<?>>> rest =
+                new ArrayList<Filter<N,? extends FilteringCondition<?>>>();
+            if (filterChain.filters != null) {
+                for (final Filter<N,? extends FilteringCondition<?>> filter : filterChain.filters) {
+                    if (indexed == null && filter.getResourceIds() != null) {
+                        indexed = filter;
+                    } else {
+                        rest.add(filter);
+                    }
+                }
+            }
+            this.indexed = indexed;
+            this.resourceIds = (indexed == null) ? null : new HashSet<Integer>(indexed.getResourceIds());
+            this.filters = rest.toArray(new Filter[rest.size()]);
+        }
+    }
 }
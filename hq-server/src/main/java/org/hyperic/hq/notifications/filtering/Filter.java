@@ -2,6 +2,7 @@ package org.hyperic.hq.notifications.filtering;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 import org.hyperic.hq.notifications.model.BaseNotification;
 
@@ -22,17 +23,33 @@ public abstract class Filter<N extends BaseNotification, C extends FilteringCond
     public List<? extends BaseNotification> filter(List<? extends BaseNotification> notifications) {
         List<BaseNotification> notificationsLeftIn = new ArrayList<BaseNotification>();
         for(BaseNotification notification:notifications) {
-            if (getHandledNotificationClass().isAssignableFrom(notification.getClass())) {
-                N notificationLeftIn = this.filter((N)notification);
-                if (notificationLeftIn!=null) {
-                    notificationsLeftIn.add(notificationLeftIn);
-                }
-            } else {
-                notificationsLeftIn.add(notification);
+            BaseNotification notificationLeftIn = apply(notification);
+            if (notificationLeftIn!=null) {
+                notificationsLeftIn.add(notificationLeftIn);
             }
         }
         return notificationsLeftIn;
     }
+    /**
+     * 
+     * @param notification
+     * @return the notification as filtered, or null if it did not pass. Notifications this filter does not
+     * handle pass as they are
+     */
+    BaseNotification apply(BaseNotification notification) {
+        if (getHandledNotificationClass().isAssignableFrom(notification.getClass())) {
+            return this.filter((N)notification);
+        }
+        return notification;
+    }
+    /**
+     * 
+     * @return the ids of the only resources whose notifications pass this filter, or null if it does not
+     * filter by resource.  Used to index registrations by resource
+     */
+    public Set<Integer> getResourceIds() {
+        return null;
+    }
     /**
      * 
      * @param notification
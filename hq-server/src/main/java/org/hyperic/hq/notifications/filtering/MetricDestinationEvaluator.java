@@ -20,6 +20,11 @@ public class MetricDestinationEvaluator extends DestinationEvaluator<MetricNotif
     protected FilterChain<MetricNotification> instantiateFilterChain(Collection<Filter<MetricNotification,? extends FilteringCondition<?>>> filters) {
         return new FilterChain<MetricNotification>(filters);
     }
+
+    @Override
+    protected Integer getResourceId(MetricNotification notification) {
+        return notification.getResourceID();
+    }
 }
 
 class DummyMsg implements ObjectMessage {
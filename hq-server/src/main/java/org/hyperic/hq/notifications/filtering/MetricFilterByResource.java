@@ -1,5 +1,7 @@
 package org.hyperic.hq.notifications.filtering;
 
+import java.util.Set;
+
 import org.hyperic.hq.measurement.server.session.Measurement;
 import org.hyperic.hq.measurement.shared.MeasurementManager;
 import org.hyperic.hq.notifications.model.MetricNotification;
@@ -17,6 +19,10 @@ public class MetricFilterByResource<C extends ResourceFilteringCondition> extend
         return (cond.check(msmt.getResource().getId())) ? metricNotification : null;
     }
     @Override
+    public Set<Integer> getResourceIds() {
+        return cond.getResourceIds();
+    }
+    @Override
     protected Class<? extends MetricNotification> getHandledNotificationClass() {
         return MetricNotification.class;
     }
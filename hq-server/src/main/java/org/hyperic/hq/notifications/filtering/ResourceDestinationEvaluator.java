@@ -13,4 +13,9 @@ public class ResourceDestinationEvaluator extends DestinationEvaluator<Inventory
     protected FilterChain<InventoryNotification> instantiateFilterChain(Collection<Filter<InventoryNotification,? extends FilteringCondition<?>>> filters) {
         return new FilterChain<InventoryNotification>(filters);
     }
+
+    @Override
+    protected Integer getResourceId(InventoryNotification notification) {
+        return notification.getResourceID();
+    }
 }
\ No newline at end of file
@@ -1,5 +1,7 @@
 package org.hyperic.hq.notifications.filtering;
 
+import java.util.Set;
+
 import org.hyperic.hq.notifications.model.InventoryNotification;
 
 public class ResourceFilter<C extends ResourceFilteringCondition> extends Filter<InventoryNotification,C> {
@@ -12,6 +14,10 @@ public class ResourceFilter<C extends ResourceFilteringCondition> extends Filter
         return (cond.check(rid)) ? inventoryNotification : null;
     }
     @Override
+    public Set<Integer> getResourceIds() {
+        return cond.getResourceIds();
+    }
+    @Override
     protected Class<? extends InventoryNotification> getHandledNotificationClass() {
         return InventoryNotification.class;
     }
@@ -11,6 +11,13 @@ public class ResourceFilteringCondition extends FilteringCondition<Integer> {
         this.resourceIds = resourceIds;
     }
 
+    /**
+     * @return the resource ids to check against, or null if any resource passes
+     */
+    public Set<Integer> getResourceIds() {
+        return resourceIds == null || resourceIds.isEmpty() ? null : resourceIds;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
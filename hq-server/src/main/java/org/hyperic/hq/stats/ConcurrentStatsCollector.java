@@ -32,6 +32,7 @@ import javax.management.MBeanServer;
 
 import net.sf.ehcache.CacheManager;
 
+import org.hyperic.hq.agent.client.AgentChannelPool;
 import org.hyperic.hq.bizapp.shared.lather.CommandInfo;
 import org.hyperic.util.stats.StatCollector;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -47,9 +48,26 @@ public class ConcurrentStatsCollector extends AbstractStatsCollector {
     						   CONCURRENT_STATS_COLLECTOR = "CONCURRENT_STATS_COLLECTOR",
     						   RUNTIME_PLATFORM_AND_SERVER_MERGER = "RUNTIME_PLATFORM_AND_SERVER_MERGER", 
     						   AVAIL_MANAGER_METRICS_INSERTED = "AVAIL_MANAGER_METRICS_INSERTED",
+                               AVAIL_SHARD_QUEUE_DEPTH = "AVAIL_SHARD_QUEUE_DEPTH",
+                               AVAIL_SHARD_TIME = "AVAIL_SHARD_TIME",
     						   DATA_MANAGER_INSERT_TIME = "DATA_MANAGER_INSERT_TIME", 
                                DATA_MANAGER_RETRIES_TIME = "DATA_MANAGER_RETRIES_TIME",
+                               DATA_INSERTER_QUEUE_SIZE = "DATA_INSERTER_QUEUE_SIZE",
+                               DATA_INSERTER_BATCH_SIZE = "DATA_INSERTER_BATCH_SIZE",
+                               DATA_INSERTER_COMMIT_TIME = "DATA_INSERTER_COMMIT_TIME",
+                               DATA_INSERTER_REFUSED = "DATA_INSERTER_REFUSED",
+                               METRIC_DATA_CACHE_HITS = "METRIC_DATA_CACHE_HITS",
+                               METRIC_DATA_CACHE_MISSES = "METRIC_DATA_CACHE_MISSES",
+                               METRIC_DATA_CACHE_REJECTIONS = "METRIC_DATA_CACHE_REJECTIONS",
+                               METRIC_DATA_CACHE_SIZE = "METRIC_DATA_CACHE_SIZE",
+                               METRIC_QUERY_FAN_OUT = "METRIC_QUERY_FAN_OUT",
+                               METRIC_QUERY_QUEUE_WAIT_TIME = "METRIC_QUERY_QUEUE_WAIT_TIME",
+                               METRIC_QUERY_QUEUE_SIZE = "METRIC_QUERY_QUEUE_SIZE",
+                               STREAMING_ROLLUP_SIZE = "STREAMING_ROLLUP_SIZE",
+                               STREAMING_ROLLUP_LATE_POINTS = "STREAMING_ROLLUP_LATE_POINTS",
     						   JMS_TOPIC_PUBLISH_TIME = "JMS_TOPIC_PUBLISH_TIME", 
+                               LOCAL_EVENT_BUS_PUBLISH_TIME = "LOCAL_EVENT_BUS_PUBLISH_TIME",
+                               LOCAL_EVENT_BUS_QUEUE_SIZE = "LOCAL_EVENT_BUS_QUEUE_SIZE",
     						   METRIC_DATA_COMPRESS_TIME = "METRIC_DATA_COMPRESS_TIME",
     						   DB_ANALYZE_TIME = "DB_ANALYZE_TIME", 
     						   PURGE_EVENT_LOGS_TIME = "PURGE_EVENT_LOGS_TIME",
@@ -62,13 +80,20 @@ public class ConcurrentStatsCollector extends AbstractStatsCollector {
     						   SCHEDULE_QUEUE_SIZE = "SCHEDULE_QUEUE_SIZE",
     						   UNSCHEDULE_QUEUE_SIZE = "UNSCHEDULE_QUEUE_SIZE",
     						   ESCALATION_EXECUTE_STATE_TIME = "ESCALATION_EXECUTE_STATE_TIME",
+                               ESCALATION_LATENESS = "ESCALATION_LATENESS",
+                               ESCALATIONS_SCHEDULED = "ESCALATIONS_SCHEDULED",
+                               ESCALATION_QUEUE_SIZE = "ESCALATION_QUEUE_SIZE",
     						   JDBC_HQ_DS_MAX_ACTIVE = "JDBC_HQ_DS_MAX_ACTIVE", 
     						   JDBC_HQ_DS_IN_USE = "JDBC_HQ_DS_IN_USE",
                                AVAIL_BACKFILLER_TIME = "AVAIL_BACKFILLER_TIME",
                                AGENT_PLUGIN_TRANSFER = "AGENT_PLUGIN_TRANSFER",
                                AGENT_PLUGIN_REMOVE = "AGENT_PLUGIN_REMOVE",
                                AGENT_SYNC_JOB_QUEUE_ADDS = "AGENT_SYNC_JOB_QUEUE_ADDS",
+                               AGENT_CONNECTION_SETUP = AgentChannelPool.AGENT_CONNECTION_SETUP,
+                               AGENT_CONNECTION_SETUP_TIME = AgentChannelPool.AGENT_CONNECTION_SETUP_TIME,
+                               AGENT_COMMAND_TIME = AgentChannelPool.AGENT_COMMAND_TIME,
                                AVAIL_BACKFILLER_NUMPLATFORMS = "AVAIL_BACKFILLER_NUMPLATFORMS",
+                               AVAIL_BACKFILLER_NUMCHECKED = "AVAIL_BACKFILLER_NUMCHECKED",
                                AGENT_PLUGIN_SYNC_PENDING_RESTARTS = "AGENT_PLUGIN_SYNC_PENDING_RESTARTS",
                                CMD_PING = "LATHER_" + CommandInfo.CMD_PING.toUpperCase(),
                                CMD_MEASUREMENT_SEND_REPORT = "LATHER_" + CommandInfo.CMD_MEASUREMENT_SEND_REPORT.toUpperCase(),
@@ -45,14 +45,25 @@ class QueueProcessor
     private final BlockingQueue _eventQueue;
     private final ZeventManager _manager;
     private final int           _batchSize;
+    private final int           _partition;
     private final Object        DATA_LOCK = new Object();        
     
     QueueProcessor(ZeventManager manager, BlockingQueue eventQueue,
                    int batchSize)
+    {
+        this(manager, eventQueue, batchSize, 0);
+    }
+
+    /**
+     * @param partition The partition of the manager the queue belongs to
+     */
+    QueueProcessor(ZeventManager manager, BlockingQueue eventQueue,
+                   int batchSize, int partition)
     {
         _manager    = manager;
         _eventQueue = eventQueue;
         _batchSize  = batchSize;
+        _partition  = partition;
     }
 
     public void run() {
@@ -75,7 +86,7 @@ class QueueProcessor
                 e.leaveQueue();
             }
             
-            _manager.dispatchEvents(batch);
+            _manager.dispatchEvents(batch, _partition);
         } catch(InterruptedException exc) {
             _log.warn("Thread interrupted.  I'm dying");
             return;
@@ -51,6 +51,15 @@ public abstract class Zevent {
         return _sourceId;
     }
     
+    /**
+     * Get the key which picks the partition of the {@link ZeventManager}
+     * queue the event goes through.  Events with equal keys are dispatched
+     * in the order they were enqueued.  Defaults to the source id.
+     */
+    public Object getPartitionKey() {
+        return _sourceId;
+    }
+
     /**
      * Get the event payload
      */
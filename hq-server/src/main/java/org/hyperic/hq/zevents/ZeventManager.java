@@ -70,6 +70,12 @@ import org.springframework.transaction.support.TransactionSynchronizationManager
  * 
  * This manager provides no transactional guarantees, so the caller must
  * rollback additions of listeners if the transaction fails.
+ * 
+ * The queue may be split into hq.zevent.partitions partitions, each with a
+ * processor thread of its own.  An event goes into the partition picked by
+ * {@link Zevent#getPartitionKey()}, so events with the same key are still
+ * dispatched in order.  A listener is never called by two partitions at
+ * once.
  */
 @Component
 public class ZeventManager implements ZeventEnqueuer {
@@ -80,8 +86,8 @@ public class ZeventManager implements ZeventEnqueuer {
     // The thread group that the {@link EventQueueProcessor} comes from
     private final LoggingThreadGroup _threadGroup;
 
-    // The actual queue processor thread
-    private Thread _processorThread;
+    // The queue partitions, each with its processor thread
+    private Partition[] _partitions;
 
     private final Object _listenerLock = new Object();
 
@@ -105,15 +111,26 @@ public class ZeventManager implements ZeventEnqueuer {
     private final long _listenerTimeout;
     private final long _warnSize;
     private final long _warnInterval;
-    private long _maxTimeInQueue;
-    private long _numEvents;
 
-    private BlockingQueue<Zevent> _eventQueue;
     private DiagnosticsLogger diagnosticsLogger;
     private final ThreadWatchdog threadWatchdog;
     private final long maxQueue;
     private final long batchSize;
+    private final int numPartitions;
     private final ConcurrentStatsCollector concurrentStatsCollector;
+
+    private static class Partition {
+        private final BlockingQueue<Zevent> queue;
+        private Thread processorThread;
+        // Guarded by the partition
+        private long maxTimeInQueue;
+        private long numEvents;
+        private long listenerTime;
+
+        private Partition(int capacity) {
+            this.queue = new LinkedBlockingQueue<Zevent>(capacity);
+        }
+    }
     
     @Autowired
     public ZeventManager(DiagnosticsLogger diagnosticsLogger, ThreadWatchdog threadWatchdog,
@@ -122,7 +139,8 @@ public class ZeventManager implements ZeventEnqueuer {
                          @Value("#{tweakProperties['hq.zevent.batchSize'] }") Long batchSize,
                          @Value("#{tweakProperties['hq.zevent.warnInterval'] }") Long warnInterval,  
                          @Value("#{tweakProperties['hq.zevent.warnSize'] }") Long warnSize,
-                         @Value("#{tweakProperties['hq.zevent.listenerTimeout'] }") Long listenerTimeout) {
+                         @Value("#{tweakProperties['hq.zevent.listenerTimeout'] }") Long listenerTimeout,
+                         @Value("#{tweakProperties['hq.zevent.partitions'] }") Integer partitions) {
         this._threadGroup = new LoggingThreadGroup("ZEventProcessor");
         this._threadGroup.setDaemon(true);
         this.diagnosticsLogger = diagnosticsLogger;
@@ -133,19 +151,25 @@ public class ZeventManager implements ZeventEnqueuer {
         this._warnInterval = warnInterval;
         this._warnSize = warnSize;
         this._listenerTimeout = listenerTimeout;
-        
+        this.numPartitions = (partitions == null) ? 1 : Math.max(1, partitions.intValue());
     }
 
     @PostConstruct
-    @SuppressWarnings("unused")
-    private void initialize() {
-        _eventQueue = new LinkedBlockingQueue<Zevent>((int) maxQueue);
-
-        QueueProcessor p = new QueueProcessor(this, _eventQueue, (int) batchSize);
-
-        _processorThread = new Thread(_threadGroup, p, "ZeventProcessor");
-        _processorThread.setDaemon(true);
-        _processorThread.start();
+    void initialize() {
+        _partitions = new Partition[numPartitions];
+        for (int i = 0; i < numPartitions; i++) {
+            // The partitions share the maximum queue size
+            Partition part = new Partition((int) Math.max(1, maxQueue / numPartitions));
+            QueueProcessor p = new QueueProcessor(this, part.queue, (int) batchSize, i);
+
+            part.processorThread = new Thread(_threadGroup, p,
+                (numPartitions == 1) ? "ZeventProcessor" : "ZeventProcessor" + i);
+            part.processorThread.setDaemon(true);
+            _partitions[i] = part;
+        }
+        for (Partition part : _partitions) {
+            part.processorThread.start();
+        }
 
         DiagnosticObject myDiag = new DiagnosticObject() {
             public String getStatus() {
@@ -183,23 +207,36 @@ public class ZeventManager implements ZeventEnqueuer {
     }
 
     public long getQueueSize() {
-        return _eventQueue.size();
+        long size = 0;
+        for (Partition part : _partitions) {
+            size += part.queue.size();
+        }
+        return size;
+    }
+
+    public int getNumPartitions() {
+        return numPartitions;
     }
 
     @PreDestroy
     public void shutdown() throws InterruptedException {
-        while (!_eventQueue.isEmpty()) {
-            System.out.println("Waiting for empty queue: " + _eventQueue.size());
+        long size;
+        while ((size = getQueueSize()) != 0) {
+            System.out.println("Waiting for empty queue: " + size);
             Thread.sleep(1000);
         }
-        _processorThread.interrupt();
-        _processorThread.join(5000);
+        for (Partition part : _partitions) {
+            part.processorThread.interrupt();
+        }
+        for (Partition part : _partitions) {
+            part.processorThread.join(5000);
+        }
         
         _threadGroup.interrupt() ;
         diagnosticsLogger = null ;
         this._globalListeners = null ; 
         this._listeners = null ; 
-        this._eventQueue = null ;
+        this._partitions = null ;
         synchronized(this._registeredBuffers) { 
             
             for (Entry<Queue<?>, TimingListenerWrapper<Zevent>> entry : _registeredBuffers.entrySet()) {
@@ -211,15 +248,33 @@ public class ZeventManager implements ZeventEnqueuer {
     }
 
     public long getMaxTimeInQueue() {
-        synchronized (INIT_LOCK) {
-            return _maxTimeInQueue;
+        long rtn = 0;
+        for (Partition part : _partitions) {
+            synchronized (part) {
+                rtn = Math.max(rtn, part.maxTimeInQueue);
+            }
         }
+        return rtn;
     }
 
     public long getZeventsProcessed() {
-        synchronized (INIT_LOCK) {
-            return _numEvents;
+        long rtn = 0;
+        for (Partition part : _partitions) {
+            synchronized (part) {
+                rtn += part.numEvents;
+            }
+        }
+        return rtn;
+    }
+
+    private Partition getPartition(Zevent e) {
+        if (_partitions.length == 1) {
+            return _partitions[0];
         }
+        Object key = e.getPartitionKey();
+        int h = (key == null) ? 0 : key.hashCode();
+        h ^= (h >>> 16);
+        return _partitions[(h & Integer.MAX_VALUE) % _partitions.length];
     }
 
     private long getWarnSize() {
@@ -451,7 +506,7 @@ public class ZeventManager implements ZeventEnqueuer {
      *         interrupted
      */
     public void enqueueEvents(List<? extends Zevent> events, long timeout) throws InterruptedException {
-        if (_eventQueue.size() > getWarnSize() &&
+        if (getQueueSize() > getWarnSize() &&
             (System.currentTimeMillis() - _lastWarnTime) > getWarnInterval()) {
             _lastWarnTime = System.currentTimeMillis();
             _log.warn("Your event queue is having a hard time keeping up.  "
@@ -460,13 +515,13 @@ public class ZeventManager implements ZeventEnqueuer {
         boolean debug = _log.isDebugEnabled();
         for (Zevent e : events) {
             e.enterQueue();
-            boolean b = _eventQueue.offer(e, timeout, TimeUnit.SECONDS);
+            boolean b = getPartition(e).queue.offer(e, timeout, TimeUnit.SECONDS);
             if (debug) {
                 _log.debug((b?"succeed":"failed") + " pushing " + e);
             }
         }
         
-        concurrentStatsCollector.addStat(_eventQueue.size(), ConcurrentStatsCollector.ZEVENT_QUEUE_SIZE);
+        concurrentStatsCollector.addStat(getQueueSize(), ConcurrentStatsCollector.ZEVENT_QUEUE_SIZE);
     }
 
     public void enqueueEvents(List<? extends Zevent> events) throws InterruptedException {
@@ -539,7 +594,7 @@ public class ZeventManager implements ZeventEnqueuer {
      * please only use it in test suites.
      */
     public void waitUntilNoEvents() throws InterruptedException {
-        while (_eventQueue.size() != 0)
+        while (getQueueSize() != 0)
             Thread.sleep(100);
     }
 
@@ -561,14 +616,17 @@ public class ZeventManager implements ZeventEnqueuer {
      * 
      * The strategy used in this method creates mini-batches of events to send
      * to each listener. There is no defined order for listener execution.
+     * 
+     * @param partition The partition the events were taken from
      */
-    void dispatchEvents(List<? extends Zevent> events) {
-        synchronized (INIT_LOCK) {
+    void dispatchEvents(List<? extends Zevent> events, int partition) {
+        final Partition part = _partitions[partition];
+        synchronized (part) {
             for (Zevent z : events) {
                 long timeInQueue = z.getQueueExitTime() - z.getQueueEntryTime();
-                if (timeInQueue > _maxTimeInQueue)
-                    _maxTimeInQueue = timeInQueue;
-                _numEvents++;
+                if (timeInQueue > part.maxTimeInQueue)
+                    part.maxTimeInQueue = timeInQueue;
+                part.numEvents++;
             }
         }
 
@@ -603,11 +661,14 @@ public class ZeventManager implements ZeventEnqueuer {
         }
 
         long timeout = getListenerTimeout();
+        long start = System.currentTimeMillis();
         for (Entry<ZeventListener<Zevent>, List<Zevent>> ent : listenerBatches.entrySet()) {
             ZeventListener<Zevent> listener = ent.getKey();
             List<Zevent> batch = ent.getValue();
 
-            synchronized (_listenerLock) {
+            // Partitions lock each listener rather than all of them, so they
+            // can call different listeners at the same time
+            synchronized ((_partitions.length == 1) ? _listenerLock : listener) {
                 InterruptToken t = null;
                 try {
                     t = threadWatchdog.interruptMeIn(timeout, TimeUnit.SECONDS,
@@ -622,6 +683,9 @@ public class ZeventManager implements ZeventEnqueuer {
                 }
             }
         }
+        synchronized (part) {
+            part.listenerTime += System.currentTimeMillis() - start;
+        }
     }
 
     private String getDiagnostics() {
@@ -629,10 +693,26 @@ public class ZeventManager implements ZeventEnqueuer {
             StringBuffer res = new StringBuffer();
 
             res.append("ZEvent Manager Diagnostics:\n").append(
-                "    Queue Size:        " + _eventQueue.size() + "\n").append(
-                "    Events Handled:    " + _numEvents + "\n").append(
-                "    Max Time In Queue: " + _maxTimeInQueue + "ms\n\n").append(
-                "ZEvent Listener Diagnostics:\n");
+                "    Queue Size:        " + getQueueSize() + "\n").append(
+                "    Events Handled:    " + getZeventsProcessed() + "\n").append(
+                "    Max Time In Queue: " + getMaxTimeInQueue() + "ms\n\n");
+            if (_partitions.length > 1) {
+                PrintfFormat partFmt = new PrintfFormat("    %-12s size=%-7d handled=%-10d "
+                                                        + "maxTimeInQueue=%-7dms listenerTime=%dms\n");
+                res.append("ZEvent Partition Diagnostics:\n");
+                for (int i = 0; i < _partitions.length; i++) {
+                    Partition part = _partitions[i];
+                    synchronized (part) {
+                        res.append(partFmt.sprintf(new Object[] { "Partition " + i,
+                                                                  new Integer(part.queue.size()),
+                                                                  new Long(part.numEvents),
+                                                                  new Long(part.maxTimeInQueue),
+                                                                  new Long(part.listenerTime) }));
+                    }
+                }
+                res.append("\n");
+            }
+            res.append("ZEvent Listener Diagnostics:\n");
             PrintfFormat timingFmt = new PrintfFormat("        %-30s max=%-7.2f avg=%-5.2f "
                                                       + "num=%-5d\n");
             synchronized (_listenerLock) {
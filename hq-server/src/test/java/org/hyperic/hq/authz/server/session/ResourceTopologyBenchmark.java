@@ -0,0 +1,124 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.authz.server.session;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.hyperic.hq.authz.shared.AuthzConstants;
+
+/**
+ * Measures building the containment graph of a synthetic inventory, its
+ * size, and the time taken to look up the descendants of a platform and the
+ * ancestors and siblings of a server or service.  The inventory has 2000
+ * platforms with 10 servers of 24 services each.
+ */
+public class ResourceTopologyBenchmark {
+
+    private static final String CONTAINMENT = AuthzConstants.ResourceEdgeContainmentRelation;
+    private static final int PLATFORMS = 2000;
+    private static final int SERVERS = 10;
+    private static final int SERVICES = 24;
+    private static final int LOOKUPS = 100000;
+
+    /**
+     * @return a topology whose edges are loaded from links, as given by
+     *         ResourceEdgeDAO.findLinks()
+     */
+    private static ResourceTopology getTopology(final List<Object[]> links) {
+        final ResourceTopology rtn = new ResourceTopology(Boolean.TRUE, null);
+        rtn.setResourceEdgeDAO(new ResourceEdgeDAO(null, rtn) {
+            List<Object[]> findLinks() {
+                return links;
+            }
+        });
+        return rtn;
+    }
+
+    /**
+     * Adds the containment links of the inventory, in no particular order
+     * as the query returns them.
+     * @return the number of resources
+     */
+    private static int addInventory(List<Object[]> links) {
+        int id = PLATFORMS + 1;
+        for (int p = 1; p <= PLATFORMS; p++) {
+            for (int s = 0; s < SERVERS; s++) {
+                final int server = id++;
+                links.add(new Object[] { new Integer(server), new Integer(p), CONTAINMENT });
+                for (int v = 0; v < SERVICES; v++) {
+                    links.add(new Object[] { new Integer(id++), new Integer(server), CONTAINMENT });
+                }
+            }
+        }
+        Collections.shuffle(links, new Random(0));
+        return id - 1;
+    }
+
+    private static long lookupDescendants(ResourceTopology topology, Random rand) {
+        final long start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            topology.getDescendants(CONTAINMENT, rand.nextInt(PLATFORMS) + 1);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long lookupAncestors(ResourceTopology topology, Random rand, int resources) {
+        final long start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            final int resource = PLATFORMS + 1 + rand.nextInt(resources - PLATFORMS);
+            topology.getAncestors(CONTAINMENT, resource);
+            topology.getSiblings(CONTAINMENT, resource);
+        }
+        return System.nanoTime() - start;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final List<Object[]> links = new ArrayList<Object[]>();
+        final int resources = addInventory(links);
+        final ResourceTopology topology = getTopology(links);
+
+        final long start = System.currentTimeMillis();
+        topology.load();
+        final long buildTime = System.currentTimeMillis() - start;
+        final ResourceGraph graph = topology.getGraph(CONTAINMENT);
+        final long bytes = 4L * (graph.size() * 2 + 1 + graph.getNumLinks());
+
+        final Random rand = new Random(1);
+        // Warm up both
+        lookupDescendants(topology, rand);
+        lookupAncestors(topology, rand, resources);
+        final long descendantTime = lookupDescendants(topology, rand);
+        final long ancestorTime = lookupAncestors(topology, rand, resources);
+
+        System.out.println("Built the graph of " + resources + " resources in " + buildTime + " ms, " +
+                           (bytes / 1024) + " KB.  Descendants of a platform took " +
+                           (descendantTime / LOOKUPS / 1000.0) + " us, ancestors and siblings of a " +
+                           "server or service " + (ancestorTime / LOOKUPS / 1000.0) + " us");
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.authz.server.session;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.hyperic.hq.authz.shared.AuthzConstants;
+
+public class ResourceTopologyTest extends TestCase {
+
+    private static final String CONTAINMENT = AuthzConstants.ResourceEdgeContainmentRelation;
+    private static final String NETWORK = AuthzConstants.ResourceEdgeNetworkRelation;
+
+    private final List<Object[]> links = new ArrayList<Object[]>();
+    private ResourceTopology topology;
+
+    public ResourceTopologyTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+        topology = getTopology(links);
+    }
+
+    /**
+     * @return a topology whose edges are loaded from links, as given by
+     *         ResourceEdgeDAO.findLinks()
+     */
+    private static ResourceTopology getTopology(final List<Object[]> links) {
+        final ResourceTopology rtn = new ResourceTopology(Boolean.TRUE, null);
+        rtn.setResourceEdgeDAO(new ResourceEdgeDAO(null, rtn) {
+            List<Object[]> findLinks() {
+                return links;
+            }
+        });
+        return rtn;
+    }
+
+    private void addLink(int child, int parent, String relation) {
+        links.add(new Object[] { new Integer(child), new Integer(parent), relation });
+    }
+
+    private static ResourceEdge getEdge(int from, int to, int distance, String relation) {
+        Resource fromResource = new Resource();
+        fromResource.setId(new Integer(from));
+        Resource toResource = new Resource();
+        toResource.setId(new Integer(to));
+        ResourceRelation rel = new ResourceRelation();
+        rel.setName(relation);
+        return new ResourceEdge(fromResource, toResource, distance, rel);
+    }
+
+    private static void assertIds(int[] expected, int[] actual) {
+        assertEquals(Arrays.toString(expected), Arrays.toString(actual));
+    }
+
+    public void testLookups() throws Exception {
+        // 1 <- 2 <- 4, 5 and 1 <- 3 <- 6 <- 7
+        addLink(2, 1, CONTAINMENT);
+        addLink(3, 1, CONTAINMENT);
+        addLink(5, 2, CONTAINMENT);
+        addLink(4, 2, CONTAINMENT);
+        addLink(6, 3, CONTAINMENT);
+        addLink(7, 6, CONTAINMENT);
+        addLink(1, 100, NETWORK);
+        topology.load();
+
+        assertIds(new int[] { 2, 3 }, topology.getChildren(CONTAINMENT, 1));
+        assertIds(new int[] { 4, 5 }, topology.getChildren(CONTAINMENT, 2));
+        assertIds(new int[] { 2, 3, 4, 5, 6, 7 }, topology.getDescendants(CONTAINMENT, 1));
+        assertIds(new int[] { 6, 3, 1 }, topology.getAncestors(CONTAINMENT, 7));
+        assertIds(new int[] { 5 }, topology.getSiblings(CONTAINMENT, 4));
+        assertEquals(new Integer(3), topology.getParent(CONTAINMENT, 6));
+        assertNull(topology.getParent(CONTAINMENT, 1));
+
+        // Relations are kept apart
+        assertIds(new int[] { 1 }, topology.getDescendants(NETWORK, 100));
+        assertIds(new int[0], topology.getAncestors(NETWORK, 7));
+        assertIds(new int[0], topology.getDescendants("virtual", 1));
+        assertIds(new int[0], topology.getChildren(CONTAINMENT, 42));
+    }
+
+    public void testEdgeChanges() throws Exception {
+        addLink(2, 1, CONTAINMENT);
+        addLink(3, 2, CONTAINMENT);
+        topology.load();
+        assertIds(new int[] { 2, 3 }, topology.getDescendants(CONTAINMENT, 1));
+
+        // Either edge of a link will do, the others are ignored
+        topology.edgesCreated(Arrays.asList(getEdge(4, 1, -1, CONTAINMENT), getEdge(1, 4, 1, CONTAINMENT),
+                                            getEdge(4, 4, 0, CONTAINMENT), getEdge(4, 3, 2, CONTAINMENT)));
+        assertIds(new int[] { 2, 4, 3 }, topology.getDescendants(CONTAINMENT, 1));
+
+        // Moved to another parent, deleting the old edges afterwards
+        topology.edgesCreated(Collections.singletonList(getEdge(3, 4, 1, CONTAINMENT)));
+        topology.edgesDeleted(Collections.singletonList(getEdge(1, 4, 1, CONTAINMENT)));
+        assertEquals(new Integer(3), topology.getParent(CONTAINMENT, 4));
+        assertIds(new int[] { 2, 3, 4 }, topology.getDescendants(CONTAINMENT, 1));
+
+        // A deleted resource takes its links with it
+        topology.edgesDeleted(Arrays.asList(getEdge(2, 1, -1, CONTAINMENT), getEdge(2, 3, 1, CONTAINMENT)));
+        assertIds(new int[0], topology.getDescendants(CONTAINMENT, 1));
+        assertIds(new int[] { 4 }, topology.getDescendants(CONTAINMENT, 3));
+    }
+
+    public void testRebuild() throws Exception {
+        addLink(2, 1, CONTAINMENT);
+        addLink(3, 1, CONTAINMENT);
+        addLink(4, 3, CONTAINMENT);
+        topology.load();
+        topology.edgesCreated(Collections.singletonList(getEdge(2, 4, 1, CONTAINMENT)));
+        topology.edgesCreated(Collections.singletonList(getEdge(2, 5, 1, CONTAINMENT)));
+        topology.edgesDeleted(Collections.singletonList(getEdge(3, 4, 1, CONTAINMENT)));
+        assertEquals(3, topology.getGraph(CONTAINMENT).getNumLinks());
+        assertIds(new int[] { 2, 3, 4, 5 }, topology.getDescendants(CONTAINMENT, 1));
+        assertIds(new int[] { 5 }, topology.getSiblings(CONTAINMENT, 4));
+
+        // The same answers from the rebuilt graph
+        topology.rebuild();
+        assertEquals(4, topology.getGraph(CONTAINMENT).getNumLinks());
+        assertIds(new int[] { 2, 3, 4, 5 }, topology.getDescendants(CONTAINMENT, 1));
+        assertIds(new int[] { 2, 1 }, topology.getAncestors(CONTAINMENT, 4));
+        assertIds(new int[] { 5 }, topology.getSiblings(CONTAINMENT, 4));
+        assertIds(new int[0], topology.getChildren(CONTAINMENT, 3));
+    }
+
+    public void testChangesBeforeLoad() throws Exception {
+        addLink(2, 1, CONTAINMENT);
+        addLink(3, 1, CONTAINMENT);
+        // Committed while the graphs were loading, the links read may be
+        // from before or after
+        topology.edgesCreated(Collections.singletonList(getEdge(1, 4, 1, CONTAINMENT)));
+        topology.edgesDeleted(Collections.singletonList(getEdge(1, 3, 1, CONTAINMENT)));
+        addLink(4, 1, CONTAINMENT);
+        topology.load();
+
+        assertIds(new int[] { 2, 4 }, topology.getChildren(CONTAINMENT, 1));
+    }
+
+    public void testCycleDoesNotLoop() throws Exception {
+        addLink(2, 1, CONTAINMENT);
+        addLink(1, 2, CONTAINMENT);
+        addLink(3, 2, CONTAINMENT);
+        topology.load();
+
+        assertTrue(topology.getDescendants(CONTAINMENT, 1).length <= 3);
+        assertTrue(topology.getAncestors(CONTAINMENT, 3).length <= 3);
+    }
+
+    /**
+     * Adds the containment links of platforms with servers which have
+     * services, in no particular order as the query returns them.
+     * @return the number of resources
+     */
+    private static int addInventory(List<Object[]> links, int platforms, int servers, int services) {
+        int id = platforms + 1;
+        for (int p = 1; p <= platforms; p++) {
+            for (int s = 0; s < servers; s++) {
+                final int server = id++;
+                links.add(new Object[] { new Integer(server), new Integer(p), CONTAINMENT });
+                for (int v = 0; v < services; v++) {
+                    links.add(new Object[] { new Integer(id++), new Integer(server), CONTAINMENT });
+                }
+            }
+        }
+        Collections.shuffle(links, new Random(0));
+        return id - 1;
+    }
+
+    public void testSyntheticInventory() throws Exception {
+        final int platforms = 100;
+        final int servers = 10;
+        final int services = 24;
+        final int resources = addInventory(links, platforms, servers, services);
+        topology.load();
+
+        final ResourceGraph graph = topology.getGraph(CONTAINMENT);
+        assertEquals(resources, graph.size());
+        assertEquals(resources - platforms, graph.getNumLinks());
+        for (int p = 1; p <= platforms; p++) {
+            assertEquals(servers * (services + 1), topology.getDescendants(CONTAINMENT, p).length);
+        }
+        // The first server of the first platform, and its first service
+        final int server = platforms + 1;
+        assertIds(new int[] { 1 }, topology.getAncestors(CONTAINMENT, server));
+        assertEquals(servers - 1, topology.getSiblings(CONTAINMENT, server).length);
+        assertEquals(2, topology.getAncestors(CONTAINMENT, server + 1).length);
+        assertEquals(services - 1, topology.getSiblings(CONTAINMENT, server + 1).length);
+    }
+}
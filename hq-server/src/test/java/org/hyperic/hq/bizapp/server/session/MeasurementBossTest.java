@@ -3,6 +3,7 @@ package org.hyperic.hq.bizapp.server.session;
 import junit.framework.TestCase;
 
 import org.hyperic.hq.measurement.MeasurementConstants;
+import org.hyperic.hq.measurement.shared.GroupHealth;
 
 public class MeasurementBossTest
     extends TestCase { 
@@ -14,7 +15,7 @@ public class MeasurementBossTest
         super.setUp();
         measurementBoss = new MeasurementBossImpl(null, null, null,
             null, null, null, null, null, null, null, null, null, null,
-            null, null);
+            null, null, null);
     }
 
     public void testGetAvailabilityForGroups() throws Exception{
@@ -48,4 +49,24 @@ public class MeasurementBossTest
         assertEquals("Should be UP/GREEN", MeasurementConstants.AVAIL_UP, measurementBoss.getCalculatedGroupAvailability(greenBlackOrange));
     }
 
+    public void testGetAvailabilityForGroupHealth() throws Exception {
+        double[][] groups = {
+            {},
+            {MeasurementConstants.AVAIL_UP, MeasurementConstants.AVAIL_UP},
+            {MeasurementConstants.AVAIL_DOWN, MeasurementConstants.AVAIL_UP, MeasurementConstants.AVAIL_PAUSED},
+            {MeasurementConstants.AVAIL_UP, MeasurementConstants.AVAIL_UNKNOWN, MeasurementConstants.AVAIL_POWERED_OFF},
+            {MeasurementConstants.AVAIL_WARN, MeasurementConstants.AVAIL_DOWN},
+            {MeasurementConstants.AVAIL_PAUSED, MeasurementConstants.AVAIL_PAUSED},
+            {MeasurementConstants.AVAIL_UP, MeasurementConstants.AVAIL_NULL, 0.25}};
+        for (double[] data : groups) {
+            int[] counts = new int[GroupHealth.NUM_STATES];
+            for (double val : data) {
+                counts[GroupHealth.getState(val)]++;
+            }
+            GroupHealth health = new GroupHealth(new Integer(1), counts, 0, 0);
+            assertEquals(measurementBoss.getCalculatedGroupAvailability(data),
+                measurementBoss.getCalculatedGroupAvailability(health), 0);
+        }
+    }
+
 }
@@ -0,0 +1,135 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.bizapp.server.trigger.conditional;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hyperic.hq.events.TriggerFiredEvent;
+import org.hyperic.hq.events.TriggerNotFiredEvent;
+import org.hyperic.hq.events.server.session.AlertConditionEvaluator;
+import org.hyperic.hq.events.server.session.ExecutionStrategy;
+import org.hyperic.hq.events.shared.RegisteredTriggerValue;
+import org.hyperic.hq.measurement.ext.MeasurementEvent;
+import org.hyperic.hq.product.MetricValue;
+import org.hyperic.util.config.ConfigResponse;
+
+/**
+ * Compares evaluating events with the compiled thresholds and with each
+ * trigger on its own, as the dispatcher did, when no threshold is met.
+ */
+public class CompiledThresholdTriggersBenchmark {
+
+    private static final int MEASUREMENTS = 10000;
+    private static final int THRESHOLDS = 5;
+
+    private static final AlertConditionEvaluator EVALUATOR = new AlertConditionEvaluator() {
+        public Integer getAlertDefinitionId() {
+            return null;
+        }
+
+        public ExecutionStrategy getExecutionStrategy() {
+            return null;
+        }
+
+        public Serializable getState() {
+            return null;
+        }
+
+        public void initialize(Serializable initialState) {
+        }
+
+        public void triggerFired(TriggerFiredEvent event) {
+        }
+
+        public void triggerNotFired(TriggerNotFiredEvent event) {
+        }
+    };
+
+    private static MeasurementThresholdTrigger createTrigger(int id, int mid, double threshold)
+        throws Exception {
+        ConfigResponse config = new ConfigResponse();
+        config.setValue(ConditionalTriggerInterface.CFG_ID, mid);
+        config.setValue(ConditionalTriggerInterface.CFG_COMPARATOR, ">");
+        config.setValue(ConditionalTriggerInterface.CFG_THRESHOLD, String.valueOf(threshold));
+        RegisteredTriggerValue regTrigger = new RegisteredTriggerValue();
+        regTrigger.setId(new Integer(id));
+        regTrigger.setConfig(config.encode());
+        MeasurementThresholdTrigger trigger = new MeasurementThresholdTrigger();
+        trigger.init(regTrigger, EVALUATOR);
+        trigger.setEnabled(true);
+        return trigger;
+    }
+
+    private static long evaluateTriggers(List<MeasurementThresholdTrigger> triggers,
+                                         List<MeasurementEvent> events) throws Exception {
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < events.size(); i++) {
+            for (int t = 0; t < THRESHOLDS; t++) {
+                triggers.get(i * THRESHOLDS + t).processEvent(events.get(i));
+            }
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    private static long evaluateCompiled(CompiledThresholdTriggers compiled,
+                                         List<MeasurementEvent> events) {
+        long start = System.currentTimeMillis();
+        for (MeasurementEvent event : events) {
+            compiled.evaluate(event);
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<MeasurementThresholdTrigger> triggers = new ArrayList<MeasurementThresholdTrigger>();
+        CompiledThresholdTriggers compiled = new CompiledThresholdTriggers();
+        int id = 0;
+        for (int mid = 0; mid < MEASUREMENTS; mid++) {
+            for (int i = 0; i < THRESHOLDS; i++) {
+                MeasurementThresholdTrigger trigger = createTrigger(id++, mid, 100 + i);
+                triggers.add(trigger);
+                compiled.add(trigger);
+            }
+        }
+        List<MeasurementEvent> events = new ArrayList<MeasurementEvent>();
+        for (int mid = 0; mid < MEASUREMENTS; mid++) {
+            events.add(new MeasurementEvent(new Integer(mid), new MetricValue(mid % 100)));
+        }
+
+        // Warm up both before timing them
+        evaluateTriggers(triggers, events);
+        evaluateCompiled(compiled, events);
+
+        long triggerTime = evaluateTriggers(triggers, events);
+        long compiledTime = evaluateCompiled(compiled, events);
+
+        System.out.println("Evaluated " + events.size() + " events against " + triggers.size() +
+                           " thresholds in " + triggerTime + " ms with the triggers, " +
+                           compiledTime + " ms compiled");
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+
+package org.hyperic.hq.bizapp.server.trigger.conditional;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.hyperic.hq.events.TriggerFiredEvent;
+import org.hyperic.hq.events.TriggerNotFiredEvent;
+import org.hyperic.hq.events.server.session.AlertConditionEvaluator;
+import org.hyperic.hq.events.server.session.ExecutionStrategy;
+import org.hyperic.hq.events.shared.RegisteredTriggerValue;
+import org.hyperic.hq.measurement.ext.MeasurementEvent;
+import org.hyperic.hq.product.MetricValue;
+import org.hyperic.util.config.ConfigResponse;
+
+/**
+ * Unit test of {@link CompiledThresholdTriggers}
+ */
+public class CompiledThresholdTriggersTest extends TestCase {
+
+    private static final int NUM_MEASUREMENTS = 1000;
+    private static final int THRESHOLDS_PER_MEASUREMENT = 5;
+
+    private CompiledThresholdTriggers compiled;
+    private RecordingEvaluator evaluator;
+
+    /**
+     * Remembers what the triggers told it
+     */
+    private static class RecordingEvaluator implements AlertConditionEvaluator {
+        private final List<TriggerFiredEvent> fired = new ArrayList<TriggerFiredEvent>();
+        private final List<TriggerNotFiredEvent> notFired = new ArrayList<TriggerNotFiredEvent>();
+
+        public Integer getAlertDefinitionId() {
+            return null;
+        }
+
+        public ExecutionStrategy getExecutionStrategy() {
+            return null;
+        }
+
+        public Serializable getState() {
+            return null;
+        }
+
+        public void initialize(Serializable initialState) {
+        }
+
+        public void triggerFired(TriggerFiredEvent event) {
+            fired.add(event);
+        }
+
+        public void triggerNotFired(TriggerNotFiredEvent event) {
+            notFired.add(event);
+        }
+    }
+
+    public CompiledThresholdTriggersTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+        compiled = new CompiledThresholdTriggers();
+        evaluator = new RecordingEvaluator();
+    }
+
+    private MeasurementThresholdTrigger createTrigger(int id, int mid, String comparator,
+                                                      double threshold) throws Exception {
+        ConfigResponse config = new ConfigResponse();
+        config.setValue(ConditionalTriggerInterface.CFG_ID, mid);
+        config.setValue(ConditionalTriggerInterface.CFG_COMPARATOR, comparator);
+        config.setValue(ConditionalTriggerInterface.CFG_THRESHOLD, String.valueOf(threshold));
+        RegisteredTriggerValue regTrigger = new RegisteredTriggerValue();
+        regTrigger.setId(new Integer(id));
+        regTrigger.setConfig(config.encode());
+        MeasurementThresholdTrigger trigger = new MeasurementThresholdTrigger();
+        trigger.init(regTrigger, evaluator);
+        trigger.setEnabled(true);
+        return trigger;
+    }
+
+    public void testEvaluate() throws Exception {
+        compiled.add(createTrigger(1, 45, ">", 10));
+        compiled.add(createTrigger(2, 45, "<=", 10));
+        compiled.add(createTrigger(3, 45, "!=", 12));
+        compiled.add(createTrigger(4, 46, ">", 0));
+
+        MeasurementEvent event = new MeasurementEvent(new Integer(45), new MetricValue(12d));
+        assertEquals(1, compiled.evaluate(event));
+        assertEquals(1, evaluator.fired.size());
+        TriggerFiredEvent fired = evaluator.fired.get(0);
+        assertEquals(new Integer(1), fired.getInstanceId());
+        assertEquals("Metric(45) value " + event.getValue() + " > 10.0", fired.getMessage());
+        assertEquals(2, evaluator.notFired.size());
+
+        // No thresholds on the measurement
+        assertEquals(0, compiled.evaluate(new MeasurementEvent(new Integer(47), new MetricValue(1d))));
+        assertEquals(3, evaluator.notFired.size() + evaluator.fired.size());
+    }
+
+    public void testSameResultsAsTrigger() throws Exception {
+        String[] comparators = { "<=", "<", "=", ">", ">=", "!=" };
+        double[] values = { 9, 10, 11, Double.NaN };
+        for (int i = 0; i < comparators.length; i++) {
+            MeasurementThresholdTrigger trigger = createTrigger(i, 45, comparators[i], 10);
+            compiled.add(trigger);
+            for (double value : values) {
+                MeasurementEvent event = new MeasurementEvent(new Integer(45), new MetricValue(value));
+                trigger.processEvent(event);
+                int expected = evaluator.fired.size();
+                evaluator.fired.clear();
+                assertEquals(comparators[i] + " " + value, expected, compiled.evaluate(event));
+                evaluator.fired.clear();
+            }
+            compiled.remove(new Integer(i));
+        }
+    }
+
+    public void testDisabledTriggersAreSkipped() throws Exception {
+        MeasurementThresholdTrigger trigger = createTrigger(1, 45, ">", 10);
+        compiled.add(trigger);
+        assertTrue(compiled.isInterested(new Integer(45)));
+
+        trigger.setEnabled(false);
+        assertFalse(compiled.isInterested(new Integer(45)));
+        assertTrue(compiled.hasTriggers(new Integer(45)));
+        assertEquals(0, compiled.evaluate(new MeasurementEvent(new Integer(45), new MetricValue(11d))));
+        assertTrue(evaluator.notFired.isEmpty());
+    }
+
+    public void testAddAndRemove() throws Exception {
+        compiled.add(createTrigger(1, 45, ">", 10));
+        compiled.add(createTrigger(2, 45, ">", 20));
+        // Replaces the trigger with the same id
+        compiled.add(createTrigger(1, 46, ">", 10));
+        assertEquals(2, compiled.size());
+        assertEquals(new Integer(46), compiled.getTrigger(new Integer(1)).getMeasurementID());
+        assertEquals(1, compiled.getTriggers(new Integer(45)).size());
+
+        assertEquals(new Integer(45), compiled.remove(new Integer(2)));
+        assertFalse(compiled.hasTriggers(new Integer(45)));
+        assertNull(compiled.remove(new Integer(2)));
+        assertNull(compiled.getTrigger(new Integer(2)));
+
+        compiled.clear();
+        assertEquals(0, compiled.size());
+        assertFalse(compiled.hasTriggers(new Integer(46)));
+    }
+
+    public void testOnlyPlainThresholdsAreCompilable() throws Exception {
+        assertTrue(CompiledThresholdTriggers.isCompilable(createTrigger(1, 45, ">", 10)));
+        MeasurementThresholdTrigger trigger = createTrigger(1, 45, ">", 10);
+        trigger.setOperator(99);
+        assertFalse(CompiledThresholdTriggers.isCompilable(trigger));
+        assertFalse(CompiledThresholdTriggers.isCompilable(new MeasurementThresholdTrigger() {
+        }));
+        assertFalse(CompiledThresholdTriggers.isCompilable(null));
+    }
+
+    public void testManyThresholdsNoneMet() throws Exception {
+        int thresholds = 0;
+        for (int mid = 0; mid < NUM_MEASUREMENTS; mid++) {
+            for (int i = 0; i < THRESHOLDS_PER_MEASUREMENT; i++) {
+                compiled.add(createTrigger(thresholds++, mid, ">", 100 + i));
+            }
+        }
+        for (int mid = 0; mid < NUM_MEASUREMENTS; mid++) {
+            compiled.evaluate(new MeasurementEvent(new Integer(mid), new MetricValue(mid % 100)));
+        }
+        assertTrue(evaluator.fired.isEmpty());
+        assertEquals(thresholds, evaluator.notFired.size());
+    }
+}
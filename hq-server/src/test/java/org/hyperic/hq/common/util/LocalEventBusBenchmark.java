@@ -0,0 +1,134 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.common.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.easymock.classextension.EasyMock;
+import org.hyperic.hq.measurement.ext.MeasurementEvent;
+import org.hyperic.hq.product.MetricValue;
+import org.hyperic.hq.stats.ConcurrentStatsCollector;
+
+/**
+ * Compares handing batches of events to three listeners by reference
+ * through the LocalEventBus with copying each through serialization, as the
+ * in-VM broker does.
+ */
+public class LocalEventBusBenchmark {
+
+    private static final String TOPIC = "topic/test";
+    private static final int BATCHES = 2000;
+    private static final int BATCH_SIZE = 100;
+    private static final int LISTENERS = 3;
+
+    /**
+     * Counts down a latch for each object it is given.
+     */
+    private static class Counter implements LocalEventListener {
+        private final CountDownLatch latch;
+
+        private Counter(int expected) {
+            this.latch = new CountDownLatch(expected);
+        }
+
+        public void onObject(Object obj) {
+            latch.countDown();
+        }
+    }
+
+    private static ArrayList<MeasurementEvent> getEvents(int num) {
+        ArrayList<MeasurementEvent> rtn = new ArrayList<MeasurementEvent>(num);
+        for (int i = 0; i < num; i++) {
+            rtn.add(new MeasurementEvent(new Integer(i), new MetricValue(i, 60000)));
+        }
+        return rtn;
+    }
+
+    private static Object copy(Object obj) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(obj);
+        out.close();
+        return new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+    }
+
+    private static long serialize(List<ArrayList<MeasurementEvent>> batches) throws Exception {
+        long start = System.currentTimeMillis();
+        for (ArrayList<MeasurementEvent> batch : batches) {
+            for (int i = 0; i < LISTENERS; i++) {
+                copy(batch);
+            }
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    private static long publish(ConcurrentStatsCollector statsCollector,
+                                List<ArrayList<MeasurementEvent>> batches) throws Exception {
+        LocalEventBus bus = new LocalEventBus(statsCollector, LocalEventBus.MODE_LOCAL, null);
+        bus.initialize();
+        Counter[] counters = new Counter[LISTENERS];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new Counter(batches.size());
+            bus.subscribe(TOPIC, "listener" + i, counters[i]);
+        }
+        long start = System.currentTimeMillis();
+        for (ArrayList<MeasurementEvent> batch : batches) {
+            bus.publish(TOPIC, batch);
+        }
+        for (Counter counter : counters) {
+            counter.latch.await();
+        }
+        long time = System.currentTimeMillis() - start;
+        bus.shutdown();
+        return time;
+    }
+
+    public static void main(String[] args) throws Exception {
+        ConcurrentStatsCollector statsCollector =
+            EasyMock.createNiceMock(ConcurrentStatsCollector.class);
+        EasyMock.replay(statsCollector);
+        List<ArrayList<MeasurementEvent>> batches = new ArrayList<ArrayList<MeasurementEvent>>();
+        for (int i = 0; i < BATCHES; i++) {
+            batches.add(getEvents(BATCH_SIZE));
+        }
+        // Warm up both
+        serialize(batches);
+        publish(statsCollector, batches);
+
+        long serializedTime = serialize(batches);
+        long localTime = publish(statsCollector, batches);
+
+        System.out.println(BATCHES + " batches of " + BATCH_SIZE + " events for " +
+                           LISTENERS + " listeners took " + serializedTime +
+                           " ms serialized, " + localTime + " ms by reference");
+    }
+}
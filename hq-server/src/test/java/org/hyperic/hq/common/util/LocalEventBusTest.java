@@ -0,0 +1,214 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.common.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.easymock.classextension.EasyMock;
+import org.hyperic.hq.measurement.ext.MeasurementEvent;
+import org.hyperic.hq.product.MetricValue;
+import org.hyperic.hq.stats.ConcurrentStatsCollector;
+
+public class LocalEventBusTest extends TestCase {
+
+    private static final String TOPIC = "topic/test";
+    private static final int BATCHES = 200;
+    private static final int BATCH_SIZE = 100;
+
+    private ConcurrentStatsCollector statsCollector;
+    private LocalEventBus bus;
+
+    public LocalEventBusTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+        statsCollector = EasyMock.createNiceMock(ConcurrentStatsCollector.class);
+        EasyMock.replay(statsCollector);
+        bus = new LocalEventBus(statsCollector, LocalEventBus.MODE_LOCAL, new Integer(4));
+        bus.initialize();
+    }
+
+    public void tearDown() throws Exception {
+        super.tearDown();
+        bus.shutdown();
+    }
+
+    /**
+     * Records what it is given, counting down a latch for each.
+     */
+    private static class Recorder implements LocalEventListener {
+        private final List<Object> received = Collections.synchronizedList(new ArrayList<Object>());
+        private final CountDownLatch latch;
+
+        private Recorder(int expected) {
+            this.latch = new CountDownLatch(expected);
+        }
+
+        public void onObject(Object obj) {
+            received.add(obj);
+            latch.countDown();
+        }
+
+        private void await() throws InterruptedException {
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+        }
+    }
+
+    private static ArrayList<MeasurementEvent> getEvents(int num) {
+        ArrayList<MeasurementEvent> rtn = new ArrayList<MeasurementEvent>(num);
+        for (int i = 0; i < num; i++) {
+            rtn.add(new MeasurementEvent(new Integer(i), new MetricValue(i, 60000)));
+        }
+        return rtn;
+    }
+
+    public void testDisabled() throws Exception {
+        LocalEventBus jms = new LocalEventBus(statsCollector, LocalEventBus.MODE_JMS, null);
+        jms.initialize();
+        jms.subscribe(TOPIC, "test", new Recorder(0));
+        assertFalse(jms.isEnabled());
+        assertFalse(jms.publish(TOPIC, getEvents(1)));
+    }
+
+    public void testListenersGetTheSameObjectInOrder() throws Exception {
+        Recorder first = new Recorder(100);
+        Recorder second = new Recorder(100);
+        bus.subscribe(TOPIC, "first", first);
+        bus.subscribe(TOPIC, "second", second);
+
+        // Nothing listens to other topics, so they are left to JMS
+        assertFalse(bus.publish("topic/other", getEvents(1)));
+
+        List<Object> published = new ArrayList<Object>();
+        for (int i = 0; i < 100; i++) {
+            ArrayList<MeasurementEvent> events = getEvents(2);
+            published.add(events);
+            assertTrue(bus.publish(TOPIC, events));
+        }
+        first.await();
+        second.await();
+        for (int i = 0; i < 100; i++) {
+            assertSame(published.get(i), first.received.get(i));
+            assertSame(published.get(i), second.received.get(i));
+        }
+    }
+
+    public void testPublishersWaitForAFullBuffer() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final Recorder recorder = new Recorder(10);
+        bus.subscribe(TOPIC, "slow", new LocalEventListener() {
+            public void onObject(Object obj) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                recorder.onObject(obj);
+            }
+        });
+
+        // One is being delivered and four fill the buffer
+        for (int i = 0; i < 5; i++) {
+            bus.publish(TOPIC, new Integer(i));
+        }
+        Thread publisher = new Thread() {
+            public void run() {
+                for (int i = 5; i < 10; i++) {
+                    bus.publish(TOPIC, new Integer(i));
+                }
+            }
+        };
+        publisher.start();
+        publisher.join(200);
+        assertTrue(publisher.isAlive());
+        assertEquals(4, bus.getQueueSize());
+
+        release.countDown();
+        publisher.join();
+        recorder.await();
+        assertEquals(10, recorder.received.size());
+        assertEquals(new Integer(9), recorder.received.get(9));
+    }
+
+    public void testListenerPublishingToItselfDoesNotWait() throws Exception {
+        final Recorder recorder = new Recorder(21);
+        bus.subscribe(TOPIC, "echo", new LocalEventListener() {
+            public void onObject(Object obj) {
+                recorder.onObject(obj);
+                if (obj instanceof String) {
+                    // Far more than fit in the buffer
+                    for (int i = 0; i < 20; i++) {
+                        bus.publish(TOPIC, new Integer(i));
+                    }
+                }
+            }
+        });
+        bus.publish(TOPIC, "start");
+        recorder.await();
+        for (int i = 0; i < 20; i++) {
+            assertEquals(new Integer(i), recorder.received.get(i + 1));
+        }
+    }
+
+    /**
+     * Hands batches of events to three listeners through the default buffer.
+     */
+    public void testBatchesReachEveryListener() throws Exception {
+        LocalEventBus big = new LocalEventBus(statsCollector, LocalEventBus.MODE_LOCAL, null);
+        big.initialize();
+        Recorder[] recorders = new Recorder[3];
+        for (int i = 0; i < recorders.length; i++) {
+            recorders[i] = new Recorder(BATCHES);
+            big.subscribe(TOPIC, "listener" + i, recorders[i]);
+        }
+        List<ArrayList<MeasurementEvent>> batches = new ArrayList<ArrayList<MeasurementEvent>>();
+        for (int i = 0; i < BATCHES; i++) {
+            batches.add(getEvents(BATCH_SIZE));
+        }
+        for (ArrayList<MeasurementEvent> batch : batches) {
+            assertTrue(big.publish(TOPIC, batch));
+        }
+        for (Recorder recorder : recorders) {
+            recorder.await();
+        }
+        big.shutdown();
+
+        for (Recorder recorder : recorders) {
+            assertEquals(BATCHES, recorder.received.size());
+            for (int i = 0; i < BATCHES; i++) {
+                assertSame(batches.get(i), recorder.received.get(i));
+            }
+        }
+    }
+}
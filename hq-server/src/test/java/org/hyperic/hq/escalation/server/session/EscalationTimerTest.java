@@ -0,0 +1,161 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+
+package org.hyperic.hq.escalation.server.session;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the EscalationTimer class.
+ */
+public class EscalationTimerTest extends TestCase {
+
+    private static final long START = 1000000;
+    private static final long TICK = 100;
+    private static final int WHEEL_SIZE = 8;
+
+    private final List<EscalationTimer.Timeout> expired = new ArrayList<EscalationTimer.Timeout>();
+    private EscalationTimer timer;
+
+    public EscalationTimerTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+        expired.clear();
+        timer = new EscalationTimer("test", TICK, WHEEL_SIZE, new EscalationTimer.Handler() {
+            public void expired(List<EscalationTimer.Timeout> timeouts) {
+                expired.addAll(timeouts);
+            }
+        }, START);
+    }
+
+    private List<Integer> advance(long now) {
+        expired.clear();
+        timer.advance(now);
+        List<Integer> rtn = new ArrayList<Integer>();
+        for (EscalationTimer.Timeout timeout : expired) {
+            rtn.add(timeout.getStateId());
+        }
+        return rtn;
+    }
+
+    public void testExpiresOnceTheTickHasPassed() {
+        timer.schedule(new Integer(1), null, START + 150);
+        timer.schedule(new Integer(2), null, START + 200);
+        assertEquals(2, timer.size());
+
+        assertTrue(advance(START + 199).isEmpty());
+        List<Integer> ids = advance(START + 200);
+        assertEquals(2, ids.size());
+        assertTrue(ids.contains(new Integer(1)));
+        assertTrue(ids.contains(new Integer(2)));
+        assertEquals(0, timer.size());
+        assertEquals(START + 150, expired.get(ids.indexOf(new Integer(1))).getTime());
+    }
+
+    public void testPastTimesExpireOnTheNextTick() {
+        advance(START + 500);
+        timer.schedule(new Integer(1), null, START);
+        assertTrue(advance(START + 599).isEmpty());
+        assertEquals(1, advance(START + 600).size());
+    }
+
+    public void testTimesMoreThanOneTurnAway() {
+        // Both go into the same slot, one a turn later
+        timer.schedule(new Integer(1), null, START + 300);
+        timer.schedule(new Integer(2), null, START + 300 + (TICK * WHEEL_SIZE));
+        timer.schedule(new Integer(3), null, START + 300 + (5 * TICK * WHEEL_SIZE));
+
+        assertEquals(1, advance(START + 300).size());
+        assertTrue(advance(START + 300 + (TICK * WHEEL_SIZE) - 1).isEmpty());
+        assertEquals(new Integer(2), advance(START + 300 + (TICK * WHEEL_SIZE)).get(0));
+        assertTrue(advance(START + 300 + (5 * TICK * WHEEL_SIZE) - 1).isEmpty());
+        assertEquals(new Integer(3), advance(START + 300 + (5 * TICK * WHEEL_SIZE)).get(0));
+    }
+
+    public void testCancel() {
+        EscalationTimer.Timeout timeout = timer.schedule(new Integer(1), null, START + 100);
+        EscalationTimer.Timeout other = timer.schedule(new Integer(2), null, START + 100);
+
+        assertTrue(timer.cancel(timeout));
+        assertFalse(timer.cancel(timeout));
+        assertEquals(1, timer.size());
+        assertEquals(new Integer(2), advance(START + 100).get(0));
+        // Already handed out
+        assertFalse(timer.cancel(other));
+        assertEquals(0, timer.size());
+    }
+
+    public void testManyEscalations() {
+        final int num = 100000;
+        List<EscalationTimer.Timeout> timeouts = new ArrayList<EscalationTimer.Timeout>(num);
+        for (int i = 0; i < num; i++) {
+            timeouts.add(timer.schedule(new Integer(i), null, START + (i % 5000)));
+        }
+        // Cancel every other one, as when an outage is fixed
+        for (int i = 0; i < num; i += 2) {
+            assertTrue(timer.cancel(timeouts.get(i)));
+        }
+        assertEquals(num / 2, timer.size());
+        List<Integer> ids = advance(START + 5000);
+        assertEquals(num / 2, ids.size());
+        for (Integer id : ids) {
+            assertEquals(1, id.intValue() % 2);
+        }
+    }
+
+    public void testRunsOnItsOwn() throws Exception {
+        final List<Integer> ids = new ArrayList<Integer>();
+        EscalationTimer live = new EscalationTimer("test", 10, WHEEL_SIZE, new EscalationTimer.Handler() {
+            public void expired(List<EscalationTimer.Timeout> timeouts) {
+                synchronized (ids) {
+                    for (EscalationTimer.Timeout timeout : timeouts) {
+                        ids.add(timeout.getStateId());
+                    }
+                    ids.notifyAll();
+                }
+            }
+        });
+        live.start();
+        try {
+            live.schedule(new Integer(1), null, System.currentTimeMillis() + 50);
+            synchronized (ids) {
+                long end = System.currentTimeMillis() + 5000;
+                while (ids.isEmpty() && System.currentTimeMillis() < end) {
+                    ids.wait(100);
+                }
+            }
+            assertEquals(1, ids.size());
+        } finally {
+            live.stop();
+        }
+    }
+}
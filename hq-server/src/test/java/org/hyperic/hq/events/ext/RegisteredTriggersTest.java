@@ -28,6 +28,7 @@ package org.hyperic.hq.events.ext;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -35,9 +36,14 @@ import java.util.Map;
 import junit.framework.TestCase;
 
 import org.easymock.EasyMock;
+import org.hyperic.hq.bizapp.server.trigger.conditional.MeasurementThresholdTrigger;
+import org.hyperic.hq.bizapp.shared.ConditionalTriggerSchema;
 import org.hyperic.hq.events.InvalidTriggerDataException;
 import org.hyperic.hq.events.MockEvent;
 import org.hyperic.hq.events.server.session.AlertRegulator;
+import org.hyperic.hq.measurement.ext.MeasurementEvent;
+import org.hyperic.hq.measurement.server.session.MeasurementInterestIndex;
+import org.hyperic.hq.product.MetricValue;
 
 /**
  * Unit test of {@link RegisteredTriggers}
@@ -318,6 +324,79 @@ public class RegisteredTriggersTest
         assertEquals(trigger2, actualTriggers.get(trigger2Id));
     }
 
+    /**
+     * Verifies that the measurements with triggers for their
+     * MeasurementEvents are kept in the measurement interest
+     */
+    public void testMeasurementInterest() {
+        Integer triggerId = 987;
+        Integer allTriggerId = 988;
+        RegisterableTriggerInterface trigger1 = EasyMock.createMock(RegisterableTriggerInterface.class);
+        // Added twice
+        EasyMock.expect(trigger1.getId()).andReturn(triggerId).times(4);
+        EasyMock.expect(trigger1.getInterestedEventTypes()).andReturn(
+            new Class[] { MeasurementEvent.class, MockEvent.class }).times(2);
+        EasyMock.expect(trigger1.getInterestedInstanceIDs(MeasurementEvent.class)).andReturn(
+            new Integer[] { 123 }).times(2);
+        EasyMock.expect(trigger1.getInterestedInstanceIDs(MockEvent.class)).andReturn(
+            new Integer[] { 456 }).times(2);
+        RegisterableTriggerInterface trigger2 = EasyMock.createMock(RegisterableTriggerInterface.class);
+        EasyMock.expect(trigger2.getId()).andReturn(allTriggerId);
+        EasyMock.expect(trigger2.getInterestedEventTypes()).andReturn(new Class[] { MeasurementEvent.class });
+        EasyMock.expect(trigger2.getInterestedInstanceIDs(MeasurementEvent.class)).andReturn(
+            new Integer[] { RegisteredTriggers.KEY_ALL });
+        EasyMock.replay(trigger1, trigger2);
+        replay();
+
+        MeasurementInterestIndex.Interest interest = registeredTriggers.getMeasurementInterest();
+        registeredTriggers.addTrigger(trigger1);
+        assertTrue(interest.isWatched(123));
+        assertFalse(interest.isWatched(456));
+
+        registeredTriggers.addTrigger(trigger2);
+        assertTrue(interest.isWatched(456));
+        registeredTriggers.removeTrigger(allTriggerId);
+        assertFalse(interest.isWatched(456));
+
+        registeredTriggers.removeTrigger(triggerId);
+        assertFalse(interest.isWatched(123));
+        assertEquals(0, interest.size());
+
+        registeredTriggers.addTrigger(trigger1);
+        registeredTriggers.init();
+        assertFalse(interest.isWatched(123));
+        EasyMock.verify(trigger1, trigger2);
+    }
+
+    public void testCompiledThresholds() {
+        MeasurementThresholdTrigger trigger = new MeasurementThresholdTrigger();
+        trigger.setId(987);
+        trigger.setMeasurementID(123);
+        trigger.setOperator(ConditionalTriggerSchema.OPER_GT);
+        trigger.setThreshold(10);
+        trigger.setEnabled(true);
+        EasyMock.expect(alertRegulator.alertsAllowed()).andReturn(true).anyTimes();
+        replay();
+
+        MeasurementInterestIndex.Interest interest = registeredTriggers.getMeasurementInterest();
+        registeredTriggers.addTrigger(trigger);
+        // Thresholds are evaluated on their own, not through the triggers map
+        assertTrue(registeredTriggers.getTriggers().isEmpty());
+        assertEquals(1, registeredTriggers.getThresholdTriggers().size());
+        assertSame(trigger, registeredTriggers.getTriggerById(987));
+        assertTrue(interest.isWatched(123));
+        MeasurementEvent event = new MeasurementEvent(123, new MetricValue(5d, System.currentTimeMillis()));
+        assertTrue(registeredTriggers.getInterestedTriggers(event).isEmpty());
+        assertTrue(registeredTriggers.isTriggerInterested(event));
+
+        registeredTriggers.setTriggersEnabled(Collections.singleton(987), false);
+        assertFalse(registeredTriggers.isTriggerInterested(event));
+
+        registeredTriggers.removeTrigger(987);
+        assertNull(registeredTriggers.getTriggerById(987));
+        assertFalse(interest.isWatched(123));
+    }
+
     private void verify() {
         EasyMock.verify(alertRegulator);
     }
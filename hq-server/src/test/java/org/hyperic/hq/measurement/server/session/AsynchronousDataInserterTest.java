@@ -0,0 +1,152 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+
+package org.hyperic.hq.measurement.server.session;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+import org.easymock.classextension.EasyMock;
+import org.hyperic.hq.measurement.shared.DataManager;
+import org.hyperic.hq.stats.ConcurrentStatsCollector;
+
+public class AsynchronousDataInserterTest extends TestCase {
+
+    private final List<Integer> batches = Collections.synchronizedList(new ArrayList<Integer>());
+    private CountDownLatch writing;
+    private CountDownLatch release;
+    private DataManager dataManager;
+    private ConcurrentStatsCollector statsCollector;
+
+    public AsynchronousDataInserterTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+        writing = new CountDownLatch(1);
+        release = new CountDownLatch(1);
+        // Records the size of each batch, holding up the first until released
+        dataManager = (DataManager) Proxy.newProxyInstance(
+            DataManager.class.getClassLoader(), new Class[] { DataManager.class },
+            new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    if (!method.getName().equals("addData") || args.length != 1) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    writing.countDown();
+                    release.await();
+                    batches.add(new Integer(((List<?>) args[0]).size()));
+                    return Boolean.TRUE;
+                }
+            });
+        statsCollector = EasyMock.createNiceMock(ConcurrentStatsCollector.class);
+        EasyMock.replay(statsCollector);
+    }
+
+    private AsynchronousDataInserter createInserter(int maxQueuedPoints, int batchSize) {
+        AsynchronousDataInserter inserter = new AsynchronousDataInserter(
+            dataManager, statsCollector, Boolean.TRUE, new Integer(maxQueuedPoints),
+            new Integer(batchSize), new Integer(1));
+        inserter.initialize();
+        return inserter;
+    }
+
+    private static List<DataPoint> getPoints(int num) {
+        List<DataPoint> rtn = new ArrayList<DataPoint>(num);
+        for (int i = 0; i < num; i++) {
+            rtn.add(new DataPoint(i, i, 60000));
+        }
+        return rtn;
+    }
+
+    private int getTotal() {
+        int total = 0;
+        for (Integer size : batches) {
+            total += size.intValue();
+        }
+        return total;
+    }
+
+    public void testQueuedListsAreCoalesced() throws Exception {
+        AsynchronousDataInserter inserter = createInserter(1000, 100);
+
+        inserter.insertData(getPoints(20));
+        writing.await();
+        // The writer is busy with the first list while these pile up
+        for (int i = 0; i < 9; i++) {
+            inserter.insertData(getPoints(20));
+        }
+        assertEquals(200, inserter.getQueuedPoints());
+        release.countDown();
+        inserter.shutdown();
+
+        assertEquals(0, inserter.getQueuedPoints());
+        assertEquals(200, getTotal());
+        assertEquals(3, batches.size());
+        assertEquals(new Integer(20), batches.get(0));
+        assertEquals(new Integer(100), batches.get(1));
+        assertEquals(new Integer(80), batches.get(2));
+    }
+
+    public void testFullQueueIsRefused() throws Exception {
+        AsynchronousDataInserter inserter = createInserter(50, 100);
+
+        inserter.insertData(getPoints(40));
+        writing.await();
+        try {
+            inserter.insertData(getPoints(20));
+            fail("Data was queued past the limit");
+        } catch (DataInserterBusyException e) {
+            // expected
+        }
+        // Priority data and data calculated by the server still go in
+        inserter.insertData(getPoints(20), true);
+        inserter.insertDataFromServer(getPoints(20));
+        assertEquals(80, inserter.getQueuedPoints());
+        release.countDown();
+        inserter.shutdown();
+
+        assertEquals(80, getTotal());
+    }
+
+    public void testInsertAfterShutdownIsSynchronous() throws Exception {
+        AsynchronousDataInserter inserter = createInserter(50, 100);
+        release.countDown();
+        inserter.shutdown();
+
+        inserter.insertData(getPoints(10));
+        assertEquals(0, inserter.getQueuedPoints());
+        assertEquals(10, getTotal());
+    }
+}
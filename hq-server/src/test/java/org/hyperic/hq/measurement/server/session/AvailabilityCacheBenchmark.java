@@ -0,0 +1,100 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.server.session;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hyperic.hq.measurement.MeasurementConstants;
+
+/**
+ * Compares finding the expired platforms with the deadline index to walking
+ * every cached platform as the backfiller does without it.  One in a
+ * hundred platforms stopped reporting ten minutes ago.
+ */
+public class AvailabilityCacheBenchmark {
+
+    private static final int PLATFORMS = 20000;
+    private static final int RUNS = 10;
+
+    private static List<Measurement> putPlatforms(AvailabilityCache cache, int platforms, long now) {
+        final long minute = MeasurementConstants.MINUTE;
+        List<Measurement> measurements = new ArrayList<Measurement>(platforms);
+        for (int i = 0; i < platforms; i++) {
+            Measurement meas = new Measurement();
+            meas.setId(new Integer(i));
+            meas.setInterval(minute);
+            measurements.add(meas);
+            long time = (i % 100 == 0) ? now - 10 * minute : now - minute;
+            cache.put(new Integer(i), new DataPoint(i, MeasurementConstants.AVAIL_UP, time));
+        }
+        cache.watchDeadlines(measurements);
+        return measurements;
+    }
+
+    /**
+     * Walks every cached platform as the backfiller does without the index.
+     */
+    private static List<Integer> scanExpired(AvailabilityCache cache, List<Measurement> measurements,
+                                             long now) {
+        List<Integer> rtn = new ArrayList<Integer>();
+        for (Measurement meas : measurements) {
+            DataPoint last = cache.get(meas.getId());
+            if (now - last.getTimestamp() > AvailabilityDeadlines.getMinDowntime(meas.getInterval())) {
+                rtn.add(meas.getId());
+            }
+        }
+        return rtn;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final long now = 100 * MeasurementConstants.MINUTE;
+        AvailabilityCache cache = new AvailabilityCache();
+        List<Measurement> measurements = putPlatforms(cache, PLATFORMS, now);
+        // Warm up both
+        scanExpired(cache, measurements, now);
+        cache.getExpired(now);
+
+        long start = System.currentTimeMillis();
+        int scanned = 0;
+        for (int run = 0; run < RUNS; run++) {
+            scanned = scanExpired(cache, measurements, now).size();
+        }
+        long scanTime = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        int expired = 0;
+        for (int run = 0; run < RUNS; run++) {
+            expired = cache.getExpired(now).size();
+        }
+        long indexTime = System.currentTimeMillis() - start;
+        cache.clear();
+
+        System.out.println("Found " + expired + " (scanned " + scanned + ") of " + PLATFORMS +
+                           " platforms expired " + RUNS + " times in " + scanTime +
+                           " ms scanning, " + indexTime + " ms with the index");
+    }
+}
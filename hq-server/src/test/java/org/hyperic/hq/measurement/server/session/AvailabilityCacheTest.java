@@ -26,10 +26,15 @@
 
 package org.hyperic.hq.measurement.server.session;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import junit.framework.TestCase;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.hyperic.hq.measurement.MeasurementConstants;
 
 public class AvailabilityCacheTest extends TestCase {
 
@@ -122,6 +127,62 @@ public class AvailabilityCacheTest extends TestCase {
         assertTrue(cache.get(new Integer(id)) == null);
     }
 
+    public void testShardTransactions() throws Exception {
+        final Integer id0 = new Integer(0);
+        final Integer id1 = new Integer(1);
+        assertTrue(cache.getShard(id0) != cache.getShard(id1));
+
+        cache.beginTran(cache.getShard(id0));
+        cache.put(id0, new DataPoint(0, 1.0, 1));
+
+        // Another shard may be changed while a transaction is open
+        Thread thread = new Thread() {
+            public void run() {
+                cache.put(id1, new DataPoint(1, 1.0, 1));
+            }
+        };
+        thread.start();
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+        assertEquals(1, cache.get(id1).getTimestamp());
+
+        // The shard which is in a transaction must wait for it
+        thread = new Thread() {
+            public void run() {
+                cache.put(id0, new DataPoint(0, 1.0, 2));
+            }
+        };
+        thread.start();
+        long end = System.currentTimeMillis() + 5000;
+        while (cache.getQueueLength(cache.getShard(id0)) == 0 && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, cache.getQueueLength(cache.getShard(id0)));
+
+        cache.rollbackTran(cache.getShard(id0));
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+        assertEquals(2, cache.get(id0).getTimestamp());
+        assertEquals(1, cache.get(id1).getTimestamp());
+    }
+
+    public void testShardRollback() throws Exception {
+        final Integer id0 = new Integer(0);
+        final Integer id1 = new Integer(1);
+        cache.put(id0, new DataPoint(0, 1.0, 1));
+        cache.put(id1, new DataPoint(1, 1.0, 1));
+
+        cache.beginTran(cache.getShard(id0));
+        cache.beginTran(cache.getShard(id1));
+        cache.put(id0, new DataPoint(0, 0.0, 2));
+        cache.put(id1, new DataPoint(1, 0.0, 2));
+        cache.commitTran(cache.getShard(id1));
+        cache.rollbackTran(cache.getShard(id0));
+
+        assertEquals(1, cache.get(id0).getTimestamp());
+        assertEquals(2, cache.get(id1).getTimestamp());
+    }
+
     /**
      * Test a full load of the cache.
      * @throws Exception If any error occurs within the test.
@@ -219,4 +280,124 @@ public class AvailabilityCacheTest extends TestCase {
 
         assertEquals(i, cache.getSize());
     }
+
+    private static Measurement getMeasurement(int id, long interval) {
+        Measurement meas = new Measurement();
+        meas.setId(new Integer(id));
+        meas.setInterval(interval);
+        return meas;
+    }
+
+    public void testDeadlines() throws Exception {
+        final long minute = MeasurementConstants.MINUTE;
+        final Integer up = new Integer(0);
+        final Integer down = new Integer(1);
+        final Integer silent = new Integer(2);
+        cache.put(up, new DataPoint(0, MeasurementConstants.AVAIL_UP, 10 * minute));
+        cache.put(down, new DataPoint(1, MeasurementConstants.AVAIL_DOWN, 10 * minute));
+        // Not a platform, never watched
+        cache.put(new Integer(3), new DataPoint(3, MeasurementConstants.AVAIL_DOWN, 10 * minute));
+
+        List<Measurement> platforms = new ArrayList<Measurement>();
+        platforms.add(getMeasurement(0, minute));
+        platforms.add(getMeasurement(1, minute));
+        platforms.add(getMeasurement(2, 5 * minute));
+        cache.watchDeadlines(platforms);
+        assertEquals(3, cache.getNumWatched());
+
+        // Down and never reported have already expired, up is due in 3 minutes
+        assertEquals(2, cache.getExpired(10 * minute).size());
+        assertEquals(2, cache.getExpired(13 * minute).size());
+        assertEquals(3, cache.getExpired(13 * minute + 1).size());
+
+        // Each report moves the deadline on
+        cache.put(up, new DataPoint(0, MeasurementConstants.AVAIL_UP, 12 * minute));
+        cache.put(down, new DataPoint(1, MeasurementConstants.AVAIL_UP, 12 * minute));
+        cache.put(silent, new DataPoint(2, MeasurementConstants.AVAIL_UP, 12 * minute));
+        assertEquals(Collections.EMPTY_LIST, cache.getExpired(15 * minute));
+        assertEquals(2, cache.getExpired(15 * minute + 1).size());
+        assertEquals(silent, cache.getExpired(23 * minute).get(2));
+
+        // A rolled back report gives back the deadline it moved
+        cache.beginTran();
+        cache.put(up, new DataPoint(0, MeasurementConstants.AVAIL_UP, 20 * minute));
+        cache.rollbackTran();
+        assertEquals(up, cache.getExpired(15 * minute + 1).get(0));
+
+        cache.put(up, new DataPoint(0, MeasurementConstants.AVAIL_PAUSED, 20 * minute));
+        assertEquals(Collections.singletonList(up), cache.getExpired(0));
+
+        cache.remove(down);
+        assertEquals(2, cache.getExpired(0).size());
+        cache.clear();
+        assertEquals(3, cache.getExpired(0).size());
+
+        cache.unwatchDeadline(up);
+        assertEquals(2, cache.getNumWatched());
+        cache.watchDeadlines(platforms.subList(2, 3));
+        assertEquals(Collections.singletonList(silent), cache.getExpired(0));
+    }
+
+    public void testNewPlatformIsWatched() throws Exception {
+        final long minute = MeasurementConstants.MINUTE;
+        final long now = 100 * minute;
+        Measurement old = getMeasurement(1, minute);
+        Measurement created = getMeasurement(2, minute);
+        cache.put(old.getId(), new DataPoint(1, MeasurementConstants.AVAIL_UP, now - minute));
+        // Nothing is missing until the backfiller indexes the platforms
+        assertFalse(cache.isDeadlineMissing(created.getId()));
+
+        cache.watchDeadlines(Collections.singletonList(old));
+        assertFalse(cache.isDeadlineMissing(old.getId()));
+        assertTrue(cache.isDeadlineMissing(created.getId()));
+
+        cache.put(created.getId(), new DataPoint(2, MeasurementConstants.AVAIL_UP, now - 10 * minute));
+        assertTrue(cache.getExpired(now).isEmpty());
+        cache.watchDeadline(created);
+        assertFalse(cache.isDeadlineMissing(created.getId()));
+        assertEquals(Collections.singletonList(created.getId()), cache.getExpired(now));
+    }
+
+    /**
+     * Puts and watches platforms with one minute intervals, of which one in
+     * a hundred stopped reporting ten minutes before now.
+     */
+    private static List<Measurement> putPlatforms(AvailabilityCache cache, int platforms, long now) {
+        final long minute = MeasurementConstants.MINUTE;
+        List<Measurement> measurements = new ArrayList<Measurement>(platforms);
+        for (int i = 0; i < platforms; i++) {
+            measurements.add(getMeasurement(i, minute));
+            long time = (i % 100 == 0) ? now - 10 * minute : now - minute;
+            cache.put(new Integer(i), new DataPoint(i, MeasurementConstants.AVAIL_UP, time));
+        }
+        cache.watchDeadlines(measurements);
+        return measurements;
+    }
+
+    /**
+     * Walks every cached platform as the backfiller does without the index.
+     */
+    private static List<Integer> scanExpired(AvailabilityCache cache, List<Measurement> measurements,
+                                             long now) {
+        List<Integer> rtn = new ArrayList<Integer>();
+        for (Measurement meas : measurements) {
+            DataPoint last = cache.get(meas.getId());
+            if (now - last.getTimestamp() > AvailabilityDeadlines.getMinDowntime(meas.getInterval())) {
+                rtn.add(meas.getId());
+            }
+        }
+        return rtn;
+    }
+
+    public void testExpiredMatchesScan() throws Exception {
+        final int platforms = 2000;
+        final long now = 100 * MeasurementConstants.MINUTE;
+        List<Measurement> measurements = putPlatforms(cache, platforms, now);
+
+        List<Integer> scanned = scanExpired(cache, measurements, now);
+        List<Integer> expired = new ArrayList<Integer>(cache.getExpired(now));
+        Collections.sort(expired);
+        assertEquals(platforms / 100, scanned.size());
+        assertEquals(scanned, expired);
+    }
 }
@@ -0,0 +1,303 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.server.session;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+import org.hyperic.hq.authz.server.session.Resource;
+import org.hyperic.hq.authz.server.session.ResourceGroup;
+import org.hyperic.hq.authz.server.session.ResourceType;
+import org.hyperic.hq.authz.server.session.events.group.GroupMembersChangedEvent;
+import org.hyperic.hq.authz.shared.AuthzConstants;
+import org.hyperic.hq.authz.shared.ResourceGroupManager;
+import org.hyperic.hq.events.server.session.AlertDAO;
+import org.hyperic.hq.measurement.MeasurementConstants;
+import org.hyperic.hq.measurement.shared.GroupHealth;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+public class GroupHealthManagerImplTest extends TestCase {
+
+    private static final double UP = MeasurementConstants.AVAIL_UP;
+    private static final double DOWN = MeasurementConstants.AVAIL_DOWN;
+
+    private GroupHealthManagerImpl manager;
+    private ResourceGroupManager groupManager;
+    // What the database holds
+    private final Map<ResourceGroup, List<Resource>> members = new HashMap<ResourceGroup, List<Resource>>();
+    private final Map<Resource, Measurement> measurements = new HashMap<Resource, Measurement>();
+    private final Map<Integer, Double> values = new HashMap<Integer, Double>();
+    private final Map<Integer, Integer> alerts = new HashMap<Integer, Integer>();
+
+    public GroupHealthManagerImplTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+        groupManager = EasyMock.createMock(ResourceGroupManager.class);
+        MeasurementDAO measurementDAO = new MeasurementDAO(null, null) {
+            List<Measurement> findAvailMeasurements(ResourceGroup g) {
+                List<Measurement> rtn = new ArrayList<Measurement>();
+                for (Resource r : members.get(g)) {
+                    if (measurements.containsKey(r)) {
+                        rtn.add(measurements.get(r));
+                    }
+                }
+                return rtn;
+            }
+        };
+        AvailabilityDataDAO availabilityDataDAO = new AvailabilityDataDAO(null, null) {
+            List<AvailabilityDataRLE> findLastAvail(List<Integer> mids) {
+                List<AvailabilityDataRLE> rtn = new ArrayList<AvailabilityDataRLE>();
+                for (Measurement m : measurements.values()) {
+                    if (mids.contains(m.getId()) && values.containsKey(m.getId())) {
+                        rtn.add(new AvailabilityDataRLE(m, 0, values.get(m.getId()).doubleValue()));
+                    }
+                }
+                return rtn;
+            }
+        };
+        AlertDAO alertDAO = new AlertDAO(null, null, null) {
+            public Map<Integer, Integer> countUnfixedByResource(Collection<Resource> resources) {
+                Map<Integer, Integer> rtn = new HashMap<Integer, Integer>();
+                for (Resource r : resources) {
+                    if (alerts.containsKey(r.getId())) {
+                        rtn.put(r.getId(), alerts.get(r.getId()));
+                    }
+                }
+                return rtn;
+            }
+        };
+        manager = new GroupHealthManagerImpl(groupManager, measurementDAO, availabilityDataDAO, alertDAO,
+            null, Boolean.TRUE, new Long(0));
+    }
+
+    private ResourceGroup createGroup(int id, Resource... resources) {
+        ResourceGroup group = new ResourceGroup();
+        group.setId(new Integer(id));
+        List<Resource> list = new ArrayList<Resource>();
+        Collections.addAll(list, resources);
+        members.put(group, list);
+        EasyMock.expect(groupManager.getMembers(group)).andReturn(list).anyTimes();
+        EasyMock.expect(groupManager.getGroupById(group.getId())).andReturn(group).anyTimes();
+        return group;
+    }
+
+    private static Resource createResource(int id, Integer type) {
+        ResourceType resourceType = new ResourceType();
+        resourceType.setId(type);
+        Resource resource = new Resource(resourceType, null, null, null, new Integer(id), false);
+        resource.setId(new Integer(id));
+        return resource;
+    }
+
+    /**
+     * @return a platform with an availability measurement of the same id.
+     */
+    private Resource createPlatform(int id, Double value) {
+        Resource resource = createResource(id, AuthzConstants.authzPlatform);
+        Measurement m = new Measurement();
+        m.setId(new Integer(id));
+        m.setResource(resource);
+        measurements.put(resource, m);
+        if (value != null) {
+            values.put(m.getId(), value);
+        }
+        return resource;
+    }
+
+    private static List<DataPoint> getPoints(int mid, double value) {
+        return Collections.singletonList(new DataPoint(mid, value, System.currentTimeMillis()));
+    }
+
+    public void testAvailabilityChanges() throws Exception {
+        Resource deleted = createPlatform(4, new Double(UP));
+        deleted.setResourceType(null);
+        ResourceGroup group = createGroup(100, createPlatform(1, new Double(UP)), createPlatform(2, new Double(DOWN)),
+            createPlatform(3, null), createResource(5, AuthzConstants.authzPlatform), deleted);
+        EasyMock.replay(groupManager);
+
+        GroupHealth health = manager.getGroupHealth(group);
+        assertEquals(5, health.getNumMembers());
+        assertEquals(1, health.getNumUp());
+        assertEquals(1, health.getNumUnavailable());
+        assertEquals(2, health.getNumUnknown());
+        assertEquals(1, health.getCount(GroupHealth.DELETED));
+        assertEquals(0.5, health.getAvailabilityAverage(), 0);
+
+        // Changes are applied without going back to the database
+        values.put(new Integer(1), new Double(DOWN));
+        manager.availabilityChanged(getPoints(2, MeasurementConstants.AVAIL_WARN));
+        manager.availabilityChanged(getPoints(3, UP));
+        manager.availabilityChanged(getPoints(42, DOWN));
+        health = manager.getGroupHealth(group);
+        assertEquals(2, health.getNumUp());
+        assertEquals(1, health.getCount(GroupHealth.WARN));
+        assertEquals(1, health.getNumUnknown());
+        assertEquals(2.5 / 3, health.getAvailabilityAverage(), 1e-9);
+        // The deleted member isn't followed
+        assertEquals(3, manager.getNumMeasurements());
+    }
+
+    public void testAvailabilityChangesOnceCommitted() throws Exception {
+        ResourceGroup group = createGroup(100, createPlatform(1, new Double(UP)));
+        EasyMock.replay(groupManager);
+
+        assertEquals(1, manager.getGroupHealth(group).getNumUp());
+        TransactionSynchronizationManager.initSynchronization();
+        try {
+            manager.availabilityChanged(getPoints(1, DOWN));
+            assertEquals(1, manager.getGroupHealth(group).getNumUp());
+            for (TransactionSynchronization sync : TransactionSynchronizationManager.getSynchronizations()) {
+                sync.afterCommit();
+            }
+        } finally {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+        assertEquals(1, manager.getGroupHealth(group).getNumUnavailable());
+
+        // A transaction which committed late doesn't undo a newer state
+        final long now = System.currentTimeMillis();
+        manager.availabilityChanged(Collections.singletonList(new DataPoint(1, UP, now)));
+        manager.availabilityChanged(Collections.singletonList(new DataPoint(1, DOWN, now - 60000)));
+        assertEquals(1, manager.getGroupHealth(group).getNumUp());
+    }
+
+    public void testAvailabilityOutOfSync() throws Exception {
+        Resource r1 = createPlatform(1, new Double(UP));
+        ResourceGroup group1 = createGroup(100, r1);
+        ResourceGroup group2 = createGroup(101, createPlatform(2, new Double(UP)));
+        EasyMock.replay(groupManager);
+
+        manager.getGroupHealth(group1);
+        manager.getGroupHealth(group2);
+        manager.availabilityChanged(getPoints(1, DOWN));
+        manager.availabilityChanged(getPoints(2, DOWN));
+        assertEquals(1, manager.getGroupHealth(group1).getNumUnavailable());
+
+        // The database still has them up, only the group of the first is reloaded
+        manager.availabilityOutOfSync(Collections.singletonList(r1.getId()));
+        assertEquals(1, manager.getGroupHealth(group1).getNumUp());
+        assertEquals(1, manager.getGroupHealth(group2).getNumUnavailable());
+    }
+
+    public void testAlerts() throws Exception {
+        Resource r1 = createPlatform(1, new Double(UP));
+        Resource r2 = createPlatform(2, new Double(UP));
+        alerts.put(r1.getId(), new Integer(2));
+        ResourceGroup group = createGroup(100, r1, r2);
+        EasyMock.replay(groupManager);
+
+        assertEquals(2, manager.getGroupHealth(group).getNumOpenAlerts());
+        manager.alertOpened(r2);
+        manager.alertFixed(r1);
+        manager.alertOpened(createPlatform(3, null));
+        assertEquals(2, manager.getGroupHealth(group).getNumOpenAlerts());
+        manager.alertFixed(r2);
+        manager.alertFixed(r2);
+        assertEquals(1, manager.getGroupHealth(group).getNumOpenAlerts());
+    }
+
+    public void testSharedMembers() throws Exception {
+        Resource shared = createPlatform(1, new Double(UP));
+        ResourceGroup group1 = createGroup(100, shared, createPlatform(2, new Double(UP)));
+        ResourceGroup group2 = createGroup(101, shared);
+        EasyMock.replay(groupManager);
+
+        manager.getGroupHealth(group1);
+        manager.getGroupHealth(group2);
+        manager.availabilityChanged(getPoints(1, DOWN));
+        assertEquals(1, manager.getGroupHealth(group1).getNumUnavailable());
+        assertEquals(1, manager.getGroupHealth(group2).getNumUnavailable());
+
+        // Dropping one group still follows the members of the other
+        manager.onApplicationEvent(new GroupMembersChangedEvent(group1));
+        members.get(group1).remove(shared);
+        assertEquals(1, manager.getNumMeasurements());
+        manager.availabilityChanged(getPoints(1, UP));
+        assertEquals(1, manager.getGroupHealth(group2).getNumUp());
+        assertEquals(1, manager.getGroupHealth(group1).getNumMembers());
+        assertEquals(2, manager.getNumMeasurements());
+    }
+
+    public void testMembersChanged() throws Exception {
+        ResourceGroup group = createGroup(100, createPlatform(1, new Double(UP)));
+        EasyMock.replay(groupManager);
+
+        assertEquals(1, manager.getGroupHealth(group).getNumUp());
+        members.get(group).add(createPlatform(2, new Double(UP)));
+        assertEquals(1, manager.getGroupHealth(group).getNumUp());
+        manager.onApplicationEvent(new GroupMembersChangedEvent(group));
+        assertEquals(2, manager.getGroupHealth(group).getNumUp());
+    }
+
+    public void testNestedGroupsAreNotKept() throws Exception {
+        ResourceGroup group = createGroup(100, createPlatform(1, new Double(UP)),
+            createResource(2, AuthzConstants.authzGroup));
+        EasyMock.replay(groupManager);
+
+        assertNull(manager.getGroupHealth(group));
+        assertEquals(0, manager.getNumMeasurements());
+    }
+
+    public void testReconcile() throws Exception {
+        Resource r1 = createPlatform(1, new Double(UP));
+        ResourceGroup group1 = createGroup(100, r1, createPlatform(2, new Double(UP)));
+        ResourceGroup group2 = createGroup(101, r1);
+        EasyMock.replay(groupManager);
+
+        manager.getGroupHealth(group1);
+        manager.getGroupHealth(group2);
+        // Changed behind its back
+        values.put(r1.getId(), new Double(DOWN));
+        alerts.put(r1.getId(), new Integer(3));
+        members.get(group1).add(createPlatform(3, new Double(DOWN)));
+        assertEquals(2, manager.getGroupHealth(group1).getNumUp());
+
+        manager.reconcile();
+        GroupHealth health = manager.getGroupHealth(group1);
+        assertEquals(1, health.getNumUp());
+        assertEquals(2, health.getNumUnavailable());
+        assertEquals(3, health.getNumOpenAlerts());
+        health = manager.getGroupHealth(group2);
+        assertEquals(1, health.getNumUnavailable());
+        assertEquals(3, health.getNumOpenAlerts());
+
+        // Nothing drifted since
+        GroupHealth before = manager.getGroupHealth(group1);
+        manager.reconcile();
+        assertEquals(before, manager.getGroupHealth(group1));
+    }
+}
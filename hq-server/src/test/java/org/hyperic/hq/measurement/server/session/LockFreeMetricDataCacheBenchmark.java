@@ -0,0 +1,125 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.server.session;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import net.sf.ehcache.CacheManager;
+
+/**
+ * Compares ingest and dashboard style reads running at once against the
+ * lock free cache and the ehcache one it can replace.  Writers add the
+ * points of their share of the measurements in batches while readers fetch
+ * random ranges of them.
+ */
+public class LockFreeMetricDataCacheBenchmark {
+
+    private static final int NUM_METRICS = 10000;
+    private static final int BATCH_SIZE = 100;
+    private static final int NUM_WRITERS = 4;
+    private static final int NUM_READERS = 4;
+    private static final int ROUNDS = 20;
+    private static final int RUNS = 5;
+
+    private static void contend(final MetricDataCache cache) throws Exception {
+        final List<Integer> mids = new ArrayList<Integer>(NUM_METRICS);
+        for (int i = 0; i < NUM_METRICS; i++) {
+            mids.add(new Integer(i));
+        }
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int t = 0; t < NUM_WRITERS; t++) {
+            final int writer = t;
+            threads.add(new Thread() {
+                public void run() {
+                    for (int r = 1; r <= ROUNDS; r++) {
+                        List<DataPoint> batch = new ArrayList<DataPoint>(BATCH_SIZE);
+                        for (int i = writer; i < NUM_METRICS; i += NUM_WRITERS) {
+                            batch.add(new DataPoint(i, r, r));
+                            if (batch.size() == BATCH_SIZE) {
+                                cache.bulkAdd(batch);
+                                batch = new ArrayList<DataPoint>(BATCH_SIZE);
+                            }
+                        }
+                        cache.bulkAdd(batch);
+                    }
+                }
+            });
+        }
+        for (int t = 0; t < NUM_READERS; t++) {
+            final Random rand = new Random(t);
+            threads.add(new Thread() {
+                public void run() {
+                    for (int r = 0; r < ROUNDS * 10; r++) {
+                        int start = rand.nextInt(NUM_METRICS - BATCH_SIZE);
+                        cache.getAll(mids.subList(start, start + BATCH_SIZE), 0);
+                        cache.get(mids.get(start), 0);
+                    }
+                }
+            });
+        }
+
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        for (Integer mid : mids) {
+            cache.remove(mid);
+        }
+    }
+
+    private static long time(MetricDataCache cache) throws Exception {
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < RUNS; i++) {
+            contend(cache);
+        }
+        return (System.currentTimeMillis() - start) / RUNS;
+    }
+
+    public static void main(String[] args) throws Exception {
+        CacheManager manager = CacheManager.getInstance();
+        if (!manager.cacheExists("MetricDataCache")) {
+            manager.addCache("MetricDataCache");
+        }
+        MetricDataCache ehCache = new EhCacheMetricDataCache();
+        MetricDataCache lockFree = new LockFreeMetricDataCache(NUM_METRICS);
+
+        // Warm up both before timing them
+        contend(ehCache);
+        contend(lockFree);
+
+        long ehCacheTime = time(ehCache);
+        long lockFreeTime = time(lockFree);
+
+        System.out.println("Contended reads and writes took " + ehCacheTime +
+                           " ms with ehcache, " + lockFreeTime + " ms lock free");
+        manager.shutdown();
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.server.session;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.hyperic.hq.product.MetricValue;
+
+public class LockFreeMetricDataCacheTest extends TestCase {
+
+    private static final int NUM_METRICS = 10000;
+    private static final int BATCH_SIZE = 100;
+    private static final int NUM_WRITERS = 4;
+    private static final int NUM_READERS = 4;
+    private static final int ROUNDS = 20;
+
+    private LockFreeMetricDataCache cache;
+
+    public LockFreeMetricDataCacheTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        this.cache = new LockFreeMetricDataCache(NUM_METRICS);
+    }
+
+    public void testOutOfOrderPointsAreRejected() throws Exception {
+        Integer mid = new Integer(42);
+
+        assertTrue(cache.add(mid, new MetricValue(1.0, 2000)));
+        assertFalse(cache.add(mid, new MetricValue(2.0, 1000)));
+        assertEquals(1.0, cache.get(mid, 0).getValue(), 0);
+        assertEquals(1, cache.getRejections());
+
+        // The same timestamp replaces the cached value, as it does in ehcache
+        assertTrue(cache.add(mid, new MetricValue(3.0, 2000)));
+        assertEquals(3.0, cache.get(mid, 0).getValue(), 0);
+
+        List<DataPoint> data = new ArrayList<DataPoint>();
+        data.add(new DataPoint(42, 4.0, 1500));
+        data.add(new DataPoint(43, 5.0, 1500));
+        Collection<DataPoint> cached = cache.bulkAdd(data);
+        assertEquals(1, cached.size());
+        assertEquals(new Integer(43), cached.iterator().next().getMeasurementId());
+    }
+
+    public void testGetAndRemove() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            cache.add(new Integer(i), new MetricValue(i, 1000 + i));
+        }
+
+        assertNull(cache.get(new Integer(10), 1011));
+        assertEquals(10.0, cache.get(new Integer(10), 1010).getValue(), 0);
+        assertNull(cache.get(new Integer(1000), 0));
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+
+        List<Integer> mids = new ArrayList<Integer>();
+        for (int i = 0; i < 100; i += 10) {
+            mids.add(new Integer(i));
+        }
+        Map<Integer, MetricValue> values = cache.getAll(mids, 1050);
+        assertEquals(5, values.size());
+        assertEquals(90.0, values.get(new Integer(90)).getValue(), 0);
+
+        cache.remove(new Integer(90));
+        assertNull(cache.get(new Integer(90), 0));
+        assertEquals(99, cache.size());
+
+        // A removed measurement can be cached again with any value
+        assertTrue(cache.add(new Integer(90), new MetricValue(1.0, 1)));
+    }
+
+    public void testSizeIsBounded() throws Exception {
+        LockFreeMetricDataCache small = new LockFreeMetricDataCache(1000);
+
+        for (int i = 0; i < 100000; i++) {
+            small.add(new Integer(i), new MetricValue(i, i));
+        }
+        assertTrue(small.size() <= small.getCapacity());
+        assertTrue(small.getEvictions() > 0);
+        // Evictions take the oldest values, so recent ones are still there
+        assertNotNull(small.get(new Integer(99999), 0));
+    }
+
+    public void testConcurrentWritersKeepTheNewestValue() throws Exception {
+        final int points = 50;
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int t = 0; t < NUM_WRITERS; t++) {
+            // Every writer adds every point, each in an order of its own
+            final List<Long> order = new ArrayList<Long>(NUM_METRICS * points);
+            for (int mid = 0; mid < NUM_METRICS; mid++) {
+                for (int time = 0; time < points; time++) {
+                    order.add(new Long(((long) mid << 32) | time));
+                }
+            }
+            Collections.shuffle(order, new Random(t));
+            threads.add(new Thread() {
+                public void run() {
+                    for (Long point : order) {
+                        int mid = (int) (point.longValue() >>> 32);
+                        long time = point.longValue() & 0xffffffffL;
+                        cache.add(new Integer(mid), new MetricValue(time, time));
+                    }
+                }
+            });
+        }
+        runAll(threads);
+
+        for (int mid = 0; mid < NUM_METRICS; mid++) {
+            assertEquals(points - 1, cache.get(new Integer(mid), 0).getTimestamp());
+        }
+    }
+
+    private static void runAll(List<Thread> threads) throws InterruptedException {
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+    }
+
+    /**
+     * Runs ingest and dashboard style reads at once against the cache and
+     * checks every measurement ends up with the last value written.
+     */
+    private static void contend(final MetricDataCache cache) throws Exception {
+        final List<Integer> mids = new ArrayList<Integer>(NUM_METRICS);
+        for (int i = 0; i < NUM_METRICS; i++) {
+            mids.add(new Integer(i));
+        }
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int t = 0; t < NUM_WRITERS; t++) {
+            final int writer = t;
+            threads.add(new Thread() {
+                public void run() {
+                    for (int r = 1; r <= ROUNDS; r++) {
+                        List<DataPoint> batch = new ArrayList<DataPoint>(BATCH_SIZE);
+                        for (int i = writer; i < NUM_METRICS; i += NUM_WRITERS) {
+                            batch.add(new DataPoint(i, r, r));
+                            if (batch.size() == BATCH_SIZE) {
+                                cache.bulkAdd(batch);
+                                batch = new ArrayList<DataPoint>(BATCH_SIZE);
+                            }
+                        }
+                        cache.bulkAdd(batch);
+                    }
+                }
+            });
+        }
+        for (int t = 0; t < NUM_READERS; t++) {
+            final Random rand = new Random(t);
+            threads.add(new Thread() {
+                public void run() {
+                    for (int r = 0; r < ROUNDS * 10; r++) {
+                        int start = rand.nextInt(NUM_METRICS - BATCH_SIZE);
+                        cache.getAll(mids.subList(start, start + BATCH_SIZE), 0);
+                        cache.get(mids.get(start), 0);
+                    }
+                }
+            });
+        }
+
+        runAll(threads);
+
+        Map<Integer, MetricValue> values = cache.getAll(mids, 0);
+        assertEquals(NUM_METRICS, values.size());
+        for (MetricValue val : values.values()) {
+            assertEquals(ROUNDS, val.getTimestamp());
+        }
+        for (Integer mid : mids) {
+            cache.remove(mid);
+        }
+    }
+
+    public void testConcurrentReadersAndWriters() throws Exception {
+        contend(cache);
+        assertEquals(Collections.EMPTY_MAP, cache.getAll(Collections.singletonList(new Integer(0)), 0));
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.server.session;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hyperic.hq.measurement.ext.MeasurementEvent;
+
+/**
+ * Measures the bytes allocated for the events of each ingested point with
+ * and without the MeasurementInterestIndex, when one measurement in a
+ * hundred is watched.  It needs a JVM which reports thread allocation.
+ */
+public class MeasurementInterestIndexBenchmark {
+
+    private static final int POINTS = 200000;
+    private static final int WATCHED_EVERY = 100;
+
+    private static long getAllocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+            .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Creates the events of DataManagerImpl.sendDataToEventHandlers for the
+     * points, skipping those nobody is interested in if there is an index.
+     */
+    private static int createEvents(List<DataPoint> data, MeasurementInterestIndex index) {
+        List<MeasurementEvent> events = new ArrayList<MeasurementEvent>();
+        List<MeasurementZevent> zevents = new ArrayList<MeasurementZevent>();
+        for (DataPoint dp : data) {
+            Integer metricId = dp.getMeasurementId();
+            if (index != null && !index.isInterested(metricId.intValue())) {
+                continue;
+            }
+            events.add(new MeasurementEvent(metricId, dp.getMetricValue()));
+            zevents.add(new MeasurementZevent(metricId.intValue(), dp.getMetricValue()));
+        }
+        return events.size() + zevents.size();
+    }
+
+    public static void main(String[] args) throws Exception {
+        MeasurementInterestIndex index = new MeasurementInterestIndex();
+        List<DataPoint> data = new ArrayList<DataPoint>(POINTS);
+        MeasurementInterestIndex.Interest triggers =
+            index.getInterest(MeasurementInterestIndex.ALERT_TRIGGERS);
+        for (int i = 0; i < POINTS; i++) {
+            data.add(new DataPoint(i, i, 60000));
+            if (i % WATCHED_EVERY == 0) {
+                triggers.watch(i);
+            }
+        }
+        // Warm up both
+        createEvents(data, null);
+        createEvents(data, index);
+
+        long start = getAllocatedBytes();
+        createEvents(data, null);
+        long unfiltered = getAllocatedBytes() - start;
+
+        start = getAllocatedBytes();
+        createEvents(data, index);
+        long filtered = getAllocatedBytes() - start;
+
+        System.out.println("Events for " + POINTS + " points allocated " +
+                           (unfiltered / POINTS) + " bytes per point, " +
+                           (filtered / POINTS) + " bytes per point with " +
+                           (POINTS / WATCHED_EVERY) + " of them watched");
+    }
+}
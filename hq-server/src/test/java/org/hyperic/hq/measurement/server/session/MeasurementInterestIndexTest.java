@@ -0,0 +1,130 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+
+package org.hyperic.hq.measurement.server.session;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.hyperic.hq.measurement.ext.MeasurementEvent;
+
+public class MeasurementInterestIndexTest extends TestCase {
+
+    private static final int NUM_POINTS = 10000;
+    // One measurement in a hundred is watched
+    private static final int WATCHED_EVERY = 100;
+
+    private MeasurementInterestIndex index;
+
+    public MeasurementInterestIndexTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+        index = new MeasurementInterestIndex();
+    }
+
+    public void testWatch() throws Exception {
+        MeasurementInterestIndex.Interest triggers =
+            index.getInterest(MeasurementInterestIndex.ALERT_TRIGGERS);
+        MeasurementInterestIndex.Interest galerts =
+            index.getInterest(MeasurementInterestIndex.GROUP_ALERTS);
+        assertSame(triggers, index.getInterest(MeasurementInterestIndex.ALERT_TRIGGERS));
+
+        assertFalse(index.isInterested(1));
+        triggers.watch(1);
+        triggers.watch(63);
+        triggers.watch(64);
+        galerts.watch(1000000);
+        assertTrue(index.isInterested(1));
+        assertTrue(index.isInterested(63));
+        assertTrue(index.isInterested(64));
+        assertTrue(index.isInterested(1000000));
+        assertFalse(index.isInterested(2));
+        assertFalse(index.isInterested(1000001));
+        assertFalse(index.isInterested(-1));
+        assertEquals(3, triggers.size());
+
+        triggers.unwatch(63);
+        assertFalse(index.isInterested(63));
+        assertTrue(index.isInterested(64));
+        // Both have to stop watching
+        triggers.watch(1000000);
+        galerts.unwatch(1000000);
+        assertTrue(index.isInterested(1000000));
+        triggers.clear();
+        assertFalse(index.isInterested(1000000));
+        assertFalse(index.isInterested(1));
+    }
+
+    public void testWatchAll() throws Exception {
+        MeasurementInterestIndex.Interest notifications =
+            index.getInterest(MeasurementInterestIndex.NOTIFICATIONS);
+
+        notifications.watchAll();
+        notifications.watchAll();
+        assertTrue(index.isInterested(12345));
+        notifications.unwatchAll();
+        assertTrue(index.isInterested(12345));
+        notifications.unwatchAll();
+        assertFalse(index.isInterested(12345));
+    }
+
+    /**
+     * Creates the events of DataManagerImpl.sendDataToEventHandlers for the
+     * points, skipping those nobody is interested in if there is an index.
+     */
+    private static int createEvents(List<DataPoint> data, MeasurementInterestIndex index) {
+        List<MeasurementEvent> events = new ArrayList<MeasurementEvent>();
+        List<MeasurementZevent> zevents = new ArrayList<MeasurementZevent>();
+        for (DataPoint dp : data) {
+            Integer metricId = dp.getMeasurementId();
+            if (index != null && !index.isInterested(metricId.intValue())) {
+                continue;
+            }
+            events.add(new MeasurementEvent(metricId, dp.getMetricValue()));
+            zevents.add(new MeasurementZevent(metricId.intValue(), dp.getMetricValue()));
+        }
+        return events.size() + zevents.size();
+    }
+
+    public void testOnlyWatchedPointsMakeEvents() throws Exception {
+        List<DataPoint> data = new ArrayList<DataPoint>(NUM_POINTS);
+        MeasurementInterestIndex.Interest triggers =
+            index.getInterest(MeasurementInterestIndex.ALERT_TRIGGERS);
+        for (int i = 0; i < NUM_POINTS; i++) {
+            data.add(new DataPoint(i, i, 60000));
+            if (i % WATCHED_EVERY == 0) {
+                triggers.watch(i);
+            }
+        }
+        assertEquals(2 * NUM_POINTS, createEvents(data, null));
+        assertEquals(2 * NUM_POINTS / WATCHED_EVERY, createEvents(data, index));
+    }
+}
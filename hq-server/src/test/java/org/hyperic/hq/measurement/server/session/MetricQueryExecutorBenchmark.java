@@ -0,0 +1,136 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.server.session;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.easymock.classextension.EasyMock;
+import org.hyperic.hq.stats.ConcurrentStatsCollector;
+
+/**
+ * Runs many dashboard users' history queries at once through the
+ * MetricQueryExecutor and with a thread per query, as getAggValueSets used
+ * to, reporting the time taken and the most queries running at once.
+ */
+public class MetricQueryExecutorBenchmark {
+
+    private static final int USERS = 20;
+    private static final int QUERIES = 18;
+    private static final int THREADS = 8;
+
+    private static final AtomicInteger running = new AtomicInteger();
+    private static final AtomicInteger maxRunning = new AtomicInteger();
+
+    private static List<Callable<Integer>> getQueries() {
+        List<Callable<Integer>> queries = new ArrayList<Callable<Integer>>();
+        for (int i = 0; i < QUERIES; i++) {
+            queries.add(new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    int now = running.incrementAndGet();
+                    synchronized (maxRunning) {
+                        if (now > maxRunning.get()) {
+                            maxRunning.set(now);
+                        }
+                    }
+                    Thread.sleep(2);
+                    running.decrementAndGet();
+                    return null;
+                }
+            });
+        }
+        return queries;
+    }
+
+    private static long runUsers(final MetricQueryExecutor executor) throws Exception {
+        maxRunning.set(0);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int u = 0; u < USERS; u++) {
+            final String user = "user" + u;
+            threads.add(new Thread() {
+                public void run() {
+                    if (executor != null) {
+                        executor.invokeAll(user, getQueries());
+                        return;
+                    }
+                    List<Thread> workers = new ArrayList<Thread>();
+                    for (final Callable<Integer> query : getQueries()) {
+                        Thread worker = new Thread() {
+                            public void run() {
+                                try {
+                                    query.call();
+                                } catch (Exception e) {
+                                    throw new IllegalStateException(e);
+                                }
+                            }
+                        };
+                        workers.add(worker);
+                        worker.start();
+                    }
+                    for (Thread worker : workers) {
+                        try {
+                            worker.join();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            });
+        }
+        long start = System.currentTimeMillis();
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    public static void main(String[] args) throws Exception {
+        ConcurrentStatsCollector statsCollector =
+            EasyMock.createNiceMock(ConcurrentStatsCollector.class);
+        EasyMock.replay(statsCollector);
+        MetricQueryExecutor executor = new MetricQueryExecutor(statsCollector, new Integer(THREADS));
+        executor.initialize();
+        // Warm up both
+        runUsers(executor);
+        runUsers(null);
+
+        long pooledTime = runUsers(executor);
+        int pooledMax = maxRunning.get();
+        long threadTime = runUsers(null);
+        int threadMax = maxRunning.get();
+        executor.shutdown();
+
+        System.out.println(USERS + " users with " + QUERIES + " queries each took " +
+                           pooledTime + " ms with at most " + pooledMax + " at once through " +
+                           THREADS + " threads, " + threadTime + " ms with at most " +
+                           threadMax + " at once with a thread per query");
+    }
+}
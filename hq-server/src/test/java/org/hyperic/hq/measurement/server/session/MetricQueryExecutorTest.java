@@ -0,0 +1,248 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.server.session;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.easymock.classextension.EasyMock;
+import org.hyperic.hq.stats.ConcurrentStatsCollector;
+
+public class MetricQueryExecutorTest extends TestCase {
+
+    private static final int THREADS = 2;
+
+    private MetricQueryExecutor executor;
+
+    public MetricQueryExecutorTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+        ConcurrentStatsCollector statsCollector = EasyMock.createNiceMock(ConcurrentStatsCollector.class);
+        EasyMock.replay(statsCollector);
+        executor = new MetricQueryExecutor(statsCollector, new Integer(THREADS));
+        executor.initialize();
+    }
+
+    public void tearDown() throws Exception {
+        super.tearDown();
+        executor.shutdown();
+    }
+
+    private static Callable<Integer> getQuery(final int result) {
+        return new Callable<Integer>() {
+            public Integer call() {
+                return new Integer(result);
+            }
+        };
+    }
+
+    public void testResultsAreInOrder() throws Exception {
+        List<Callable<Integer>> queries = new ArrayList<Callable<Integer>>();
+        for (int i = 0; i < 50; i++) {
+            queries.add(getQuery(i));
+        }
+        List<Integer> results = executor.invokeAll("user", queries);
+        assertEquals(50, results.size());
+        for (int i = 0; i < 50; i++) {
+            assertEquals(new Integer(i), results.get(i));
+        }
+        assertEquals(0, executor.getQueueSize());
+    }
+
+    public void testFailuresAreThrownToTheOwner() throws Exception {
+        List<Callable<Integer>> queries = new ArrayList<Callable<Integer>>();
+        queries.add(getQuery(1));
+        queries.add(new Callable<Integer>() {
+            public Integer call() {
+                throw new IllegalStateException("table is gone");
+            }
+        });
+        try {
+            executor.invokeAll("user", queries);
+            fail("The failure of a query should be thrown");
+        } catch (IllegalStateException e) {
+            assertEquals("table is gone", e.getMessage());
+        }
+    }
+
+    /**
+     * Holds up every pool thread, so queries are only run once released or
+     * by their owner.  The owner of the blockers runs one of them itself.
+     */
+    private CountDownLatch blockThreads(final CountDownLatch release) throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(THREADS + 1);
+        final List<Callable<Integer>> blockers = new ArrayList<Callable<Integer>>();
+        for (int i = 0; i <= THREADS; i++) {
+            blockers.add(new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    blocked.countDown();
+                    release.await();
+                    return null;
+                }
+            });
+        }
+        final CountDownLatch done = new CountDownLatch(1);
+        new Thread() {
+            public void run() {
+                executor.invokeAll("blocker", blockers);
+                done.countDown();
+            }
+        }.start();
+        assertTrue(blocked.await(10, TimeUnit.SECONDS));
+        return done;
+    }
+
+    public void testOwnerRunsItsQueriesWhenThePoolIsBusy() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            blockThreads(release);
+            List<Callable<Integer>> queries = new ArrayList<Callable<Integer>>();
+            for (int i = 0; i < 10; i++) {
+                queries.add(getQuery(i));
+            }
+            assertEquals(10, executor.invokeAll("user", queries).size());
+        } finally {
+            release.countDown();
+        }
+    }
+
+    public void testOwnersTakeTurns() throws Exception {
+        final CountDownLatch releasePool = new CountDownLatch(1);
+        final CountDownLatch releaseOwners = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(2);
+        final CountDownLatch smallRan = new CountDownLatch(1);
+        final AtomicInteger bigWithoutSmall = new AtomicInteger();
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final List<Thread> owners = new ArrayList<Thread>();
+        try {
+            blockThreads(releasePool);
+            for (final String owner : new String[] { "big", "small" }) {
+                final int num = owner.equals("big") ? 20 : 2;
+                final List<Callable<Integer>> queries = new ArrayList<Callable<Integer>>();
+                for (int i = 0; i < num; i++) {
+                    queries.add(new Callable<Integer>() {
+                        public Integer call() throws Exception {
+                            if (Thread.currentThread().getName().startsWith("MetricQueryExecutor")) {
+                                order.add(owner);
+                                // Each thread holds on to its big query until the small one
+                                // has run, which only happens if the small one is taken next
+                                if (owner.equals("small")) {
+                                    smallRan.countDown();
+                                } else if (!smallRan.await(5, TimeUnit.SECONDS)) {
+                                    bigWithoutSmall.incrementAndGet();
+                                }
+                            } else {
+                                // The owners are held up by their first, leaving the rest queued
+                                started.countDown();
+                                releaseOwners.await();
+                            }
+                            return null;
+                        }
+                    });
+                }
+                final long running = started.getCount() - 1;
+                Thread thread = new Thread() {
+                    public void run() {
+                        executor.invokeAll(owner, queries);
+                    }
+                };
+                owners.add(thread);
+                thread.start();
+                // The big query is queued first
+                for (int i = 0; i < 1000 && started.getCount() > running; i++) {
+                    Thread.sleep(10);
+                }
+            }
+            assertEquals(0, started.getCount());
+            releasePool.countDown();
+            for (int i = 0; i < 100 && order.size() < 20; i++) {
+                Thread.sleep(100);
+            }
+        } finally {
+            releasePool.countDown();
+            releaseOwners.countDown();
+        }
+        for (Thread owner : owners) {
+            owner.join();
+        }
+        assertEquals(20, order.size());
+        // The small query doesn't wait for the big one
+        assertEquals(0, bigWithoutSmall.get());
+    }
+
+    /**
+     * Runs many users' queries at once, as dashboards do, checking that the
+     * number of queries running is bounded.
+     */
+    public void testConcurrencyIsBounded() throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final int users = 20;
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int u = 0; u < users; u++) {
+            final String user = "user" + u;
+            threads.add(new Thread() {
+                public void run() {
+                    List<Callable<Integer>> queries = new ArrayList<Callable<Integer>>();
+                    for (int i = 0; i < 18; i++) {
+                        queries.add(new Callable<Integer>() {
+                            public Integer call() throws Exception {
+                                int now = running.incrementAndGet();
+                                synchronized (maxRunning) {
+                                    if (now > maxRunning.get()) {
+                                        maxRunning.set(now);
+                                    }
+                                }
+                                Thread.sleep(2);
+                                running.decrementAndGet();
+                                return null;
+                            }
+                        });
+                    }
+                    executor.invokeAll(user, queries);
+                }
+            });
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        // Each user's thread runs at most one of its own at a time
+        assertTrue(maxRunning.get() <= THREADS + users);
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.server.session;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares loading data points with COPY against the multi row insert
+ * statement which is used for the other dialects.  It needs the
+ * hq.test.postgresql.url, hq.test.postgresql.user and
+ * hq.test.postgresql.password system properties.
+ */
+public class PostgreSQLCopyLoaderBenchmark {
+
+    private static final String TABLE = "hq_copy_bench_data";
+    private static final int POINTS = 200000;
+
+    private final Connection conn;
+
+    private PostgreSQLCopyLoaderBenchmark(Connection conn) {
+        this.conn = conn;
+    }
+
+    private void execute(String sql) throws SQLException {
+        Statement stmt = conn.createStatement();
+        try {
+            stmt.execute(sql);
+        } finally {
+            stmt.close();
+        }
+    }
+
+    private long insert(List<DataPoint> data) throws SQLException {
+        long start = System.currentTimeMillis();
+        StringBuilder values = new StringBuilder(data.size() * 15);
+        for (DataPoint pt : data) {
+            if (values.length() > 0) {
+                values.append(",");
+            }
+            values.append("(").append(pt.getTimestamp()).append(",")
+                  .append(pt.getMeasurementId().intValue()).append(",")
+                  .append(new BigDecimal(pt.getValue()).setScale(5, BigDecimal.ROUND_HALF_EVEN))
+                  .append(")");
+        }
+        execute("INSERT INTO " + TABLE + " (timestamp, measurement_id, value) VALUES " + values);
+        return System.currentTimeMillis() - start;
+    }
+
+    private long copy(List<DataPoint> data) throws SQLException {
+        long start = System.currentTimeMillis();
+        new PostgreSQLCopyLoader().load(conn, TABLE, data);
+        return System.currentTimeMillis() - start;
+    }
+
+    private void run() throws SQLException {
+        // Laid out like the EAM_MEASUREMENT_DATA tables
+        execute("CREATE TEMPORARY TABLE " + TABLE +
+                " (timestamp BIGINT NOT NULL, measurement_id INTEGER NOT NULL," +
+                " value NUMERIC(24,5), PRIMARY KEY (timestamp, measurement_id))");
+        List<DataPoint> data = new ArrayList<DataPoint>(POINTS);
+        for (int i = 0; i < POINTS; i++) {
+            data.add(new DataPoint(i, 0.5 + i, 60000));
+        }
+
+        // Warm up both before timing them
+        insert(data);
+        execute("TRUNCATE " + TABLE);
+        copy(data);
+        execute("TRUNCATE " + TABLE);
+
+        long insertTime = insert(data);
+        execute("TRUNCATE " + TABLE);
+        long copyTime = copy(data);
+
+        System.out.println("Loaded " + POINTS + " points in " + insertTime +
+                           " ms with one insert, " + copyTime + " ms with COPY");
+    }
+
+    public static void main(String[] args) throws Exception {
+        Class.forName("org.postgresql.Driver");
+        Connection conn =
+            DriverManager.getConnection(System.getProperty("hq.test.postgresql.url"),
+                                        System.getProperty("hq.test.postgresql.user"),
+                                        System.getProperty("hq.test.postgresql.password"));
+        conn.setAutoCommit(false);
+        try {
+            new PostgreSQLCopyLoaderBenchmark(conn).run();
+        } finally {
+            conn.rollback();
+            conn.close();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+package org.hyperic.hq.measurement.server.session;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the PostgreSQLCopyLoader.  The tests which load data need a
+ * PostgreSQL database, given by the hq.test.postgresql.url,
+ * hq.test.postgresql.user and hq.test.postgresql.password system
+ * properties, and are skipped without one.
+ */
+public class PostgreSQLCopyLoaderTest extends TestCase {
+
+    private static final String TABLE = "hq_copy_test_data";
+    private static final int LARGE_LOAD = 20000;
+
+    private Connection conn;
+    private PostgreSQLCopyLoader loader;
+
+    public PostgreSQLCopyLoaderTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+        loader = new PostgreSQLCopyLoader();
+        String url = System.getProperty("hq.test.postgresql.url");
+        if (url == null) {
+            return;
+        }
+        Class.forName("org.postgresql.Driver");
+        conn = DriverManager.getConnection(url, System.getProperty("hq.test.postgresql.user"),
+                                           System.getProperty("hq.test.postgresql.password"));
+        conn.setAutoCommit(false);
+        // Laid out like the EAM_MEASUREMENT_DATA tables
+        execute("CREATE TEMPORARY TABLE " + TABLE +
+                " (timestamp BIGINT NOT NULL, measurement_id INTEGER NOT NULL," +
+                " value NUMERIC(24,5), PRIMARY KEY (timestamp, measurement_id))");
+    }
+
+    public void tearDown() throws Exception {
+        super.tearDown();
+        if (conn != null) {
+            conn.rollback();
+            conn.close();
+        }
+    }
+
+    private void execute(String sql) throws SQLException {
+        Statement stmt = conn.createStatement();
+        try {
+            stmt.execute(sql);
+        } finally {
+            stmt.close();
+        }
+    }
+
+    private long count(String sql) throws SQLException {
+        Statement stmt = conn.createStatement();
+        try {
+            ResultSet rs = stmt.executeQuery(sql);
+            rs.next();
+            return rs.getLong(1);
+        } finally {
+            stmt.close();
+        }
+    }
+
+    private static List<DataPoint> getPoints(int num, long timestamp, double value) {
+        List<DataPoint> rtn = new ArrayList<DataPoint>(num);
+        for (int i = 0; i < num; i++) {
+            rtn.add(new DataPoint(i, value + i, timestamp));
+        }
+        return rtn;
+    }
+
+    public void testCopyText() throws Exception {
+        List<DataPoint> data = new ArrayList<DataPoint>();
+        data.add(new DataPoint(1, 2.5, 1000));
+        data.add(new DataPoint(2, 1e-7, 1000));
+        data.add(new DataPoint(3, 1e30, 1000));
+
+        assertEquals("1\t1000\t2.5\n" +
+                     "2\t1000\t1.0E-7\n" +
+                     "3\t1000\t10000000000000000000000\n",
+                     PostgreSQLCopyLoader.toCopyText(data));
+    }
+
+    public void testLoad() throws Exception {
+        if (conn == null) {
+            return;
+        }
+        assertEquals(100, loader.load(conn, TABLE, getPoints(100, 60000, 0)));
+        assertEquals(100, count("SELECT count(*) FROM " + TABLE));
+        assertEquals(42, count("SELECT value FROM " + TABLE + " WHERE measurement_id = 42"));
+    }
+
+    public void testDuplicatesAreMerged() throws Exception {
+        if (conn == null) {
+            return;
+        }
+        loader.load(conn, TABLE, getPoints(50, 60000, 0));
+
+        // Half are already there with other values
+        List<DataPoint> data = getPoints(100, 60000, 1000);
+        List<DataPoint> merged = new ArrayList<DataPoint>();
+        assertEquals(100, loader.load(conn, TABLE, data, merged));
+        assertEquals(data, merged);
+        assertEquals(100, count("SELECT count(*) FROM " + TABLE));
+        assertEquals(1042, count("SELECT value FROM " + TABLE + " WHERE measurement_id = 42"));
+
+        // The staging table is gone, so it can be used again
+        assertEquals(100, loader.load(conn, TABLE, data));
+        assertEquals(100, count("SELECT count(*) FROM " + TABLE));
+    }
+
+    public void testLargeLoad() throws Exception {
+        if (conn == null) {
+            return;
+        }
+        assertEquals(LARGE_LOAD, loader.load(conn, TABLE, getPoints(LARGE_LOAD, 60000, 0.5)));
+        assertEquals(LARGE_LOAD, count("SELECT count(*) FROM " + TABLE));
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+
+package org.hyperic.hq.measurement.server.session;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.hyperic.hq.measurement.MeasurementConstants;
+import org.hyperic.hq.measurement.shared.HighLowMetricValue;
+import org.hyperic.hq.measurement.shared.MeasRangeObj;
+import org.hyperic.hq.stats.ConcurrentStatsCollector;
+
+import static org.easymock.classextension.EasyMock.createNiceMock;
+
+public class StreamingRollupTest extends TestCase {
+
+    private static final long HOUR = MeasurementConstants.HOUR;
+    private static final long START = 1000 * HOUR + 5 * MeasurementConstants.MINUTE;
+    // The first hour which is rolled up
+    private static final long FIRST = 1001 * HOUR;
+
+    private StreamingRollup rollup;
+
+    public StreamingRollupTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+        rollup = new StreamingRollup(createNiceMock(ConcurrentStatsCollector.class), Boolean.TRUE,
+            new Long(10 * MeasurementConstants.MINUTE), Boolean.FALSE);
+        rollup.initialize(START);
+    }
+
+    private static Map<Integer, HighLowMetricValue> toMap(List<DataPoint> rollups) {
+        Map<Integer, HighLowMetricValue> rtn = new HashMap<Integer, HighLowMetricValue>();
+        for (DataPoint pt : rollups) {
+            rtn.put(pt.getMeasurementId(), (HighLowMetricValue) pt.getMetricValue());
+        }
+        return rtn;
+    }
+
+    public void testRollup() throws Exception {
+        List<DataPoint> data = new ArrayList<DataPoint>();
+        data.add(new DataPoint(1, 2, FIRST));
+        data.add(new DataPoint(1, 4, FIRST + MeasurementConstants.MINUTE));
+        data.add(new DataPoint(2, 5, FIRST + HOUR - 1));
+        // The next hour
+        data.add(new DataPoint(1, 100, FIRST + HOUR));
+        rollup.add(data);
+        rollup.add(Collections.singletonList(new DataPoint(1, 9, FIRST + 30 * MeasurementConstants.MINUTE)));
+
+        assertTrue(rollup.isCovering(FIRST));
+        assertFalse(rollup.isGraceOver(FIRST, FIRST + HOUR + MeasurementConstants.MINUTE));
+        assertTrue(rollup.isGraceOver(FIRST, FIRST + HOUR + 10 * MeasurementConstants.MINUTE));
+        assertEquals(3, rollup.size());
+
+        Map<Integer, HighLowMetricValue> rollups = toMap(rollup.close(FIRST));
+        assertEquals(2, rollups.size());
+        HighLowMetricValue val = rollups.get(new Integer(1));
+        assertEquals(5.0, val.getValue(), 0);
+        assertEquals(2.0, val.getLowValue(), 0);
+        assertEquals(9.0, val.getHighValue(), 0);
+        assertEquals(FIRST, val.getTimestamp());
+        assertEquals(5.0, rollups.get(new Integer(2)).getValue(), 0);
+        assertEquals(1, rollup.size());
+
+        assertEquals(100.0, toMap(rollup.close(FIRST + HOUR)).get(new Integer(1)).getValue(), 0);
+        assertTrue(rollup.takeLateHours().isEmpty());
+        // An hour without data has no rollups
+        assertEquals(0, rollup.close(FIRST + 2 * HOUR).size());
+    }
+
+    public void testDuplicatePointLeavesTheAverageUnchanged() throws Exception {
+        List<DataPoint> data = new ArrayList<DataPoint>();
+        data.add(new DataPoint(1, 2, FIRST));
+        data.add(new DataPoint(1, 4, FIRST + MeasurementConstants.MINUTE));
+        // Dropped by the insert, so it must not be rolled up either
+        data.add(new DataPoint(1, 4, FIRST + MeasurementConstants.MINUTE));
+        rollup.add(DataManagerImpl.getPoints(MeasRangeObj.getInstance().bucketDataEliminateDups(data)));
+
+        HighLowMetricValue val = toMap(rollup.close(FIRST)).get(new Integer(1));
+        assertEquals(3.0, val.getValue(), 0);
+        assertEquals(2.0, val.getLowValue(), 0);
+        assertEquals(4.0, val.getHighValue(), 0);
+    }
+
+    public void testHoursBeforeStartAreNotCovered() throws Exception {
+        rollup.add(Collections.singletonList(new DataPoint(1, 1, START)));
+        assertFalse(rollup.isCovering(FIRST - HOUR));
+        assertNull(rollup.close(FIRST - HOUR));
+        assertEquals(0, rollup.size());
+        assertTrue(rollup.takeLateHours().isEmpty());
+    }
+
+    public void testLateData() throws Exception {
+        rollup.add(Collections.singletonList(new DataPoint(1, 1, FIRST)));
+        rollup.close(FIRST);
+
+        rollup.add(Collections.singletonList(new DataPoint(1, 2, FIRST + 1)));
+        assertEquals(0, rollup.size());
+        assertEquals(Collections.singletonList(new Long(FIRST)), rollup.takeLateHours());
+        assertTrue(rollup.takeLateHours().isEmpty());
+    }
+
+    public void testSkippedHoursAreLate() throws Exception {
+        rollup.add(Collections.singletonList(new DataPoint(1, 1, FIRST)));
+        // Compression started after the hour with data
+        rollup.close(FIRST + HOUR);
+        assertEquals(Collections.singletonList(new Long(FIRST)), rollup.takeLateHours());
+    }
+
+    public void testRewrittenData() throws Exception {
+        rollup.add(Collections.singletonList(new DataPoint(1, 1, FIRST)));
+        rollup.addRewritten(Collections.singletonList(new DataPoint(1, 2, FIRST)));
+        assertFalse(rollup.isCovering(FIRST));
+        assertTrue(rollup.isCovering(FIRST + HOUR));
+        assertNull(rollup.close(FIRST));
+        // Compressed with SQL, so it is not late
+        assertTrue(rollup.takeLateHours().isEmpty());
+        assertTrue(rollup.isCovering(FIRST + HOUR));
+    }
+
+    public void testDisabled() throws Exception {
+        rollup = new StreamingRollup(createNiceMock(ConcurrentStatsCollector.class), null, null, null);
+        rollup.initialize(START);
+        rollup.add(Collections.singletonList(new DataPoint(1, 1, FIRST)));
+        assertFalse(rollup.isCovering(FIRST));
+        assertNull(rollup.close(FIRST));
+        assertEquals(0, rollup.size());
+    }
+}
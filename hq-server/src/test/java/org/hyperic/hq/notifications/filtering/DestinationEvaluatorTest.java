@@ -0,0 +1,215 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+
+package org.hyperic.hq.notifications.filtering;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.hyperic.hq.notifications.DefaultEndpoint;
+import org.hyperic.hq.notifications.NotificationEndpoint;
+import org.hyperic.hq.notifications.model.MetricNotification;
+import org.hyperic.hq.product.MetricValue;
+
+public class DestinationEvaluatorTest extends TestCase {
+
+    private static final int NUM_RESOURCES = 100;
+    private MetricDestinationEvaluator evaluator;
+
+    public DestinationEvaluatorTest(String name) {
+        super(name);
+    }
+
+    public void setUp() throws Exception {
+        super.setUp();
+        evaluator = new MetricDestinationEvaluator();
+    }
+
+    private static MetricNotification notification(int mid) {
+        return new MetricNotification(new Integer(mid / 10), new Integer(mid), "name", null, null, "none",
+                                      new MetricValue(mid, 1000));
+    }
+
+    private List<Filter<MetricNotification,? extends FilteringCondition<?>>> byResource(Integer... ids) {
+        List<Filter<MetricNotification,? extends FilteringCondition<?>>> rtn =
+            new ArrayList<Filter<MetricNotification,? extends FilteringCondition<?>>>();
+        rtn.add(new ByResource(new ResourceFilteringCondition(new HashSet<Integer>(Arrays.asList(ids)))));
+        return rtn;
+    }
+
+    private List<Filter<MetricNotification,? extends FilteringCondition<?>>> indicators() {
+        List<Filter<MetricNotification,? extends FilteringCondition<?>>> rtn =
+            new ArrayList<Filter<MetricNotification,? extends FilteringCondition<?>>>();
+        rtn.add(new Indicators());
+        return rtn;
+    }
+
+    private static Set<Integer> measurementIds(Collection<MetricNotification> ns) {
+        Set<Integer> rtn = new HashSet<Integer>();
+        if (ns != null) {
+            for (MetricNotification n : ns) {
+                rtn.add(n.getMeasurementId());
+            }
+        }
+        return rtn;
+    }
+
+    private static Set<Integer> ids(int... ids) {
+        Set<Integer> rtn = new HashSet<Integer>();
+        for (int id : ids) {
+            rtn.add(new Integer(id));
+        }
+        return rtn;
+    }
+
+    public void testRoutesByResource() throws Exception {
+        NotificationEndpoint a = new DefaultEndpoint("a");
+        NotificationEndpoint b = new DefaultEndpoint("b");
+        NotificationEndpoint c = new DefaultEndpoint("c");
+        evaluator.register(a, byResource(new Integer(1), new Integer(2)));
+        evaluator.register(b, byResource(new Integer(2), new Integer(3)));
+        List<Filter<MetricNotification,? extends FilteringCondition<?>>> agnostic =
+            new ArrayList<Filter<MetricNotification,? extends FilteringCondition<?>>>();
+        agnostic.add(new AgnosticFilter<MetricNotification,FilteringCondition<?>>());
+        evaluator.register(c, agnostic);
+
+        List<MetricNotification> ns = new ArrayList<MetricNotification>();
+        for (int mid : new int[] {10, 21, 35, 40}) {
+            ns.add(notification(mid));
+        }
+        Map<NotificationEndpoint, Collection<MetricNotification>> rtn = evaluator.evaluate(ns);
+        assertEquals(ids(10, 21), measurementIds(rtn.get(a)));
+        assertEquals(ids(21, 35), measurementIds(rtn.get(b)));
+        assertEquals(ids(10, 21, 35, 40), measurementIds(rtn.get(c)));
+    }
+
+    public void testOtherFiltersStillApply() throws Exception {
+        NotificationEndpoint a = new DefaultEndpoint("a");
+        evaluator.register(a, byResource(new Integer(1)));
+        evaluator.register(a, indicators());
+
+        List<MetricNotification> ns = new ArrayList<MetricNotification>();
+        for (int mid = 0; mid < 30; mid++) {
+            ns.add(notification(mid));
+        }
+        assertEquals(ids(10, 12, 14, 16, 18), measurementIds(evaluator.evaluate(ns).get(a)));
+    }
+
+    public void testUnregister() throws Exception {
+        NotificationEndpoint a = new DefaultEndpoint("a");
+        evaluator.register(a, byResource(new Integer(1)));
+        List<Filter<MetricNotification,? extends FilteringCondition<?>>> indicators = indicators();
+        evaluator.register(a, indicators);
+        evaluator.unregister(a, indicators);
+
+        List<MetricNotification> ns = new ArrayList<MetricNotification>();
+        ns.add(notification(11));
+        assertEquals(ids(11), measurementIds(evaluator.evaluate(ns).get(a)));
+
+        evaluator.unregisterAll(a);
+        assertTrue(evaluator.evaluate(ns).isEmpty());
+    }
+
+    /**
+     * Routing through the index gives what running every notification through the filter chain of every
+     * registration did.
+     */
+    public void testSameAsFilterChains() throws Exception {
+        Random rand = new Random(7);
+        Map<NotificationEndpoint, FilterChain<MetricNotification>> chains =
+            new HashMap<NotificationEndpoint, FilterChain<MetricNotification>>();
+        for (int i = 0; i < 200; i++) {
+            NotificationEndpoint endpoint = new DefaultEndpoint("reg" + i);
+            List<Filter<MetricNotification,? extends FilteringCondition<?>>> filters =
+                new ArrayList<Filter<MetricNotification,? extends FilteringCondition<?>>>();
+            if (rand.nextInt(4) > 0) {
+                Integer[] rids = new Integer[1 + rand.nextInt(5)];
+                for (int j = 0; j < rids.length; j++) {
+                    rids[j] = new Integer(rand.nextInt(NUM_RESOURCES));
+                }
+                filters.addAll(byResource(rids));
+            }
+            if (rand.nextBoolean()) {
+                filters.addAll(indicators());
+            }
+            evaluator.register(endpoint, filters);
+            chains.put(endpoint, new FilterChain<MetricNotification>(filters));
+        }
+        List<MetricNotification> ns = new ArrayList<MetricNotification>();
+        for (int i = 0; i < 2000; i++) {
+            ns.add(notification(rand.nextInt(NUM_RESOURCES * 10)));
+        }
+
+        Map<NotificationEndpoint, Collection<MetricNotification>> rtn = evaluator.evaluate(ns);
+        for (Map.Entry<NotificationEndpoint, FilterChain<MetricNotification>> entry : chains.entrySet()) {
+            @SuppressWarnings("unchecked")
+            Collection<MetricNotification> expected =
+                (Collection<MetricNotification>) entry.getValue().filter(ns);
+            Collection<MetricNotification> actual = rtn.get(entry.getKey());
+            if (expected.isEmpty()) {
+                assertNull(actual);
+            } else {
+                assertEquals(new ArrayList<MetricNotification>(expected), actual);
+            }
+        }
+    }
+
+    /**
+     * Checks the resource of the notification instead of looking its measurement up
+     */
+    private static class ByResource extends MetricFilterByResource<ResourceFilteringCondition> {
+        private ByResource(ResourceFilteringCondition cond) {
+            super(null, cond);
+        }
+        protected MetricNotification filter(MetricNotification metricNotification) {
+            return cond.check(metricNotification.getResourceID()) ? metricNotification : null;
+        }
+    }
+
+    /**
+     * Passes the measurements with even ids, the way MetricFilter passes indicators
+     */
+    private static class Indicators extends Filter<MetricNotification, MetricFilteringCondition> {
+        private Indicators() {
+            super(new MetricFilteringCondition(Boolean.TRUE));
+        }
+        protected MetricNotification filter(MetricNotification metricNotification) {
+            return metricNotification.getMeasurementId().intValue() % 2 == 0 ? metricNotification : null;
+        }
+        protected Class<? extends MetricNotification> getHandledNotificationClass() {
+            return MetricNotification.class;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * NOTE: This copyright does *not* cover user programs that use HQ
+ * program services by normal system calls through the application
+ * program interfaces provided as part of the Hyperic Plug-in Development
+ * Kit or the Hyperic Client Development Kit - this is merely considered
+ * normal use of the program, and does *not* fall under the heading of
+ * "derived work".
+ *
+ * Copyright (C) [2004-2013], VMware, Inc.
+ * This file is part of HQ.
+ *
+ * HQ is free software; you can redistribute it and/or modify
+ * it under the terms version 2 of the GNU General Public License as
+ * published by the Free Software Foundation. This program is distributed
+ * in the hope that it will be useful, but WITHOUT ANY WARRANTY; without
+ * even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307
+ * USA.
+ */
+
+
+package org.hyperic.hq.zevents;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+
+import org.easymock.classextension.EasyMock;
+import org.hyperic.hq.common.DiagnosticsLogger;
+import org.hyperic.hq.stats.ConcurrentStatsCollector;
+import org.hyperic.util.thread.ThreadWatchdog;
+
+public class ZeventManagerTest extends TestCase {
+
+    private static final int NUM_KEYS = 20;
+    private static final int EVENTS_PER_KEY = 500;
+
+    private ZeventManager manager;
+
+    public ZeventManagerTest(String name) {
+        super(name);
+    }
+
+    private static class KeySourceId implements ZeventSourceId {
+        private static final long serialVersionUID = 1L;
+        private final int key;
+
+        private KeySourceId(int key) {
+            this.key = key;
+        }
+
+        public boolean equals(Object obj) {
+            return (obj instanceof KeySourceId) && ((KeySourceId) obj).key == key;
+        }
+
+        public int hashCode() {
+            return key;
+        }
+    }
+
+    private static class SequenceZevent extends Zevent {
+        private final int seq;
+        private final boolean keyed;
+
+        private SequenceZevent(int key, int seq) {
+            this(key, seq, true);
+        }
+
+        private SequenceZevent(int key, int seq, boolean keyed) {
+            super(new KeySourceId(key), new NullPayload());
+            this.seq = seq;
+            this.keyed = keyed;
+        }
+
+        public Object getPartitionKey() {
+            return keyed ? super.getPartitionKey() : null;
+        }
+    }
+
+    /**
+     * Records the order events of each key arrive in, and fails the test
+     * if it is called by two threads at once.
+     */
+    private static class RecordingListener implements ZeventListener<SequenceZevent> {
+        private final AtomicBoolean inUse = new AtomicBoolean();
+        private final Map<Integer, List<Integer>> seqs = new HashMap<Integer, List<Integer>>();
+        private final Set<Thread> threads = new HashSet<Thread>();
+        private volatile boolean overlapped = false;
+
+        public void processEvents(List<SequenceZevent> events) {
+            if (!inUse.compareAndSet(false, true)) {
+                overlapped = true;
+            }
+            threads.add(Thread.currentThread());
+            for (SequenceZevent e : events) {
+                Integer key = new Integer(((KeySourceId) e.getSourceId()).key);
+                List<Integer> keySeqs = seqs.get(key);
+                if (keySeqs == null) {
+                    keySeqs = new ArrayList<Integer>();
+                    seqs.put(key, keySeqs);
+                }
+                keySeqs.add(new Integer(e.seq));
+            }
+            inUse.set(false);
+        }
+    }
+
+    private ZeventManager createManager(int partitions) {
+        DiagnosticsLogger diagnosticsLogger = EasyMock.createNiceMock(DiagnosticsLogger.class);
+        ThreadWatchdog threadWatchdog = EasyMock.createNiceMock(ThreadWatchdog.class);
+        ConcurrentStatsCollector statsCollector = EasyMock.createNiceMock(ConcurrentStatsCollector.class);
+        EasyMock.replay(diagnosticsLogger, threadWatchdog, statsCollector);
+
+        ZeventManager rtn = new ZeventManager(diagnosticsLogger, threadWatchdog, statsCollector,
+            new Long(100000), new Long(100), new Long(300000), new Long(90000), new Long(60),
+            new Integer(partitions));
+        rtn.initialize();
+        return rtn;
+    }
+
+    public void tearDown() throws Exception {
+        super.tearDown();
+        if (manager != null) {
+            manager.shutdown();
+        }
+    }
+
+    private RecordingListener dispatch(int partitions) throws Exception {
+        manager = createManager(partitions);
+        RecordingListener listener = new RecordingListener();
+        manager.addListener(SequenceZevent.class, listener);
+
+        for (int seq = 0; seq < EVENTS_PER_KEY; seq++) {
+            List<Zevent> events = new ArrayList<Zevent>(NUM_KEYS);
+            for (int key = 0; key < NUM_KEYS; key++) {
+                events.add(new SequenceZevent(key, seq));
+            }
+            manager.enqueueEvents(events);
+        }
+        manager.waitUntilNoEvents();
+        while (manager.getZeventsProcessed() < NUM_KEYS * EVENTS_PER_KEY) {
+            Thread.sleep(10);
+        }
+        return listener;
+    }
+
+    private void assertInOrder(RecordingListener listener) {
+        assertFalse("The listener was called by two partitions at once", listener.overlapped);
+        assertEquals(NUM_KEYS, listener.seqs.size());
+        for (List<Integer> keySeqs : listener.seqs.values()) {
+            assertEquals(EVENTS_PER_KEY, keySeqs.size());
+            for (int i = 0; i < EVENTS_PER_KEY; i++) {
+                assertEquals(new Integer(i), keySeqs.get(i));
+            }
+        }
+    }
+
+    public void testSinglePartition() throws Exception {
+        RecordingListener listener = dispatch(1);
+
+        assertInOrder(listener);
+        assertEquals(1, listener.threads.size());
+    }
+
+    public void testPartitionsKeepOrderOfEachKey() throws Exception {
+        RecordingListener listener = dispatch(4);
+
+        assertEquals(4, manager.getNumPartitions());
+        assertInOrder(listener);
+        assertTrue(listener.threads.size() > 1);
+    }
+
+    public void testEventsWithoutKeyGoToOnePartition() throws Exception {
+        manager = createManager(4);
+        RecordingListener listener = new RecordingListener();
+        manager.addListener(SequenceZevent.class, listener);
+
+        List<Zevent> events = new ArrayList<Zevent>();
+        for (int seq = 0; seq < 100; seq++) {
+            events.add(new SequenceZevent(seq % NUM_KEYS, seq, false));
+        }
+        manager.enqueueEvents(events);
+        manager.waitUntilNoEvents();
+        while (manager.getZeventsProcessed() < 100) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, listener.threads.size());
+        assertEquals(NUM_KEYS, listener.seqs.size());
+    }
+}
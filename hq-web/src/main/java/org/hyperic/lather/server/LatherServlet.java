@@ -60,6 +60,7 @@ import org.hyperic.lather.LatherRemoteException;
 import org.hyperic.lather.LatherValue;
 import org.hyperic.lather.NullLatherValue;
 import org.hyperic.lather.client.LatherHTTPClient;
+import org.hyperic.lather.xcode.LatherStreamCoder;
 import org.hyperic.lather.xcode.LatherXCoder;
 import org.hyperic.util.encoding.Base64;
 
@@ -75,6 +76,13 @@ import org.hyperic.util.encoding.Base64;
  * argsClass = the class which the 'args' is encoded for
  *
  * The response is an encoded LatherValue object.
+ *
+ * Requests carrying the LatherHTTPClient.HDR_ENCODING header instead pass
+ * method and argsClass on the query string and the raw encoded args as an
+ * application/octet-stream body, optionally compressed as per its
+ * Content-Encoding.  The response to those is raw as well, compressed as
+ * per the request's Accept-Encoding.  Legacy requests which advertise the
+ * binary encoding get it confirmed in the response headers.
  */
 @SuppressWarnings("serial")
 public class LatherServlet extends HttpServlet {
@@ -138,17 +146,32 @@ public class LatherServlet extends HttpServlet {
         resp.getOutputStream().print(errMsg);
     }
 
+    /**
+     * @param compression The compression of a binary response, or null for
+     *                    a legacy Base64 encoded one
+     */
     private static void issueSuccessResponse(HttpServletResponse resp, LatherXCoder xCoder, 
-                                             LatherValue res)
+                                             LatherValue res, String compression)
     throws IOException {
         ByteArrayOutputStream bOs;
         DataOutputStream dOs;
         byte[] rawData;
 
-        resp.setContentType("text/latherValue");
         resp.setHeader(LatherHTTPClient.HDR_VALUECLASS, 
                        res.getClass().getName());
 
+        if (compression != null) {
+            resp.setContentType(LatherHTTPClient.CONTENT_TYPE_BINARY);
+            resp.setHeader(LatherHTTPClient.HDR_ENCODING, LatherHTTPClient.ENCODING_BINARY);
+            if (!LatherStreamCoder.COMPRESSION_NONE.equals(compression)) {
+                resp.setHeader("Content-Encoding", compression);
+            }
+            new LatherStreamCoder(xCoder).encode(res, resp.getOutputStream(), compression);
+            return;
+        }
+
+        resp.setContentType("text/latherValue");
+
         bOs = new ByteArrayOutputStream();
         dOs = new DataOutputStream(bOs);
         xCoder.encode(res, dOs);
@@ -202,6 +225,8 @@ public class LatherServlet extends HttpServlet {
         LatherContext ctx;
         byte[] decodedArgs;
         Class<?> valClass;
+        boolean binary;
+        String resCompression = null;
 
         ctx = new LatherContext();
         ctx.setCallerIP(req.getRemoteAddr());
@@ -209,16 +234,37 @@ public class LatherServlet extends HttpServlet {
 
         xCoder    = new LatherXCoder();
 
+        binary = LatherHTTPClient.ENCODING_BINARY.equals(req.getHeader(LatherHTTPClient.HDR_ENCODING));
         method = req.getParameterValues("method");
-        args = req.getParameterValues("args");
         argsClass = req.getParameterValues("argsClass");
 
-        if (method == null || args == null || argsClass == null ||
-            method.length != 1 || args.length != 1 || argsClass.length != 1) {
-            String msg = "Invalid Lather request made from " + req.getRemoteAddr();
-            log.error(msg);
-            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, msg);
-            return;
+        if (binary) {
+            // The args are the request body.  A 4xx response drops the
+            // client back to the legacy encoding.
+            args = null;
+            if (method == null || argsClass == null ||
+                method.length != 1 || argsClass.length != 1) {
+                String msg = "Invalid binary Lather request made from " + req.getRemoteAddr();
+                log.error(msg);
+                resp.sendError(HttpServletResponse.SC_BAD_REQUEST, msg);
+                return;
+            }
+            if (!LatherStreamCoder.isSupported(req.getHeader("Content-Encoding"))) {
+                String msg = "Unsupported Content-Encoding '" + req.getHeader("Content-Encoding") +
+                             "' in binary Lather request made from " + req.getRemoteAddr();
+                log.error(msg);
+                resp.sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE, msg);
+                return;
+            }
+        } else {
+            args = req.getParameterValues("args");
+            if (method == null || args == null || argsClass == null ||
+                method.length != 1 || args.length != 1 || argsClass.length != 1) {
+                String msg = "Invalid Lather request made from " + req.getRemoteAddr();
+                log.error(msg);
+                resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, msg);
+                return;
+            }
         }
 
         if (log.isDebugEnabled()) {
@@ -238,18 +284,29 @@ public class LatherServlet extends HttpServlet {
             return;
         }
 
-        decodedArgs = Base64.decode(args[0]);
-        bIs         = new ByteArrayInputStream(decodedArgs);
-        dIs         = new DataInputStream(bIs);
-
         try {
-            val = xCoder.decode(dIs, valClass);
+            if (binary) {
+                val = new LatherStreamCoder(xCoder).decode(req.getInputStream(), valClass,
+                                                           req.getHeader("Content-Encoding"));
+                resCompression = req.getHeader("Accept-Encoding");
+                if (resCompression == null || !LatherStreamCoder.isSupported(resCompression)) {
+                    resCompression = LatherStreamCoder.COMPRESSION_NONE;
+                }
+            } else {
+                decodedArgs = Base64.decode(args[0]);
+                bIs         = new ByteArrayInputStream(decodedArgs);
+                dIs         = new DataInputStream(bIs);
+                val         = xCoder.decode(dIs, valClass);
+                if (LatherHTTPClient.ENCODING_BINARY.equals(req.getHeader(LatherHTTPClient.HDR_ACCEPT_ENCODING))) {
+                    resp.setHeader(LatherHTTPClient.HDR_ENCODING, LatherHTTPClient.ENCODING_BINARY);
+                }
+            }
         } catch(LatherRemoteException exc){
             LatherServlet.issueErrorResponse(resp, exc.toString());
             return;
         }
 
-        this.doServiceCall(req, resp, method[0], val, xCoder, ctx);
+        this.doServiceCall(req, resp, method[0], val, xCoder, ctx, resCompression);
     }
 
     private class ServiceCaller implements Runnable {
@@ -257,6 +314,7 @@ public class LatherServlet extends HttpServlet {
         private HttpServletResponse resp;
         
         private LatherXCoder xcoder;
+        private String compression;
         private LatherValue arg;
         private LatherContext ctx;
         private String method;
@@ -267,11 +325,12 @@ public class LatherServlet extends HttpServlet {
         private AtomicLong startTime;
         
 
-        private ServiceCaller(HttpServletResponse resp, LatherXCoder xcoder, LatherContext ctx, String method,
-                LatherValue arg, LatherDispatcher latherDispatcher) {
+        private ServiceCaller(HttpServletResponse resp, LatherXCoder xcoder, String compression, LatherContext ctx,
+                String method, LatherValue arg, LatherDispatcher latherDispatcher) {
             
             this.resp = resp;
             this.xcoder = xcoder;
+            this.compression = compression;
             this.ctx = ctx;
             this.method = method;
             this.arg = arg;
@@ -305,7 +364,7 @@ public class LatherServlet extends HttpServlet {
                     res = handleAutoApprovals(res);
                 }
                 
-                issueSuccessResponse(this.resp, this.xcoder, res);
+                issueSuccessResponse(this.resp, this.xcoder, res, this.compression);
             
             } catch(Exception e) {
                 Throwable cause = e.getCause();
@@ -370,11 +429,12 @@ public class LatherServlet extends HttpServlet {
     }
 
     private void doServiceCall(HttpServletRequest req, HttpServletResponse resp, String methName, LatherValue args,
-            LatherXCoder xCoder, LatherContext ctx)
+            LatherXCoder xCoder, LatherContext ctx, String compression)
                     throws IOException {
         
         final LatherDispatcher latherDispatcher = Bootstrap.getBean(LatherDispatcher.class);
-        final ServiceCaller caller = new ServiceCaller(resp, xCoder, ctx, methName, args, latherDispatcher);
+        final ServiceCaller caller = new ServiceCaller(resp, xCoder, compression, ctx, methName, args,
+                                                       latherDispatcher);
         final Thread currentThread = Thread.currentThread();
         final String threadName = currentThread.getName();
 